@@ -0,0 +1,139 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.lealone.docdb.server.pipeline.Stage;
+
+/**
+ * 服务器端的游标，find 和 aggregate 的结果按 batchSize 分批返回，剩下的由 getMore 继续读取。
+ */
+public class DocDBCursor {
+
+    public static final int DEFAULT_FIRST_BATCH_SIZE = 101;
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final DocDBServerConnection conn;
+    private final BsonDocument command; // 创建游标的 find 或 aggregate 命令
+    private final String ns;
+    private final PooledSession session;
+    private final int lease; // 创建游标时会话的租期，只按这个租期提交和归还
+    private final Stage stage;
+    private final YieldPolicy yieldPolicy;
+    private BsonArray pending; // 上次让出调度器时这一批已经读到的文档
+    private long id;
+    private long lastAccessTime;
+    private boolean closed;
+    private boolean inUse; // 有 getMore 正在读取，包括让出调度器的期间
+    private long keysExamined; // 前面的批次已经扫描的索引项和文档个数
+    private long docsExamined;
+
+    public DocDBCursor(DocDBServerConnection conn, BsonDocument command, String ns, PooledSession session,
+            Stage stage, YieldPolicy yieldPolicy) {
+        this.conn = conn;
+        this.command = command;
+        this.ns = ns;
+        this.session = session;
+        this.lease = session.getLease();
+        this.stage = stage;
+        this.yieldPolicy = yieldPolicy;
+        lastAccessTime = System.currentTimeMillis();
+    }
+
+    public DocDBServerConnection getConnection() {
+        return conn;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    void setId(long id) {
+        this.id = id;
+    }
+
+    public String getNamespace() {
+        return ns;
+    }
+
+    public YieldPolicy getYieldPolicy() {
+        return yieldPolicy;
+    }
+
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // 同一个游标同时只能执行一个 getMore，已经有了就返回 false
+    public synchronized boolean acquire() {
+        if (inUse)
+            return false;
+        inUse = true;
+        return true;
+    }
+
+    public synchronized void release() {
+        inUse = false;
+    }
+
+    // 返回 null 表示这一批还没读完就让出了调度器，要在调度器的下一轮循环中再调用
+    public synchronized BsonArray nextBatch(int batchSize) {
+        lastAccessTime = System.currentTimeMillis();
+        BsonArray documents = pending != null ? pending : new BsonArray();
+        pending = null;
+        if (closed)
+            return documents;
+        while (documents.size() < batchSize) {
+            BsonDocument document = stage.next();
+            if (document == Stage.YIELD) {
+                pending = documents;
+                return null;
+            }
+            if (document == null) {
+                close();
+                break;
+            }
+            documents.add(document);
+        }
+        // 到下一个 getMore 之前不保留存储层的游标
+        if (!closed)
+            stage.pause();
+        return documents;
+    }
+
+    /**
+     * find、aggregate 或 getMore 读完一批文档时调用，执行时间超过阈值时记录慢查询日志，
+     * 扫描的个数只算这一批的，start 是这个命令开始执行的时间。
+     */
+    public void logSlowQuery(String op, long start, int nReturned) {
+        long keys = stage.getKeysExamined();
+        long docs = stage.getDocsExamined();
+        long millis = SlowQueryLog.getSlowMillis(conn.getServer(), start);
+        if (millis >= 0)
+            SlowQueryLog.log(op, ns, command, millis, stage, keys - keysExamined, docs - docsExamined,
+                    nReturned);
+        keysExamined = keys;
+        docsExamined = docs;
+    }
+
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            stage.close();
+            if (session.isLeased(lease))
+                session.commit();
+        } finally {
+            session.close(lease);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server;
+
+/**
+ * 带 mongodb 错误码的异常，会被转成 {ok: 0, errmsg, code, codeName} 返回给客户端。
+ */
+public class DocDBException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int BAD_VALUE = 2;
+    public static final int UNKNOWN_ERROR = 8;
+    public static final int FAILED_TO_PARSE = 9;
+    public static final int TYPE_MISMATCH = 14;
+    public static final int ILLEGAL_OPERATION = 20;
+    public static final int NAMESPACE_NOT_FOUND = 26;
+    public static final int PATH_NOT_VIABLE = 28;
+    public static final int CONFLICTING_UPDATE_OPERATORS = 40;
+    public static final int NAMESPACE_EXISTS = 48;
+    public static final int IMMUTABLE_FIELD = 66;
+    public static final int WRITE_CONFLICT = 112;
+    public static final int DUPLICATE_KEY = 11000;
+
+    private final int code;
+    private final String codeName;
+
+    public DocDBException(int code, String codeName, String message) {
+        super(message);
+        this.code = code;
+        this.codeName = codeName;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getCodeName() {
+        return codeName;
+    }
+
+    public static DocDBException badValue(String message) {
+        return new DocDBException(BAD_VALUE, "BadValue", message);
+    }
+}
@@ -5,9 +5,22 @@
  */
 package org.lealone.docdb.server;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.lealone.common.exceptions.DbException;
+import org.lealone.common.util.MapUtils;
+import org.lealone.common.util.StringUtils;
 import org.lealone.db.LealoneDatabase;
+import org.lealone.docdb.server.compress.MessageCompressor;
+import org.lealone.net.AsyncConnection;
 import org.lealone.net.WritableChannel;
 import org.lealone.server.AsyncServer;
 import org.lealone.server.Scheduler;
@@ -16,6 +29,48 @@ public class DocDBServer extends AsyncServer<DocDBServerConnection> {
 
     public static final String DATABASE_NAME = "docdb";
     public static final int DEFAULT_PORT = 9610;
+    public static final long DEFAULT_CURSOR_TIMEOUT = 10 * 60 * 1000; // 10分钟
+    public static final String DEFAULT_COMPRESSORS = "snappy,zstd,zlib";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    public static final int DEFAULT_MAX_IDLE_SESSIONS = 8;
+    public static final long DEFAULT_AGGREGATION_MEMORY_LIMIT = 100 * 1024 * 1024; // 100M
+    public static final int DEFAULT_SCAN_PARALLELISM = Math.min(4,
+            Runtime.getRuntime().availableProcessors());
+    public static final long DEFAULT_PARALLEL_SCAN_MIN_ROWS = 100000;
+    public static final int DEFAULT_YIELD_ROW_COUNT = 10000;
+    public static final long DEFAULT_YIELD_INTERVAL = 10; // 毫秒
+    public static final long DEFAULT_SLOW_QUERY_THRESHOLD = 100; // 毫秒
+
+    // 驱动可能在连接池中的另一个连接上发 getMore，所以游标是全局的
+    private final ConcurrentHashMap<Long, DocDBCursor> cursors = new ConcurrentHashMap<>();
+    private final AtomicLong nextCursorId = new AtomicLong();
+    private long cursorTimeout = DEFAULT_CURSOR_TIMEOUT;
+
+    private final HashSet<String> compressors = new HashSet<>();
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    private int maxIdleSessions = DEFAULT_MAX_IDLE_SESSIONS;
+    private final SessionPool.Stats sessionPoolStats = new SessionPool.Stats();
+
+    private long aggregationMemoryLimit = DEFAULT_AGGREGATION_MEMORY_LIMIT;
+
+    // 大的全表扫描按 key 分区后在这个线程池中并行执行，不占用调度器线程
+    private int scanParallelism = DEFAULT_SCAN_PARALLELISM;
+    private long parallelScanMinRows = DEFAULT_PARALLEL_SCAN_MIN_ROWS;
+    private ExecutorService scanExecutor;
+
+    private int yieldRowCount = DEFAULT_YIELD_ROW_COUNT;
+    private long yieldInterval = DEFAULT_YIELD_INTERVAL;
+
+    private long slowQueryThreshold = DEFAULT_SLOW_QUERY_THRESHOLD;
+
+    // 按调度器的 handlerId 保存，同一个调度器上的连接共用
+    private final ConcurrentHashMap<Integer, MetaDataCache> metaDataCaches = new ConcurrentHashMap<>();
+
+    // serverStatus 命令要遍历所有连接和调度器
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final Set<DocDBServerConnection> connections = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Integer, Scheduler> schedulers = new ConcurrentHashMap<>();
 
     @Override
     public String getType() {
@@ -25,12 +80,124 @@ public class DocDBServer extends AsyncServer<DocDBServerConnection> {
     @Override
     public void init(Map<String, String> config) {
         super.init(config);
+        cursorTimeout = MapUtils.getLong(config, "cursor_timeout", DEFAULT_CURSOR_TIMEOUT);
+        compressionThreshold = MapUtils.getInt(config, "compression_threshold",
+                DEFAULT_COMPRESSION_THRESHOLD);
+        String names = MapUtils.getString(config, "compressors", DEFAULT_COMPRESSORS);
+        for (String name : StringUtils.arraySplit(names, ',', true)) {
+            if (name.isEmpty())
+                continue;
+            if (MessageCompressor.create(name) == null)
+                throw DbException.getInvalidValueException("compressors", name);
+            compressors.add(name);
+        }
+        maxIdleSessions = MapUtils.getInt(config, "max_idle_sessions", DEFAULT_MAX_IDLE_SESSIONS);
+        aggregationMemoryLimit = MapUtils.getLong(config, "aggregation_memory_limit",
+                DEFAULT_AGGREGATION_MEMORY_LIMIT);
+        scanParallelism = MapUtils.getInt(config, "scan_parallelism", DEFAULT_SCAN_PARALLELISM);
+        parallelScanMinRows = MapUtils.getLong(config, "parallel_scan_min_rows",
+                DEFAULT_PARALLEL_SCAN_MIN_ROWS);
+        yieldRowCount = MapUtils.getInt(config, "yield_row_count", DEFAULT_YIELD_ROW_COUNT);
+        yieldInterval = MapUtils.getLong(config, "yield_interval", DEFAULT_YIELD_INTERVAL);
+        slowQueryThreshold = MapUtils.getLong(config, "slow_query_threshold", DEFAULT_SLOW_QUERY_THRESHOLD);
+        if (scanParallelism > 1) {
+            AtomicInteger threadId = new AtomicInteger();
+            scanExecutor = Executors.newFixedThreadPool(scanParallelism, r -> {
+                Thread t = new Thread(r, "DocDBScanThread-" + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
 
         // 创建默认的 mongodb 数据库
         String sql = "CREATE DATABASE IF NOT EXISTS " + DATABASE_NAME;
         LealoneDatabase.getInstance().getSystemSession().prepareStatementLocal(sql).executeUpdate();
     }
 
+    public long getCursorTimeout() {
+        return cursorTimeout;
+    }
+
+    public boolean isCompressorEnabled(String name) {
+        return compressors.contains(name);
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public int getMaxIdleSessions() {
+        return maxIdleSessions;
+    }
+
+    public SessionPool.Stats getSessionPoolStats() {
+        return sessionPoolStats;
+    }
+
+    public long getAggregationMemoryLimit() {
+        return aggregationMemoryLimit;
+    }
+
+    public int getScanParallelism() {
+        return scanExecutor == null ? 1 : scanParallelism;
+    }
+
+    public long getParallelScanMinRows() {
+        return parallelScanMinRows;
+    }
+
+    public ExecutorService getScanExecutor() {
+        return scanExecutor;
+    }
+
+    public YieldPolicy createYieldPolicy() {
+        return new YieldPolicy(yieldRowCount, yieldInterval);
+    }
+
+    public long getSlowQueryThreshold() {
+        return slowQueryThreshold;
+    }
+
+    public MetaDataCache getMetaDataCache(Scheduler scheduler) {
+        return metaDataCaches.computeIfAbsent(scheduler.getHandlerId(), id -> new MetaDataCache());
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Collection<DocDBServerConnection> getConnections() {
+        return connections;
+    }
+
+    public Collection<Scheduler> getSchedulers() {
+        return schedulers.values();
+    }
+
+    public int getCursorCount() {
+        return cursors.size();
+    }
+
+    public void addCursor(DocDBCursor cursor) {
+        cursor.setId(nextCursorId.incrementAndGet());
+        cursors.put(cursor.getId(), cursor);
+    }
+
+    public DocDBCursor getCursor(long id) {
+        return cursors.get(id);
+    }
+
+    public DocDBCursor removeCursor(long id) {
+        return cursors.remove(id);
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (scanExecutor != null)
+            scanExecutor.shutdownNow();
+    }
+
     @Override
     protected int getDefaultPort() {
         return DEFAULT_PORT;
@@ -39,6 +206,17 @@ public class DocDBServer extends AsyncServer<DocDBServerConnection> {
     @Override
     protected DocDBServerConnection createConnection(WritableChannel writableChannel,
             Scheduler scheduler) {
-        return new DocDBServerConnection(this, writableChannel, scheduler, getConnectionSize() + 1);
+        DocDBServerConnection conn = new DocDBServerConnection(this, writableChannel, scheduler,
+                getConnectionSize() + 1);
+        schedulers.putIfAbsent(scheduler.getHandlerId(), scheduler);
+        connections.add(conn);
+        metrics.onConnectionCreated();
+        return conn;
+    }
+
+    @Override
+    public void removeConnection(AsyncConnection conn) {
+        super.removeConnection(conn);
+        connections.remove(conn);
     }
 }
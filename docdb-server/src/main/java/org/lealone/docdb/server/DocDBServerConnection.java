@@ -5,37 +5,49 @@
  */
 package org.lealone.docdb.server;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.UUID;
 
+import org.bson.BsonArray;
 import org.bson.BsonBinaryReader;
 import org.bson.BsonBinaryWriter;
 import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.ByteBufNIO;
 import org.bson.codecs.BsonDocumentCodec;
 import org.bson.codecs.DecoderContext;
 import org.bson.codecs.EncoderContext;
-import org.bson.io.BasicOutputBuffer;
+import org.bson.io.BsonOutput;
 import org.bson.io.ByteBufferBsonInput;
 import org.lealone.common.exceptions.DbException;
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
 import org.lealone.db.Database;
+import org.lealone.db.async.AsyncPeriodicTask;
+import org.lealone.db.async.AsyncResult;
+import org.lealone.db.async.Future;
 import org.lealone.db.session.ServerSession;
 import org.lealone.docdb.server.command.BCAggregate;
+import org.lealone.docdb.server.command.BCCount;
+import org.lealone.docdb.server.command.BCCursor;
 import org.lealone.docdb.server.command.BCDelete;
+import org.lealone.docdb.server.command.BCDistinct;
+import org.lealone.docdb.server.command.BCExplain;
 import org.lealone.docdb.server.command.BCFind;
+import org.lealone.docdb.server.command.BCIndex;
 import org.lealone.docdb.server.command.BCInsert;
 import org.lealone.docdb.server.command.BCOther;
+import org.lealone.docdb.server.command.BCStats;
 import org.lealone.docdb.server.command.BCUpdate;
 import org.lealone.docdb.server.command.BsonCommand;
+import org.lealone.docdb.server.compress.MessageCompressor;
 import org.lealone.net.AsyncConnection;
 import org.lealone.net.NetBuffer;
-import org.lealone.net.NetBufferOutputStream;
 import org.lealone.net.WritableChannel;
+import org.lealone.net.nio.NioBuffer;
 import org.lealone.server.Scheduler;
 
 public class DocDBServerConnection extends AsyncConnection {
@@ -43,25 +55,73 @@ public class DocDBServerConnection extends AsyncConnection {
     private static final Logger logger = LoggerFactory.getLogger(DocDBServerConnection.class);
     private static final boolean DEBUG = BsonCommand.DEBUG;
 
+    private static final int OP_REPLY = 1;
+    private static final int OP_QUERY = 2004;
+    private static final int OP_COMPRESSED = 2012;
+    private static final int OP_MSG = 2013;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_MESSAGE_SIZE = 48000000;
+    private static final int MAX_CACHED_BUFFER_SIZE = 1024 * 1024;
+
+    // OP_MSG 的 flagBits
+    private static final int CHECKSUM_PRESENT = 1;
+    private static final int MORE_TO_COME = 1 << 1;
+    private static final int EXHAUST_ALLOWED = 1 << 16;
+
     private final BsonDocumentCodec codec = new BsonDocumentCodec();
     private final DecoderContext decoderContext = DecoderContext.builder().build();
     private final EncoderContext encoderContext = EncoderContext.builder().build();
 
     private final HashMap<UUID, ServerSession> sessions = new HashMap<>();
+    private final NetBufferBsonOutput output;
+    private int lastResponseId;
+
+    // 按 compressorId 存放在 hello 中协商好的压缩算法，用来压缩解压的 byte[] 可以重用
+    private final MessageCompressor[] compressors = new MessageCompressor[4];
+    private byte[] uncompressedBuffer;
+    private byte[] compressedBuffer;
+
+    private final SessionPool sessionPool;
+    private final MetaDataCache metaDataCache;
+
+    // 当前连接创建的游标，连接关闭时一起关闭
+    private final HashMap<Long, DocDBCursor> cursors = new HashMap<>();
+    private AsyncPeriodicTask cursorTimeoutTask;
+    private long lastCheckTime;
 
-    @SuppressWarnings("unused")
-    private final HashMap<String, LinkedList<PooledSession>> pooledSessionsMap = new HashMap<>();
+    // 让出调度器的命令，在调度器的下一轮循环中继续执行
+    private final ArrayDeque<Runnable> yieldedTasks = new ArrayDeque<>();
+    private AsyncPeriodicTask yieldedTaskRunner;
+    private boolean resumeScheduled; // 已经用 handle 提交了继续执行让出的命令的任务
 
     private final DocDBServer server;
     private final Scheduler scheduler;
     private final int connectionId;
 
+    // 当前请求开始处理的时间，只能在命令同步执行的部分读取，让出调度器之后可能已经是其他请求的了
+    private long requestStartTime;
+
+    // 命令在等存储层的异步操作时就可以读取和执行下一个请求，响应在各自完成时发送，
+    // 用 responseTo 对应到请求，所以跟请求的顺序可以不一样。下面这些字段只在调度器线程中读写
+    private int pendingRequests; // 已经开始执行还没有完成的请求个数
+    private int pendingUnacknowledged; // 其中客户端不等响应的请求(w:0)个数
+    // 客户端不等响应的写操作还没完成时后面的请求要排队，保证同一个连接上的写操作按发送的顺序生效
+    private final ArrayDeque<Runnable> queuedRequests = new ArrayDeque<>();
+    private boolean runningQueuedRequests;
+
     protected DocDBServerConnection(DocDBServer server, WritableChannel channel, Scheduler scheduler,
             int connectionId) {
         super(channel, true);
         this.server = server;
         this.scheduler = scheduler;
         this.connectionId = connectionId;
+        output = new NetBufferBsonOutput(channel, scheduler.getDataBufferFactory());
+        metaDataCache = server.getMetaDataCache(scheduler);
+        sessionPool = new SessionPool(this);
+    }
+
+    public DocDBServer getServer() {
+        return server;
     }
 
     public Scheduler getScheduler() {
@@ -72,30 +132,119 @@ public class DocDBServerConnection extends AsyncConnection {
         return connectionId;
     }
 
+    public long getRequestStartTime() {
+        return requestStartTime;
+    }
+
+    // 不在调度器线程中读取时只是一个近似值
+    public int getPendingRequestCount() {
+        return pendingRequests + queuedRequests.size();
+    }
+
     public HashMap<UUID, ServerSession> getSessions() {
         return sessions;
     }
 
     public PooledSession getPooledSession(Database db) {
-        return new PooledSession(db, BsonCommand.getUser(db), 0, this);
-        // LinkedList<PooledSession> pooledSessions = pooledSessionsMap.get(db.getName());
-        // PooledSession ps = null;
-        // if (pooledSessions == null) {
-        // pooledSessions = new LinkedList<>();
-        // pooledSessionsMap.put(db.getName(), pooledSessions);
-        // } else {
-        // ps = pooledSessions.pollFirst();
-        // }
-        // if (ps == null)
-        // ps = new PooledSession(db, BsonCommand.getUser(db), 0, this);
-        // scheduler.setCurrentSession(ps);
-        // return ps;
-    }
-
-    public void addPooledSession(PooledSession ps) {
-        // LinkedList<PooledSession> pooledSessions = pooledSessionsMap.get(ps.getDatabase().getName());
-        // if (pooledSessions != null && pooledSessions.size() < 8)
-        // pooledSessions.add(ps);
+        return sessionPool.getSession(db);
+    }
+
+    public MetaDataCache getMetaDataCache() {
+        return metaDataCache;
+    }
+
+    public SessionPool getSessionPool() {
+        return sessionPool;
+    }
+
+    // 还没执行完的让出调度器的命令个数，不在调度器线程中读取时只是一个近似值
+    public int getYieldedTaskCount() {
+        return yieldedTasks.size();
+    }
+
+    public YieldPolicy createYieldPolicy() {
+        return server.createYieldPolicy();
+    }
+
+    /**
+     * 只能在当前连接的调度器线程中调用，task 会在调度器处理完其他连接的请求之后再执行。
+     * wakeUp 为 false 表示 task 在等其他线程的结果，由其他线程唤醒调度器。
+     *
+     * 什么时候读取网络事件由调度器决定：wakeUp 为 true 时用 handle 提交一个继续执行的任务，
+     * 其他时候由每轮循环执行一次的周期任务继续执行。
+     */
+    public void yieldAndResume(Runnable task, boolean wakeUp) {
+        yieldedTasks.add(task);
+        // 周期任务在调度器遍历时不能删除，所以每个连接只加一个，连接关闭时才删除
+        if (yieldedTaskRunner == null) {
+            yieldedTaskRunner = () -> runYieldedTasks();
+            scheduler.addPeriodicTask(yieldedTaskRunner);
+        }
+        if (wakeUp && !resumeScheduled) {
+            resumeScheduled = true;
+            // 执行过程中再次让出的任务不在这里提交，否则会在调度器的同一次 runQueueTasks 中反复执行，
+            // 留给这一轮循环的周期任务，它再让出时才提交到下一轮
+            scheduler.handle(() -> {
+                runYieldedTasks();
+                resumeScheduled = false;
+            });
+        }
+    }
+
+    // 执行过程中再次让出的任务要等下一轮循环
+    private void runYieldedTasks() {
+        for (int i = yieldedTasks.size(); i > 0; i--)
+            yieldedTasks.poll().run();
+    }
+
+    public void addCursor(DocDBCursor cursor) {
+        server.addCursor(cursor);
+        synchronized (cursors) {
+            cursors.put(cursor.getId(), cursor);
+        }
+        if (cursorTimeoutTask == null) {
+            cursorTimeoutTask = () -> checkCursorTimeout();
+            scheduler.addPeriodicTask(cursorTimeoutTask);
+        }
+    }
+
+    public DocDBCursor getCursor(long id) {
+        return server.getCursor(id);
+    }
+
+    public boolean closeCursor(long id) {
+        DocDBCursor cursor = server.removeCursor(id);
+        if (cursor == null)
+            return false;
+        DocDBServerConnection conn = cursor.getConnection();
+        synchronized (conn.cursors) {
+            conn.cursors.remove(id);
+        }
+        cursor.close();
+        return true;
+    }
+
+    // 调度器每一轮循环都会调用，所以这里每秒最多检查一次
+    private void checkCursorTimeout() {
+        long now = System.currentTimeMillis();
+        if (now - lastCheckTime < 1000)
+            return;
+        lastCheckTime = now;
+        long timeout = server.getCursorTimeout();
+        for (DocDBCursor cursor : getCursors()) {
+            if (now - cursor.getLastAccessTime() > timeout) {
+                if (DEBUG)
+                    logger.info("cursor {} timeout", cursor.getId());
+                if (closeCursor(cursor.getId()))
+                    server.getMetrics().onCursorTimedOut();
+            }
+        }
+    }
+
+    private DocDBCursor[] getCursors() {
+        synchronized (cursors) {
+            return cursors.values().toArray(new DocDBCursor[0]);
+        }
     }
 
     @Override
@@ -106,23 +255,56 @@ public class DocDBServerConnection extends AsyncConnection {
     @Override
     public void close() {
         super.close();
+        if (cursorTimeoutTask != null) {
+            scheduler.removePeriodicTask(cursorTimeoutTask);
+            cursorTimeoutTask = null;
+        }
+        if (yieldedTaskRunner != null) {
+            scheduler.removePeriodicTask(yieldedTaskRunner);
+            yieldedTaskRunner = null;
+        }
+        yieldedTasks.clear();
+        queuedRequests.clear();
+        for (DocDBCursor cursor : getCursors()) {
+            closeCursor(cursor.getId());
+        }
         for (ServerSession s : sessions.values()) {
             s.close();
         }
         sessions.clear();
+        sessionPool.close();
+        for (MessageCompressor compressor : compressors) {
+            if (compressor != null)
+                compressor.close();
+        }
     }
 
-    private void sendErrorMessage(Throwable e) {
+    // 按客户端给出的顺序返回服务器也支持的压缩算法，客户端会使用第一个
+    public BsonArray negotiateCompression(BsonArray names) {
+        BsonArray result = new BsonArray();
+        for (BsonValue v : names) {
+            String name = v.asString().getValue();
+            if (!server.isCompressorEnabled(name))
+                continue;
+            MessageCompressor compressor = MessageCompressor.create(name);
+            if (compressors[compressor.getId()] == null)
+                compressors[compressor.getId()] = compressor;
+            result.add(v);
+        }
+        return result;
     }
 
-    private void sendMessage(byte[] data) {
-        try (NetBufferOutputStream out = new NetBufferOutputStream(writableChannel, data.length,
-                scheduler.getDataBufferFactory())) {
-            out.write(data);
-            out.flush(false);
-        } catch (IOException e) {
-            logger.error("Failed to send message", e);
-        }
+    // noop 不用协商，消息体没有压缩，返回 null，响应也不压缩
+    private MessageCompressor getCompressor(byte id) {
+        if (id == MessageCompressor.NOOP)
+            return null;
+        MessageCompressor compressor = id > 0 && id < compressors.length ? compressors[id] : null;
+        if (compressor == null)
+            throw DbException.getInternalError("compressor " + id + " is not negotiated");
+        return compressor;
+    }
+
+    private void sendErrorMessage(Throwable e) {
     }
 
     private final ByteBuffer packetLengthByteBuffer = ByteBuffer.allocateDirect(4);
@@ -137,7 +319,7 @@ public class DocDBServerConnection extends AsyncConnection {
         int length = (packetLengthByteBuffer.get() & 0xff);
         length |= (packetLengthByteBuffer.get() & 0xff) << 8;
         length |= (packetLengthByteBuffer.get() & 0xff) << 16;
-        length |= (packetLengthByteBuffer.get() & 0xff) << 20;
+        length |= (packetLengthByteBuffer.get() & 0xff) << 24;
         return length - 4;
     }
 
@@ -146,26 +328,36 @@ public class DocDBServerConnection extends AsyncConnection {
         if (!buffer.isOnlyOnePacket()) {
             DbException.throwInternalError("NetBuffer must be OnlyOnePacket");
         }
+        ByteBufferBsonInput input = null;
         try {
-            int length = buffer.length();
-            byte[] packet = new byte[length];
-            buffer.read(packet, 0, length);
-            buffer.recycle();
-            ByteBufferBsonInput input = new ByteBufferBsonInput(new ByteBufNIO(ByteBuffer.wrap(packet)));
+            server.getMetrics().onRequest(buffer.length() + 4);
+            ByteBuffer byteBuffer = getByteBuffer(buffer);
+            input = new ByteBufferBsonInput(new ByteBufNIO(byteBuffer));
             int requestID = input.readInt32();
             int responseTo = input.readInt32();
             int opCode = input.readInt32();
+            MessageCompressor compressor = null;
+            if (opCode == OP_COMPRESSED) {
+                opCode = input.readInt32();
+                int uncompressedSize = input.readInt32();
+                compressor = getCompressor(input.readByte());
+                if (compressor != null) {
+                    byteBuffer = decompress(compressor, byteBuffer, input.getPosition(), uncompressedSize);
+                    input.close();
+                    input = new ByteBufferBsonInput(new ByteBufNIO(byteBuffer));
+                }
+            }
             if (DEBUG)
                 logger.info("scheduler: {}", Thread.currentThread().getName());
             if (DEBUG)
                 logger.info("opCode: {}, requestID: {}, responseTo: {}", opCode, requestID, responseTo);
             switch (opCode) {
-            case 2013: {
-                handleMessage(input, requestID, responseTo);
+            case OP_MSG: {
+                handleMessage(input, byteBuffer.limit(), requestID, compressor);
                 break;
             }
-            case 2004: {
-                handleQuery(input, requestID, responseTo, opCode);
+            case OP_QUERY: {
+                handleQuery(input, requestID, compressor);
                 break;
             }
             default:
@@ -173,29 +365,271 @@ public class DocDBServerConnection extends AsyncConnection {
         } catch (Throwable e) {
             logger.error("Failed to handle packet", e);
             sendErrorMessage(e);
+        } finally {
+            // 解码完之后才能回收，input 直接引用了 buffer 中的数据
+            if (input != null)
+                input.close();
+            buffer.recycle();
         }
     }
 
-    private void handleMessage(ByteBufferBsonInput input, int requestID, int responseTo) {
-        input.readInt32(); // flagBits
-        int type = input.readByte();
-        BsonDocument response = null;
-        switch (type) {
-        case 0: {
-            response = handleCommand(input);
-            break;
+    // 直接在 NetBuffer 底层的 ByteBuffer 上解码，不用再复制一次
+    private static ByteBuffer getByteBuffer(NetBuffer buffer) {
+        int length = buffer.length();
+        if (buffer instanceof NioBuffer) {
+            ByteBuffer bb = ((NioBuffer) buffer).getByteBuffer().duplicate();
+            bb.limit(bb.position() + length);
+            return bb;
         }
-        case 1: {
-            break;
+        byte[] packet = new byte[length];
+        buffer.read(packet, 0, length);
+        return ByteBuffer.wrap(packet);
+    }
+
+    // 解压后的消息不包含 messageLength、requestID、responseTo、opCode
+    private ByteBuffer decompress(MessageCompressor compressor, ByteBuffer byteBuffer, int position,
+            int uncompressedSize) {
+        if (uncompressedSize < 0 || uncompressedSize > MAX_MESSAGE_SIZE)
+            throw DbException.getInternalError("invalid uncompressedSize " + uncompressedSize);
+        int length = byteBuffer.limit() - position;
+        byte[] in = length > MAX_CACHED_BUFFER_SIZE ? new byte[length]
+                : (compressedBuffer = getBuffer(compressedBuffer, length));
+        ByteBuffer bb = byteBuffer.duplicate();
+        bb.position(position);
+        bb.get(in, 0, length);
+        byte[] out = new byte[uncompressedSize];
+        compressor.decompress(in, 0, length, out, 0, uncompressedSize);
+        server.getMetrics().onDecompressed(compressor.getId(), length, uncompressedSize);
+        return ByteBuffer.wrap(out);
+    }
+
+    private static byte[] getBuffer(byte[] buffer, int size) {
+        if (buffer == null || buffer.length < size)
+            buffer = new byte[Math.max(size, 1024)];
+        return buffer;
+    }
+
+    private void handleMessage(ByteBufferBsonInput input, int end, int requestID,
+            MessageCompressor compressor) {
+        long start = System.nanoTime();
+        int flagBits = input.readInt32();
+        if ((flagBits & CHECKSUM_PRESENT) != 0)
+            end -= 4; // 不校验 checksum
+        if (pendingRequests > 0)
+            server.getMetrics().onPipelinedRequest();
+        BsonDocument doc;
+        try {
+            doc = readSections(input, end);
+        } catch (Throwable e) {
+            startRequest(flagBits);
+            onComplete(null, Future.failedFuture(e), flagBits, requestID, compressor, start);
+            return;
+        }
+        if (pendingUnacknowledged > 0) {
+            // 文档序列已经合并到命令文档中了，排队的请求执行时不再需要 input
+            queuedRequests.add(() -> executeRequest(null, doc, flagBits, requestID, compressor, start));
+            return;
         }
+        executeRequest(input, doc, flagBits, requestID, compressor, start);
+    }
+
+    private void executeRequest(ByteBufferBsonInput input, BsonDocument doc, int flagBits, int requestID,
+            MessageCompressor compressor, long start) {
+        startRequest(flagBits);
+        requestStartTime = start;
+        Future<BsonDocument> future;
+        try {
+            future = handleCommand(input, doc);
+        } catch (Throwable e) {
+            future = Future.failedFuture(e);
+        }
+        onComplete(doc, future, flagBits, requestID, compressor, start);
+    }
+
+    private void startRequest(int flagBits) {
+        pendingRequests++;
+        if ((flagBits & MORE_TO_COME) != 0)
+            pendingUnacknowledged++;
+    }
+
+    // exhaust 的 getMore 要等最后一批发送完才算完成
+    private void finishRequest(int flagBits) {
+        pendingRequests--;
+        if ((flagBits & MORE_TO_COME) != 0 && --pendingUnacknowledged == 0)
+            runQueuedRequests();
+    }
+
+    // 排队的请求同步完成时会再次调用这个方法，用 runningQueuedRequests 避免递归
+    private void runQueuedRequests() {
+        if (runningQueuedRequests)
+            return;
+        runningQueuedRequests = true;
+        try {
+            while (pendingUnacknowledged == 0 && !queuedRequests.isEmpty())
+                queuedRequests.poll().run();
+        } finally {
+            runningQueuedRequests = false;
+        }
+    }
+
+    // insert 等命令要等事务提交后才有结果，这时回调可能在其他线程中执行，
+    // 所以要回到调度器中发送响应
+    private void onComplete(BsonDocument doc, Future<BsonDocument> future, int flagBits, int requestID,
+            MessageCompressor compressor, long start) {
+        Thread thread = Thread.currentThread();
+        future.onComplete(ar -> {
+            if (Thread.currentThread() == thread)
+                handleResponse(doc, ar, flagBits, requestID, compressor, start);
+            else
+                scheduler.handle(() -> handleResponse(doc, ar, flagBits, requestID, compressor, start));
+        });
+    }
+
+    private void handleResponse(BsonDocument doc, AsyncResult<BsonDocument> ar, int flagBits,
+            int requestID, MessageCompressor compressor, long start) {
+        BsonDocument response = toResponse(ar);
+        if (doc != null)
+            recordMetrics(doc, response, start);
+        // w:0 的写操作客户端不等响应，出错了也只能记到日志中
+        if ((flagBits & MORE_TO_COME) != 0) {
+            if (!isOk(response))
+                logger.warn("Failed to execute unacknowledged command: {}", response.toJson());
+            finishRequest(flagBits);
+            return;
+        }
+        // 命令执行期间连接可能已经关闭了，响应没法再发送
+        if (isClosed()) {
+            finishRequest(flagBits);
+            return;
+        }
+        // 允许 exhaust 时不再等客户端发 getMore，直接把游标剩下的批次都推过去，
+        // 每个响应的 responseTo 是上一个响应的 requestID
+        if ((flagBits & EXHAUST_ALLOWED) != 0 && doc != null
+                && doc.getFirstKey().equalsIgnoreCase("getMore") && getCursorId(response) != 0) {
+            int responseId = sendMessage(requestID, response, MORE_TO_COME, compressor);
+            // 不在这里直接执行下一个 getMore，避免递归太深，也让其他连接的请求先执行
+            yieldAndResume(() -> {
+                long resumeTime = System.nanoTime();
+                requestStartTime = resumeTime;
+                Future<BsonDocument> future;
+                try {
+                    future = BCCursor.execute(null, doc, this, "getmore");
+                } catch (Throwable e) {
+                    future = Future.failedFuture(e);
+                }
+                onComplete(doc, future, flagBits, responseId, compressor, resumeTime);
+            }, true);
+            return;
+        }
+        try {
+            sendMessage(requestID, response, 0, compressor);
+        } finally {
+            finishRequest(flagBits);
+        }
+    }
+
+    // 延迟包括解码请求、执行命令和等待事务提交的时间，不包括编码和发送响应的时间
+    private void recordMetrics(BsonDocument doc, BsonDocument response, long start) {
+        String command = doc.getFirstKey().toLowerCase();
+        long micros = (System.nanoTime() - start) / 1000;
+        String ns = getNamespace(doc, command);
+        server.getMetrics().record(command, ns, micros, !isOk(response));
+        if (!SlowQueryLog.isQuery(command)) {
+            long millis = SlowQueryLog.getSlowMillis(server, start);
+            if (millis >= 0)
+                SlowQueryLog.log(doc.getFirstKey(), ns, doc, millis, null, 0, 0, 0);
+        }
+    }
+
+    // 针对集合的命令第一个字段的值是集合名，getMore 的集合名在 collection 字段中，
+    // 删除和改名的集合的统计已经删掉了，不再记录
+    private static String getNamespace(BsonDocument doc, String command) {
+        BsonValue v;
+        switch (command) {
+        case "getmore":
+            v = doc.get("collection");
+            break;
+        case "drop":
+        case "renamecollection":
+            return null;
         default:
+            v = doc.get(doc.getFirstKey());
         }
-        input.close();
-        sendResponse(requestID, response);
+        BsonValue db = doc.get("$db");
+        if (v == null || !v.isString() || db == null || !db.isString())
+            return null;
+        return db.asString().getValue() + "." + v.asString().getValue();
     }
 
-    private BsonDocument handleCommand(ByteBufferBsonInput input) {
-        BsonDocument doc = decode(input);
+    private static BsonDocument toResponse(AsyncResult<BsonDocument> ar) {
+        if (ar.isSucceeded())
+            return ar.getResult();
+        Throwable e = ar.getCause();
+        if (e instanceof DocDBException) {
+            DocDBException de = (DocDBException) e;
+            return BsonCommand.newErrorBsonDocument(de.getCode(), de.getCodeName(), de.getMessage());
+        }
+        logger.error("Failed to execute command", e);
+        return BsonCommand.newErrorBsonDocument(DocDBException.UNKNOWN_ERROR, "UnknownError",
+                e.toString());
+    }
+
+    // kind 0 是命令文档，kind 1 是文档序列(比如 insert 的 documents、delete 的 deletes)，
+    // 文档序列按 identifier 合并到命令文档中，各个命令统一从命令文档中读取
+    private BsonDocument readSections(ByteBufferBsonInput input, int end) {
+        BsonDocument doc = null;
+        ArrayList<String> identifiers = null;
+        ArrayList<BsonArray> sequences = null;
+        while (input.getPosition() < end) {
+            int kind = input.readByte();
+            switch (kind) {
+            case 0:
+                doc = decode(input);
+                break;
+            case 1: {
+                int sectionEnd = input.getPosition() + input.readInt32();
+                String identifier = input.readCString();
+                BsonArray documents = new BsonArray();
+                while (input.getPosition() < sectionEnd) {
+                    documents.add(BsonCommand.readRawDocument(input));
+                }
+                if (identifiers == null) {
+                    identifiers = new ArrayList<>(1);
+                    sequences = new ArrayList<>(1);
+                }
+                identifiers.add(identifier);
+                sequences.add(documents);
+                break;
+            }
+            default:
+                throw new DocDBException(40432, "Location40432", "Unknown section kind " + kind);
+            }
+        }
+        if (doc == null)
+            throw new DocDBException(40587, "Location40587", "OP_MSG requires a body");
+        if (identifiers != null) {
+            for (int i = 0, size = identifiers.size(); i < size; i++) {
+                String identifier = identifiers.get(i);
+                if (doc.containsKey(identifier))
+                    throw new DocDBException(40413, "Location40413",
+                            "Duplicate field name in OP_MSG: " + identifier);
+                doc.append(identifier, sequences.get(i));
+            }
+        }
+        return doc;
+    }
+
+    private static boolean isOk(BsonDocument response) {
+        BsonValue ok = response.get("ok");
+        return ok != null && ok.isNumber() && ok.asNumber().doubleValue() == 1;
+    }
+
+    private static long getCursorId(BsonDocument response) {
+        BsonDocument cursor = response.getDocument("cursor", null);
+        return cursor == null ? 0 : cursor.getNumber("id").longValue();
+    }
+
+    private Future<BsonDocument> handleCommand(ByteBufferBsonInput input, BsonDocument doc) {
         if (DEBUG)
             logger.info("command: {}", doc.toJson());
         String command = doc.getFirstKey().toLowerCase();
@@ -208,14 +642,38 @@ public class DocDBServerConnection extends AsyncConnection {
             return BCDelete.execute(input, doc, this);
         case "find":
             return BCFind.execute(input, doc, this);
+        case "getmore":
+        case "killcursors":
+            return BCCursor.execute(input, doc, this, command);
         case "aggregate":
             return BCAggregate.execute(input, doc, this);
+        case "count":
+            return BCCount.execute(input, doc, this);
+        case "distinct":
+            return BCDistinct.execute(input, doc, this);
+        case "explain":
+            return BCExplain.execute(input, doc, this);
+        default:
+            return Future.succeededFuture(executeCommand(input, doc, command));
+        }
+    }
+
+    private BsonDocument executeCommand(ByteBufferBsonInput input, BsonDocument doc, String command) {
+        switch (command) {
+        case "createindexes":
+        case "dropindexes":
+        case "listindexes":
+            return BCIndex.execute(input, doc, this, command);
+        case "serverstatus":
+        case "top":
+        case "collstats":
+            return BCStats.execute(input, doc, this, command);
         default:
             return BCOther.execute(input, doc, this, command);
         }
     }
 
-    private void handleQuery(ByteBufferBsonInput input, int requestID, int responseTo, int opCode) {
+    private void handleQuery(ByteBufferBsonInput input, int requestID, MessageCompressor compressor) {
         input.readInt32();
         input.readCString();
         input.readInt32();
@@ -228,24 +686,30 @@ public class DocDBServerConnection extends AsyncConnection {
             if (DEBUG)
                 logger.info("returnFieldsSelector: {}", returnFieldsSelector.toJson());
         }
-        input.close();
-        sendResponse(requestID);
-    }
-
-    private void sendResponse(int requestID) {
-        BsonDocument document = new BsonDocument();
-        BsonCommand.setWireVersion(document);
-        BsonCommand.setOk(document);
-        BsonCommand.setN(document, 1);
-        sendResponse(requestID, document);
+        // 没有指定 ServerApi 的驱动用 OP_QUERY 发送第一个 isMaster，也要在这里协商压缩算法，
+        // 有读偏好时命令包在 $query 中
+        if (doc.getFirstKey().equals("$query") && doc.get("$query").isDocument())
+            doc = doc.getDocument("$query");
+        String command = doc.isEmpty() ? "" : doc.getFirstKey().toLowerCase();
+        BsonDocument document;
+        if (command.equals("hello") || command.equals("ismaster")) {
+            document = BCOther.execute(input, doc, this, command);
+        } else {
+            document = new BsonDocument();
+            BsonCommand.setWireVersion(document);
+            BsonCommand.setOk(document);
+            BsonCommand.setN(document, 1);
+        }
+        sendResponse(requestID, document, compressor);
     }
 
-    private void sendResponse(int requestID, BsonDocument document) {
-        BasicOutputBuffer out = new BasicOutputBuffer();
+    // OP_QUERY 用 OP_REPLY 响应
+    private void sendResponse(int requestID, BsonDocument document, MessageCompressor compressor) {
+        NetBufferBsonOutput out = output.reset(NetBufferBsonOutput.DEFAULT_BUFFER_SIZE);
         out.writeInt32(0);
+        out.writeInt32(++lastResponseId);
         out.writeInt32(requestID);
-        out.writeInt32(requestID);
-        out.writeInt32(1);
+        out.writeInt32(OP_REPLY);
 
         out.writeInt32(0);
         out.writeInt64(0);
@@ -253,10 +717,49 @@ public class DocDBServerConnection extends AsyncConnection {
         out.writeInt32(1);
 
         encode(out, document);
+        flush(out, OP_REPLY, compressor);
+    }
+
+    // OP_MSG 用 OP_MSG 响应，返回这个响应的 requestID
+    private int sendMessage(int responseTo, BsonDocument document, int flagBits,
+            MessageCompressor compressor) {
+        int requestID = ++lastResponseId;
+        NetBufferBsonOutput out = output.reset(NetBufferBsonOutput.DEFAULT_BUFFER_SIZE);
+        out.writeInt32(0);
+        out.writeInt32(requestID);
+        out.writeInt32(responseTo);
+        out.writeInt32(OP_MSG);
+
+        out.writeInt32(flagBits);
+        out.writeByte(0);
+
+        encode(out, document);
+        flush(out, OP_MSG, compressor);
+        return requestID;
+    }
 
+    // 请求是压缩过的并且响应超过阈值时，用相同的算法把消息头之后的内容压缩成 OP_COMPRESSED
+    private void flush(NetBufferBsonOutput out, int opCode, MessageCompressor compressor) {
+        int length = out.getPosition() - HEADER_SIZE;
+        if (compressor != null && length > server.getCompressionThreshold()) {
+            byte[] in = length > MAX_CACHED_BUFFER_SIZE ? new byte[length]
+                    : (uncompressedBuffer = getBuffer(uncompressedBuffer, length));
+            out.getBytes(HEADER_SIZE, in, length);
+            int maxLength = compressor.getMaxCompressedLength(length);
+            byte[] compressed = maxLength > MAX_CACHED_BUFFER_SIZE ? new byte[maxLength]
+                    : (compressedBuffer = getBuffer(compressedBuffer, maxLength));
+            int compressedLength = compressor.compress(in, 0, length, compressed, 0);
+            server.getMetrics().onCompressed(compressor.getId(), length, compressedLength);
+            out.truncateToPosition(HEADER_SIZE - 4);
+            out.writeInt32(OP_COMPRESSED);
+            out.writeInt32(opCode);
+            out.writeInt32(length);
+            out.writeByte(compressor.getId());
+            out.writeBytes(compressed, 0, compressedLength);
+        }
         out.writeInt32(0, out.getPosition());
-        sendMessage(out.toByteArray());
-        out.close();
+        server.getMetrics().onResponse(out.getPosition());
+        out.flush();
     }
 
     public BsonDocument decode(ByteBufferBsonInput input) {
@@ -264,7 +767,7 @@ public class DocDBServerConnection extends AsyncConnection {
         return codec.decode(reader, decoderContext);
     }
 
-    private void encode(BasicOutputBuffer out, BsonDocument document) {
+    private void encode(BsonOutput out, BsonDocument document) {
         BsonBinaryWriter bsonBinaryWriter = new BsonBinaryWriter(out);
         codec.encode(bsonBinaryWriter, document, encoderContext);
     }
@@ -0,0 +1,119 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server;
+
+import java.util.HashMap;
+
+import org.lealone.db.Database;
+import org.lealone.db.DbObjectBase;
+import org.lealone.db.auth.User;
+import org.lealone.db.table.Table;
+
+/**
+ * 每个调度器缓存按数据库名和集合名解析出来的 Database、Table 和 User，
+ * 避免每个命令都去查找数据库、模式和表。只在调度器线程中访问，所以不需要同步。
+ *
+ * 当前调度器执行的 DDL 会主动让缓存失效；其他调度器或者 SQL 客户端执行 DDL 时，
+ * 被修改的对象会得到新的 modificationId(删除后变成 -1)，取缓存时发现变了就重新解析。
+ */
+public class MetaDataCache {
+
+    private final HashMap<String, DatabaseEntry> databases = new HashMap<>();
+
+    public Database getDatabase(String dbName) {
+        DatabaseEntry e = databases.get(dbName);
+        if (e == null)
+            return null;
+        if (!e.isValid()) {
+            databases.remove(dbName);
+            return null;
+        }
+        return e.db.object;
+    }
+
+    public void putDatabase(String dbName, Database db) {
+        DatabaseEntry e = new DatabaseEntry(db);
+        databases.put(dbName, e);
+        // 按 Database 取表和用户时用的是它自己的名字，可能和命令中的数据库名大小写不同
+        if (!dbName.equals(db.getName()))
+            databases.put(db.getName(), e);
+    }
+
+    public Table getTable(Database db, String tableName) {
+        DatabaseEntry e = databases.get(db.getName());
+        if (e == null || e.db.object != db)
+            return null;
+        Entry<Table> t = e.tables.get(tableName);
+        if (t == null)
+            return null;
+        if (!t.isValid()) {
+            e.tables.remove(tableName);
+            return null;
+        }
+        return t.object;
+    }
+
+    public void putTable(Database db, String tableName, Table table) {
+        DatabaseEntry e = databases.get(db.getName());
+        if (e != null && e.db.object == db)
+            e.tables.put(tableName, new Entry<>(table));
+    }
+
+    public User getUser(Database db) {
+        DatabaseEntry e = databases.get(db.getName());
+        if (e == null || e.db.object != db || e.user == null || !e.user.isValid())
+            return null;
+        return e.user.object;
+    }
+
+    public void putUser(Database db, User user) {
+        DatabaseEntry e = databases.get(db.getName());
+        if (e != null && e.db.object == db)
+            e.user = new Entry<>(user);
+    }
+
+    public void invalidateDatabase(String dbName) {
+        DatabaseEntry e = databases.remove(dbName);
+        if (e != null)
+            databases.values().remove(e);
+    }
+
+    public void invalidateTable(String dbName, String tableName) {
+        DatabaseEntry e = databases.get(dbName);
+        if (e != null)
+            e.tables.remove(tableName);
+    }
+
+    private static class Entry<T extends DbObjectBase> {
+
+        final T object;
+        final long modificationId;
+
+        Entry(T object) {
+            this.object = object;
+            this.modificationId = object.getModificationId();
+        }
+
+        boolean isValid() {
+            return object.getModificationId() == modificationId;
+        }
+    }
+
+    private static class DatabaseEntry {
+
+        final Entry<Database> db;
+        final HashMap<String, Entry<Table>> tables = new HashMap<>();
+        Entry<User> user;
+
+        DatabaseEntry(Database db) {
+            this.db = new Entry<>(db);
+        }
+
+        boolean isValid() {
+            return db.isValid() && db.object.isInitialized();
+        }
+    }
+}
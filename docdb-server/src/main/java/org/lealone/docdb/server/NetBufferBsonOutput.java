@@ -0,0 +1,135 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.ByteBuf;
+import org.bson.ByteBufNIO;
+import org.bson.io.OutputBuffer;
+import org.lealone.db.DataBufferFactory;
+import org.lealone.net.NetBuffer;
+import org.lealone.net.WritableChannel;
+import org.lealone.net.nio.NioBuffer;
+
+/**
+ * 把 BSON 直接编码到 WritableChannel 使用的 NetBuffer 中，不再经过 BasicOutputBuffer 和 byte[]。
+ *
+ * NetBuffer 从调度器的 DataBufferFactory 中分配，写到网络之后由 WritableChannel 回收，
+ * 所以同一个调度器上的响应会反复使用相同的一批 buffer。
+ */
+public class NetBufferBsonOutput extends OutputBuffer {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final WritableChannel writableChannel;
+    private final DataBufferFactory dataBufferFactory;
+    private NetBuffer buffer;
+
+    public NetBufferBsonOutput(WritableChannel writableChannel, DataBufferFactory dataBufferFactory) {
+        this.writableChannel = writableChannel;
+        this.dataBufferFactory = dataBufferFactory;
+    }
+
+    public NetBufferBsonOutput reset(int initialSize) {
+        if (buffer != null)
+            buffer.recycle();
+        buffer = writableChannel.getBufferFactory().createBuffer(initialSize, dataBufferFactory);
+        return this;
+    }
+
+    // 写到网络之后 buffer 就归 WritableChannel 了
+    public void flush() {
+        buffer.flip();
+        writableChannel.write(buffer);
+        buffer = null;
+    }
+
+    @Override
+    public void close() {
+        if (buffer != null) {
+            buffer.recycle();
+            buffer = null;
+        }
+    }
+
+    @Override
+    public void writeBytes(byte[] bytes, int offset, int length) {
+        buffer.appendBytes(bytes, offset, length);
+    }
+
+    @Override
+    public void writeByte(int value) {
+        buffer.appendByte((byte) value);
+    }
+
+    // NetBuffer 是大端的，BSON 是小端的
+    @Override
+    public void writeInt32(int value) {
+        buffer.appendInt(Integer.reverseBytes(value));
+    }
+
+    @Override
+    public void writeInt64(long value) {
+        buffer.appendInt(Integer.reverseBytes((int) value));
+        buffer.appendInt(Integer.reverseBytes((int) (value >>> 32)));
+    }
+
+    @Override
+    public void writeDouble(double value) {
+        writeInt64(Double.doubleToRawLongBits(value));
+    }
+
+    @Override
+    protected void write(int position, int value) {
+        buffer.setByte(position, (byte) value);
+    }
+
+    @Override
+    public int getPosition() {
+        return buffer.length();
+    }
+
+    @Override
+    public int getSize() {
+        return buffer.length();
+    }
+
+    @Override
+    public void truncateToPosition(int newPosition) {
+        if (newPosition > getPosition() || newPosition < 0)
+            throw new IllegalArgumentException();
+        getByteBuffer().position(newPosition);
+    }
+
+    public void getBytes(int position, byte[] dst, int length) {
+        ByteBuffer bb = getByteBuffer().duplicate();
+        bb.position(position);
+        bb.get(dst, 0, length);
+    }
+
+    private ByteBuffer getByteBuffer() {
+        return ((NioBuffer) buffer).getByteBuffer();
+    }
+
+    @Override
+    public List<ByteBuf> getByteBuffers() {
+        ByteBuffer bb = getByteBuffer().duplicate();
+        bb.flip();
+        return Collections.singletonList(new ByteBufNIO(bb));
+    }
+
+    @Override
+    public int pipe(OutputStream out) throws IOException {
+        byte[] bytes = toByteArray();
+        out.write(bytes);
+        return bytes.length;
+    }
+}
@@ -11,15 +11,51 @@ import org.lealone.db.session.ServerSession;
 
 public class PooledSession extends ServerSession {
 
-    private final DocDBServerConnection conn;
+    private final SessionPool pool;
+    private boolean idle; // 在池中时为 true，避免重复 close 时同一个会话被放回去两次
+    private int lease; // 每次从池中取出时加一，过期的租期不能再归还会话
 
-    public PooledSession(Database database, User user, int id, DocDBServerConnection conn) {
+    public PooledSession(Database database, User user, int id, SessionPool pool) {
         super(database, user, id);
-        this.conn = conn;
+        this.pool = pool;
     }
 
+    boolean isIdle() {
+        return idle;
+    }
+
+    void setIdle(boolean idle) {
+        this.idle = idle;
+    }
+
+    void nextLease() {
+        lease++;
+    }
+
+    public int getLease() {
+        return lease;
+    }
+
+    // 会话还没有按这个租期归还
+    public boolean isLeased(int lease) {
+        return pool.isLeased(this, lease);
+    }
+
+    // 还给会话池，而不是真的关闭
     @Override
     public void close() {
-        conn.addPooledSession(this);
+        pool.release(this, lease);
+    }
+
+    /**
+     * 持有会话的时间可能比命令长的(比如游标)要记下取出时的租期，用这个方法归还，
+     * 这样重复关闭时不会把已经给了其他命令的会话回滚后放回池中。
+     */
+    public void close(int lease) {
+        pool.release(this, lease);
+    }
+
+    void closeSession() {
+        super.close();
     }
 }
@@ -0,0 +1,319 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.lealone.common.util.StringUtils;
+
+/**
+ * 服务器的运行指标，serverStatus、top 和 collStats 命令从这里读取。
+ *
+ * 所有调度器线程都会更新，所以计数器都用 LongAdder，每个线程更新自己的槽，不会竞争同一个缓存行。
+ * 按命令和集合分开的统计第一次用到时创建，之后每次只多一次 ConcurrentHashMap 的读操作。
+ */
+public class ServerMetrics {
+
+    // 延迟按读、写、其他命令三类统计，跟 mongodb 的 opLatencies 一样
+    public static final int READS = 0;
+    public static final int WRITES = 1;
+    public static final int COMMANDS = 2;
+
+    // top 命令中每个集合的统计项
+    public static final String[] TOP_NAMES = { "total", "readLock", "writeLock", "queries", "getmore",
+            "insert", "update", "remove", "commands" };
+    private static final int TOTAL = 0;
+    private static final int READ_LOCK = 1;
+    private static final int WRITE_LOCK = 2;
+    private static final int QUERIES = 3;
+    private static final int GETMORE = 4;
+    private static final int INSERT = 5;
+    private static final int UPDATE = 6;
+    private static final int REMOVE = 7;
+    private static final int OTHER_COMMANDS = 8;
+
+    private static final NamespaceStats EMPTY_NAMESPACE_STATS = new NamespaceStats();
+
+    private final long startTime = System.currentTimeMillis();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder pipelinedRequests = new LongAdder();
+    private final LongAdder connectionsCreated = new LongAdder();
+    private final LongAdder cursorsTimedOut = new LongAdder();
+    // 按 compressorId 统计压缩和解压前后的字节数，跟 mongodb 的 network.compression 一样
+    private final LongAdder[][] compression = new LongAdder[4][4];
+    private final LatencyStats[] opLatencies = { new LatencyStats(), new LatencyStats(),
+            new LatencyStats() };
+    private final ConcurrentHashMap<String, CommandStats> commands = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, NamespaceStats> namespaces = new ConcurrentHashMap<>();
+
+    ServerMetrics() {
+        for (LongAdder[] a : compression) {
+            for (int i = 0; i < a.length; i++)
+                a[i] = new LongAdder();
+        }
+    }
+
+    void onCompressed(byte compressorId, int bytesIn, int bytesOut) {
+        compression[compressorId][0].add(bytesIn);
+        compression[compressorId][1].add(bytesOut);
+    }
+
+    void onDecompressed(byte compressorId, int bytesIn, int bytesOut) {
+        compression[compressorId][2].add(bytesIn);
+        compression[compressorId][3].add(bytesOut);
+    }
+
+    void onRequest(int bytes) {
+        requests.increment();
+        bytesIn.add(bytes);
+    }
+
+    // 同一个连接上前面的请求还没完成时就收到的请求
+    void onPipelinedRequest() {
+        pipelinedRequests.increment();
+    }
+
+    void onResponse(int bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void onConnectionCreated() {
+        connectionsCreated.increment();
+    }
+
+    void onCursorTimedOut() {
+        cursorsTimedOut.increment();
+    }
+
+    // command 是小写的命令名，ns 是 "数据库名.集合名"，不是针对某个集合的命令为 null
+    void record(String command, String ns, long micros, boolean failed) {
+        CommandStats cs = commands.get(command);
+        if (cs == null)
+            cs = commands.computeIfAbsent(command, k -> new CommandStats());
+        cs.total.increment();
+        if (failed)
+            cs.failed.increment();
+        int type = getLatencyType(command);
+        opLatencies[type].record(micros);
+        if (ns != null) {
+            String key = getKey(ns);
+            NamespaceStats stats = namespaces.get(key);
+            if (stats == null)
+                stats = namespaces.computeIfAbsent(key, k -> new NamespaceStats());
+            stats.record(command, type, micros);
+        }
+    }
+
+    // lealone 中的数据库名和表名不区分大小写，都转成了大写，所以集合的统计也按大写的名称保存
+    private static String getKey(String ns) {
+        return StringUtils.toUpperEnglish(ns);
+    }
+
+    private static int getLatencyType(String command) {
+        switch (command) {
+        case "find":
+        case "getmore":
+        case "aggregate":
+        case "count":
+        case "distinct":
+            return READS;
+        case "insert":
+        case "update":
+        case "delete":
+        case "findandmodify":
+            return WRITES;
+        default:
+            return COMMANDS;
+        }
+    }
+
+    private static int getTopType(String command) {
+        switch (command) {
+        case "find":
+        case "aggregate":
+        case "count":
+        case "distinct":
+            return QUERIES;
+        case "getmore":
+            return GETMORE;
+        case "insert":
+            return INSERT;
+        case "update":
+        case "findandmodify":
+            return UPDATE;
+        case "delete":
+            return REMOVE;
+        default:
+            return OTHER_COMMANDS;
+        }
+    }
+
+    public long getUptimeMillis() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getPipelinedRequests() {
+        return pipelinedRequests.sum();
+    }
+
+    public long getConnectionsCreated() {
+        return connectionsCreated.sum();
+    }
+
+    // 依次是压缩前、压缩后、解压前、解压后的字节数
+    public long[] getCompressionStats(byte compressorId) {
+        long[] stats = new long[4];
+        for (int i = 0; i < stats.length; i++)
+            stats[i] = compression[compressorId][i].sum();
+        return stats;
+    }
+
+    public long getCursorsTimedOut() {
+        return cursorsTimedOut.sum();
+    }
+
+    public LatencyStats getOpLatencies(int type) {
+        return opLatencies[type];
+    }
+
+    public Map<String, CommandStats> getCommandStats() {
+        return commands;
+    }
+
+    public Map<String, NamespaceStats> getNamespaceStats() {
+        return namespaces;
+    }
+
+    // 还没有统计时返回一个全是 0 的
+    public NamespaceStats getNamespaceStats(String ns) {
+        return namespaces.getOrDefault(getKey(ns), EMPTY_NAMESPACE_STATS);
+    }
+
+    // 集合删除或改名后原来的统计就没用了
+    public void removeNamespaceStats(String ns) {
+        namespaces.remove(getKey(ns));
+    }
+
+    public void removeDatabaseStats(String dbName) {
+        String prefix = getKey(dbName) + ".";
+        namespaces.keySet().removeIf(ns -> ns.startsWith(prefix));
+    }
+
+    public static class CommandStats {
+
+        private final LongAdder total = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+
+        public long getTotal() {
+            return total.sum();
+        }
+
+        public long getFailed() {
+            return failed.sum();
+        }
+    }
+
+    public static class NamespaceStats {
+
+        private final LongAdder[] times = new LongAdder[TOP_NAMES.length];
+        private final LongAdder[] counts = new LongAdder[TOP_NAMES.length];
+        private final LatencyStats[] latencies = { new LatencyStats(), new LatencyStats(),
+                new LatencyStats() };
+
+        NamespaceStats() {
+            for (int i = 0; i < times.length; i++) {
+                times[i] = new LongAdder();
+                counts[i] = new LongAdder();
+            }
+        }
+
+        private void record(String command, int latencyType, long micros) {
+            latencies[latencyType].record(micros);
+            int topType = getTopType(command);
+            add(TOTAL, micros);
+            add(topType, micros);
+            if (topType == QUERIES || topType == GETMORE)
+                add(READ_LOCK, micros);
+            else if (topType != OTHER_COMMANDS)
+                add(WRITE_LOCK, micros);
+        }
+
+        private void add(int index, long micros) {
+            times[index].add(micros);
+            counts[index].increment();
+        }
+
+        // index 对应 TOP_NAMES 中的位置
+        public long getTime(int index) {
+            return times[index].sum();
+        }
+
+        public long getCount(int index) {
+            return counts[index].sum();
+        }
+
+        public LatencyStats getLatencyStats(int type) {
+            return latencies[type];
+        }
+    }
+
+    /**
+     * 延迟的单位是微秒，直方图的第 i 个桶(i > 0)记录的是 [2^(i-1), 2^i) 之间的延迟，
+     * 跟 mongodb 的 opLatencies 直方图一样按 2 的幂分桶，只记录次数，不保存每个值。
+     */
+    public static class LatencyStats {
+
+        public static final int BUCKET_COUNT = 40; // 最后一个桶包含 2^38 微秒(大约 3 天)以上的延迟
+
+        private final LongAdder ops = new LongAdder();
+        private final LongAdder latency = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+
+        LatencyStats() {
+            for (int i = 0; i < BUCKET_COUNT; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        void record(long micros) {
+            ops.increment();
+            latency.add(micros);
+            buckets[Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1)].increment();
+        }
+
+        public long getOps() {
+            return ops.sum();
+        }
+
+        // 所有操作的延迟之和
+        public long getLatency() {
+            return latency.sum();
+        }
+
+        public long getBucketLowerBound(int index) {
+            return index == 0 ? 0 : 1L << (index - 1);
+        }
+
+        public long getCount(int index) {
+            return buckets[index].sum();
+        }
+    }
+}
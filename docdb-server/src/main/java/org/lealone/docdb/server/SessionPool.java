@@ -0,0 +1,130 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.lealone.db.Database;
+import org.lealone.docdb.server.command.BsonCommand;
+
+/**
+ * 每个连接按数据库缓存用完的 PooledSession，不用每个命令都创建一个新的 ServerSession。
+ *
+ * 会话归还时回滚没有提交的事务，每个数据库最多保留 maxIdle 个空闲会话，多出来的直接关闭。
+ * 事务可能在日志同步线程中提交完再归还会话，游标也可能被其他连接关闭，所以方法都要同步。
+ */
+public class SessionPool {
+
+    private final HashMap<String, ArrayDeque<PooledSession>> idleSessions = new HashMap<>();
+    private final DocDBServer server;
+    private final DocDBServerConnection conn;
+    private final int maxIdle;
+    private boolean closed;
+
+    public SessionPool(DocDBServerConnection conn) {
+        this.conn = conn;
+        this.server = conn.getServer();
+        this.maxIdle = server.getMaxIdleSessions();
+    }
+
+    public synchronized PooledSession getSession(Database db) {
+        ArrayDeque<PooledSession> sessions = idleSessions.get(db.getName());
+        if (sessions != null) {
+            PooledSession ps;
+            while ((ps = sessions.pollLast()) != null) {
+                // 数据库删除后又用同样的名字创建时，原来的会话不能再用
+                if (ps.getDatabase() == db && !ps.isClosed()) {
+                    ps.setIdle(false);
+                    ps.nextLease();
+                    server.getSessionPoolStats().hit();
+                    return ps;
+                }
+                ps.closeSession();
+            }
+        }
+        server.getSessionPoolStats().miss();
+        return new PooledSession(db, BsonCommand.getUser(db, conn), 0, this);
+    }
+
+    synchronized boolean isLeased(PooledSession ps, int lease) {
+        return !ps.isIdle() && !ps.isClosed() && ps.getLease() == lease;
+    }
+
+    synchronized void release(PooledSession ps, int lease) {
+        if (!isLeased(ps, lease))
+            return;
+        // 不管是否出错，还给池之前都要回滚没有提交的事务，释放锁
+        try {
+            ps.rollback();
+        } catch (Throwable t) {
+            ps.closeSession();
+            return;
+        }
+        ArrayDeque<PooledSession> sessions = idleSessions.get(ps.getDatabase().getName());
+        if (sessions == null) {
+            sessions = new ArrayDeque<>();
+            idleSessions.put(ps.getDatabase().getName(), sessions);
+        }
+        if (closed || sessions.size() >= maxIdle) {
+            server.getSessionPoolStats().evict();
+            ps.closeSession();
+            return;
+        }
+        ps.setIdle(true);
+        sessions.add(ps);
+    }
+
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (ArrayDeque<PooledSession> sessions : idleSessions.values())
+            count += sessions.size();
+        return count;
+    }
+
+    // 连接关闭后还在用的会话归还时直接关闭
+    public synchronized void close() {
+        closed = true;
+        for (ArrayDeque<PooledSession> sessions : idleSessions.values()) {
+            for (PooledSession ps : sessions)
+                ps.closeSession();
+        }
+        idleSessions.clear();
+    }
+
+    public static class Stats {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+
+        void hit() {
+            hits.increment();
+        }
+
+        void miss() {
+            misses.increment();
+        }
+
+        void evict() {
+            evictions.increment();
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        // 空闲会话太多时被关闭的次数
+        public long getEvictions() {
+            return evictions.sum();
+        }
+    }
+}
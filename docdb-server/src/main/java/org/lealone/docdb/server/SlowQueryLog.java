@@ -0,0 +1,80 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server;
+
+import java.util.Map.Entry;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.lealone.common.logging.Logger;
+import org.lealone.common.logging.LoggerFactory;
+import org.lealone.docdb.server.pipeline.Stage;
+
+/**
+ * 执行时间超过 slow_query_threshold 毫秒的命令记录到日志中。
+ *
+ * 查询命令(find、aggregate、getMore 和有条件的 count)在执行完时自己记录，
+ * 跟 mongodb 的慢查询日志一样带上执行计划的摘要、扫描的索引项和文档个数以及返回的文档个数，
+ * 其他命令由 DocDBServerConnection 在记录运行指标时一起记录，只有执行时间。
+ */
+public class SlowQueryLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(SlowQueryLog.class);
+
+    static boolean isQuery(String command) {
+        switch (command) {
+        case "find":
+        case "aggregate":
+        case "getmore":
+        case "count":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // 没有超过阈值时返回 -1
+    public static long getSlowMillis(DocDBServer server, long start) {
+        long threshold = server.getSlowQueryThreshold();
+        if (threshold <= 0)
+            return -1;
+        long millis = (System.nanoTime() - start) / 1000000;
+        return millis >= threshold ? millis : -1;
+    }
+
+    /**
+     * command 是命令文档，getMore 用的是创建游标的命令，stage 为 null 时不记录执行计划和扫描的个数。
+     */
+    public static void log(String op, String ns, BsonDocument command, long millis, Stage stage,
+            long keysExamined, long docsExamined, long nReturned) {
+        BsonDocument entry = new BsonDocument();
+        entry.append("op", new BsonString(op));
+        if (ns != null)
+            entry.append("ns", new BsonString(ns));
+        entry.append("command", stage != null ? removeGenericArguments(command)
+                : new BsonDocument(command.getFirstKey(), command.get(command.getFirstKey())));
+        if (stage != null) {
+            entry.append("planSummary", new BsonString(stage.getPlanSummary()));
+            entry.append("keysExamined", new BsonInt64(keysExamined));
+            entry.append("docsExamined", new BsonInt64(docsExamined));
+            entry.append("nreturned", new BsonInt64(nReturned));
+        }
+        entry.append("durationMillis", new BsonInt64(millis));
+        logger.warn("Slow query: {}", entry.toJson());
+    }
+
+    // lsid、$db、$clusterTime 这些每个命令都有的字段对分析慢查询没有用
+    private static BsonDocument removeGenericArguments(BsonDocument command) {
+        BsonDocument document = new BsonDocument();
+        for (Entry<String, BsonValue> e : command.entrySet()) {
+            if (!e.getKey().startsWith("$") && !e.getKey().equals("lsid"))
+                document.append(e.getKey(), e.getValue());
+        }
+        return document;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server;
+
+import org.lealone.server.Scheduler;
+
+/**
+ * 同一个调度器上的连接共用一个线程，扫描大量记录的命令执行一段时间后要把调度器让给其他连接。
+ *
+ * 命令每处理一行调用一次 shouldYield，处理的行数或者用掉的时间超过限制时返回 true，
+ * 这时命令保存好状态后返回，由 DocDBServerConnection.yieldAndResume 在调度器的下一轮循环中继续执行。
+ */
+public class YieldPolicy {
+
+    private static final int TIME_CHECK_INTERVAL = 128; // 每处理这么多行才看一次时间
+
+    private final int maxRows;
+    private final long maxNanos;
+    private volatile Scheduler scheduler;
+    private int rows;
+    private long startTime;
+    private boolean blocked;
+
+    public YieldPolicy(int maxRows, long maxMillis) {
+        this.maxRows = maxRows;
+        this.maxNanos = maxMillis * 1000 * 1000;
+    }
+
+    // 每次开始或者继续执行时调用，游标的 getMore 可能在另一个连接的调度器上执行
+    public void start(Scheduler scheduler) {
+        this.scheduler = scheduler;
+        rows = 0;
+        startTime = System.nanoTime();
+        blocked = false;
+    }
+
+    public boolean shouldYield() {
+        rows++;
+        if (maxRows > 0 && rows >= maxRows)
+            return true;
+        return maxNanos > 0 && rows % TIME_CHECK_INTERVAL == 0
+                && System.nanoTime() - startTime >= maxNanos;
+    }
+
+    /**
+     * 要等其他线程的结果时调用，这时不用在调度器的下一轮循环中马上继续执行，
+     * 等其他线程有了结果再调用 wakeUp 唤醒调度器。
+     */
+    public void block() {
+        blocked = true;
+    }
+
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    public void wakeUp() {
+        Scheduler s = scheduler;
+        if (s != null)
+            s.wakeUp();
+    }
+}
@@ -6,47 +6,54 @@
 package org.lealone.docdb.server.command;
 
 import org.bson.BsonArray;
+import org.bson.BsonBoolean;
 import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.io.ByteBufferBsonInput;
+import org.lealone.db.async.Future;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBCursor;
+import org.lealone.docdb.server.DocDBException;
 import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.PooledSession;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.pipeline.Pipeline;
+import org.lealone.docdb.server.pipeline.Stage;
 
 public class BCAggregate extends BsonCommand {
 
-    public static BsonDocument execute(ByteBufferBsonInput input, BsonDocument doc,
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
             DocDBServerConnection conn) {
+        BsonArray pipeline = getPipeline(doc);
         Table table = getTable(doc, "aggregate", conn);
-        BsonArray pipeline = doc.getArray("pipeline", null);
-        long rowCount = 0;
-        if (pipeline != null) {
-            for (int i = 0, size = pipeline.size(); i < size; i++) {
-                BsonDocument document = pipeline.get(i).asDocument();
-                BsonDocument group = document.getDocument("$group", null);
-                if (group != null) {
-                    BsonDocument agg = group.getDocument("n", null);
-                    if (agg != null && agg.containsKey("$sum")) {
-                        ServerSession session = getSession(table.getDatabase(), conn);
-                        rowCount = table.getRowCount(session);
-                        session.close();
-                        break;
-                    }
-                }
-            }
+        int batchSize = getBatchSize(doc.getDocument("cursor", new BsonDocument()),
+                DocDBCursor.DEFAULT_FIRST_BATCH_SIZE);
+        String ns = doc.getString("$db").getValue() + "." + doc.getString("aggregate").getValue();
+        PooledSession session = getSession(table.getDatabase(), conn);
+        YieldPolicy policy = conn.createYieldPolicy();
+        Stage stage;
+        try {
+            stage = compile(doc, pipeline, table, conn, session, policy);
+        } catch (Throwable t) {
+            session.close();
+            throw t;
         }
-        BsonDocument document = new BsonDocument();
-        BsonDocument cursor = new BsonDocument();
-        append(cursor, "id", 0L);
-        append(cursor, "ns",
-                doc.getString("$db").getValue() + "." + doc.getString("aggregate").getValue());
-        BsonArray documents = new BsonArray();
-        BsonDocument agg = new BsonDocument();
-        append(agg, "_id", 1);
-        append(agg, "n", (int) rowCount);
-        documents.add(agg);
-        cursor.append("firstBatch", documents);
-        document.append("cursor", cursor);
-        setOk(document);
-        return document;
+        return createCursorResponse(conn, doc, ns, session, stage, policy, batchSize, false);
+    }
+
+    // 在 getTable 之前检查，pipeline 不对时不会创建集合
+    static BsonArray getPipeline(BsonDocument doc) {
+        BsonValue pipeline = doc.get("pipeline");
+        if (pipeline == null || !pipeline.isArray())
+            throw new DocDBException(DocDBException.TYPE_MISMATCH, "TypeMismatch",
+                    "'pipeline' option must be specified as an array");
+        return pipeline.asArray();
+    }
+
+    static Stage compile(BsonDocument doc, BsonArray pipeline, Table table, DocDBServerConnection conn,
+            ServerSession session, YieldPolicy policy) {
+        boolean allowDiskUse = doc.getBoolean("allowDiskUse", BsonBoolean.TRUE).getValue();
+        return Pipeline.compile(conn, session, table, pipeline, allowDiskUse, policy);
     }
 }
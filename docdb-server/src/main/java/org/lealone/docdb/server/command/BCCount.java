@@ -0,0 +1,96 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.command;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.io.ByteBufferBsonInput;
+import org.lealone.db.async.Future;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.SlowQueryLog;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.pipeline.Pipeline;
+import org.lealone.docdb.server.pipeline.Stage;
+import org.lealone.docdb.server.query.QueryFilter;
+
+/**
+ * 没有条件时跟 mongodb 一样直接返回存储层维护的记录数，不扫描表，只是一个估计值。
+ * 有条件时按 find 的方式选择索引，条件只用到索引中的字段时只读索引项，大表的全表扫描会并行执行。
+ */
+public class BCCount extends BsonCommand {
+
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
+            DocDBServerConnection conn) {
+        Table table = getTable(doc, "count", conn);
+        QueryFilter filter = QueryFilter.compile(getDocument(doc, "query"));
+        long skip = getCount(doc, "skip");
+        long limit = getLimit(doc);
+        if (filter == QueryFilter.MATCH_ALL) {
+            long n = Math.max(table.getRowCountApproximation() - skip, 0);
+            if (limit > 0)
+                n = Math.min(n, limit);
+            return Future.succeededFuture(createResponse(n));
+        }
+        ServerSession session = getSession(table.getDatabase(), conn);
+        YieldPolicy policy = conn.createYieldPolicy();
+        Stage stage;
+        try {
+            stage = Pipeline.compileCount(conn, session, table, filter, skip, limit, policy);
+        } catch (Throwable t) {
+            session.close();
+            throw t;
+        }
+        String ns = doc.getString("$db").getValue() + "." + doc.getString("count").getValue();
+        long start = conn.getRequestStartTime();
+        long[] n = new long[1];
+        return executeYieldable(conn, policy, () -> {
+            try {
+                BsonDocument document;
+                while ((document = stage.next()) != null) {
+                    if (document == Stage.YIELD)
+                        return null;
+                    n[0]++;
+                }
+            } catch (Throwable t) {
+                close(stage, session);
+                throw t;
+            }
+            close(stage, session);
+            long millis = SlowQueryLog.getSlowMillis(conn.getServer(), start);
+            if (millis >= 0)
+                SlowQueryLog.log("count", ns, doc, millis, stage, stage.getKeysExamined(),
+                        stage.getDocsExamined(), n[0]);
+            return createResponse(n[0]);
+        });
+    }
+
+    // count 的 limit 是负数时按绝对值处理
+    static long getLimit(BsonDocument doc) {
+        BsonValue v = doc.get("limit");
+        return v != null && v.isNumber() ? Math.abs(v.asNumber().longValue()) : getCount(doc, "limit");
+    }
+
+    private static void close(Stage stage, ServerSession session) {
+        try {
+            stage.close();
+            session.commit();
+        } finally {
+            session.close();
+        }
+    }
+
+    private static BsonDocument createResponse(long n) {
+        BsonDocument document = new BsonDocument();
+        if (n == (int) n)
+            append(document, "n", (int) n);
+        else
+            append(document, "n", n);
+        setOk(document);
+        return document;
+    }
+}
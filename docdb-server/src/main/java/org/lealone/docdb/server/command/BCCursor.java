@@ -0,0 +1,87 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.command;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonValue;
+import org.bson.io.ByteBufferBsonInput;
+import org.lealone.db.async.Future;
+import org.lealone.docdb.server.DocDBCursor;
+import org.lealone.docdb.server.DocDBServerConnection;
+
+public class BCCursor extends BsonCommand {
+
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
+            DocDBServerConnection conn, String command) {
+        switch (command) {
+        case "getmore":
+            return getMore(doc, conn);
+        default:
+            return Future.succeededFuture(killCursors(doc, conn));
+        }
+    }
+
+    private static Future<BsonDocument> getMore(BsonDocument doc, DocDBServerConnection conn) {
+        long cursorId = doc.getNumber("getMore").longValue();
+        DocDBCursor c = conn.getCursor(cursorId);
+        if (c == null)
+            return Future.succeededFuture(newErrorBsonDocument(43, "CursorNotFound",
+                    "cursor id " + cursorId + " not found"));
+        int batchSize = getBatchSize(doc, DocDBCursor.DEFAULT_BATCH_SIZE);
+        // 请求可以流水线执行，前一个 getMore 让出调度器时同一个游标上的 getMore 不能再读
+        if (!c.acquire())
+            return Future.succeededFuture(newErrorBsonDocument(143, "CursorInUse",
+                    "cursor id " + cursorId + " is already in use"));
+        long start = conn.getRequestStartTime();
+        return executeYieldable(conn, c.getYieldPolicy(), () -> {
+            BsonArray documents;
+            try {
+                documents = c.nextBatch(batchSize);
+            } catch (Throwable t) {
+                c.release();
+                throw t;
+            }
+            if (documents == null)
+                return null;
+            c.release();
+            c.logSlowQuery("getMore", start, documents.size());
+            long id = cursorId;
+            if (c.isClosed()) {
+                conn.closeCursor(id);
+                id = 0;
+            }
+            BsonDocument document = new BsonDocument();
+            BsonDocument cursor = new BsonDocument();
+            append(cursor, "id", id);
+            append(cursor, "ns", c.getNamespace());
+            cursor.append("nextBatch", documents);
+            document.append("cursor", cursor);
+            setOk(document);
+            return document;
+        });
+    }
+
+    private static BsonDocument killCursors(BsonDocument doc, DocDBServerConnection conn) {
+        BsonArray killed = new BsonArray();
+        BsonArray notFound = new BsonArray();
+        for (BsonValue v : doc.getArray("cursors", new BsonArray())) {
+            long cursorId = v.asNumber().longValue();
+            if (conn.closeCursor(cursorId))
+                killed.add(new BsonInt64(cursorId));
+            else
+                notFound.add(new BsonInt64(cursorId));
+        }
+        BsonDocument document = new BsonDocument();
+        document.append("cursorsKilled", killed);
+        document.append("cursorsNotFound", notFound);
+        document.append("cursorsAlive", new BsonArray());
+        document.append("cursorsUnknown", new BsonArray());
+        setOk(document);
+        return document;
+    }
+}
@@ -5,30 +5,129 @@
  */
 package org.lealone.docdb.server.command;
 
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
 import org.bson.BsonDocument;
+import org.bson.BsonValue;
 import org.bson.io.ByteBufferBsonInput;
-import org.lealone.db.index.Cursor;
-import org.lealone.db.session.ServerSession;
+import org.lealone.db.async.Future;
+import org.lealone.db.result.Row;
 import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBException;
 import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.index.DocumentIndex.IndexCursor;
+import org.lealone.docdb.server.query.QueryFilter;
+import org.lealone.transaction.Transaction;
 
 public class BCDelete extends BsonCommand {
 
-    public static BsonDocument execute(ByteBufferBsonInput input, BsonDocument doc,
+    // 删除的记录很多时每删除这么多条就提交一次
+    private static final int CHUNK_SIZE = 1000;
+
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
             DocDBServerConnection conn) {
-        int n = 0;
         Table table = getTable(doc, "delete", conn);
-        try (ServerSession session = getSession(table.getDatabase(), conn)) {
-            Cursor cursor = table.getScanIndex(session).find(session, null, null);
-            while (cursor.next()) {
-                table.removeRow(session, cursor.get());
-                n++;
+        BsonArray deletes = doc.getArray("deletes", new BsonArray());
+        boolean ordered = doc.getBoolean("ordered", BsonBoolean.TRUE).getValue();
+        DeleteBatch batch = new DeleteBatch(conn, table, deletes, ordered);
+        batch.run();
+        return batch.callback;
+    }
+
+    private static class DeleteBatch extends WriteBatch {
+
+        private final BsonArray deletes;
+        private int index;
+
+        // 当前语句的查询条件和游标，limit 为 0 时删除所有匹配的记录
+        private QueryFilter filter;
+        private IndexCursor cursor;
+        private int limit;
+        private int count;
+
+        DeleteBatch(DocDBServerConnection conn, Table table, BsonArray deletes, boolean ordered) {
+            super(conn, table, ordered);
+            this.deletes = deletes;
+        }
+
+        // 跟 find 一样选择 _id 索引、二级索引或全表扫描，边扫描边删除
+        @Override
+        protected Future<Integer> next() {
+            while (true) {
+                if (cursor != null && (limit == 0 || count < limit)) {
+                    while (true) {
+                        if (yieldPolicy.shouldYield())
+                            return YIELD; // 下次从这个游标最后读到的记录之后接着扫描
+                        Row row;
+                        if (hasRetryRow()) {
+                            row = getRetryRow();
+                        } else {
+                            if (!cursor.next())
+                                break;
+                            row = cursor.get();
+                        }
+                        if (row == null || !filter.match(toBsonDocument(row)))
+                            continue;
+                        if (!lockRow(row)) {
+                            if (hasRetryRow())
+                                return YIELD; // 等锁释放之后重新读取这条记录
+                            continue;
+                        }
+                        count++;
+                        return table.removeRow(session, row);
+                    }
+                }
+                cursor = null;
+                if (index >= deletes.size())
+                    return null;
+                prepare(deletes.get(index++).asDocument());
             }
-            session.commit();
         }
-        BsonDocument document = new BsonDocument();
-        setOk(document);
-        setN(document, n);
-        return document;
+
+        private void prepare(BsonDocument statement) {
+            if (DEBUG)
+                logger.info(statement.toJson());
+            BsonValue v = statement.get("limit");
+            limit = v != null && v.isNumber() ? v.asNumber().intValue() : 0;
+            if (limit != 0 && limit != 1)
+                throw new DocDBException(DocDBException.FAILED_TO_PARSE, "FailedToParse",
+                        "The limit field in delete objects must be 0 or 1. Got " + v);
+            filter = QueryFilter.compile(statement.getDocument("q", null));
+            count = 0;
+            cursor = find(session, table, filter);
+        }
+
+        @Override
+        protected int getIndex() {
+            return index - 1;
+        }
+
+        @Override
+        protected int getChunkSize() {
+            return CHUNK_SIZE;
+        }
+
+        @Override
+        protected void onSucceeded(Integer result) {
+            // 记录已经先锁住了，不会再跟其他事务冲突
+            if (result.intValue() != Transaction.OPERATION_COMPLETE)
+                throw new DocDBException(DocDBException.WRITE_CONFLICT, "WriteConflict",
+                        "Write conflict during plan execution");
+            n++;
+        }
+
+        // 提交之后的事务看不到旧游标的快照，下次从最后删除的记录之后重新打开
+        @Override
+        protected void pause() {
+            if (cursor != null)
+                cursor.pause();
+        }
+
+        // 出错时跳过当前语句剩下的记录
+        @Override
+        protected void onFailed(Throwable e) {
+            cursor = null;
+            super.onFailed(e);
+        }
     }
 }
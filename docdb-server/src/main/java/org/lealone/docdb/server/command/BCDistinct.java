@@ -0,0 +1,195 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.command;
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.bson.io.ByteBufferBsonInput;
+import org.lealone.db.async.Future;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Table;
+import org.lealone.db.value.Value;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.index.DocumentIndex;
+import org.lealone.docdb.server.index.DocumentIndex.DistinctCursor;
+import org.lealone.docdb.server.index.DocumentIndex.IndexCursor;
+import org.lealone.docdb.server.index.IndexKeyEncoder;
+import org.lealone.docdb.server.pipeline.Pipeline;
+import org.lealone.docdb.server.pipeline.Projection;
+import org.lealone.docdb.server.pipeline.Stage;
+import org.lealone.docdb.server.query.BsonValueComparator;
+import org.lealone.docdb.server.query.QueryFilter;
+
+/**
+ * 没有条件而且 key 是某个索引的第一个字段时，直接遍历这个索引的不同键值，
+ * 只有索引键不能准确还原的值(比如数值)才读取一条记录，null 和数组要读取对应的所有记录。
+ * 其他情况按 find 的方式扫描，只取 key 字段，条件和 key 都在同一个索引中时也只读索引项。
+ *
+ * 跟 mongodb 一样，路径上的数组会展开，相等的值(比如 1 和 1.0)只返回一个，结果按值排好序。
+ */
+public class BCDistinct extends BsonCommand {
+
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
+            DocDBServerConnection conn) {
+        Table table = getTable(doc, "distinct", conn);
+        BsonValue key = doc.get("key");
+        if (key == null || !key.isString())
+            throw new DocDBException(DocDBException.TYPE_MISMATCH, "TypeMismatch",
+                    "'key' option must be specified as a string");
+        String path = key.asString().getValue();
+        QueryFilter filter = QueryFilter.compile(getDocument(doc, "query"));
+        ServerSession session = getSession(table.getDatabase(), conn);
+        YieldPolicy policy = conn.createYieldPolicy();
+        Distinct distinct;
+        try {
+            DocumentIndex index = filter == QueryFilter.MATCH_ALL ? findIndex(table, path) : null;
+            if (index != null) {
+                distinct = new Distinct(session, policy, path, index, null);
+            } else {
+                Projection projection = Projection.compile(new BsonDocument(path, new BsonInt32(1)));
+                Stage stage = Pipeline.compileFind(conn, session, table, filter, null, 0, 0, projection,
+                        true, policy);
+                distinct = new Distinct(session, policy, path, null, stage);
+            }
+        } catch (Throwable t) {
+            session.close();
+            throw t;
+        }
+        return executeYieldable(conn, policy, distinct);
+    }
+
+    private static DocumentIndex findIndex(Table table, String path) {
+        for (DocumentIndex index : DocumentIndex.getIndexes(table)) {
+            if (index.getPaths()[0].equals(path))
+                return index;
+        }
+        return null;
+    }
+
+    private static class Distinct implements Supplier<BsonDocument> {
+
+        private final ServerSession session;
+        private final YieldPolicy policy;
+        private final String[] names;
+        private final DocumentIndex index;
+        private final Stage stage;
+        private final TreeSet<BsonValue> values = new TreeSet<>(BsonValueComparator::compare);
+        private DistinctCursor distinctCursor;
+        private IndexCursor rows; // 需要逐条读取记录的一组索引项
+        private boolean nullKey;
+
+        Distinct(ServerSession session, YieldPolicy policy, String path, DocumentIndex index, Stage stage) {
+            this.session = session;
+            this.policy = policy;
+            this.names = path.split("\\.");
+            this.index = index;
+            this.stage = stage;
+        }
+
+        // 返回 null 表示要让出调度器
+        @Override
+        public BsonDocument get() {
+            try {
+                if (!(index != null ? scanIndex() : scan()))
+                    return null;
+            } catch (Throwable t) {
+                close();
+                throw t;
+            }
+            close();
+            BsonDocument document = new BsonDocument();
+            document.append("values", new BsonArray(new ArrayList<>(values)));
+            setOk(document);
+            return document;
+        }
+
+        private boolean scan() {
+            BsonDocument document;
+            while ((document = stage.next()) != null) {
+                if (document == Stage.YIELD)
+                    return false;
+                collect(document, 0);
+            }
+            return true;
+        }
+
+        private boolean scanIndex() {
+            if (distinctCursor == null)
+                distinctCursor = index.findDistinct(session);
+            while (true) {
+                if (policy.shouldYield()) {
+                    distinctCursor.pause();
+                    if (rows != null)
+                        rows.pause();
+                    return false;
+                }
+                if (rows != null) {
+                    // null 和字段不存在的编码一样，找到一个值是 null 的就够了
+                    if (!rows.next() || nullKey && values.contains(BsonNull.VALUE)) {
+                        rows = null;
+                        continue;
+                    }
+                    collect(BsonCommand.toBsonDocument(rows.get()), 0);
+                    continue;
+                }
+                if (!distinctCursor.next())
+                    return true;
+                Value key = distinctCursor.getKey();
+                if (key == null) {
+                    collect(BsonCommand.toBsonDocument(distinctCursor.get()), 0);
+                    continue;
+                }
+                nullKey = key.equals(IndexKeyEncoder.getNullKey());
+                if (nullKey || key.equals(IndexKeyEncoder.getMultiKey())) {
+                    rows = index.find(session, key);
+                    continue;
+                }
+                BsonValue v = IndexKeyEncoder.decode(key.getBytesNoCopy());
+                if (v != null)
+                    values.add(v);
+                else // 索引键不能准确还原时读取第一条记录，编码相同的值都是相等的
+                    collect(BsonCommand.toBsonDocument(distinctCursor.get()), 0);
+            }
+        }
+
+        private void collect(BsonValue v, int i) {
+            if (i == names.length) {
+                if (v.isArray())
+                    values.addAll(v.asArray());
+                else
+                    values.add(v);
+            } else if (v.isDocument()) {
+                BsonValue child = v.asDocument().get(names[i]);
+                if (child != null)
+                    collect(child, i + 1);
+            } else if (v.isArray()) {
+                for (BsonValue e : v.asArray()) {
+                    if (e.isDocument())
+                        collect(e, i);
+                }
+            }
+        }
+
+        private void close() {
+            try {
+                if (stage != null)
+                    stage.close();
+                session.commit();
+            } finally {
+                session.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.command;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.io.ByteBufferBsonInput;
+import org.lealone.db.async.Future;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.pipeline.Pipeline;
+import org.lealone.docdb.server.pipeline.Stage;
+import org.lealone.docdb.server.query.QueryFilter;
+
+/**
+ * 支持 find、aggregate 和 count 的 explain，执行计划就是用执行命令时的方法编译出来的 Stage，
+ * 所以用哪个索引、扫描哪些区间、是否并行扫描都跟实际执行时一样。只有一个候选计划，rejectedPlans 总是空的。
+ *
+ * verbosity 是 executionStats 或 allPlansExecution(默认)时会把命令完整执行一遍，但是不返回结果，
+ * 执行过程中跟 find 一样会让出调度器。
+ */
+public class BCExplain extends BsonCommand {
+
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
+            DocDBServerConnection conn) {
+        BsonValue v = doc.get("explain");
+        if (v == null || !v.isDocument() || v.asDocument().isEmpty())
+            throw new DocDBException(DocDBException.TYPE_MISMATCH, "TypeMismatch",
+                    "explain command requires a nested object");
+        BsonDocument command = new BsonDocument();
+        command.putAll(v.asDocument());
+        if (!command.containsKey("$db"))
+            command.append("$db", doc.get("$db"));
+        boolean executionStats = isExecutionStats(doc.get("verbosity"));
+        String name = command.getFirstKey();
+        String type = name.toLowerCase();
+        String ns = command.getString("$db").getValue() + "." + command.getString(name).getValue();
+        long start = conn.getRequestStartTime();
+
+        Table table;
+        BsonDocument parsedQuery = null;
+        BsonArray pipeline = null;
+        switch (type) {
+        case "find":
+            table = getTable(command, name, conn);
+            parsedQuery = command.getDocument("filter", new BsonDocument());
+            break;
+        case "aggregate":
+            pipeline = BCAggregate.getPipeline(command);
+            table = getTable(command, name, conn);
+            break;
+        case "count":
+            table = getTable(command, name, conn);
+            parsedQuery = command.getDocument("query", new BsonDocument());
+            // 没有条件时直接用存储层维护的记录数
+            if (QueryFilter.compile(getDocument(command, "query")) == QueryFilter.MATCH_ALL) {
+                BsonDocument plan = new BsonDocument("stage", new BsonString("RECORD_STORE_FAST_COUNT"));
+                BsonDocument stats = null;
+                if (executionStats)
+                    stats = createExecutionStats(plan.clone(), 0, start, 0, 0);
+                return Future.succeededFuture(createResponse(ns, command, parsedQuery, plan, stats));
+            }
+            break;
+        default:
+            throw new DocDBException(DocDBException.ILLEGAL_OPERATION, "IllegalOperation",
+                    "Explain is not supported for command: " + name);
+        }
+
+        ServerSession session = getSession(table.getDatabase(), conn);
+        YieldPolicy policy = conn.createYieldPolicy();
+        Stage stage;
+        try {
+            if (type.equals("find"))
+                stage = BCFind.compile(command, table, conn, session, policy);
+            else if (type.equals("aggregate"))
+                stage = BCAggregate.compile(command, pipeline, table, conn, session, policy);
+            else
+                stage = Pipeline.compileCount(conn, session, table,
+                        QueryFilter.compile(getDocument(command, "query")), getCount(command, "skip"),
+                        BCCount.getLimit(command), policy);
+        } catch (Throwable t) {
+            session.close();
+            throw t;
+        }
+        boolean count = type.equals("count");
+        BsonDocument query = parsedQuery;
+        if (!executionStats) {
+            BsonDocument plan;
+            try {
+                plan = getPlan(stage, false, count);
+            } finally {
+                close(stage, session);
+            }
+            return Future.succeededFuture(createResponse(ns, command, query, plan, null));
+        }
+        long[] n = new long[1];
+        return executeYieldable(conn, policy, () -> {
+            BsonDocument plan, stats;
+            try {
+                BsonDocument document;
+                while ((document = stage.next()) != null) {
+                    if (document == Stage.YIELD)
+                        return null;
+                    n[0]++;
+                }
+                // 执行统计要在关闭之前取，关闭时排序和分组的临时文件就删除了
+                plan = getPlan(stage, false, count);
+                stats = createExecutionStats(getPlan(stage, true, count), count ? 0 : n[0], start,
+                        stage.getKeysExamined(), stage.getDocsExamined());
+            } catch (Throwable t) {
+                close(stage, session);
+                throw t;
+            }
+            close(stage, session);
+            return createResponse(ns, command, query, plan, stats);
+        });
+    }
+
+    // 跟 mongodb 一样，没有指定时是 allPlansExecution
+    private static boolean isExecutionStats(BsonValue verbosity) {
+        String v = verbosity != null && verbosity.isString() ? verbosity.asString().getValue()
+                : verbosity == null ? "allPlansExecution" : "";
+        switch (v) {
+        case "queryPlanner":
+            return false;
+        case "executionStats":
+        case "allPlansExecution":
+            return true;
+        default:
+            throw DocDBException.badValue("verbosity string must be one of "
+                    + "{'queryPlanner', 'executionStats', 'allPlansExecution'}");
+        }
+    }
+
+    // count 命令的执行计划外面再加一个 COUNT 阶段
+    private static BsonDocument getPlan(Stage stage, boolean executionStats, boolean count) {
+        BsonDocument plan = stage.explain(executionStats);
+        if (!count)
+            return plan;
+        BsonDocument countPlan = new BsonDocument("stage", new BsonString("COUNT"));
+        if (executionStats)
+            countPlan.append("nReturned", new BsonInt64(0));
+        countPlan.append("inputStage", plan);
+        return countPlan;
+    }
+
+    private static BsonDocument createExecutionStats(BsonDocument executionStages, long nReturned, long start,
+            long keysExamined, long docsExamined) {
+        BsonDocument stats = new BsonDocument();
+        append(stats, "executionSuccess", true);
+        append(stats, "nReturned", nReturned);
+        append(stats, "executionTimeMillis", (System.nanoTime() - start) / 1000000);
+        append(stats, "totalKeysExamined", keysExamined);
+        append(stats, "totalDocsExamined", docsExamined);
+        stats.append("executionStages", executionStages);
+        return stats;
+    }
+
+    private static BsonDocument createResponse(String ns, BsonDocument command, BsonDocument parsedQuery,
+            BsonDocument winningPlan, BsonDocument executionStats) {
+        BsonDocument queryPlanner = new BsonDocument();
+        append(queryPlanner, "namespace", ns);
+        queryPlanner.append("indexFilterSet", BsonBoolean.FALSE);
+        if (parsedQuery != null)
+            queryPlanner.append("parsedQuery", parsedQuery);
+        queryPlanner.append("winningPlan", winningPlan);
+        queryPlanner.append("rejectedPlans", new BsonArray());
+        BsonDocument document = new BsonDocument();
+        append(document, "explainVersion", "1");
+        document.append("queryPlanner", queryPlanner);
+        if (executionStats != null)
+            document.append("executionStats", executionStats);
+        document.append("command", command);
+        setOk(document);
+        return document;
+    }
+
+    private static void close(Stage stage, ServerSession session) {
+        try {
+            stage.close();
+            session.commit();
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -5,86 +5,56 @@
  */
 package org.lealone.docdb.server.command;
 
-import java.util.Map.Entry;
-
-import org.bson.BsonArray;
+import org.bson.BsonBoolean;
 import org.bson.BsonDocument;
-import org.bson.BsonValue;
 import org.bson.io.ByteBufferBsonInput;
-import org.lealone.db.index.Cursor;
-import org.lealone.db.result.Row;
+import org.lealone.db.async.Future;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Table;
-import org.lealone.db.value.ValueMap;
+import org.lealone.docdb.server.DocDBCursor;
 import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.PooledSession;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.pipeline.Pipeline;
+import org.lealone.docdb.server.pipeline.Projection;
+import org.lealone.docdb.server.pipeline.SortSpec;
+import org.lealone.docdb.server.pipeline.Stage;
+import org.lealone.docdb.server.query.QueryFilter;
 
 public class BCFind extends BsonCommand {
 
-    public static BsonDocument execute(ByteBufferBsonInput input, BsonDocument doc,
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
             DocDBServerConnection conn) {
         Table table = getTable(doc, "find", conn);
-        ServerSession session = getSession(table.getDatabase(), conn);
-        // Select select = new Select(session);
-        BsonDocument filter = doc.getDocument("filter", null);
-        Long id = null;
-        if (filter != null) {
-            if (DEBUG)
-                logger.info("filter: {}", filter.toJson());
-            // filter.forEach((k, v) -> {
-            // Expression left = ValueExpression.get(ValueString.get(k));
-            // Expression right = ValueExpression.get(ValueString.get(v.toString()));
-            // Comparison cond = new Comparison(session, Comparison.EQUAL, left, right);
-            // select.addCondition(cond);
-            // });
-
-            if (filter.size() == 1) {
-                id = getId(filter);
-            }
-        }
-
-        BsonArray documents = new BsonArray();
+        String ns = doc.getString("$db").getValue() + "." + doc.getString("find").getValue();
+        int batchSize = getBatchSize(doc, DocDBCursor.DEFAULT_FIRST_BATCH_SIZE);
+        boolean singleBatch = doc.getBoolean("singleBatch", BsonBoolean.FALSE).getValue();
+        PooledSession session = getSession(table.getDatabase(), conn);
+        YieldPolicy policy = conn.createYieldPolicy();
+        Stage stage;
         try {
-            if (id != null) {
-                Row row = table.getTemplateRow();
-                row.setKey(id.longValue());
-                Cursor cursor = table.getScanIndex(session).find(session, row, row);
-                if (cursor.next()) {
-                    BsonDocument document = toBsonDocument((ValueMap) cursor.get().getValue(0));
-                    documents.add(document);
-                }
-            } else {
-                Cursor cursor = table.getScanIndex(session).find(session, null, null);
-                while (cursor.next()) {
-                    BsonDocument document = toBsonDocument((ValueMap) cursor.get().getValue(0));
-                    if (filter != null) {
-                        boolean b = true;
-                        for (Entry<String, BsonValue> e : filter.entrySet()) {
-                            BsonValue v = document.get(e.getKey());
-                            if (v == null || !v.equals(e.getValue())) {
-                                b = false;
-                                break;
-                            }
-                        }
-                        if (b) {
-                            documents.add(document);
-                        }
-                    } else {
-                        documents.add(document);
-                    }
-                }
-            }
-            session.commit();
-        } finally {
+            stage = compile(doc, table, conn, session, policy);
+        } catch (Throwable t) {
             session.close();
+            throw t;
         }
-        BsonDocument document = new BsonDocument();
-        BsonDocument cursor = new BsonDocument();
+        return createCursorResponse(conn, doc, ns, session, stage, policy, batchSize, singleBatch);
+    }
 
-        append(cursor, "id", 0L);
-        append(cursor, "ns", doc.getString("$db").getValue() + "." + doc.getString("find").getValue());
-        cursor.append("firstBatch", documents);
-        document.append("cursor", cursor);
-        setOk(document);
-        return document;
+    // explain 也用这个方法，这样显示的执行计划就是实际执行的
+    static Stage compile(BsonDocument doc, Table table, DocDBServerConnection conn, ServerSession session,
+            YieldPolicy policy) {
+        BsonDocument filter = doc.getDocument("filter", null);
+        QueryFilter queryFilter = QueryFilter.compile(filter);
+        if (DEBUG && filter != null)
+            logger.info("filter: {}", filter.toJson());
+        BsonDocument sort = getDocument(doc, "sort");
+        long skip = getCount(doc, "skip");
+        long limit = getCount(doc, "limit");
+        BsonDocument projection = getDocument(doc, "projection");
+        boolean allowDiskUse = doc.getBoolean("allowDiskUse", BsonBoolean.TRUE).getValue();
+        return Pipeline.compileFind(conn, session, table, queryFilter,
+                sort == null ? null : SortSpec.compile(sort), skip, limit,
+                projection == null ? null : Projection.compile(projection), allowDiskUse, policy);
     }
 }
@@ -0,0 +1,312 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.command;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.bson.io.ByteBufferBsonInput;
+import org.lealone.common.util.StringUtils;
+import org.lealone.db.Constants;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.index.Index;
+import org.lealone.db.result.Row;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Column;
+import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.index.DocumentIndex;
+
+public class BCIndex extends BsonCommand {
+
+    public static BsonDocument execute(ByteBufferBsonInput input, BsonDocument doc,
+            DocDBServerConnection conn, String command) {
+        switch (command) {
+        case "createindexes":
+            return createIndexes(doc, conn);
+        case "dropindexes":
+            return dropIndexes(doc, conn);
+        default:
+            return listIndexes(doc, conn);
+        }
+    }
+
+    private static BsonDocument createIndexes(BsonDocument doc, DocDBServerConnection conn) {
+        Table table = getTable(doc, "createIndexes", conn);
+        int numIndexesBefore = DocumentIndex.getIndexes(table).size();
+        BsonArray indexes = doc.getArray("indexes", new BsonArray());
+        try (ServerSession session = getSession(table.getDatabase(), conn)) {
+            for (int i = 0, size = indexes.size(); i < size; i++) {
+                BsonDocument spec = indexes.get(i).asDocument();
+                BsonDocument key = spec.getDocument("key", null);
+                if (key == null || key.isEmpty())
+                    return newErrorBsonDocument(67, "CannotCreateIndex", "index key is required");
+                for (Entry<String, BsonValue> e : key.entrySet()) {
+                    BsonValue v = e.getValue();
+                    if (!v.isNumber() || v.asNumber().doubleValue() == 0)
+                        return newErrorBsonDocument(67, "CannotCreateIndex",
+                                "unsupported index type: " + v + " for field " + e.getKey());
+                }
+                if (key.size() == 1 && key.containsKey("_id"))
+                    continue;
+                String name = spec.containsKey("name") ? spec.getString("name").getValue()
+                        : getDefaultIndexName(key);
+                boolean unique = spec.getBoolean("unique", BsonBoolean.FALSE).getValue();
+                DocumentIndex old = DocumentIndex.findIndex(table, name);
+                if (old != null) {
+                    if (old.getKeyDocument().equals(normalize(key)) && old.isUnique() == unique)
+                        continue;
+                    return newErrorBsonDocument(85, "IndexOptionsConflict",
+                            "Index with name: " + name + " already exists with different options");
+                }
+                try {
+                    table = createIndex(session, table, key, name, unique);
+                } catch (Exception e) {
+                    session.rollback();
+                    if (!(e instanceof DocDBException))
+                        logger.error("Failed to create index " + name, e);
+                    return newErrorBsonDocument(67, "CannotCreateIndex", e.getMessage());
+                }
+            }
+        }
+        BsonDocument document = new BsonDocument();
+        append(document, "numIndexesBefore", numIndexesBefore);
+        append(document, "numIndexesAfter", DocumentIndex.getIndexes(table).size());
+        setOk(document);
+        return document;
+    }
+
+    /**
+     * 每个集合都有一个 _id 上的唯一索引，所以 _id 是任何类型都能按索引查找，行的 key 由存储层分配。
+     * 已有记录的 _id 重复时建不了这个索引，这时按 _id 查询只能全表扫描。
+     */
+    static Table createIdIndex(Table table, DocDBServerConnection conn) {
+        BsonDocument key = new BsonDocument("_id", new BsonInt32(1));
+        try (ServerSession session = getSession(table.getDatabase(), conn)) {
+            try {
+                return createIndex(session, table, key, DocumentIndex.ID_INDEX_NAME, true);
+            } catch (Exception e) {
+                session.rollback();
+                // 可能是另一个连接同时创建了这个索引
+                table = findTable(table);
+                if (DocumentIndex.findIndex(table, DocumentIndex.ID_INDEX_NAME) == null)
+                    logger.error("Failed to create _id index on " + table.getName(), e);
+                return table;
+            }
+        }
+    }
+
+    private static BsonDocument normalize(BsonDocument key) {
+        BsonDocument doc = new BsonDocument();
+        for (Entry<String, BsonValue> e : key.entrySet())
+            doc.append(e.getKey(), new BsonInt32(e.getValue().asNumber().doubleValue() < 0 ? -1 : 1));
+        return doc;
+    }
+
+    private static String getDefaultIndexName(BsonDocument key) {
+        StringBuilder buff = new StringBuilder();
+        for (Entry<String, BsonValue> e : key.entrySet()) {
+            if (buff.length() > 0)
+                buff.append('_');
+            buff.append(e.getKey()).append('_').append(e.getValue().asNumber().intValue());
+        }
+        return buff.toString();
+    }
+
+    private static Table createIndex(ServerSession session, Table table, BsonDocument key, String name,
+            boolean unique) {
+        // 先给每个字段路径加上对应的列
+        ArrayList<String> addedColumns = new ArrayList<>();
+        for (String path : key.keySet()) {
+            String columnName = getColumnName(name, path);
+            if (!table.doesColumnExist(columnName)) {
+                String sql = "ALTER TABLE " + table.getSQL() + " ADD COLUMN "
+                        + StringUtils.quoteIdentifier(columnName) + " varbinary";
+                session.prepareStatementLocal(sql).executeUpdate();
+                addedColumns.add(columnName);
+            }
+        }
+        if (!addedColumns.isEmpty()) {
+            table = findTable(table);
+            HashSet<Integer> changedColumns = fillKeyColumns(session, table, addedColumns);
+            if (!changedColumns.isEmpty()) {
+                rebuildIndexes(session, table, changedColumns);
+                table = findTable(table);
+            }
+        }
+
+        if (unique && !name.equals(DocumentIndex.ID_INDEX_NAME))
+            checkNoArrays(session, table, key, name);
+
+        StringBuilder sql = new StringBuilder("CREATE ");
+        if (unique)
+            sql.append("UNIQUE ");
+        sql.append("INDEX ");
+        sql.append(StringUtils.quoteIdentifier(DocumentIndex.getIndexName(table, name)));
+        sql.append(" ON ").append(table.getSQL()).append('(');
+        boolean first = true;
+        for (Entry<String, BsonValue> e : key.entrySet()) {
+            if (!first)
+                sql.append(", ");
+            first = false;
+            sql.append(StringUtils.quoteIdentifier(getColumnName(name, e.getKey())));
+            sql.append(e.getValue().asNumber().doubleValue() < 0 ? " DESC" : " ASC");
+        }
+        sql.append(')');
+        session.prepareStatementLocal(sql.toString()).executeUpdate();
+        return findTable(table);
+    }
+
+    private static String getColumnName(String indexName, String path) {
+        return indexName.equals(DocumentIndex.ID_INDEX_NAME) ? DocumentIndex.ID_COLUMN_NAME
+                : DocumentIndex.getKeyColumnName(path);
+    }
+
+    // 新加的列在已有的记录中都是null，需要从文档中抽取出来，
+    // 以前的版本只要有一个字段是数组所有索引列都用特殊值，所以已有列的值也可能变化，返回这些列
+    private static HashSet<Integer> fillKeyColumns(ServerSession session, Table table,
+            List<String> addedColumns) {
+        int[] updateColumns = new int[addedColumns.size()];
+        for (int i = 0; i < updateColumns.length; i++)
+            updateColumns[i] = table.getColumn(addedColumns.get(i)).getColumnId();
+        HashSet<Integer> changedColumns = new HashSet<>();
+        Cursor cursor = table.getScanIndex(session).find(session, null, null);
+        while (cursor.next()) {
+            Row oldRow = cursor.get();
+            Row newRow = table.getTemplateRow();
+            newRow.setKey(oldRow.getKey());
+            newRow.setValue(0, oldRow.getValue(0));
+            DocumentIndex.setKeyValues(table, newRow, toBsonDocument(oldRow));
+            for (int i = 1, len = newRow.getColumnCount(); i < len; i++) {
+                if (!addedColumns.contains(table.getColumn(i).getName())
+                        && !newRow.getValue(i).equals(oldRow.getValue(i)))
+                    changedColumns.add(i);
+            }
+            table.updateRow(session, oldRow, newRow, updateColumns);
+        }
+        session.commit();
+        return changedColumns;
+    }
+
+    // 唯一索引的字段不能是数组，跟 DocumentIndex.setKeyValues 中的检查一样
+    private static void checkNoArrays(ServerSession session, Table table, BsonDocument key, String name) {
+        Cursor cursor = table.getScanIndex(session).find(session, null, null);
+        while (cursor.next()) {
+            BsonDocument doc = toBsonDocument(cursor.get());
+            for (String path : key.keySet()) {
+                BsonValue v = DocumentIndex.getValue(doc, path);
+                if (v != null && v.isArray())
+                    throw DocDBException.badValue(
+                            "cannot index an array in field '" + path + "' of unique index " + name);
+            }
+        }
+    }
+
+    // 加列之前的记录读出来时旧索引列的值不可靠，没法从旧索引中删除，所以直接重建受影响的索引
+    private static void rebuildIndexes(ServerSession session, Table table,
+            HashSet<Integer> changedColumns) {
+        for (DocumentIndex di : DocumentIndex.getIndexes(table)) {
+            Index index = di.getIndex();
+            for (Column c : index.getColumns()) {
+                if (changedColumns.contains(c.getColumnId())) {
+                    String createSQL = index.getCreateSQL();
+                    session.prepareStatementLocal("DROP INDEX " + index.getSQL()).executeUpdate();
+                    session.prepareStatementLocal(createSQL).executeUpdate();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static Table findTable(Table table) {
+        return table.getDatabase().getSchema(null, Constants.SCHEMA_MAIN).getTableOrView(null,
+                table.getName());
+    }
+
+    private static BsonDocument dropIndexes(BsonDocument doc, DocDBServerConnection conn) {
+        Table table = getTable(doc, "dropIndexes", conn);
+        List<DocumentIndex> indexes = DocumentIndex.getIndexes(table);
+        int nIndexesWas = indexes.size();
+        BsonValue index = doc.get("index");
+        HashSet<String> dropIndexes = new HashSet<>();
+        if (index == null)
+            return newErrorBsonDocument(27, "IndexNotFound", "index is required");
+        if (index.isString() && index.asString().getValue().equals("*")) {
+            for (DocumentIndex di : indexes) {
+                if (!di.getName().equals(DocumentIndex.ID_INDEX_NAME))
+                    dropIndexes.add(di.getName());
+            }
+        } else {
+            BsonArray names;
+            if (index.isArray()) {
+                names = index.asArray();
+            } else {
+                names = new BsonArray();
+                names.add(index);
+            }
+            for (BsonValue v : names) {
+                DocumentIndex di;
+                if (v.isDocument()) {
+                    if (v.asDocument().size() == 1 && v.asDocument().containsKey("_id"))
+                        return newErrorBsonDocument(72, "InvalidOptions", "cannot drop _id index");
+                    di = DocumentIndex.findIndex(table, normalize(v.asDocument()));
+                } else {
+                    String name = v.asString().getValue();
+                    if (name.equals(DocumentIndex.ID_INDEX_NAME))
+                        return newErrorBsonDocument(72, "InvalidOptions", "cannot drop _id index");
+                    di = DocumentIndex.findIndex(table, name);
+                }
+                if (di == null)
+                    return newErrorBsonDocument(27, "IndexNotFound", "index not found with name ["
+                            + (v.isString() ? v.asString().getValue() : v.toString()) + "]");
+                dropIndexes.add(di.getName());
+            }
+        }
+        // 索引列不删除，新记录还会继续维护它们，以后在同一个字段上重建索引时也不用再回填。
+        // 删列之后再加列会让加列之前写入的记录在读取时出错(TableAlterHistoryRecord.redo)
+        try (ServerSession session = getSession(table.getDatabase(), conn)) {
+            for (DocumentIndex di : indexes) {
+                if (dropIndexes.contains(di.getName())) {
+                    String sql = "DROP INDEX IF EXISTS " + di.getIndex().getSQL();
+                    session.prepareStatementLocal(sql).executeUpdate();
+                }
+            }
+        }
+        BsonDocument document = new BsonDocument();
+        append(document, "nIndexesWas", nIndexesWas);
+        setOk(document);
+        return document;
+    }
+
+    private static BsonDocument listIndexes(BsonDocument doc, DocDBServerConnection conn) {
+        Table table = getTable(doc, "listIndexes", conn);
+        BsonArray documents = new BsonArray();
+        for (DocumentIndex index : DocumentIndex.getIndexes(table)) {
+            // 跟 mongodb 一样 _id 索引排在最前面
+            if (index.getName().equals(DocumentIndex.ID_INDEX_NAME))
+                documents.add(0, index.toBsonDocument());
+            else
+                documents.add(index.toBsonDocument());
+        }
+        BsonDocument document = new BsonDocument();
+        BsonDocument cursor = new BsonDocument();
+        append(cursor, "id", 0L);
+        append(cursor, "ns",
+                doc.getString("$db").getValue() + "." + doc.getString("listIndexes").getValue());
+        cursor.append("firstBatch", documents);
+        document.append("cursor", cursor);
+        setOk(document);
+        return document;
+    }
+}
@@ -5,67 +5,69 @@
  */
 package org.lealone.docdb.server.command;
 
-import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-
 import org.bson.BsonArray;
+import org.bson.BsonBoolean;
 import org.bson.BsonDocument;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
 import org.bson.io.ByteBufferBsonInput;
-import org.lealone.db.result.Row;
-import org.lealone.db.session.ServerSession;
+import org.lealone.db.async.Future;
 import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBException;
 import org.lealone.docdb.server.DocDBServerConnection;
 
 public class BCInsert extends BsonCommand {
 
-    public static BsonDocument execute(ByteBufferBsonInput input, BsonDocument doc,
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
             DocDBServerConnection conn) {
         Table table = getTable(doc, "insert", conn);
-        ArrayList<BsonDocument> list = new ArrayList<>();
-        ServerSession session = getSession(table.getDatabase(), conn);
-        BsonArray documents = doc.getArray("documents", null);
-        if (documents != null) {
-            for (int i = 0, size = documents.size(); i < size; i++) {
-                list.add(documents.get(i).asDocument());
-            }
+        BsonArray documents = doc.getArray("documents", new BsonArray());
+        boolean ordered = doc.getBoolean("ordered", BsonBoolean.TRUE).getValue();
+        InsertBatch batch = new InsertBatch(conn, table, documents, ordered);
+        batch.run();
+        return batch.callback;
+    }
+
+    private static class InsertBatch extends WriteBatch {
+
+        private final BsonArray documents;
+        private int index;
+
+        InsertBatch(DocDBServerConnection conn, Table table, BsonArray documents, boolean ordered) {
+            super(conn, table, ordered);
+            this.documents = documents;
         }
-        // mongodb-driver-sync会把documents包含在独立的payload中，需要特殊处理
-        if (input.hasRemaining()) {
-            input.readByte();
-            input.readInt32(); // size
-            input.readCString();
-            while (input.hasRemaining()) {
-                doc = conn.decode(input);
-                list.add(doc);
-            }
+
+        @Override
+        protected Future<Integer> next() {
+            if (index >= documents.size())
+                return null;
+            return table.addRow(session, toRow(table, addId(documents.get(index++).asDocument())));
         }
-        int size = list.size();
-        AtomicInteger counter = new AtomicInteger(size);
-        AtomicBoolean isFailed = new AtomicBoolean(false);
-        for (int i = 0; i < size && !isFailed.get(); i++) {
-            BsonDocument document = list.get(i);
-            Row row = table.getTemplateRow();
-            row.setValue(0, toValueMap(document));
-            Long id = getId(document);
-            if (id != null) {
-                row.setKey(id.longValue());
+
+        // 跟 mongodb 一样，驱动没有生成 _id 时由服务器生成 ObjectId，并且放在第一个字段
+        private static BsonDocument addId(BsonDocument doc) {
+            BsonValue id = doc.get("_id");
+            if (id == null) {
+                BsonDocument document = new BsonDocument("_id", new BsonObjectId());
+                document.putAll(doc);
+                return document;
             }
-            table.addRow(session, row).onComplete(ar -> {
-                if (isFailed.get())
-                    return;
-                if (ar.isFailed()) {
-                    isFailed.set(true);
-                    session.rollback();
-                }
-                if (counter.decrementAndGet() == 0 || isFailed.get()) {
-                    session.asyncCommit(() -> session.close());
-                }
-            });
+            if (id.isArray())
+                throw DocDBException.badValue("can't use an array for _id");
+            if (id.isRegularExpression())
+                throw DocDBException.badValue("can't use a regex for _id");
+            return doc;
+        }
+
+        @Override
+        protected int getIndex() {
+            return index - 1;
+        }
+
+        @Override
+        protected void onSucceeded(Integer result) {
+            n++;
         }
-        BsonDocument document = new BsonDocument();
-        setOk(document);
-        setN(document, size);
-        return document;
     }
 }
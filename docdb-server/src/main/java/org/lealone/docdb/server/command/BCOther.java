@@ -12,12 +12,18 @@ import java.util.UUID;
 
 import org.bson.BsonArray;
 import org.bson.BsonBinary;
+import org.bson.BsonBoolean;
 import org.bson.BsonDocument;
 import org.bson.io.ByteBufferBsonInput;
+import org.lealone.common.util.StringUtils;
 import org.lealone.db.Database;
+import org.lealone.db.LealoneDatabase;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBException;
 import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.MetaDataCache;
+import org.lealone.docdb.server.index.DocumentIndex;
 
 public class BCOther extends BsonCommand {
 
@@ -33,6 +39,9 @@ public class BCOther extends BsonCommand {
             setWireVersion(document);
             setOk(document);
             append(document, "isWritablePrimary", true);
+            BsonArray compression = doc.getArray("compression", null);
+            if (compression != null)
+                document.append("compression", conn.negotiateCompression(compression));
             return document;
         }
         case "buildinfo": {
@@ -49,19 +58,48 @@ public class BCOther extends BsonCommand {
             setOk(document);
             return document;
         }
+        case "create": {
+            Database db = getDatabase(doc, conn);
+            String tableName = doc.getString("create").getValue();
+            if (findTable(db, tableName, conn) != null)
+                throw new DocDBException(DocDBException.NAMESPACE_EXISTS, "NamespaceExists",
+                        "Collection already exists. NS: " + db.getName() + "." + tableName);
+            getTable(doc, "create", conn);
+            return newOkBsonDocument();
+        }
         case "drop": {
-            Table table = getTable(doc, "drop", conn);
-            try (ServerSession session = getSession(table.getDatabase(), conn)) {
-                String sql = "DROP TABLE IF EXISTS " + table.getSQL();
-                session.prepareStatementLocal(sql).executeUpdate();
+            Database db = getDatabase(doc, conn);
+            String tableName = doc.getString("drop").getValue();
+            Table table = findTable(db, tableName, conn);
+            if (table != null) {
+                try (ServerSession session = getSession(db, conn)) {
+                    String sql = "DROP TABLE IF EXISTS " + table.getSQL();
+                    session.prepareStatementLocal(sql).executeUpdate();
+                }
+                conn.getMetaDataCache().invalidateTable(db.getName(), tableName);
             }
+            conn.getServer().getMetrics().removeNamespaceStats(db.getName() + "." + tableName);
             BsonDocument document = new BsonDocument();
             setOk(document);
             return document;
         }
+        case "renamecollection": {
+            return renameCollection(doc, conn);
+        }
+        case "dropdatabase": {
+            String dbName = doc.getString("$db").getValue();
+            String sql = "DROP DATABASE IF EXISTS " + dbName;
+            LealoneDatabase.getInstance().getSystemSession().prepareStatementLocal(sql).executeUpdate();
+            conn.getMetaDataCache().invalidateDatabase(dbName);
+            conn.getServer().getMetrics().removeDatabaseStats(dbName);
+            BsonDocument document = new BsonDocument();
+            append(document, "dropped", dbName);
+            setOk(document);
+            return document;
+        }
         case "startsession": {
-            Database db = getDatabase(doc);
-            ServerSession session = createSession(db);
+            Database db = getDatabase(doc, conn);
+            ServerSession session = createSession(db, conn);
             UUID id = UUID.randomUUID();
             conn.getSessions().put(id, session);
             BsonDocument document = new BsonDocument();
@@ -103,6 +141,53 @@ public class BCOther extends BsonCommand {
         }
     }
 
+    // 只支持同一个数据库中的集合改名，目标集合存在时按 dropTarget 决定是否先删除
+    private static BsonDocument renameCollection(BsonDocument doc, DocDBServerConnection conn) {
+        String from = doc.getString("renameCollection").getValue();
+        String to = doc.getString("to").getValue();
+        boolean dropTarget = doc.getBoolean("dropTarget", BsonBoolean.FALSE).getValue();
+        int fromDot = from.indexOf('.');
+        int toDot = to.indexOf('.');
+        if (fromDot <= 0 || toDot <= 0)
+            throw new DocDBException(DocDBException.ILLEGAL_OPERATION, "IllegalOperation",
+                    "Invalid namespace: " + (fromDot <= 0 ? from : to));
+        String dbName = from.substring(0, fromDot);
+        if (!dbName.equals(to.substring(0, toDot)))
+            throw new DocDBException(DocDBException.ILLEGAL_OPERATION, "IllegalOperation",
+                    "Renaming a collection across databases is not supported");
+        String fromName = from.substring(fromDot + 1);
+        String toName = to.substring(toDot + 1);
+        Database db = LealoneDatabase.getInstance().findDatabase(dbName);
+        Table table = db == null ? null : findTable(getDatabase(dbName, conn), fromName, conn);
+        if (table == null)
+            throw new DocDBException(DocDBException.NAMESPACE_NOT_FOUND, "NamespaceNotFound",
+                    "Source collection " + from + " does not exist");
+        db = table.getDatabase();
+        Table target = findTable(db, toName, conn);
+        if (target != null && !dropTarget)
+            throw new DocDBException(DocDBException.NAMESPACE_EXISTS, "NamespaceExists",
+                    "Target namespace exists");
+        try (ServerSession session = getSession(db, conn)) {
+            if (target != null)
+                session.prepareStatementLocal("DROP TABLE " + target.getSQL()).executeUpdate();
+            List<DocumentIndex> indexes = DocumentIndex.getIndexes(table);
+            String sql = "ALTER TABLE " + table.getSQL() + " RENAME TO " + toName;
+            session.prepareStatementLocal(sql).executeUpdate();
+            // 索引名带有表名，也要跟着改，不然改名后的集合找不到原来的索引
+            for (DocumentIndex index : indexes) {
+                sql = "ALTER INDEX " + index.getIndex().getSQL() + " RENAME TO "
+                        + StringUtils.quoteIdentifier(DocumentIndex.getIndexName(table, index.getName()));
+                session.prepareStatementLocal(sql).executeUpdate();
+            }
+        }
+        MetaDataCache cache = conn.getMetaDataCache();
+        cache.invalidateTable(db.getName(), fromName);
+        cache.invalidateTable(db.getName(), toName);
+        conn.getServer().getMetrics().removeNamespaceStats(from);
+        conn.getServer().getMetrics().removeNamespaceStats(to);
+        return newOkBsonDocument();
+    }
+
     private static List<UUID> decodeUUIDs(BsonDocument doc, Object key) {
         BsonArray ba = doc.getArray(key, null);
         if (ba != null) {
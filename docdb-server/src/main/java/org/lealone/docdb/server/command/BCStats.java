@@ -0,0 +1,322 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.command;
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import org.bson.BsonArray;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonValue;
+import org.bson.io.ByteBufferBsonInput;
+import org.lealone.db.Database;
+import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.DocDBServer;
+import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.ServerMetrics;
+import org.lealone.docdb.server.ServerMetrics.CommandStats;
+import org.lealone.docdb.server.ServerMetrics.LatencyStats;
+import org.lealone.docdb.server.ServerMetrics.NamespaceStats;
+import org.lealone.docdb.server.SessionPool;
+import org.lealone.docdb.server.compress.MessageCompressor;
+import org.lealone.docdb.server.index.DocumentIndex;
+import org.lealone.server.Scheduler;
+
+/**
+ * serverStatus、top 和 collStats 命令，指标都来自 ServerMetrics，格式跟 mongodb 的一样，
+ * 只是 opcounters 按命令计数，一个 insert 命令插入多个文档也只算一次。
+ */
+public class BCStats extends BsonCommand {
+
+    private static final String[] LATENCY_NAMES = { "reads", "writes", "commands" };
+
+    public static BsonDocument execute(ByteBufferBsonInput input, BsonDocument doc,
+            DocDBServerConnection conn, String command) {
+        switch (command) {
+        case "serverstatus":
+            return serverStatus(doc, conn);
+        case "top":
+            return top(conn);
+        default:
+            return collStats(doc, conn);
+        }
+    }
+
+    private static BsonDocument serverStatus(BsonDocument doc, DocDBServerConnection conn) {
+        DocDBServer server = conn.getServer();
+        ServerMetrics metrics = server.getMetrics();
+        BsonDocument document = new BsonDocument();
+        append(document, "host", server.getHost() + ":" + server.getPort());
+        append(document, "version", "6.0.0");
+        append(document, "process", "lealone-docdb");
+        append(document, "pid", ProcessHandle.current().pid());
+        long uptime = metrics.getUptimeMillis();
+        append(document, "uptime", uptime / 1000);
+        append(document, "uptimeMillis", uptime);
+        document.append("localTime", new BsonDateTime(System.currentTimeMillis()));
+
+        if (include(doc, "connections")) {
+            BsonDocument connections = new BsonDocument();
+            append(connections, "current", server.getConnections().size());
+            append(connections, "totalCreated", metrics.getConnectionsCreated());
+            document.append("connections", connections);
+        }
+        if (include(doc, "network")) {
+            BsonDocument network = new BsonDocument();
+            append(network, "bytesIn", metrics.getBytesIn());
+            append(network, "bytesOut", metrics.getBytesOut());
+            append(network, "numRequests", metrics.getRequests());
+            append(network, "numPipelinedRequests", metrics.getPipelinedRequests());
+            network.append("compression", compression(metrics));
+            document.append("network", network);
+        }
+        if (include(doc, "opcounters"))
+            document.append("opcounters", opcounters(metrics));
+        if (include(doc, "opLatencies")) {
+            boolean histograms = getHistogramsOption(doc, "opLatencies");
+            document.append("opLatencies", latencyStats(metrics::getOpLatencies, histograms));
+        }
+        if (include(doc, "metrics")) {
+            BsonDocument commands = new BsonDocument();
+            for (Entry<String, CommandStats> e : new TreeMap<>(metrics.getCommandStats()).entrySet()) {
+                BsonDocument c = new BsonDocument();
+                append(c, "failed", e.getValue().getFailed());
+                append(c, "total", e.getValue().getTotal());
+                commands.append(e.getKey(), c);
+            }
+            BsonDocument cursor = new BsonDocument();
+            append(cursor, "timedOut", metrics.getCursorsTimedOut());
+            BsonDocument open = new BsonDocument();
+            append(open, "total", server.getCursorCount());
+            cursor.append("open", open);
+            BsonDocument m = new BsonDocument("commands", commands);
+            m.append("cursor", cursor);
+            document.append("metrics", m);
+        }
+        if (include(doc, "sessions"))
+            document.append("sessions", sessions(server));
+        if (include(doc, "schedulers"))
+            document.append("schedulers", schedulers(server));
+        setOk(document);
+        return document;
+    }
+
+    // 跟 mongodb 一样，可以用 {serverStatus: 1, metrics: 0} 这样的参数去掉不需要的部分
+    private static boolean include(BsonDocument doc, String section) {
+        BsonValue v = doc.get(section);
+        if (v == null || v.isDocument())
+            return true;
+        if (v.isBoolean())
+            return v.asBoolean().getValue();
+        return !v.isNumber() || v.asNumber().doubleValue() != 0;
+    }
+
+    private static boolean getHistogramsOption(BsonDocument doc, String section) {
+        BsonValue v = doc.get(section);
+        if (v == null || !v.isDocument())
+            return false;
+        BsonValue histograms = v.asDocument().get("histograms");
+        return histograms != null && histograms.isBoolean() && histograms.asBoolean().getValue();
+    }
+
+    private static BsonDocument compression(ServerMetrics metrics) {
+        BsonDocument document = new BsonDocument();
+        for (byte id = MessageCompressor.SNAPPY; id <= MessageCompressor.ZSTD; id++) {
+            long[] stats = metrics.getCompressionStats(id);
+            BsonDocument compressor = new BsonDocument();
+            append(compressor, "bytesIn", stats[0]);
+            append(compressor, "bytesOut", stats[1]);
+            BsonDocument decompressor = new BsonDocument();
+            append(decompressor, "bytesIn", stats[2]);
+            append(decompressor, "bytesOut", stats[3]);
+            BsonDocument c = new BsonDocument("compressor", compressor);
+            c.append("decompressor", decompressor);
+            document.append(MessageCompressor.getName(id), c);
+        }
+        return document;
+    }
+
+    private static BsonDocument opcounters(ServerMetrics metrics) {
+        HashMap<String, Long> counts = new HashMap<>();
+        long command = 0;
+        for (Entry<String, CommandStats> e : metrics.getCommandStats().entrySet()) {
+            switch (e.getKey()) {
+            case "insert":
+            case "find":
+            case "update":
+            case "delete":
+            case "getmore":
+                counts.put(e.getKey(), e.getValue().getTotal());
+                break;
+            default:
+                command += e.getValue().getTotal();
+            }
+        }
+        BsonDocument document = new BsonDocument();
+        append(document, "insert", counts.getOrDefault("insert", 0L));
+        append(document, "query", counts.getOrDefault("find", 0L));
+        append(document, "update", counts.getOrDefault("update", 0L));
+        append(document, "delete", counts.getOrDefault("delete", 0L));
+        append(document, "getmore", counts.getOrDefault("getmore", 0L));
+        append(document, "command", command);
+        return document;
+    }
+
+    // active 是客户端用 startSession 显式创建的会话，其他的是各个连接的会话池的状态
+    private static BsonDocument sessions(DocDBServer server) {
+        int active = 0;
+        int idle = 0;
+        for (DocDBServerConnection c : server.getConnections()) {
+            active += c.getSessions().size();
+            idle += c.getSessionPool().getIdleCount();
+        }
+        SessionPool.Stats stats = server.getSessionPoolStats();
+        BsonDocument document = new BsonDocument();
+        append(document, "active", active);
+        append(document, "pooledIdle", idle);
+        append(document, "poolHits", stats.getHits());
+        append(document, "poolMisses", stats.getMisses());
+        append(document, "poolEvictions", stats.getEvictions());
+        return document;
+    }
+
+    // load 是调度器中的会话数加上等待执行的页面操作数，yieldedTasks 是让出调度器后等着继续执行的命令数
+    private static BsonArray schedulers(DocDBServer server) {
+        TreeMap<Integer, int[]> counts = new TreeMap<>();
+        for (Scheduler scheduler : server.getSchedulers())
+            counts.put(scheduler.getHandlerId(), new int[2]);
+        for (DocDBServerConnection c : server.getConnections()) {
+            int[] n = counts.get(c.getScheduler().getHandlerId());
+            if (n != null) {
+                n[0]++;
+                n[1] += c.getYieldedTaskCount();
+            }
+        }
+        BsonArray array = new BsonArray();
+        for (Scheduler scheduler : server.getSchedulers()) {
+            int[] n = counts.get(scheduler.getHandlerId());
+            BsonDocument document = new BsonDocument();
+            append(document, "id", scheduler.getHandlerId());
+            append(document, "name", scheduler.getName());
+            append(document, "load", scheduler.getLoad());
+            append(document, "connections", n[0]);
+            append(document, "yieldedTasks", n[1]);
+            array.add(document);
+        }
+        return array;
+    }
+
+    private static BsonDocument top(DocDBServerConnection conn) {
+        BsonDocument totals = new BsonDocument();
+        append(totals, "note", "all times in microseconds");
+        TreeMap<String, NamespaceStats> namespaces = new TreeMap<>(
+                conn.getServer().getMetrics().getNamespaceStats());
+        for (Entry<String, NamespaceStats> e : namespaces.entrySet()) {
+            NamespaceStats stats = e.getValue();
+            BsonDocument ns = new BsonDocument();
+            for (int i = 0; i < ServerMetrics.TOP_NAMES.length; i++) {
+                BsonDocument d = new BsonDocument();
+                append(d, "time", stats.getTime(i));
+                append(d, "count", stats.getCount(i));
+                ns.append(ServerMetrics.TOP_NAMES[i], d);
+            }
+            totals.append(e.getKey(), ns);
+        }
+        BsonDocument document = new BsonDocument("totals", totals);
+        setOk(document);
+        return document;
+    }
+
+    // 集合不存在时跟 mongodb 一样返回全是 0 的结果，不会自动创建
+    private static BsonDocument collStats(BsonDocument doc, DocDBServerConnection conn) {
+        BsonValue name = doc.get(doc.getFirstKey());
+        if (!name.isString())
+            throw DocDBException.badValue("collection name has invalid type " + name.getBsonType());
+        Database db = getDatabase(doc, conn);
+        Table table = findTable(db, name.asString().getValue(), conn);
+        String ns = db.getName() + "." + (table == null ? name.asString().getValue() : table.getName());
+        BsonDocument document = new BsonDocument();
+        append(document, "ns", ns);
+        document.putAll(getStorageStats(table, getScale(doc.get("scale"))));
+        document.append("latencyStats", getLatencyStats(conn, ns, false));
+        setOk(document);
+        return document;
+    }
+
+    public static long getScale(BsonValue scale) {
+        if (scale == null)
+            return 1;
+        if (!scale.isNumber() || scale.asNumber().longValue() < 1)
+            throw DocDBException.badValue("scale has to be a number >= 1");
+        return scale.asNumber().longValue();
+    }
+
+    /**
+     * 记录数是存储层维护的估计值。size 和索引的大小是在内存中占用的空间，
+     * storageSize 是已经写到磁盘的空间，还没有执行 checkpoint 的数据不算在内。table 为 null 时全是 0。
+     */
+    public static BsonDocument getStorageStats(Table table, long scale) {
+        long count = table == null ? 0 : table.getRowCountApproximation();
+        long size = table == null ? 0 : table.getScanIndex(null).getMemorySpaceUsed();
+        BsonDocument document = new BsonDocument();
+        append(document, "size", size / scale);
+        append(document, "count", count);
+        append(document, "avgObjSize", count == 0 ? 0 : size / count);
+        append(document, "storageSize", (table == null ? 0 : table.getDiskSpaceUsed()) / scale);
+        BsonDocument indexSizes = new BsonDocument();
+        long totalIndexSize = 0;
+        if (table != null) {
+            for (DocumentIndex index : DocumentIndex.getIndexes(table)) {
+                long indexSize = index.getIndex().getMemorySpaceUsed();
+                totalIndexSize += indexSize;
+                append(indexSizes, index.getName(), indexSize / scale);
+            }
+        }
+        append(document, "nindexes", indexSizes.size());
+        append(document, "totalIndexSize", totalIndexSize / scale);
+        document.append("indexSizes", indexSizes);
+        append(document, "scaleFactor", scale);
+        return document;
+    }
+
+    public static BsonDocument getLatencyStats(DocDBServerConnection conn, String ns, boolean histograms) {
+        NamespaceStats stats = conn.getServer().getMetrics().getNamespaceStats(ns);
+        return latencyStats(stats::getLatencyStats, histograms);
+    }
+
+    private static BsonDocument latencyStats(IntFunction<LatencyStats> stats, boolean histograms) {
+        BsonDocument document = new BsonDocument();
+        for (int i = 0; i < LATENCY_NAMES.length; i++)
+            document.append(LATENCY_NAMES[i], toBsonDocument(stats.apply(i), histograms));
+        return document;
+    }
+
+    // 直方图只列出有数据的桶，micros 是桶的下界
+    private static BsonDocument toBsonDocument(LatencyStats stats, boolean histograms) {
+        BsonDocument document = new BsonDocument();
+        if (histograms) {
+            BsonArray histogram = new BsonArray();
+            for (int i = 0; i < LatencyStats.BUCKET_COUNT; i++) {
+                long count = stats.getCount(i);
+                if (count > 0) {
+                    BsonDocument bucket = new BsonDocument("micros",
+                            new BsonInt64(stats.getBucketLowerBound(i)));
+                    bucket.append("count", new BsonInt64(count));
+                    histogram.add(bucket);
+                }
+            }
+            document.append("histogram", histogram);
+        }
+        append(document, "latency", stats.getLatency());
+        append(document, "ops", stats.getOps());
+        return document;
+    }
+}
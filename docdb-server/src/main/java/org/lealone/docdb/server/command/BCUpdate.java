@@ -5,33 +5,238 @@
  */
 package org.lealone.docdb.server.command;
 
+import java.util.Arrays;
+import java.util.HashSet;
+
 import org.bson.BsonArray;
+import org.bson.BsonBoolean;
 import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
 import org.bson.io.ByteBufferBsonInput;
+import org.lealone.db.async.Future;
+import org.lealone.db.result.Row;
+import org.lealone.db.table.Column;
+import org.lealone.db.table.Table;
+import org.lealone.db.value.ValueBytes;
+import org.lealone.docdb.server.DocDBException;
 import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.index.DocumentIndex;
+import org.lealone.docdb.server.index.DocumentIndex.IndexBounds;
+import org.lealone.docdb.server.index.DocumentIndex.IndexCursor;
+import org.lealone.docdb.server.query.QueryFilter;
+import org.lealone.docdb.server.update.DocumentUpdate;
+import org.lealone.transaction.Transaction;
 
 public class BCUpdate extends BsonCommand {
 
-    public static BsonDocument execute(ByteBufferBsonInput input, BsonDocument doc,
+    // 更新的记录很多时每更新这么多条就提交一次
+    private static final int CHUNK_SIZE = 1000;
+
+    public static Future<BsonDocument> execute(ByteBufferBsonInput input, BsonDocument doc,
             DocDBServerConnection conn) {
-        int n = 0;
-        BsonArray updates = doc.getArray("updates", null);
-        if (updates != null) {
-            for (int i = 0, size = updates.size(); i < size; i++) {
-                BsonDocument update = updates.get(i).asDocument();
-                if (DEBUG)
-                    logger.info(update.toJson());
-                BsonDocument q = update.getDocument("q", null);
-                BsonDocument u = update.getDocument("u", null);
-                if (u == null)
-                    continue;
-                if (q != null) {
+        Table table = getTable(doc, "update", conn);
+        BsonArray updates = doc.getArray("updates", new BsonArray());
+        boolean ordered = doc.getBoolean("ordered", BsonBoolean.TRUE).getValue();
+        UpdateBatch batch = new UpdateBatch(conn, table, updates, ordered);
+        batch.run();
+        return batch.callback;
+    }
+
+    private static class UpdateBatch extends WriteBatch {
+
+        private final BsonArray updates;
+        private final BsonArray upserted = new BsonArray();
+        private int index;
+        private int nModified;
+
+        // 当前语句的更新操作，还在查找匹配的记录时 cursor 不为 null
+        private DocumentUpdate update;
+        private IndexCursor cursor;
+        private QueryFilter filter;
+        private boolean multi;
+        private boolean upsert;
+        private boolean matched;
+        // 按二级索引扫描时，改了索引字段的记录会在索引中后面的位置再次出现，
+        // 分块提交后重新打开的游标也会读到，用这些 key 跳过已经更新过的记录
+        private HashSet<Long> updatedKeys;
+        private BsonDocument upsertDocument;
+        private BsonValue upsertId; // 不为 null 时当前写操作是 upsert 插入的新文档
+
+        UpdateBatch(DocDBServerConnection conn, Table table, BsonArray updates, boolean ordered) {
+            super(conn, table, ordered);
+            this.updates = updates;
+        }
+
+        // 跟 delete 一样边扫描边更新，不用先把所有匹配的记录都读到内存中
+        @Override
+        protected Future<Integer> next() {
+            upsertId = null;
+            while (true) {
+                if (cursor != null) {
+                    Row oldRow = nextMatch();
+                    if (oldRow == null) {
+                        if (cursor != null)
+                            return YIELD; // 下次从这个游标最后读到的记录之后接着扫描
+                        continue;
+                    }
+                    if (!lockRow(oldRow)) {
+                        if (hasRetryRow())
+                            return YIELD; // 等锁释放之后重新读取这条记录
+                        continue;
+                    }
+                    if (!multi)
+                        cursor = null;
+                    byte[] newBytes = update.apply(oldRow.getValue(0).getBytesNoCopy());
+                    if (newBytes == null) { // 匹配了但是没有变化
+                        n++;
+                        continue;
+                    }
+                    if (updatedKeys != null)
+                        updatedKeys.add(oldRow.getKey());
+                    return updateRow(oldRow, newBytes);
+                }
+                if (upsertDocument != null) {
+                    Row row = toRow(table, upsertDocument);
+                    upsertId = upsertDocument.get("_id");
+                    upsertDocument = null;
+                    return table.addRow(session, row);
+                }
+                if (index >= updates.size())
+                    return null;
+                prepare(updates.get(index++).asDocument());
+            }
+        }
+
+        private void prepare(BsonDocument statement) {
+            if (DEBUG)
+                logger.info(statement.toJson());
+            BsonValue u = statement.get("u");
+            if (u == null)
+                throw DocDBException
+                        .badValue("BSON field 'update.updates.u' is missing but a required field");
+            if (statement.containsKey("arrayFilters"))
+                throw DocDBException.badValue("arrayFilters is not supported");
+            multi = statement.getBoolean("multi", BsonBoolean.FALSE).getValue();
+            upsert = statement.getBoolean("upsert", BsonBoolean.FALSE).getValue();
+            filter = QueryFilter.compile(statement.getDocument("q", null));
+            update = DocumentUpdate.compile(u);
+            if (multi && update.isReplacement())
+                throw new DocDBException(DocDBException.FAILED_TO_PARSE, "FailedToParse",
+                        "multi update is not supported for replacement-style update");
+
+            // 全表扫描按 key 的顺序，_id 不能修改，这两种扫描中更新过的记录不会再被扫描到
+            IndexBounds bounds = getBestBounds(table, filter);
+            updatedKeys = multi && bounds != null && !bounds.getDocumentIndex().isIdIndex() ? new HashSet<>()
+                    : null;
+            matched = false;
+            cursor = find(session, table, bounds);
+        }
+
+        // 返回下一条匹配的记录，扫描完了或者需要让出调度器时返回 null，扫描完时 cursor 也变成 null
+        private Row nextMatch() {
+            while (!yieldPolicy.shouldYield()) {
+                Row row;
+                if (hasRetryRow()) {
+                    row = getRetryRow();
+                    if (row == null)
+                        continue;
+                } else {
+                    if (!cursor.next()) {
+                        cursor = null;
+                        if (!matched && upsert)
+                            upsertDocument = update.newUpsertDocument(filter);
+                        return null;
+                    }
+                    row = cursor.get();
+                    if (row == null || updatedKeys != null && updatedKeys.contains(row.getKey()))
+                        continue;
+                }
+                if (filter.match(toBsonDocument(row))) {
+                    matched = true;
+                    return row;
                 }
             }
+            return null;
+        }
+
+        private Future<Integer> updateRow(Row oldRow, byte[] newBytes) {
+            Row newRow = table.getTemplateRow();
+            newRow.setKey(oldRow.getKey());
+            newRow.setValue(0, ValueBytes.getNoCopy(newBytes));
+            // 只有改到了索引字段才重新计算索引列，否则直接用原来的值，
+            // 而且只把值有变化的索引列传给 updateRow，其他二级索引不需要修改
+            Column[] columns = table.getColumns();
+            boolean keyChanged = false;
+            for (int i = 1; i < columns.length; i++) {
+                if (DocumentIndex.isKeyColumn(columns[i]) && update.affects(
+                        columns[i].getName().substring(DocumentIndex.KEY_COLUMN_PREFIX.length()))) {
+                    keyChanged = true;
+                    break;
+                }
+            }
+            if (keyChanged)
+                DocumentIndex.setKeyValues(table, newRow, new RawBsonDocument(newBytes));
+            int[] updateColumns = new int[columns.length];
+            int count = 1; // 第 0 列是文档本身
+            for (int i = 1; i < columns.length; i++) {
+                if (!keyChanged)
+                    newRow.setValue(i, oldRow.getValue(i));
+                else if (!newRow.getValue(i).equals(oldRow.getValue(i)))
+                    updateColumns[count++] = i;
+            }
+            return table.updateRow(session, oldRow, newRow, Arrays.copyOf(updateColumns, count));
+        }
+
+        @Override
+        protected int getIndex() {
+            return index - 1;
+        }
+
+        @Override
+        protected int getChunkSize() {
+            return CHUNK_SIZE;
+        }
+
+        @Override
+        protected void onSucceeded(Integer result) {
+            if (upsertId != null) {
+                BsonDocument document = new BsonDocument("index", new BsonInt32(getIndex()));
+                document.append("_id", upsertId);
+                upserted.add(document);
+                n++;
+            } else if (result.intValue() == Transaction.OPERATION_COMPLETE) {
+                n++;
+                nModified++;
+            } else {
+                // 记录已经先锁住了，不会再跟其他事务冲突
+                throw new DocDBException(DocDBException.WRITE_CONFLICT, "WriteConflict",
+                        "Write conflict during plan execution");
+            }
+        }
+
+        // 提交之后的事务看不到旧游标的快照，下次从最后读到的记录之后重新打开
+        @Override
+        protected void pause() {
+            if (cursor != null)
+                cursor.pause();
+        }
+
+        // 出错时跳过当前语句剩下的记录
+        @Override
+        protected void onFailed(Throwable e) {
+            cursor = null;
+            updatedKeys = null;
+            upsertDocument = null;
+            super.onFailed(e);
+        }
+
+        @Override
+        protected void appendResult(BsonDocument document) {
+            append(document, "nModified", nModified);
+            if (!upserted.isEmpty())
+                document.append("upserted", upserted);
         }
-        BsonDocument document = new BsonDocument();
-        setOk(document);
-        setN(document, n);
-        return document;
     }
 }
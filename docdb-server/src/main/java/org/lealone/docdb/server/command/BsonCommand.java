@@ -5,39 +5,64 @@
  */
 package org.lealone.docdb.server.command;
 
-import java.util.ArrayList;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Supplier;
 
+import org.bson.BsonArray;
+import org.bson.BsonBinaryWriter;
 import org.bson.BsonBoolean;
 import org.bson.BsonDocument;
-import org.bson.BsonElement;
 import org.bson.BsonInt32;
 import org.bson.BsonInt64;
 import org.bson.BsonString;
 import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.io.ByteBufferBsonInput;
+import org.lealone.common.exceptions.DbException;
 import org.lealone.common.logging.Logger;
 import org.lealone.common.logging.LoggerFactory;
+import org.lealone.common.util.StringUtils;
 import org.lealone.db.Constants;
 import org.lealone.db.Database;
 import org.lealone.db.LealoneDatabase;
+import org.lealone.db.api.ErrorCode;
+import org.lealone.db.async.AsyncCallback;
+import org.lealone.db.async.Future;
 import org.lealone.db.auth.User;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.result.Row;
+import org.lealone.db.result.SearchRow;
 import org.lealone.db.schema.Schema;
 import org.lealone.db.session.ServerSession;
 import org.lealone.db.table.Table;
-import org.lealone.db.value.Value;
-import org.lealone.db.value.ValueInt;
-import org.lealone.db.value.ValueLong;
-import org.lealone.db.value.ValueMap;
-import org.lealone.db.value.ValueString;
+import org.lealone.db.value.ValueBytes;
+import org.lealone.docdb.server.DocDBCursor;
+import org.lealone.docdb.server.DocDBException;
 import org.lealone.docdb.server.DocDBServer;
 import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.MetaDataCache;
+import org.lealone.docdb.server.PooledSession;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.index.DocumentIndex;
+import org.lealone.docdb.server.index.DocumentIndex.IndexBounds;
+import org.lealone.docdb.server.index.DocumentIndex.IndexCursor;
+import org.lealone.docdb.server.pipeline.Stage;
+import org.lealone.docdb.server.query.QueryFilter;
+import org.lealone.docdb.server.query.QueryFilter.FieldFilter;
 
 public abstract class BsonCommand {
 
     public static final Logger logger = LoggerFactory.getLogger(BsonCommand.class);
     public static final boolean DEBUG = false;
 
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
     public static BsonDocument newOkBsonDocument() {
         BsonDocument document = new BsonDocument();
         setOk(document);
@@ -52,50 +77,116 @@ public abstract class BsonCommand {
         append(doc, "n", n);
     }
 
+    public static BsonDocument newErrorBsonDocument(int code, String codeName, String errmsg) {
+        BsonDocument document = new BsonDocument();
+        append(document, "ok", 0);
+        append(document, "errmsg", errmsg);
+        append(document, "code", code);
+        append(document, "codeName", codeName);
+        return document;
+    }
+
+    // insert/update/delete 中单个文档出错时放到 writeErrors 中返回
+    public static BsonDocument newWriteError(int index, Throwable e) {
+        BsonDocument error = new BsonDocument();
+        append(error, "index", index);
+        if (e instanceof DocDBException) {
+            DocDBException de = (DocDBException) e;
+            append(error, "code", de.getCode());
+            append(error, "errmsg", de.getMessage());
+        } else if (e instanceof DbException
+                && ((DbException) e).getErrorCode() == ErrorCode.DUPLICATE_KEY_1) {
+            append(error, "code", DocDBException.DUPLICATE_KEY);
+            append(error, "errmsg", "E11000 duplicate key error: " + e.getMessage());
+        } else {
+            append(error, "code", DocDBException.UNKNOWN_ERROR);
+            append(error, "errmsg", e.toString());
+        }
+        return error;
+    }
+
     public static void setWireVersion(BsonDocument doc) {
         append(doc, "minWireVersion", 0);
         append(doc, "maxWireVersion", 17);
     }
 
-    public static Database getDatabase(BsonDocument doc) {
+    public static Database getDatabase(BsonDocument doc, DocDBServerConnection conn) {
         String dbName = doc.getString("$db").getValue();
         if (dbName == null)
             dbName = DocDBServer.DATABASE_NAME;
-        Database db = LealoneDatabase.getInstance().findDatabase(dbName);
+        return getDatabase(dbName, conn);
+    }
+
+    public static Database getDatabase(String dbName, DocDBServerConnection conn) {
+        MetaDataCache cache = conn.getMetaDataCache();
+        Database db = cache.getDatabase(dbName);
+        if (db != null)
+            return db;
+        db = LealoneDatabase.getInstance().findDatabase(dbName);
         if (db == null) {
             String sql = "CREATE DATABASE IF NOT EXISTS " + dbName;
             LealoneDatabase.getInstance().getSystemSession().prepareStatementLocal(sql).executeUpdate();
             db = LealoneDatabase.getInstance().getDatabase(dbName);
         }
-        if (!db.isInitialized())
-            db.init();
+        // init 开始执行后 isInitialized 就返回 true 了，所以不能用它判断，
+        // 直接调用同步的 init，等其他线程把数据库打开后再用，不然会跟元数据的加载并发建表，造成死锁
+        db.init();
+        cache.putDatabase(dbName, db);
         return db;
     }
 
     public static Table getTable(BsonDocument doc, String key, DocDBServerConnection conn) {
-        Database db = getDatabase(doc);
-        Schema schema = db.getSchema(null, Constants.SCHEMA_MAIN);
+        Database db = getDatabase(doc, conn);
         String tableName = doc.getString(key).getValue();
-        Table table = schema.findTableOrView(null, tableName);
+        MetaDataCache cache = conn.getMetaDataCache();
+        Table table = cache.getTable(db, tableName);
+        if (table != null)
+            return table;
+        Schema schema = db.getSchema(null, Constants.SCHEMA_MAIN);
+        table = schema.findTableOrView(null, tableName);
         if (table == null) {
             try (ServerSession session = getSession(db, conn)) {
                 String sql = "CREATE TABLE IF NOT EXISTS " + Constants.SCHEMA_MAIN + "." + tableName
-                        + "(_json_ map<varchar, object>)";
+                        + "(_doc_ varbinary, "
+                        + StringUtils.quoteIdentifier(DocumentIndex.ID_COLUMN_NAME) + " varbinary)";
                 session.prepareStatementLocal(sql).executeUpdate();
             }
+            table = schema.getTableOrView(null, tableName);
         }
-        return schema.getTableOrView(null, tableName);
+        // 以前的版本创建的表没有 _id 索引，第一次用到时补上
+        if (DocumentIndex.findIndex(table, DocumentIndex.ID_INDEX_NAME) == null)
+            table = BCIndex.createIdIndex(table, conn);
+        cache.putTable(db, tableName, table);
+        return table;
+    }
+
+    // 不存在时返回 null，不会自动创建
+    public static Table findTable(Database db, String tableName, DocDBServerConnection conn) {
+        Table table = conn.getMetaDataCache().getTable(db, tableName);
+        if (table == null)
+            table = db.getSchema(null, Constants.SCHEMA_MAIN).findTableOrView(null, tableName);
+        return table;
     }
 
-    public static ServerSession createSession(Database db) {
-        return new ServerSession(db, getUser(db), 0);
+    public static ServerSession createSession(Database db, DocDBServerConnection conn) {
+        return new ServerSession(db, getUser(db, conn), 0);
         // return db.createSession(getUser(db));
     }
 
-    public static ServerSession getSession(Database db, DocDBServerConnection conn) {
+    public static PooledSession getSession(Database db, DocDBServerConnection conn) {
         return conn.getPooledSession(db);
     }
 
+    public static User getUser(Database db, DocDBServerConnection conn) {
+        MetaDataCache cache = conn.getMetaDataCache();
+        User user = cache.getUser(db);
+        if (user == null) {
+            user = getUser(db);
+            cache.putUser(db, user);
+        }
+        return user;
+    }
+
     public static User getUser(Database db) {
         for (User user : db.getAllUsers()) {
             if (user.isAdmin())
@@ -120,68 +211,209 @@ public abstract class BsonCommand {
         doc.append(key, new BsonString(value));
     }
 
-    public static ValueMap toValueMap(BsonDocument doc) {
-        Value[] values = new Value[doc.size() * 2];
-        int index = 0;
-        for (Entry<String, BsonValue> e : doc.entrySet()) {
-            values[index++] = ValueString.get(e.getKey());
-            BsonValue v = e.getValue();
-            switch (v.getBsonType()) {
-            case INT32:
-                values[index++] = ValueInt.get(v.asInt32().getValue());
-                break;
-            case INT64:
-                values[index++] = ValueLong.get(v.asInt64().getValue());
-                break;
-            // case STRING:
-            default:
-                values[index++] = ValueString.get(v.asString().getValue());
+    // 文档直接以 BSON 字节的形式存储，读取时用 RawBsonDocument 按需解析
+    public static byte[] toBytes(BsonDocument doc) {
+        if (doc instanceof RawBsonDocument) {
+            ByteBuf buffer = ((RawBsonDocument) doc).getByteBuffer();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return bytes;
+        }
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        try {
+            CODEC.encode(new BsonBinaryWriter(out), doc, EncoderContext.builder().build());
+            return out.toByteArray();
+        } finally {
+            out.close();
+        }
+    }
+
+    public static BsonDocument toBsonDocument(Row row) {
+        return new RawBsonDocument(row.getValue(0).getBytesNoCopy());
+    }
+
+    // kind 1 的文档序列不解析文档，直接复制出原始的字节
+    public static RawBsonDocument readRawDocument(ByteBufferBsonInput input) {
+        int size = input.readInt32();
+        byte[] bytes = new byte[size];
+        bytes[0] = (byte) size;
+        bytes[1] = (byte) (size >>> 8);
+        bytes[2] = (byte) (size >>> 16);
+        bytes[3] = (byte) (size >>> 24);
+        input.readBytes(bytes, 4, size - 4);
+        return new RawBsonDocument(bytes);
+    }
+
+    public static Row toRow(Table table, BsonDocument document) {
+        Row row = table.getTemplateRow();
+        row.setValue(0, ValueBytes.getNoCopy(toBytes(document)));
+        DocumentIndex.setKeyValues(table, row, document);
+        return row;
+    }
+
+    // 用能下推最多条件的索引(包括 _id 索引)，没有能用的索引时才全表扫描
+    public static IndexCursor find(ServerSession session, Table table, QueryFilter filter) {
+        return find(session, table, getBestBounds(table, filter));
+    }
+
+    // bounds 为 null 时全表扫描
+    public static IndexCursor find(ServerSession session, Table table, IndexBounds bounds) {
+        if (bounds != null) {
+            if (DEBUG)
+                logger.info("use index: {}", bounds.getDocumentIndex().getName());
+            return bounds.find(session);
+        }
+        return new IndexCursor(session, table.getScanIndex(session), new SearchRow[] { null, null });
+    }
+
+    public static boolean isFullScan(Table table, QueryFilter filter) {
+        return getBestBounds(table, filter) == null;
+    }
+
+    /**
+     * find 会用到的索引扫描区间，没有能用的索引时返回 null。
+     */
+    public static IndexBounds getBestBounds(Table table, QueryFilter filter) {
+        List<FieldFilter> filters = filter.getFieldFilters();
+        return filters.isEmpty() ? null : getBestBounds(table, filters);
+    }
+
+    /**
+     * find 用二级索引查询，而且条件和投影只用到了这个索引中的顶层字段时返回这个索引，
+     * 这时可以直接用索引项构造文档，不用再读取整条记录。
+     */
+    public static DocumentIndex getCoveringIndex(Table table, QueryFilter filter, String[] fields) {
+        List<FieldFilter> filters = filter.getFieldFilters();
+        if (filters.isEmpty())
+            return null;
+        IndexBounds bounds = getBestBounds(table, filters);
+        if (bounds == null)
+            return null;
+        DocumentIndex index = bounds.getDocumentIndex();
+        List<String> paths = Arrays.asList(index.getPaths());
+        HashSet<String> needed = new HashSet<>(Arrays.asList(fields));
+        filter.collectPaths(needed);
+        for (String path : needed) {
+            if (path.indexOf('.') >= 0 || !paths.contains(path))
+                return null;
+        }
+        return index;
+    }
+
+    private static IndexBounds getBestBounds(Table table, List<FieldFilter> filters) {
+        DocumentIndex best = null;
+        IndexBounds bestBounds = null;
+        int bestScore = 0;
+        for (DocumentIndex index : DocumentIndex.getIndexes(table)) {
+            IndexBounds bounds = index.getBounds(filters);
+            int score = bounds.getScore();
+            if (score > bestScore || score > 0 && score == bestScore && index.isUnique()) {
+                best = index;
+                bestBounds = bounds;
+                bestScore = score;
             }
         }
+        return best == null ? null : bestBounds;
+    }
+
+    public static int getBatchSize(BsonDocument doc, int defaultBatchSize) {
+        BsonValue v = doc.get("batchSize");
+        if (v == null || !v.isNumber() || v.asNumber().intValue() <= 0)
+            return defaultBatchSize;
+        return v.asNumber().intValue();
+    }
+
+    // 没有指定或者是空文档时返回 null
+    public static BsonDocument getDocument(BsonDocument doc, String name) {
+        BsonValue v = doc.get(name);
+        if (v == null || v.isNull())
+            return null;
+        if (!v.isDocument())
+            throw new DocDBException(DocDBException.TYPE_MISMATCH, "TypeMismatch",
+                    "'" + name + "' option must be specified as an object");
+        return v.asDocument().isEmpty() ? null : v.asDocument();
+    }
+
+    // skip、limit 这类选项，没有指定时返回 0
+    public static long getCount(BsonDocument doc, String name) {
+        BsonValue v = doc.get(name);
+        if (v == null || v.isNull())
+            return 0;
+        if (!v.isNumber())
+            throw new DocDBException(DocDBException.TYPE_MISMATCH, "TypeMismatch",
+                    "'" + name + "' option must be a number");
+        long n = v.asNumber().longValue();
+        if (n < 0)
+            throw DocDBException.badValue(name + " value must be non-negative, but received: " + n);
+        return n;
+    }
 
-        ValueMap vMap = ValueMap.get(String.class, Object.class, values);
-        return vMap;
-    }
-
-    public static BsonDocument toBsonDocument(ValueMap vMap) {
-        BsonDocument doc = (BsonDocument) vMap.getDocument();
-        if (doc != null)
-            return doc;
-        synchronized (vMap) {
-            doc = (BsonDocument) vMap.getDocument();
-            if (doc != null)
-                return doc;
-            Map<Value, Value> map = vMap.getMap();
-            ArrayList<BsonElement> bsonElements = new ArrayList<>(map.size());
-            for (Entry<Value, Value> e : map.entrySet()) {
-                Value v = e.getValue();
-                BsonValue bv;
-                switch (v.getType()) {
-                case Value.INT:
-                    bv = new BsonInt32(v.getInt());
-                    break;
-                case Value.LONG:
-                    bv = new BsonInt64(v.getLong());
-                    break;
-                default:
-                    bv = new BsonString(v.getString());
+    /**
+     * 执行可以分多次完成的命令，task 返回 null 表示用完了时间片，
+     * 这时让出调度器，在调度器的下一轮循环中再调用 task 继续执行。
+     */
+    public static Future<BsonDocument> executeYieldable(DocDBServerConnection conn, YieldPolicy policy,
+            Supplier<BsonDocument> task) {
+        AsyncCallback<BsonDocument> callback = new AsyncCallback<>();
+        new Runnable() {
+            @Override
+            public void run() {
+                BsonDocument result;
+                try {
+                    policy.start(conn.getScheduler());
+                    result = task.get();
+                } catch (Throwable e) {
+                    callback.setAsyncResult(e);
+                    return;
                 }
-                bsonElements.add(new BsonElement(e.getKey().getString(), bv));
+                if (result != null)
+                    callback.setAsyncResult(result);
+                else
+                    conn.yieldAndResume(this, !policy.isBlocked());
             }
-            doc = new BsonDocument(bsonElements);
-            vMap.setDocument(doc);
-            return doc;
-        }
+        }.run();
+        return callback;
     }
 
-    public static Long getId(BsonDocument doc) {
-        BsonValue id = doc.get("_id", null);
-        if (id != null) {
-            if (id.isInt32())
-                return Long.valueOf(id.asInt32().getValue());
-            else if (id.isInt64())
-                return Long.valueOf(id.asInt64().getValue());
-        }
-        return null;
+    // 先读第一批文档，没读完的结果注册成游标，后面由 getMore 继续读取
+    public static Future<BsonDocument> createCursorResponse(DocDBServerConnection conn, BsonDocument doc,
+            String ns, PooledSession session, Stage stage, YieldPolicy policy, int batchSize,
+            boolean singleBatch) {
+        DocDBCursor c = new DocDBCursor(conn, doc, ns, session, stage, policy);
+        long start = conn.getRequestStartTime();
+        return executeYieldable(conn, policy, () -> {
+            BsonArray documents;
+            try {
+                documents = c.nextBatch(batchSize);
+            } catch (Throwable t) {
+                if (!conn.closeCursor(c.getId()))
+                    c.close();
+                throw t;
+            }
+            // 让出调度器期间连接可能被关闭，先注册游标，这样连接关闭时游标也会被关闭
+            if (documents == null) {
+                if (c.getId() == 0)
+                    conn.addCursor(c);
+                return null;
+            }
+            c.logSlowQuery(doc.getFirstKey(), start, documents.size());
+            long cursorId = 0;
+            if (c.isClosed() || singleBatch) {
+                if (!conn.closeCursor(c.getId()))
+                    c.close();
+            } else {
+                if (c.getId() == 0)
+                    conn.addCursor(c);
+                cursorId = c.getId();
+            }
+            BsonDocument document = new BsonDocument();
+            BsonDocument cursor = new BsonDocument();
+            append(cursor, "id", cursorId);
+            append(cursor, "ns", ns);
+            cursor.append("firstBatch", documents);
+            document.append("cursor", cursor);
+            setOk(document);
+            return document;
+        });
     }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.command;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.lealone.db.async.AsyncCallback;
+import org.lealone.db.async.AsyncResult;
+import org.lealone.db.async.Future;
+import org.lealone.db.result.Row;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.session.SessionStatus;
+import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.YieldPolicy;
+
+/**
+ * insert、update 等写命令中的一批写操作在同一个事务中逐个执行，最后只提交一次，
+ * 提交时多个会话的 redo log 由日志同步服务合并写盘，提交完成后才返回响应。
+ *
+ * 每个写操作在一个保存点之后执行，出错时只回滚这一个操作，然后按 ordered 决定是否继续。
+ * 大批量的删除等操作可以通过 getChunkSize 分成多个事务提交，
+ * 避免一个事务长时间持有大量的锁和 undo log。
+ *
+ * 执行的写操作或者扫描的记录超过 YieldPolicy 的限制时让出调度器，在调度器的下一轮循环中继续执行。
+ *
+ * 跟 SQL 层一样修改记录之前先锁住它，被其他事务锁住时会话变成 WAITING 状态，让出调度器等那个事务结束，
+ * Lealone 释放锁时把会话改成 RETRYING 并唤醒调度器，然后重新读取这条记录再试。
+ */
+abstract class WriteBatch {
+
+    private static final int PENDING = 0;
+    private static final int ASYNC = 1;
+    private static final int INLINE = 2;
+
+    // next 返回这个对象(按引用比较)表示要让出调度器
+    protected static final Future<Integer> YIELD = Future.succeededFuture(0);
+
+    final AsyncCallback<BsonDocument> callback = new AsyncCallback<>();
+    private final AtomicInteger state = new AtomicInteger();
+    protected final DocDBServerConnection conn;
+    protected final Table table;
+    protected final boolean ordered;
+    protected final ServerSession session;
+    protected final YieldPolicy yieldPolicy;
+    private final BsonArray writeErrors = new BsonArray();
+    private int savepointId;
+    private int uncommitted; // 上次提交之后成功执行的写操作个数
+    private Row retryRow; // 等锁的记录或者锁住之前已经被修改的记录，要重新读取
+    protected int n;
+
+    WriteBatch(DocDBServerConnection conn, Table table, boolean ordered) {
+        this.conn = conn;
+        this.table = table;
+        this.ordered = ordered;
+        session = BsonCommand.getSession(table.getDatabase(), conn);
+        yieldPolicy = conn.createYieldPolicy();
+    }
+
+    // 执行下一个写操作，没有了就返回 null，扫描了太多记录还没找到要写的记录时可以返回 YIELD
+    protected abstract Future<Integer> next();
+
+    // 当前写操作所属的语句在命令数组中的下标
+    protected abstract int getIndex();
+
+    protected abstract void onSucceeded(Integer result);
+
+    protected void onFailed(Throwable e) {
+        retryRow = null;
+        session.rollbackTo(savepointId);
+        writeErrors.add(BsonCommand.newWriteError(getIndex(), e));
+    }
+
+    /**
+     * 修改记录之前先锁住它，返回 false 时不能修改：记录已经被其他事务删除了，可以直接跳过；
+     * 或者 hasRetryRow 返回 true，这时 next 要返回 YIELD，下次用 getRetryRow 重新读取这条记录。
+     */
+    protected boolean lockRow(Row row) {
+        int result = table.tryLockRow(session, row, null);
+        if (result == 0 || result > 0 && table.isRowChanged(row)) {
+            retryRow = row;
+            return false;
+        }
+        return result > 0;
+    }
+
+    protected boolean hasRetryRow() {
+        return retryRow != null;
+    }
+
+    // 返回要重新读取的记录的最新版本，已经被删除时返回 null
+    protected Row getRetryRow() {
+        Row row = table.getRow(session, retryRow.getKey());
+        retryRow = null;
+        return row;
+    }
+
+    // 大于 0 时每成功执行这么多个写操作就提交一次
+    protected int getChunkSize() {
+        return 0;
+    }
+
+    // 分块提交和让出调度器之前调用，扫描游标要在这里释放，继续执行时在新的事务中重新定位
+    protected void pause() {
+    }
+
+    // 在 n 之后追加命令特有的结果字段
+    protected void appendResult(BsonDocument document) {
+    }
+
+    // 写操作通常是同步完成的，这时直接在循环中执行下一个，
+    // 只有异步完成时才回到调度器中继续，避免递归太深
+    void run() {
+        try {
+            yieldPolicy.start(conn.getScheduler());
+            int chunkSize = getChunkSize();
+            while (writeErrors.isEmpty() || !ordered) {
+                // 锁释放之前不用唤醒调度器，超时了会抛出异常
+                if (session.getStatus() == SessionStatus.WAITING) {
+                    session.getTransaction().checkTimeout();
+                    conn.yieldAndResume(() -> run(), false);
+                    return;
+                }
+                if (session.getStatus() == SessionStatus.RETRYING)
+                    session.setStatus(SessionStatus.TRANSACTION_NOT_COMMIT);
+                if (chunkSize > 0 && uncommitted >= chunkSize) {
+                    uncommitted = 0;
+                    pause();
+                    state.set(PENDING);
+                    session.asyncCommit(() -> resume());
+                    if (state.compareAndSet(PENDING, ASYNC))
+                        return;
+                }
+                if (yieldPolicy.shouldYield()) {
+                    pause();
+                    conn.yieldAndResume(() -> run(), true);
+                    return;
+                }
+                savepointId = session.getTransaction().getSavepointId();
+                Future<Integer> future;
+                try {
+                    future = next();
+                } catch (Throwable e) {
+                    onFailed(e);
+                    continue;
+                }
+                if (future == null)
+                    break;
+                if (future == YIELD) {
+                    pause();
+                    conn.yieldAndResume(() -> run(), session.getStatus() != SessionStatus.WAITING);
+                    return;
+                }
+                state.set(PENDING);
+                future.onComplete(ar -> {
+                    onComplete(ar);
+                    resume();
+                });
+                if (state.compareAndSet(PENDING, ASYNC))
+                    return;
+            }
+            commit();
+        } catch (Throwable e) {
+            session.rollback();
+            session.close();
+            callback.setAsyncResult(e);
+        }
+    }
+
+    private void resume() {
+        if (!state.compareAndSet(PENDING, INLINE))
+            conn.getScheduler().handle(() -> run());
+    }
+
+    private void onComplete(AsyncResult<Integer> ar) {
+        if (ar.isSucceeded()) {
+            try {
+                onSucceeded(ar.getResult());
+                uncommitted++;
+            } catch (Throwable e) {
+                onFailed(e);
+            }
+        } else {
+            onFailed(ar.getCause());
+        }
+    }
+
+    private void commit() {
+        BsonDocument document = new BsonDocument();
+        BsonCommand.setN(document, n);
+        appendResult(document);
+        if (!writeErrors.isEmpty())
+            document.append("writeErrors", writeErrors);
+        BsonCommand.setOk(document);
+        session.asyncCommit(() -> {
+            session.close();
+            callback.setAsyncResult(document);
+        });
+    }
+}
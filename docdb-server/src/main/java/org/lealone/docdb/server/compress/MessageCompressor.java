@@ -0,0 +1,60 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.compress;
+
+/**
+ * OP_COMPRESSED 使用的压缩算法，id 跟 mongodb 的 compressorId 一致。
+ *
+ * 实现类可以有自己的状态(比如 Deflater)，所以每个连接创建自己的实例，不需要同步。
+ */
+public abstract class MessageCompressor {
+
+    public static final byte NOOP = 0;
+    public static final byte SNAPPY = 1;
+    public static final byte ZLIB = 2;
+    public static final byte ZSTD = 3;
+
+    public abstract String getName();
+
+    public abstract byte getId();
+
+    public abstract int getMaxCompressedLength(int length);
+
+    // 返回压缩后的字节数
+    public abstract int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff);
+
+    public abstract void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff,
+            int outLen);
+
+    public void close() {
+    }
+
+    public static MessageCompressor create(String name) {
+        switch (name) {
+        case SnappyCompressor.NAME:
+            return new SnappyCompressor();
+        case ZlibCompressor.NAME:
+            return new ZlibCompressor();
+        case ZstdCompressor.NAME:
+            return new ZstdCompressor();
+        default:
+            return null;
+        }
+    }
+
+    public static String getName(byte id) {
+        switch (id) {
+        case SNAPPY:
+            return SnappyCompressor.NAME;
+        case ZLIB:
+            return ZlibCompressor.NAME;
+        case ZSTD:
+            return ZstdCompressor.NAME;
+        default:
+            return null;
+        }
+    }
+}
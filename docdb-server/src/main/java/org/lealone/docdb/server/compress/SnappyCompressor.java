@@ -0,0 +1,47 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.compress;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+import org.lealone.common.exceptions.DbException;
+
+// 纯 java 实现的 snappy，跟驱动用的 snappy-java 的格式相同
+public class SnappyCompressor extends MessageCompressor {
+
+    public static final String NAME = "snappy";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte getId() {
+        return SNAPPY;
+    }
+
+    @Override
+    public int getMaxCompressedLength(int length) {
+        return Snappy.maxCompressedLength(length);
+    }
+
+    @Override
+    public int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+        return Snappy.compress(in, inOff, inLen, out, outOff);
+    }
+
+    @Override
+    public void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen) {
+        try {
+            int len = Snappy.uncompress(in, inOff, inLen, out, outOff);
+            if (len != outLen)
+                throw DbException.getInternalError("snappy: expected " + outLen + " bytes, got " + len);
+        } catch (CorruptionException e) {
+            throw DbException.convert(e);
+        }
+    }
+}
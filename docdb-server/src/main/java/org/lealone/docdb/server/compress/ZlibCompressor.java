@@ -0,0 +1,78 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.compress;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.lealone.common.exceptions.DbException;
+
+public class ZlibCompressor extends MessageCompressor {
+
+    public static final String NAME = "zlib";
+
+    private Deflater deflater;
+    private Inflater inflater;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte getId() {
+        return ZLIB;
+    }
+
+    // 每 16K 的块最多多出 5 个字节，再加上 zlib 的头和尾
+    @Override
+    public int getMaxCompressedLength(int length) {
+        return length + (length >> 12) + (length >> 14) + 64;
+    }
+
+    @Override
+    public int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+        if (deflater == null)
+            deflater = new Deflater();
+        else
+            deflater.reset();
+        deflater.setInput(in, inOff, inLen);
+        deflater.finish();
+        int len = deflater.deflate(out, outOff, out.length - outOff);
+        if (!deflater.finished())
+            throw DbException.getInternalError("zlib: output buffer too small");
+        return len;
+    }
+
+    @Override
+    public void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen) {
+        if (inflater == null)
+            inflater = new Inflater();
+        else
+            inflater.reset();
+        inflater.setInput(in, inOff, inLen);
+        try {
+            int len = inflater.inflate(out, outOff, outLen);
+            if (len != outLen)
+                throw DbException.getInternalError("zlib: expected " + outLen + " bytes, got " + len);
+        } catch (DataFormatException e) {
+            throw DbException.convert(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+}
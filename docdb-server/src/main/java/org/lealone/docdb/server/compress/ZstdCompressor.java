@@ -0,0 +1,49 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.compress;
+
+import org.lealone.common.exceptions.DbException;
+
+import com.github.luben.zstd.Zstd;
+
+public class ZstdCompressor extends MessageCompressor {
+
+    public static final String NAME = "zstd";
+    public static final int DEFAULT_LEVEL = 3;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public byte getId() {
+        return ZSTD;
+    }
+
+    @Override
+    public int getMaxCompressedLength(int length) {
+        return (int) Zstd.compressBound(length);
+    }
+
+    @Override
+    public int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+        long len = Zstd.compressByteArray(out, outOff, out.length - outOff, in, inOff, inLen,
+                DEFAULT_LEVEL);
+        if (Zstd.isError(len))
+            throw DbException.getInternalError("zstd: " + Zstd.getErrorName(len));
+        return (int) len;
+    }
+
+    @Override
+    public void decompress(byte[] in, int inOff, int inLen, byte[] out, int outOff, int outLen) {
+        long len = Zstd.decompressByteArray(out, outOff, outLen, in, inOff, inLen);
+        if (Zstd.isError(len))
+            throw DbException.getInternalError("zstd: " + Zstd.getErrorName(len));
+        if (len != outLen)
+            throw DbException.getInternalError("zstd: expected " + outLen + " bytes, got " + len);
+    }
+}
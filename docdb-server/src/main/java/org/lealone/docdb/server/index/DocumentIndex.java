@@ -0,0 +1,748 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.lealone.db.index.Cursor;
+import org.lealone.db.index.Index;
+import org.lealone.db.index.IndexColumn;
+import org.lealone.db.result.Row;
+import org.lealone.db.result.SearchRow;
+import org.lealone.db.result.SortOrder;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Column;
+import org.lealone.db.table.Table;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueBytes;
+import org.lealone.db.value.ValueNull;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.query.BsonValueComparator;
+import org.lealone.docdb.server.query.QueryFilter.FieldFilter;
+
+/**
+ * 文档字段上的二级索引。
+ *
+ * 每个被索引的字段路径对应表中的一个 binary 列(列名是 $ + 字段路径)，
+ * 写入文档时从文档中抽取字段值编码后填到这些列，索引本身就是 lealone 的普通二级索引。
+ *
+ * 字段值是数组时只有这个字段对应的列用特殊值，查询时额外扫描有特殊值的索引项，再用条件逐个过滤。
+ *
+ * 每个集合都有唯一的 _id 索引，用单独的 _id_ 列，_id 不能是数组，所以这一列总是原值，不会变成数组的特殊值。
+ */
+public class DocumentIndex {
+
+    public static final String ID_INDEX_NAME = "_id_";
+    public static final String ID_COLUMN_NAME = "_id_";
+    public static final String KEY_COLUMN_PREFIX = "$";
+
+    private final Index index;
+    private final String name;
+    private final String[] paths;
+    private final int[] columnIds;
+    private final boolean[] descending;
+
+    private DocumentIndex(Index index, String name) {
+        this.index = index;
+        this.name = name;
+        IndexColumn[] indexColumns = index.getIndexColumns();
+        int size = indexColumns.length;
+        paths = new String[size];
+        columnIds = new int[size];
+        descending = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            Column c = indexColumns[i].column;
+            paths[i] = isIdColumn(c) ? "_id" : c.getName().substring(KEY_COLUMN_PREFIX.length());
+            columnIds[i] = c.getColumnId();
+            descending[i] = (indexColumns[i].sortType & SortOrder.DESCENDING) != 0;
+        }
+    }
+
+    public Index getIndex() {
+        return index;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String[] getPaths() {
+        return paths;
+    }
+
+    public boolean isDescending(int i) {
+        return descending[i];
+    }
+
+    public boolean isUnique() {
+        return index.getIndexType().isUnique();
+    }
+
+    /**
+     * 只用索引项构造出包含 fields 这些顶层字段的文档，字段按索引列的顺序排列，
+     * 有一个值不能从索引键准确还原时返回 null，这时还是要读取整条记录。
+     */
+    public BsonDocument getCoveredDocument(SearchRow row, String[] fields) {
+        BsonDocument doc = new BsonDocument();
+        for (int i = 0; i < paths.length; i++) {
+            if (!contains(fields, paths[i]))
+                continue;
+            Value key = row.getValue(columnIds[i]);
+            if (key == null || key == ValueNull.INSTANCE)
+                return null;
+            BsonValue v = IndexKeyEncoder.decode(key.getBytesNoCopy());
+            if (v == null)
+                return null;
+            doc.append(paths[i], v);
+        }
+        return doc;
+    }
+
+    private static boolean contains(String[] fields, String path) {
+        for (String field : fields) {
+            if (field.equals(path))
+                return true;
+        }
+        return false;
+    }
+
+    public BsonDocument getKeyDocument() {
+        BsonDocument key = new BsonDocument();
+        for (int i = 0; i < paths.length; i++)
+            key.append(paths[i], new BsonInt32(descending[i] ? -1 : 1));
+        return key;
+    }
+
+    // _id 索引总是唯一的，mongodb 不会显示 unique
+    public BsonDocument toBsonDocument() {
+        return createIndexSpec(getKeyDocument(), name, isUnique() && !isIdIndex());
+    }
+
+    public boolean isIdIndex() {
+        return name.equals(ID_INDEX_NAME);
+    }
+
+    public static BsonDocument createIndexSpec(BsonDocument key, String name, boolean unique) {
+        BsonDocument spec = new BsonDocument();
+        spec.append("v", new BsonInt32(2));
+        spec.append("key", key);
+        spec.append("name", new BsonString(name));
+        if (unique)
+            spec.append("unique", BsonBoolean.TRUE);
+        return spec;
+    }
+
+    public static String getKeyColumnName(String path) {
+        return KEY_COLUMN_PREFIX + path;
+    }
+
+    public static boolean isKeyColumn(Column c) {
+        return c.getName().startsWith(KEY_COLUMN_PREFIX);
+    }
+
+    public static boolean isIdColumn(Column c) {
+        return c.getName().equals(ID_COLUMN_NAME);
+    }
+
+    // lealone 的索引名在 schema 内唯一，所以要加上表名
+    public static String getIndexName(Table table, String name) {
+        return table.getName() + KEY_COLUMN_PREFIX + name;
+    }
+
+    public static List<DocumentIndex> getIndexes(Table table) {
+        ArrayList<DocumentIndex> list = new ArrayList<>();
+        String prefix = table.getName() + KEY_COLUMN_PREFIX;
+        for (Index index : table.getIndexes()) {
+            String indexName = index.getName();
+            if (indexName.startsWith(prefix))
+                list.add(new DocumentIndex(index, indexName.substring(prefix.length())));
+        }
+        return list;
+    }
+
+    public static DocumentIndex findIndex(Table table, String name) {
+        for (DocumentIndex index : getIndexes(table)) {
+            if (index.name.equals(name))
+                return index;
+        }
+        return null;
+    }
+
+    public static DocumentIndex findIndex(Table table, BsonDocument key) {
+        for (DocumentIndex index : getIndexes(table)) {
+            if (index.getKeyDocument().equals(key))
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * 按字段路径取值，路径中间遇到数组时直接返回数组(除非下一级是数组下标)，找不到时返回null。
+     */
+    public static BsonValue getValue(BsonDocument doc, String path) {
+        if (path.indexOf('.') < 0)
+            return doc.get(path);
+        BsonValue v = doc;
+        for (String name : path.split("\\.")) {
+            if (v.isDocument()) {
+                v = v.asDocument().get(name);
+            } else if (v.isArray()) {
+                BsonArray array = v.asArray();
+                int i = parseArrayIndex(name);
+                if (i < 0)
+                    return array;
+                v = i < array.size() ? array.get(i) : null;
+            } else {
+                return null;
+            }
+            if (v == null)
+                return null;
+        }
+        return v;
+    }
+
+    private static int parseArrayIndex(String name) {
+        int len = name.length();
+        if (len == 0 || len > 9)
+            return -1;
+        for (int i = 0; i < len; i++) {
+            if (!Character.isDigit(name.charAt(i)))
+                return -1;
+        }
+        return Integer.parseInt(name);
+    }
+
+    /**
+     * 把文档中被索引字段的值填到 row 对应的列中，值是数组的列用特殊值，不影响其他索引列。
+     */
+    public static void setKeyValues(Table table, Row row, BsonDocument doc) {
+        Column[] columns = table.getColumns();
+        for (int i = 1; i < columns.length; i++) {
+            Column c = columns[i];
+            if (isIdColumn(c)) {
+                row.setValue(i, IndexKeyEncoder.encode(doc.get("_id")));
+            } else if (isKeyColumn(c)) {
+                String path = c.getName().substring(KEY_COLUMN_PREFIX.length());
+                BsonValue v = getValue(doc, path);
+                if (v != null && v.isArray()) {
+                    checkArrayAllowed(table, c, path);
+                    row.setValue(i, IndexKeyEncoder.getMultiKey());
+                } else {
+                    row.setValue(i, IndexKeyEncoder.encode(v));
+                }
+            }
+        }
+    }
+
+    // mongodb 的唯一索引会检查数组中的每个元素，这里数组只有一个特殊值，没法检查，所以唯一索引的字段不能是数组
+    private static void checkArrayAllowed(Table table, Column c, String path) {
+        String prefix = table.getName() + KEY_COLUMN_PREFIX;
+        for (Index index : table.getIndexes()) {
+            if (index.getIndexType().isUnique() && index.getName().startsWith(prefix)
+                    && index.getColumnIndex(c) >= 0)
+                throw DocDBException.badValue("cannot index an array in field '" + path
+                        + "' of unique index " + index.getName().substring(prefix.length()));
+        }
+    }
+
+    // 索引列中有特殊值说明有字段是数组，这条记录不在索引顺序中
+    private boolean isMultiKey(SearchRow row) {
+        for (int columnId : columnIds) {
+            if (IndexKeyEncoder.getMultiKey().equals(row.getValue(columnId)))
+                return true;
+        }
+        return false;
+    }
+
+    // 等值和 $in 条件展开后最多扫描这么多个区间，超过了就只用前面的索引列
+    private static final int MAX_RANGES = 1000;
+
+    /**
+     * 根据 filter 中的字段条件计算索引扫描区间，前面的索引列用等值或 $in 条件，最后一列可以是范围条件。
+     */
+    public class IndexBounds {
+
+        private final List<FieldFilter> filters;
+        private ArrayList<Value[]> prefixes = new ArrayList<>();
+        private int equalityColumnCount;
+        private Value rangeFirst, rangeLast; // 等值列后面那一列的范围
+
+        private IndexBounds(List<FieldFilter> filters) {
+            this.filters = filters;
+            prefixes.add(new Value[paths.length]);
+            for (int i = 0; i < paths.length; i++) {
+                Value[] points = getPoints(filters, paths[i]);
+                if (points != null) {
+                    if (prefixes.size() * points.length > MAX_RANGES)
+                        break;
+                    expand(i, points);
+                    equalityColumnCount++;
+                    continue;
+                }
+                Value[] range = getRange(filters, paths[i]);
+                if (range != null) {
+                    // 降序索引列的 first 是大的那一端
+                    int f = descending[i] ? 1 : 0;
+                    rangeFirst = range[f];
+                    rangeLast = range[1 - f];
+                }
+                break;
+            }
+        }
+
+        private void expand(int column, Value[] points) {
+            ArrayList<Value[]> list = new ArrayList<>(prefixes.size() * points.length);
+            for (Value[] prefix : prefixes) {
+                for (Value point : points) {
+                    Value[] p = prefix.clone();
+                    p[column] = point;
+                    list.add(p);
+                }
+            }
+            prefixes = list;
+        }
+
+        public DocumentIndex getDocumentIndex() {
+            return DocumentIndex.this;
+        }
+
+        /**
+         * 等值列越多越好，最后再有一个范围条件也能减少扫描的记录数，为0时说明用不上这个索引。
+         */
+        public int getScore() {
+            return equalityColumnCount * 2 + (rangeFirst != null ? 1 : 0);
+        }
+
+        public IndexCursor find(ServerSession session) {
+            Table table = index.getTable();
+            ArrayList<SearchRow> ranges = new ArrayList<>();
+            for (Value[] prefix : prefixes) {
+                ranges.add(toSearchRow(table, prefix, rangeFirst));
+                ranges.add(toSearchRow(table, prefix, rangeLast));
+            }
+            // _id 不能是数组，不用扫描特殊值。没有条件的索引列上的特殊值已经在上面的区间中了
+            if (!isIdIndex())
+                addMultiKeyRanges(table, ranges, equalityColumnCount + (rangeFirst != null ? 1 : 0));
+            return new IndexCursor(session, index, ranges.toArray(new SearchRow[0]));
+        }
+
+        // 有条件的前 columnCount 个索引列中某一列是特殊值的记录不在条件对应的区间中，
+        // 第 j 列是特殊值时前面的列还是原值，所以对前 j 列的每个不同的前缀扫描一个区间
+        private void addMultiKeyRanges(Table table, ArrayList<SearchRow> ranges, int columnCount) {
+            for (int j = 0; j < columnCount && j < paths.length; j++) {
+                Value[] last = null;
+                for (Value[] prefix : prefixes) {
+                    // 前缀是逐列展开的，前 j 列相同的前缀是相邻的
+                    if (last != null && Arrays.equals(last, 0, j, prefix, 0, j))
+                        continue;
+                    last = prefix;
+                    SearchRow row = table.getTemplateSimpleRow(false);
+                    for (int i = 0; i < j; i++)
+                        row.setValue(columnIds[i], prefix[i]);
+                    row.setValue(columnIds[j], IndexKeyEncoder.getMultiKey());
+                    ranges.add(row);
+                    ranges.add(row);
+                }
+            }
+        }
+
+        public int getEqualityColumnCount() {
+            return equalityColumnCount;
+        }
+
+        /**
+         * 只有一个扫描区间时返回的记录是按索引列排好序的，值是数组的记录除外。
+         */
+        public boolean isOrdered() {
+            return prefixes.size() == 1;
+        }
+
+        // 按索引顺序扫描唯一的一个区间，不包含值是数组的记录
+        public IndexCursor findOrdered(ServerSession session) {
+            // 后面的索引列上的特殊值夹在有序的索引项中间，只能逐个跳过
+            if (equalityColumnCount + 1 < paths.length)
+                return new MultiKeyFilterCursor(session, getOrderedRange(), false);
+            return new IndexCursor(session, index, getOrderedRange());
+        }
+
+        // findOrdered 没有返回的值是数组的记录
+        public IndexCursor findMultiKey(ServerSession session) {
+            Table table = index.getTable();
+            ArrayList<SearchRow> ranges = new ArrayList<>();
+            addMultiKeyRanges(table, ranges, Math.min(equalityColumnCount + 1, paths.length));
+            if (equalityColumnCount + 1 >= paths.length)
+                return new IndexCursor(session, index, ranges.toArray(new SearchRow[0]));
+            // 后面的索引列是特殊值的记录要把有序的区间再扫描一遍
+            ranges.addAll(Arrays.asList(getOrderedRange()));
+            return new MultiKeyFilterCursor(session, ranges.toArray(new SearchRow[0]), true);
+        }
+
+        // 第一个没有条件的索引列要排除特殊值，降序索引列的特殊值排在最前面
+        private SearchRow[] getOrderedRange() {
+            Table table = index.getTable();
+            Value first = rangeFirst;
+            Value last = rangeLast;
+            if (first == null && equalityColumnCount < paths.length) {
+                if (descending[equalityColumnCount])
+                    first = IndexKeyEncoder.getMinKey(IndexKeyEncoder.MAX_KEY);
+                else
+                    last = IndexKeyEncoder.getMinKey(IndexKeyEncoder.MAX_KEY);
+            }
+            return new SearchRow[] { toSearchRow(table, prefixes.get(0), first),
+                    toSearchRow(table, prefixes.get(0), last) };
+        }
+
+        /**
+         * explain 中 IXSCAN 阶段的参数，indexBounds 跟 mongodb 一样按索引顺序列出每个索引列的扫描区间，
+         * 只有一端的范围条件按类型限定在同一类值中，所以另一端显示成这类值的最小值或最大值。
+         */
+        public void explain(BsonDocument plan) {
+            plan.append("keyPattern", getKeyDocument());
+            plan.append("indexName", new BsonString(name));
+            plan.append("isUnique", BsonBoolean.valueOf(isUnique()));
+            plan.append("direction", new BsonString("forward"));
+            BsonDocument bounds = new BsonDocument();
+            for (int i = 0; i < paths.length; i++) {
+                BsonArray intervals = new BsonArray();
+                if (i < equalityColumnCount) {
+                    List<BsonValue> points = getPointValues(filters, paths[i]);
+                    points.sort(BsonValueComparator::compare);
+                    if (descending[i])
+                        Collections.reverse(points);
+                    BsonValue last = null;
+                    for (BsonValue v : points) {
+                        if (last == null || !BsonValueComparator.equals(last, v))
+                            intervals.add(new BsonString("[" + toJson(v) + ", " + toJson(v) + "]"));
+                        last = v;
+                    }
+                } else if (i == equalityColumnCount && rangeFirst != null) {
+                    FieldFilter[] range = getRangeFilters(filters, paths[i]);
+                    intervals.add(new BsonString(getInterval(range, descending[i])));
+                } else {
+                    intervals.add(new BsonString(descending[i] ? "[MaxKey, MinKey]" : "[MinKey, MaxKey]"));
+                }
+                bounds.append(paths[i], intervals);
+            }
+            plan.append("indexBounds", bounds);
+        }
+
+        public String getPlanSummary() {
+            StringBuilder buff = new StringBuilder("IXSCAN { ");
+            for (int i = 0; i < paths.length; i++) {
+                if (i > 0)
+                    buff.append(", ");
+                buff.append(paths[i]).append(": ").append(descending[i] ? -1 : 1);
+            }
+            return buff.append(" }").toString();
+        }
+
+        private SearchRow toSearchRow(Table table, Value[] prefix, Value rangeValue) {
+            SearchRow row = table.getTemplateSimpleRow(false);
+            for (int i = 0; i < equalityColumnCount; i++)
+                row.setValue(columnIds[i], prefix[i]);
+            if (rangeValue != null)
+                row.setValue(columnIds[equalityColumnCount], rangeValue);
+            return row;
+        }
+    }
+
+    public IndexBounds getBounds(List<FieldFilter> filters) {
+        return new IndexBounds(filters);
+    }
+
+    public DistinctCursor findDistinct(ServerSession session) {
+        return new DistinctCursor(session);
+    }
+
+    // 第一个索引列的值等于 key 的所有索引项
+    public IndexCursor find(ServerSession session, Value key) {
+        SearchRow row = index.getTable().getTemplateSimpleRow(false);
+        row.setValue(columnIds[0], key);
+        return new IndexCursor(session, index, new SearchRow[] { row, row });
+    }
+
+    /**
+     * 按索引顺序遍历第一个索引列的每个不同的值，每个值只返回第一个索引项。
+     *
+     * 编码后的键不会是另一个键的前缀，所以在键后面随便加一个字节就能定位到下一个不同的值，
+     * 升序索引每次都这样重新打开游标，不同的值很少时只读很少的索引项；降序索引只能逐项跳过相同的值。
+     */
+    public class DistinctCursor implements Cursor {
+
+        private final ServerSession session;
+        private IndexCursor cursor;
+        private SearchRow current;
+
+        private DistinctCursor(ServerSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public Row get() {
+            return cursor.get();
+        }
+
+        @Override
+        public SearchRow getSearchRow() {
+            return current;
+        }
+
+        // 当前索引项的第一个索引列的值，没有值时返回 null
+        public Value getKey() {
+            Value key = current.getValue(columnIds[0]);
+            return key == ValueNull.INSTANCE ? null : key;
+        }
+
+        @Override
+        public boolean next() {
+            Value last = current == null ? null : getKey();
+            if (last != null && !descending[0]) {
+                byte[] bytes = last.getBytesNoCopy();
+                SearchRow first = index.getTable().getTemplateSimpleRow(false);
+                first.setValue(columnIds[0], ValueBytes.getNoCopy(Arrays.copyOf(bytes, bytes.length + 1)));
+                cursor = new IndexCursor(session, index, new SearchRow[] { first, null });
+            } else if (cursor == null) {
+                cursor = new IndexCursor(session, index, new SearchRow[] { null, null });
+            }
+            while (cursor.next()) {
+                SearchRow row = cursor.getSearchRow();
+                Value key = row.getValue(columnIds[0]);
+                if (last == null || key == null || key == ValueNull.INSTANCE || compareKeys(key, last) != 0) {
+                    current = row;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void pause() {
+            if (cursor != null)
+                cursor.pause();
+        }
+    }
+
+    // 等值条件和 $in 条件转成多个点，编码相同的值(比如1和1.0)只保留一个
+    private static Value[] getPoints(List<FieldFilter> filters, String path) {
+        List<BsonValue> values = getPointValues(filters, path);
+        if (values == null)
+            return null;
+        TreeMap<Value, Value> points = new TreeMap<>(DocumentIndex::compareKeys);
+        for (BsonValue v : values) {
+            Value key = IndexKeyEncoder.encode(v);
+            points.put(key, key);
+        }
+        return points.values().toArray(new Value[0]);
+    }
+
+    private static List<BsonValue> getPointValues(List<FieldFilter> filters, String path) {
+        for (FieldFilter f : filters) {
+            if (!f.getPath().equals(path))
+                continue;
+            if (f.getOp() == FieldFilter.EQ && FieldFilter.isIndexable(f.getValue())) {
+                return new ArrayList<>(List.of(f.getValue()));
+            } else if (f.getOp() == FieldFilter.IN) {
+                ArrayList<BsonValue> values = new ArrayList<>();
+                for (BsonValue v : f.getValue().asArray()) {
+                    if (!FieldFilter.isIndexable(v)) {
+                        values = null;
+                        break;
+                    }
+                    values.add(v);
+                }
+                if (values != null && !values.isEmpty())
+                    return values;
+            }
+        }
+        return null;
+    }
+
+    private static Value[] getRange(List<FieldFilter> filters, String path) {
+        FieldFilter[] range = getRangeFilters(filters, path);
+        if (range == null)
+            return null;
+        // 只有一端时另一端是同一类值的最小值或最大值
+        int rank = BsonValueComparator.getRank((range[0] != null ? range[0] : range[1]).getValue());
+        Value lower = range[0] != null ? IndexKeyEncoder.encode(range[0].getValue())
+                : IndexKeyEncoder.getMinKey(rank);
+        Value upper = range[1] != null ? IndexKeyEncoder.encode(range[1].getValue())
+                : IndexKeyEncoder.getMaxKey(rank);
+        return new Value[] { lower, upper };
+    }
+
+    // 返回第一个下界条件和第一个上界条件，没有范围条件时返回 null
+    private static FieldFilter[] getRangeFilters(List<FieldFilter> filters, String path) {
+        FieldFilter lower = null, upper = null;
+        for (FieldFilter f : filters) {
+            if (!f.getPath().equals(path) || !FieldFilter.isRangeOp(f.getOp())
+                    || !FieldFilter.isIndexable(f.getValue()))
+                continue;
+            if (FieldFilter.isLowerBoundOp(f.getOp())) {
+                if (lower == null)
+                    lower = f;
+            } else {
+                if (upper == null)
+                    upper = f;
+            }
+        }
+        if (lower == null && upper == null)
+            return null;
+        return new FieldFilter[] { lower, upper };
+    }
+
+    // 用 mongodb 的格式显示一个区间，比如 (5, inf.0]，降序索引列的区间从大到小
+    private static String getInterval(FieldFilter[] range, boolean descending) {
+        BsonValue v = (range[0] != null ? range[0] : range[1]).getValue();
+        String lower = range[0] != null ? toJson(range[0].getValue()) : getMinName(v);
+        String upper = range[1] != null ? toJson(range[1].getValue()) : getMaxName(v);
+        boolean lowerInclusive = range[0] == null || range[0].getOp() == FieldFilter.GTE;
+        boolean upperInclusive = range[1] == null || range[1].getOp() == FieldFilter.LTE;
+        if (descending)
+            return (upperInclusive ? "[" : "(") + upper + ", " + lower + (lowerInclusive ? "]" : ")");
+        return (lowerInclusive ? "[" : "(") + lower + ", " + upper + (upperInclusive ? "]" : ")");
+    }
+
+    private static String getMinName(BsonValue v) {
+        return v.isNumber() ? "-inf.0" : v.isString() ? "\"\"" : "MinKey";
+    }
+
+    private static String getMaxName(BsonValue v) {
+        return v.isNumber() ? "inf.0" : v.isString() ? "{}" : "MaxKey";
+    }
+
+    // 跟 toJson 中的值一样，比如字符串带引号
+    private static String toJson(BsonValue v) {
+        String json = new BsonDocument("v", v).toJson();
+        return json.substring("{\"v\": ".length(), json.length() - 1);
+    }
+
+    private static int compareKeys(Value v1, Value v2) {
+        byte[] b1 = v1.getBytesNoCopy();
+        byte[] b2 = v2.getBytesNoCopy();
+        int len = Math.min(b1.length, b2.length);
+        for (int i = 0; i < len; i++) {
+            if (b1[i] != b2[i])
+                return Byte.compare(b1[i], b2[i]);
+        }
+        return Integer.compare(b1.length, b2.length);
+    }
+
+    // 只返回索引列中有(或者没有)特殊值的索引项
+    private class MultiKeyFilterCursor extends IndexCursor {
+
+        private final boolean multiKey;
+
+        private MultiKeyFilterCursor(ServerSession session, SearchRow[] ranges, boolean multiKey) {
+            super(session, index, ranges);
+            this.multiKey = multiKey;
+        }
+
+        @Override
+        protected boolean accept(SearchRow row) {
+            return isMultiKey(row) == multiKey;
+        }
+    }
+
+    /**
+     * 依次扫描多个 [first, last] 区间。
+     *
+     * 让出调度器、getMore 之间和分块提交时都要调用 pause，不保留存储层的游标，
+     * 叶子页可能被其他会话分裂或回收，下次调用 next 时从最后读到的索引项之后重新打开游标。
+     * 二级索引重新定位时 key 会被当成最小值，所以要跳过索引列相同而 key 不大于上次的索引项，
+     * 相同的值很多时这些索引项会被重复读取。
+     */
+    public static class IndexCursor implements Cursor {
+
+        private final ServerSession session;
+        private final Index index;
+        private final SearchRow[] ranges;
+        private int rangeIndex;
+        private Cursor cursor;
+        private SearchRow last; // pause 时最后读到的索引项，不为 null 时要跳过已经读过的
+
+        public IndexCursor(ServerSession session, Index index, SearchRow[] ranges) {
+            this.session = session;
+            this.index = index;
+            this.ranges = ranges;
+        }
+
+        @Override
+        public Row get() {
+            return cursor.get();
+        }
+
+        // 只有索引列的值和行的 key，不用再去主索引中读取整条记录
+        @Override
+        public SearchRow getSearchRow() {
+            return cursor.getSearchRow();
+        }
+
+        @Override
+        public boolean next() {
+            while (true) {
+                if (cursor == null) {
+                    if (last != null && index.getIndexType().isScan()) {
+                        // 主索引直接从下一个 key 开始
+                        Row row = index.getTable().getTemplateRow();
+                        row.setKey(last.getKey() + 1);
+                        cursor = index.find(session, row, ranges[rangeIndex - 1]);
+                        last = null;
+                    } else if (last != null) {
+                        cursor = index.find(session, last, ranges[rangeIndex - 1]);
+                    } else {
+                        if (rangeIndex >= ranges.length)
+                            return false;
+                        cursor = index.find(session, ranges[rangeIndex], ranges[rangeIndex + 1]);
+                        rangeIndex += 2;
+                    }
+                }
+                if (!cursor.next()) {
+                    cursor = null;
+                    last = null;
+                    continue;
+                }
+                SearchRow row = cursor.getSearchRow();
+                if (last != null) {
+                    if (index.compareRows(row, last) == 0 && row.getKey() <= last.getKey())
+                        continue;
+                    last = null;
+                }
+                if (accept(row))
+                    return true;
+            }
+        }
+
+        // 子类用来过滤索引项
+        protected boolean accept(SearchRow row) {
+            return true;
+        }
+
+        /**
+         * 释放存储层的游标，记下最后读到的索引项。
+         */
+        public void pause() {
+            if (cursor == null)
+                return;
+            SearchRow row = cursor.getSearchRow();
+            last = index.getTable().getTemplateSimpleRow(false);
+            if (!index.getIndexType().isScan()) {
+                for (Column c : index.getColumns())
+                    last.setValue(c.getColumnId(), row.getValue(c.getColumnId()));
+            }
+            last.setKey(row.getKey());
+            cursor = null;
+        }
+    }
+}
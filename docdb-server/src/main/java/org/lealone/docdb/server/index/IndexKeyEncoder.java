@@ -0,0 +1,358 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.index;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.BsonObjectId;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.types.ObjectId;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueBytes;
+
+/**
+ * 把 BsonValue 编码成保序的字节数组，这样就能直接用 lealone 的 binary 列来建二级索引。
+ *
+ * 不同类型之间的顺序跟 mongodb 的比较规则一致，数值类型(int32、int64、double、decimal128)按数值大小比较。
+ * lealone 默认按有符号字节比较 binary 值，所以最后会把每个字节的最高位翻转一下。
+ *
+ * 编码是有损的(数值不保留类型，null 和字段不存在一样)，decode 只还原能准确还原的类型。
+ */
+public class IndexKeyEncoder {
+
+    // mongodb 的类型比较顺序
+    public static final int MIN_KEY = 1;
+    public static final int NULL = 2;
+    public static final int NUMBER = 3;
+    public static final int STRING = 4;
+    public static final int DOCUMENT = 5;
+    public static final int ARRAY = 6;
+    public static final int BINARY = 7;
+    public static final int OBJECT_ID = 8;
+    public static final int BOOLEAN = 9;
+    public static final int DATE_TIME = 10;
+    public static final int TIMESTAMP = 11;
+    public static final int REGULAR_EXPRESSION = 12;
+    public static final int JAVASCRIPT = 13;
+    public static final int MAX_KEY = 14;
+
+    // 字段值是数组时没法只用一个索引项表示，统一用这个排在最后的特殊值，查询时再额外扫描一次
+    public static final int MULTI_KEY = 15;
+
+    private static final ValueBytes NULL_KEY = ValueBytes.getNoCopy(encodeRank(NULL));
+    private static final ValueBytes MULTI_KEY_VALUE = ValueBytes.getNoCopy(encodeRank(MULTI_KEY));
+
+    private byte[] buff = new byte[32];
+    private int pos;
+
+    private IndexKeyEncoder() {
+    }
+
+    public static Value getNullKey() {
+        return NULL_KEY;
+    }
+
+    public static Value getMultiKey() {
+        return MULTI_KEY_VALUE;
+    }
+
+    // 只包含类型的编码比这个类型的所有值都小，比前一个类型的所有值都大
+    public static Value getMinKey(int rank) {
+        return ValueBytes.getNoCopy(encodeRank(rank));
+    }
+
+    public static Value getMaxKey(int rank) {
+        return ValueBytes.getNoCopy(encodeRank(rank + 1));
+    }
+
+    public static Value encode(BsonValue v) {
+        if (v == null)
+            return NULL_KEY;
+        IndexKeyEncoder encoder = new IndexKeyEncoder();
+        encoder.writeValue(v);
+        return ValueBytes.getNoCopy(encoder.toBytes());
+    }
+
+    public static int getRank(BsonType type) {
+        switch (type) {
+        case MIN_KEY:
+            return MIN_KEY;
+        case NULL:
+        case UNDEFINED:
+            return NULL;
+        case INT32:
+        case INT64:
+        case DOUBLE:
+        case DECIMAL128:
+            return NUMBER;
+        case STRING:
+        case SYMBOL:
+            return STRING;
+        case DOCUMENT:
+            return DOCUMENT;
+        case ARRAY:
+            return ARRAY;
+        case BINARY:
+            return BINARY;
+        case OBJECT_ID:
+            return OBJECT_ID;
+        case BOOLEAN:
+            return BOOLEAN;
+        case DATE_TIME:
+            return DATE_TIME;
+        case TIMESTAMP:
+            return TIMESTAMP;
+        case REGULAR_EXPRESSION:
+            return REGULAR_EXPRESSION;
+        case MAX_KEY:
+            return MAX_KEY;
+        default:
+            return JAVASCRIPT;
+        }
+    }
+
+    /**
+     * 从索引键还原出字段值，数值、null、文档等不能准确还原的值返回 null。
+     * 已经废弃的 symbol 类型会还原成字符串。
+     */
+    public static BsonValue decode(byte[] key) {
+        if (key.length == 0)
+            return null;
+        byte[] bytes = key.clone();
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] ^= 0x80;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        BsonValue v;
+        switch (buffer.get()) {
+        case MIN_KEY:
+            v = new BsonMinKey();
+            break;
+        case MAX_KEY:
+            v = new BsonMaxKey();
+            break;
+        case STRING:
+            v = new BsonString(readString(buffer));
+            break;
+        case BINARY: {
+            byte[] data = new byte[buffer.getInt()];
+            byte type = buffer.get();
+            buffer.get(data);
+            v = new BsonBinary(type, data);
+            break;
+        }
+        case OBJECT_ID: {
+            byte[] data = new byte[12];
+            buffer.get(data);
+            v = new BsonObjectId(new ObjectId(data));
+            break;
+        }
+        case BOOLEAN:
+            v = BsonBoolean.valueOf(buffer.get() != 0);
+            break;
+        case DATE_TIME:
+            v = new BsonDateTime(buffer.getLong() ^ 0x8000000000000000L);
+            break;
+        case TIMESTAMP:
+            v = new BsonTimestamp(buffer.getLong());
+            break;
+        case REGULAR_EXPRESSION:
+            v = new BsonRegularExpression(readString(buffer), readString(buffer));
+            break;
+        default:
+            return null;
+        }
+        return buffer.hasRemaining() ? null : v;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (true) {
+            byte b = buffer.get();
+            if (b == 0) {
+                if (buffer.get() == 0)
+                    break;
+                // 0x00 0xFF 是转义的 0x00
+            }
+            out.write(b);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] encodeRank(int rank) {
+        return new byte[] { (byte) (rank ^ 0x80) };
+    }
+
+    private byte[] toBytes() {
+        byte[] bytes = Arrays.copyOf(buff, pos);
+        for (int i = 0; i < pos; i++)
+            bytes[i] ^= 0x80;
+        return bytes;
+    }
+
+    private void ensureCapacity(int len) {
+        if (pos + len > buff.length)
+            buff = Arrays.copyOf(buff, Math.max(buff.length * 2, pos + len));
+    }
+
+    private void writeByte(int b) {
+        ensureCapacity(1);
+        buff[pos++] = (byte) b;
+    }
+
+    private void writeInt(int v) {
+        ensureCapacity(4);
+        for (int shift = 24; shift >= 0; shift -= 8)
+            buff[pos++] = (byte) (v >>> shift);
+    }
+
+    private void writeLong(long v) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8)
+            buff[pos++] = (byte) (v >>> shift);
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buff, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    // 0x00 转义成 0x00 0xFF，再用 0x00 0x00 结尾，这样短的字符串总是排在前面
+    private void writeString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length + 2);
+        for (byte b : bytes) {
+            if (b == 0) {
+                writeByte(0);
+                writeByte(0xFF);
+            } else {
+                buff[pos++] = b;
+            }
+        }
+        writeByte(0);
+        writeByte(0);
+    }
+
+    private void writeDouble(double d) {
+        if (Double.isNaN(d)) {
+            writeLong(0); // NaN 比所有数值都小
+            return;
+        }
+        if (d == 0)
+            d = 0; // -0.0 和 0.0 相等
+        long bits = Double.doubleToLongBits(d);
+        bits ^= bits < 0 ? 0xFFFFFFFFFFFFFFFFL : 0x8000000000000000L;
+        writeLong(bits);
+    }
+
+    // 超过 2^53 的 int64 转成 double 时会丢精度，在后面补上差值保证顺序正确
+    private void writeNumber(BsonValue v) {
+        switch (v.getBsonType()) {
+        case INT64: {
+            long l = v.asInt64().getValue();
+            double d = l;
+            writeDouble(d);
+            long diff = d >= 0x1p63 ? l - Long.MAX_VALUE - 1 : l - (long) d;
+            if (diff == 0) {
+                writeByte(0x80);
+            } else {
+                writeByte(diff < 0 ? 0x00 : 0xFF);
+                writeLong(diff ^ 0x8000000000000000L);
+            }
+            return;
+        }
+        case DECIMAL128:
+            writeDouble(v.asDecimal128().getValue().doubleValue());
+            break;
+        case INT32:
+            writeDouble(v.asInt32().getValue());
+            break;
+        default:
+            writeDouble(v.asDouble().getValue());
+        }
+        writeByte(0x80);
+    }
+
+    private void writeValue(BsonValue v) {
+        int rank = getRank(v.getBsonType());
+        writeByte(rank);
+        writePayload(rank, v);
+    }
+
+    private void writePayload(int rank, BsonValue v) {
+        switch (rank) {
+        case NUMBER:
+            writeNumber(v);
+            break;
+        case STRING:
+            writeString(v.isSymbol() ? v.asSymbol().getSymbol() : v.asString().getValue());
+            break;
+        case DOCUMENT: {
+            BsonDocument doc = v.asDocument();
+            for (Entry<String, BsonValue> e : doc.entrySet()) {
+                BsonValue value = e.getValue();
+                int r = getRank(value.getBsonType());
+                writeByte(r);
+                writeString(e.getKey());
+                writePayload(r, value);
+            }
+            writeByte(0);
+            break;
+        }
+        case ARRAY: {
+            BsonArray array = v.asArray();
+            for (int i = 0, size = array.size(); i < size; i++)
+                writeValue(array.get(i));
+            writeByte(0);
+            break;
+        }
+        case BINARY: {
+            BsonBinary binary = v.asBinary();
+            writeInt(binary.getData().length);
+            writeByte(binary.getType());
+            writeBytes(binary.getData());
+            break;
+        }
+        case OBJECT_ID:
+            writeBytes(v.asObjectId().getValue().toByteArray());
+            break;
+        case BOOLEAN:
+            writeByte(v.asBoolean().getValue() ? 1 : 0);
+            break;
+        case DATE_TIME:
+            writeLong(v.asDateTime().getValue() ^ 0x8000000000000000L);
+            break;
+        case TIMESTAMP:
+            writeLong(v.asTimestamp().getValue());
+            break;
+        case REGULAR_EXPRESSION: {
+            BsonRegularExpression regex = v.asRegularExpression();
+            writeString(regex.getPattern());
+            writeString(regex.getOptions());
+            break;
+        }
+        case JAVASCRIPT:
+            writeString(v.toString());
+            break;
+        default: // MIN_KEY、NULL、MAX_KEY 只需要类型
+        }
+    }
+}
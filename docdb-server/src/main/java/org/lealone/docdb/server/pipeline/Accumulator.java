@@ -0,0 +1,370 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.HashSet;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.query.BsonValueComparator;
+
+/**
+ * $group 中一个分组的一个累加器的状态。
+ *
+ * $group 写临时文件时每个累加器先用 getPartial 转成一个 BsonValue，
+ * 读回来之后再用 merge 合并到同一个分组的累加器中，合并的顺序跟文档的输入顺序一致。
+ */
+public abstract class Accumulator {
+
+    /**
+     * 加入一个文档中的值，v 为 null 表示字段不存在，返回大致增加了多少字节的内存。
+     */
+    public abstract int add(BsonValue v);
+
+    public abstract BsonValue getPartial();
+
+    public abstract int merge(BsonValue partial);
+
+    public abstract BsonValue getResult();
+
+    // 只是估算，用来决定什么时候写临时文件
+    public static int getMemory(BsonValue v) {
+        if (v == null)
+            return 0;
+        switch (v.getBsonType()) {
+        case DOCUMENT: {
+            if (v instanceof RawBsonDocument)
+                return 16 + ((RawBsonDocument) v).getByteBuffer().remaining();
+            int size = 48;
+            for (BsonValue e : v.asDocument().values())
+                size += 48 + getMemory(e);
+            return size;
+        }
+        case ARRAY: {
+            int size = 32;
+            for (BsonValue e : v.asArray())
+                size += 8 + getMemory(e);
+            return size;
+        }
+        case STRING:
+            return 48 + v.asString().getValue().length() * 2;
+        default:
+            return 16;
+        }
+    }
+
+    /**
+     * 编译后的 {field: {$op: expression}}，每个分组用它创建一个新的累加器。
+     */
+    public static class Spec {
+
+        private static final int SUM = 0;
+        private static final int AVG = 1;
+        private static final int MIN = 2;
+        private static final int MAX = 3;
+        private static final int FIRST = 4;
+        private static final int LAST = 5;
+        private static final int PUSH = 6;
+        private static final int ADD_TO_SET = 7;
+
+        private final String field;
+        private final int type;
+        private final Expression expression;
+
+        public Spec(String field, BsonValue v) {
+            if (field.indexOf('.') >= 0)
+                throw new DocDBException(40235, "Location40235",
+                        "The field name '" + field + "' cannot contain '.'");
+            if (!v.isDocument() || v.asDocument().size() != 1)
+                throw new DocDBException(40234, "Location40234",
+                        "The field '" + field + "' must be an accumulator object");
+            String op = v.asDocument().getFirstKey();
+            BsonValue arg = v.asDocument().get(op);
+            switch (op) {
+            case "$sum":
+                type = SUM;
+                break;
+            case "$count": // {$count: {}} 等价于 {$sum: 1}
+                type = SUM;
+                arg = new BsonInt32(1);
+                break;
+            case "$avg":
+                type = AVG;
+                break;
+            case "$min":
+                type = MIN;
+                break;
+            case "$max":
+                type = MAX;
+                break;
+            case "$first":
+                type = FIRST;
+                break;
+            case "$last":
+                type = LAST;
+                break;
+            case "$push":
+                type = PUSH;
+                break;
+            case "$addToSet":
+                type = ADD_TO_SET;
+                break;
+            default:
+                throw new DocDBException(15952, "Location15952", "unknown group operator '" + op + "'");
+            }
+            this.field = field;
+            this.expression = Expression.compile(arg);
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public Expression getExpression() {
+            return expression;
+        }
+
+        public Accumulator create() {
+            switch (type) {
+            case SUM:
+                return new Sum();
+            case AVG:
+                return new Avg();
+            case MIN:
+                return new MinMax(false);
+            case MAX:
+                return new MinMax(true);
+            case FIRST:
+                return new FirstLast(false);
+            case LAST:
+                return new FirstLast(true);
+            case PUSH:
+                return new Push();
+            default:
+                return new AddToSet();
+            }
+        }
+    }
+
+    // 非数值的值都忽略，没有数值时结果是 0
+    private static class Sum extends Accumulator {
+
+        private BsonValue sum = new BsonInt32(0);
+
+        @Override
+        public int add(BsonValue v) {
+            if (v != null && Expression.isNumeric(v))
+                sum = Expression.add(sum, v);
+            return 0;
+        }
+
+        @Override
+        public BsonValue getPartial() {
+            return sum;
+        }
+
+        @Override
+        public int merge(BsonValue partial) {
+            return add(partial);
+        }
+
+        @Override
+        public BsonValue getResult() {
+            return sum;
+        }
+    }
+
+    private static class Avg extends Accumulator {
+
+        private BsonValue sum = new BsonInt32(0);
+        private long count;
+
+        @Override
+        public int add(BsonValue v) {
+            if (v != null && Expression.isNumeric(v)) {
+                sum = Expression.add(sum, v);
+                count++;
+            }
+            return 0;
+        }
+
+        @Override
+        public BsonValue getPartial() {
+            BsonDocument partial = new BsonDocument("s", sum);
+            partial.append("n", new BsonInt64(count));
+            return partial;
+        }
+
+        @Override
+        public int merge(BsonValue partial) {
+            BsonDocument doc = partial.asDocument();
+            sum = Expression.add(sum, doc.get("s"));
+            count += doc.getInt64("n").getValue();
+            return 0;
+        }
+
+        @Override
+        public BsonValue getResult() {
+            if (count == 0)
+                return BsonNull.VALUE;
+            return Expression.divide(sum, new BsonInt64(count));
+        }
+    }
+
+    // null 和不存在的字段都忽略，全都没有时结果是 null
+    private static class MinMax extends Accumulator {
+
+        private final boolean max;
+        private BsonValue value;
+
+        MinMax(boolean max) {
+            this.max = max;
+        }
+
+        @Override
+        public int add(BsonValue v) {
+            if (Expression.isNullOrMissing(v))
+                return 0;
+            if (value == null) {
+                value = v;
+                return getMemory(v);
+            }
+            int c = BsonValueComparator.compare(v, value);
+            if (max ? c > 0 : c < 0) {
+                int delta = getMemory(v) - getMemory(value);
+                value = v;
+                return delta;
+            }
+            return 0;
+        }
+
+        @Override
+        public BsonValue getPartial() {
+            return value == null ? BsonNull.VALUE : value;
+        }
+
+        @Override
+        public int merge(BsonValue partial) {
+            return add(partial);
+        }
+
+        @Override
+        public BsonValue getResult() {
+            return value == null ? BsonNull.VALUE : value;
+        }
+    }
+
+    // 字段不存在时当成 null
+    private static class FirstLast extends Accumulator {
+
+        private final boolean last;
+        private BsonValue value;
+
+        FirstLast(boolean last) {
+            this.last = last;
+        }
+
+        @Override
+        public int add(BsonValue v) {
+            if (v == null)
+                v = BsonNull.VALUE;
+            if (value == null || last) {
+                int delta = getMemory(v) - getMemory(value);
+                value = v;
+                return delta;
+            }
+            return 0;
+        }
+
+        @Override
+        public BsonValue getPartial() {
+            return value;
+        }
+
+        @Override
+        public int merge(BsonValue partial) {
+            return add(partial);
+        }
+
+        @Override
+        public BsonValue getResult() {
+            return value == null ? BsonNull.VALUE : value;
+        }
+    }
+
+    private static class Push extends Accumulator {
+
+        private final BsonArray values = new BsonArray();
+
+        @Override
+        public int add(BsonValue v) {
+            if (v == null)
+                return 0;
+            values.add(v);
+            return 8 + getMemory(v);
+        }
+
+        @Override
+        public BsonValue getPartial() {
+            return values;
+        }
+
+        @Override
+        public int merge(BsonValue partial) {
+            int delta = 0;
+            for (BsonValue v : partial.asArray())
+                delta += add(v);
+            return delta;
+        }
+
+        @Override
+        public BsonValue getResult() {
+            return values;
+        }
+    }
+
+    // 按 mongodb 的比较规则去重，比如 1 和 1.0 只保留一个
+    private static class AddToSet extends Accumulator {
+
+        private final BsonArray values = new BsonArray();
+        private final HashSet<GroupKey> keys = new HashSet<>();
+
+        @Override
+        public int add(BsonValue v) {
+            if (v == null)
+                return 0;
+            GroupKey key = new GroupKey(v);
+            if (!keys.add(key))
+                return 0;
+            values.add(v);
+            return 48 + key.getMemory() + getMemory(v);
+        }
+
+        @Override
+        public BsonValue getPartial() {
+            return values;
+        }
+
+        @Override
+        public int merge(BsonValue partial) {
+            int delta = 0;
+            for (BsonValue v : partial.asArray())
+                delta += add(v);
+            return delta;
+        }
+
+        @Override
+        public BsonValue getResult() {
+            return values;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.Map.Entry;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * $addFields 和 $set，表达式都基于原来的文档求值，结果按路径写到文档的副本中。
+ */
+public class AddFieldsStage extends Stage {
+
+    private final String[][] paths;
+    private final Expression[] expressions;
+
+    public AddFieldsStage(Stage input, BsonDocument spec) {
+        super(input);
+        paths = new String[spec.size()][];
+        expressions = new Expression[spec.size()];
+        int i = 0;
+        for (Entry<String, BsonValue> e : spec.entrySet()) {
+            paths[i] = Expression.split(e.getKey());
+            expressions[i++] = Expression.compile(e.getValue());
+        }
+    }
+
+    @Override
+    public BsonDocument next() {
+        BsonDocument document = input.next();
+        if (document == null || document == YIELD)
+            return document;
+        BsonDocument result = copy(document);
+        for (int i = 0; i < paths.length; i++) {
+            BsonValue v = expressions[i].evaluate(document);
+            if (v == null)
+                remove(result, paths[i]);
+            else
+                set(result, paths[i], v);
+        }
+        return result;
+    }
+
+    @Override
+    protected String getName() {
+        return "ADD_FIELDS";
+    }
+
+    // 只复制第一层，修改下一级文档时再复制那一级，原来的文档可能是只读的 RawBsonDocument
+    static BsonDocument copy(BsonDocument doc) {
+        BsonDocument copy = new BsonDocument();
+        for (Entry<String, BsonValue> e : doc.entrySet())
+            copy.append(e.getKey(), e.getValue());
+        return copy;
+    }
+
+    static void set(BsonDocument doc, String[] names, BsonValue v) {
+        for (int i = 0; i < names.length - 1; i++) {
+            BsonValue child = doc.get(names[i]);
+            BsonDocument sub = child != null && child.isDocument() ? copy(child.asDocument())
+                    : new BsonDocument();
+            doc.put(names[i], sub);
+            doc = sub;
+        }
+        doc.put(names[names.length - 1], v);
+    }
+
+    static void remove(BsonDocument doc, String[] names) {
+        for (int i = 0; i < names.length - 1; i++) {
+            BsonValue child = doc.get(names[i]);
+            if (child == null || !child.isDocument())
+                return;
+            BsonDocument sub = copy(child.asDocument());
+            doc.put(names[i], sub);
+            doc = sub;
+        }
+        doc.remove(names[names.length - 1]);
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.bson.BsonDocument;
+
+/**
+ * 返回事先算好的一组文档，比如直接用表的记录数算出来的 count 结果。
+ */
+public class DocumentsStage extends Stage {
+
+    private final Iterator<BsonDocument> iterator;
+
+    public DocumentsStage(List<BsonDocument> documents) {
+        super(null);
+        iterator = documents.iterator();
+    }
+
+    @Override
+    public BsonDocument next() {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    protected String getName() {
+        return "DOCUMENTS";
+    }
+}
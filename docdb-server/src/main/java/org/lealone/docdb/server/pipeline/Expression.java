@@ -0,0 +1,805 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import org.bson.BsonArray;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.query.BsonValueComparator;
+
+/**
+ * 聚合表达式，$project、$group 等阶段中的值都编译成表达式，然后对每个文档求值。
+ *
+ * evaluate 返回 null 表示字段不存在(missing)，跟值是 BsonNull 不一样，
+ * 比如 $project 中求值为 missing 的字段不会输出。
+ */
+public abstract class Expression {
+
+    public abstract BsonValue evaluate(BsonDocument root);
+
+    public boolean isConstant() {
+        return false;
+    }
+
+    public static Expression compile(BsonValue v) {
+        if (v.isString()) {
+            String s = v.asString().getValue();
+            if (s.startsWith("$$"))
+                return compileVariable(s.substring(2));
+            if (s.startsWith("$"))
+                return new FieldPath(s.substring(1));
+            return new Literal(v);
+        }
+        if (v.isDocument()) {
+            BsonDocument doc = v.asDocument();
+            if (doc.size() == 1 && doc.getFirstKey().startsWith("$"))
+                return Operator.compile(doc.getFirstKey(), doc.get(doc.getFirstKey()));
+            return new ObjectExpression(doc);
+        }
+        if (v.isArray()) {
+            BsonArray array = v.asArray();
+            Expression[] elements = new Expression[array.size()];
+            for (int i = 0; i < elements.length; i++)
+                elements[i] = compile(array.get(i));
+            return new ArrayExpression(elements);
+        }
+        return new Literal(v);
+    }
+
+    private static Expression compileVariable(String name) {
+        int dot = name.indexOf('.');
+        String var = dot < 0 ? name : name.substring(0, dot);
+        switch (var) {
+        case "ROOT":
+        case "CURRENT":
+            return dot < 0 ? new FieldPath(null) : new FieldPath(name.substring(dot + 1));
+        case "REMOVE":
+            return new Literal(null);
+        default:
+            throw failedToParse("Use of undefined variable: " + var);
+        }
+    }
+
+    static DocDBException failedToParse(String message) {
+        return new DocDBException(DocDBException.FAILED_TO_PARSE, "FailedToParse", message);
+    }
+
+    static DocDBException typeMismatch(String message) {
+        return new DocDBException(DocDBException.TYPE_MISMATCH, "TypeMismatch", message);
+    }
+
+    static String[] split(String path) {
+        String[] names = path.split("\\.", -1);
+        for (String name : names) {
+            if (name.isEmpty())
+                throw failedToParse("FieldPath field names may not be empty strings: " + path);
+            if (name.startsWith("$"))
+                throw failedToParse("FieldPath field names may not start with '$': " + path);
+        }
+        return names;
+    }
+
+    /**
+     * 按字段路径取值，路径中间遇到数组时对数组中的每个文档继续取值，结果也是一个数组。
+     */
+    static BsonValue getValue(BsonValue v, String[] names, int start) {
+        for (int i = start; i < names.length; i++) {
+            if (v.isDocument()) {
+                v = v.asDocument().get(names[i]);
+                if (v == null)
+                    return null;
+            } else if (v.isArray()) {
+                BsonArray result = new BsonArray();
+                for (BsonValue e : v.asArray()) {
+                    if (e.isDocument() || e.isArray()) {
+                        BsonValue r = getValue(e, names, i);
+                        if (r != null)
+                            result.add(r);
+                    }
+                }
+                return result;
+            } else {
+                return null;
+            }
+        }
+        return v;
+    }
+
+    static boolean isNullOrMissing(BsonValue v) {
+        return v == null || v.isNull() || v.getBsonType() == BsonType.UNDEFINED;
+    }
+
+    // 跟 mongodb 一样，false、null、missing、0 是假，其他值都是真
+    static boolean isTrue(BsonValue v) {
+        if (isNullOrMissing(v))
+            return false;
+        if (v.isBoolean())
+            return v.asBoolean().getValue();
+        if (isNumeric(v))
+            return toBigDecimal(v).signum() != 0;
+        return true;
+    }
+
+    static boolean isNumeric(BsonValue v) {
+        return v.isNumber() || v.isDecimal128();
+    }
+
+    // int32 < int64 < double < decimal128，运算结果的类型取两边中更宽的那个
+    private static int getNumberRank(BsonValue v) {
+        switch (v.getBsonType()) {
+        case INT32:
+            return 1;
+        case INT64:
+            return 2;
+        case DOUBLE:
+            return 3;
+        default:
+            return 4;
+        }
+    }
+
+    static BigDecimal toBigDecimal(BsonValue v) {
+        if (v.isDecimal128()) {
+            Decimal128 d = v.asDecimal128().getValue();
+            if (d.isNaN() || d.isInfinite())
+                throw DocDBException.badValue("NaN and Infinity decimals are not supported: " + d);
+            try {
+                return d.bigDecimalValue();
+            } catch (ArithmeticException e) {
+                return BigDecimal.ZERO; // -0 调用 bigDecimalValue 会抛异常
+            }
+        }
+        if (v.isDouble())
+            return new BigDecimal(v.asDouble().getValue());
+        return BigDecimal.valueOf(v.asNumber().longValue());
+    }
+
+    static BsonDecimal128 toDecimal(BigDecimal d) {
+        return new BsonDecimal128(new Decimal128(d.round(MathContext.DECIMAL128)));
+    }
+
+    static BsonValue add(BsonValue a, BsonValue b) {
+        switch (Math.max(getNumberRank(a), getNumberRank(b))) {
+        case 1: {
+            long r = (long) a.asInt32().getValue() + b.asInt32().getValue();
+            return r == (int) r ? new BsonInt32((int) r) : new BsonInt64(r);
+        }
+        case 2: {
+            long x = a.asNumber().longValue();
+            long y = b.asNumber().longValue();
+            long r = x + y;
+            if (((x ^ r) & (y ^ r)) < 0) // 溢出时跟 mongodb 一样变成 double
+                return new BsonDouble((double) x + (double) y);
+            return new BsonInt64(r);
+        }
+        case 3:
+            return new BsonDouble(a.asNumber().doubleValue() + b.asNumber().doubleValue());
+        default:
+            return toDecimal(toBigDecimal(a).add(toBigDecimal(b)));
+        }
+    }
+
+    static BsonValue subtract(BsonValue a, BsonValue b) {
+        switch (Math.max(getNumberRank(a), getNumberRank(b))) {
+        case 1: {
+            long r = (long) a.asInt32().getValue() - b.asInt32().getValue();
+            return r == (int) r ? new BsonInt32((int) r) : new BsonInt64(r);
+        }
+        case 2: {
+            long x = a.asNumber().longValue();
+            long y = b.asNumber().longValue();
+            long r = x - y;
+            if (((x ^ y) & (x ^ r)) < 0)
+                return new BsonDouble((double) x - (double) y);
+            return new BsonInt64(r);
+        }
+        case 3:
+            return new BsonDouble(a.asNumber().doubleValue() - b.asNumber().doubleValue());
+        default:
+            return toDecimal(toBigDecimal(a).subtract(toBigDecimal(b)));
+        }
+    }
+
+    static BsonValue multiply(BsonValue a, BsonValue b) {
+        switch (Math.max(getNumberRank(a), getNumberRank(b))) {
+        case 1: {
+            long r = (long) a.asInt32().getValue() * b.asInt32().getValue();
+            return r == (int) r ? new BsonInt32((int) r) : new BsonInt64(r);
+        }
+        case 2: {
+            long x = a.asNumber().longValue();
+            long y = b.asNumber().longValue();
+            long hi = Math.multiplyHigh(x, y);
+            long r = x * y;
+            if (hi != (r >> 63)) // 溢出
+                return new BsonDouble((double) x * (double) y);
+            return new BsonInt64(r);
+        }
+        case 3:
+            return new BsonDouble(a.asNumber().doubleValue() * b.asNumber().doubleValue());
+        default:
+            return toDecimal(toBigDecimal(a).multiply(toBigDecimal(b)));
+        }
+    }
+
+    // 整数相除的结果也是 double
+    static BsonValue divide(BsonValue a, BsonValue b) {
+        if (a.isDecimal128() || b.isDecimal128()) {
+            BigDecimal y = toBigDecimal(b);
+            if (y.signum() == 0)
+                throw DocDBException.badValue("can't $divide by zero");
+            return toDecimal(toBigDecimal(a).divide(y, MathContext.DECIMAL128));
+        }
+        double y = b.asNumber().doubleValue();
+        if (y == 0)
+            throw DocDBException.badValue("can't $divide by zero");
+        return new BsonDouble(a.asNumber().doubleValue() / y);
+    }
+
+    static BsonValue mod(BsonValue a, BsonValue b) {
+        int rank = Math.max(getNumberRank(a), getNumberRank(b));
+        if (rank <= 2) {
+            long y = b.asNumber().longValue();
+            if (y == 0)
+                throw DocDBException.badValue("can't $mod by zero");
+            long r = a.asNumber().longValue() % y;
+            return rank == 1 ? new BsonInt32((int) r) : new BsonInt64(r);
+        }
+        if (rank == 3) {
+            double y = b.asNumber().doubleValue();
+            if (y == 0)
+                throw DocDBException.badValue("can't $mod by zero");
+            return new BsonDouble(a.asNumber().doubleValue() % y);
+        }
+        BigDecimal y = toBigDecimal(b);
+        if (y.signum() == 0)
+            throw DocDBException.badValue("can't $mod by zero");
+        return toDecimal(toBigDecimal(a).remainder(y));
+    }
+
+    static class Literal extends Expression {
+
+        private final BsonValue value;
+
+        Literal(BsonValue value) {
+            this.value = value;
+        }
+
+        @Override
+        public BsonValue evaluate(BsonDocument root) {
+            return value;
+        }
+
+        @Override
+        public boolean isConstant() {
+            return true;
+        }
+    }
+
+    // path 为 null 时返回整个文档
+    static class FieldPath extends Expression {
+
+        private final String path;
+        private final String[] names;
+
+        FieldPath(String path) {
+            this.path = path;
+            this.names = path == null ? new String[0] : split(path);
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        @Override
+        public BsonValue evaluate(BsonDocument root) {
+            if (names.length == 1)
+                return root.get(names[0]);
+            return getValue(root, names, 0);
+        }
+    }
+
+    private static class ObjectExpression extends Expression {
+
+        private final String[] names;
+        private final Expression[] values;
+
+        ObjectExpression(BsonDocument doc) {
+            names = new String[doc.size()];
+            values = new Expression[doc.size()];
+            int i = 0;
+            for (Entry<String, BsonValue> e : doc.entrySet()) {
+                if (e.getKey().startsWith("$"))
+                    throw failedToParse("Unrecognized expression '" + e.getKey() + "'");
+                names[i] = e.getKey();
+                values[i++] = compile(e.getValue());
+            }
+        }
+
+        @Override
+        public BsonValue evaluate(BsonDocument root) {
+            BsonDocument doc = new BsonDocument();
+            for (int i = 0; i < names.length; i++) {
+                BsonValue v = values[i].evaluate(root);
+                if (v != null)
+                    doc.append(names[i], v);
+            }
+            return doc;
+        }
+    }
+
+    private static class ArrayExpression extends Expression {
+
+        private final Expression[] elements;
+
+        ArrayExpression(Expression[] elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public BsonValue evaluate(BsonDocument root) {
+            BsonArray array = new BsonArray();
+            for (Expression e : elements) {
+                BsonValue v = e.evaluate(root);
+                array.add(v == null ? BsonNull.VALUE : v);
+            }
+            return array;
+        }
+    }
+
+    private static class Operator extends Expression {
+
+        private static final int ADD = 0;
+        private static final int SUBTRACT = 1;
+        private static final int MULTIPLY = 2;
+        private static final int DIVIDE = 3;
+        private static final int MOD = 4;
+        private static final int ABS = 5;
+        private static final int CONCAT = 6;
+        private static final int TO_LOWER = 7;
+        private static final int TO_UPPER = 8;
+        private static final int IF_NULL = 9;
+        private static final int COND = 10;
+        private static final int CMP = 11;
+        private static final int EQ = 12;
+        private static final int NE = 13;
+        private static final int GT = 14;
+        private static final int GTE = 15;
+        private static final int LT = 16;
+        private static final int LTE = 17;
+        private static final int AND = 18;
+        private static final int OR = 19;
+        private static final int NOT = 20;
+        private static final int SIZE = 21;
+        private static final int IN = 22;
+        private static final int YEAR = 23;
+        private static final int MONTH = 24;
+        private static final int DAY_OF_MONTH = 25;
+        private static final int HOUR = 26;
+        private static final int MINUTE = 27;
+        private static final int SECOND = 28;
+
+        private final String op;
+        private final int type;
+        private final Expression[] args;
+
+        private Operator(String op, int type, Expression[] args) {
+            this.op = op;
+            this.type = type;
+            this.args = args;
+        }
+
+        static Expression compile(String op, BsonValue v) {
+            if (op.equals("$literal"))
+                return new Literal(v);
+            int type;
+            int argCount = -1; // -1 表示参数个数不固定
+            switch (op) {
+            case "$add":
+                type = ADD;
+                break;
+            case "$subtract":
+                type = SUBTRACT;
+                argCount = 2;
+                break;
+            case "$multiply":
+                type = MULTIPLY;
+                break;
+            case "$divide":
+                type = DIVIDE;
+                argCount = 2;
+                break;
+            case "$mod":
+                type = MOD;
+                argCount = 2;
+                break;
+            case "$abs":
+                type = ABS;
+                argCount = 1;
+                break;
+            case "$concat":
+                type = CONCAT;
+                break;
+            case "$toLower":
+                type = TO_LOWER;
+                argCount = 1;
+                break;
+            case "$toUpper":
+                type = TO_UPPER;
+                argCount = 1;
+                break;
+            case "$ifNull":
+                type = IF_NULL;
+                break;
+            case "$cond":
+                type = COND;
+                argCount = 3;
+                if (v.isDocument()) { // {if: ..., then: ..., else: ...}
+                    BsonDocument doc = v.asDocument();
+                    if (!doc.containsKey("if") || !doc.containsKey("then") || !doc.containsKey("else"))
+                        throw failedToParse("Missing 'if', 'then' or 'else' parameter to $cond");
+                    v = new BsonArray(Arrays.asList(doc.get("if"), doc.get("then"),
+                            doc.get("else")));
+                }
+                break;
+            case "$cmp":
+                type = CMP;
+                argCount = 2;
+                break;
+            case "$eq":
+                type = EQ;
+                argCount = 2;
+                break;
+            case "$ne":
+                type = NE;
+                argCount = 2;
+                break;
+            case "$gt":
+                type = GT;
+                argCount = 2;
+                break;
+            case "$gte":
+                type = GTE;
+                argCount = 2;
+                break;
+            case "$lt":
+                type = LT;
+                argCount = 2;
+                break;
+            case "$lte":
+                type = LTE;
+                argCount = 2;
+                break;
+            case "$and":
+                type = AND;
+                break;
+            case "$or":
+                type = OR;
+                break;
+            case "$not":
+                type = NOT;
+                argCount = 1;
+                break;
+            case "$size":
+                type = SIZE;
+                argCount = 1;
+                break;
+            case "$in":
+                type = IN;
+                argCount = 2;
+                break;
+            case "$year":
+                type = YEAR;
+                argCount = 1;
+                break;
+            case "$month":
+                type = MONTH;
+                argCount = 1;
+                break;
+            case "$dayOfMonth":
+                type = DAY_OF_MONTH;
+                argCount = 1;
+                break;
+            case "$hour":
+                type = HOUR;
+                argCount = 1;
+                break;
+            case "$minute":
+                type = MINUTE;
+                argCount = 1;
+                break;
+            case "$second":
+                type = SECOND;
+                argCount = 1;
+                break;
+            default:
+                throw new DocDBException(168, "InvalidPipelineOperator",
+                        "Unrecognized expression '" + op + "'");
+            }
+            BsonArray array;
+            if (v.isArray()) {
+                array = v.asArray();
+            } else {
+                array = new BsonArray();
+                array.add(v);
+            }
+            if (argCount >= 0 && array.size() != argCount)
+                throw new DocDBException(16020, "Location16020", "Expression " + op + " takes exactly "
+                        + argCount + " arguments. " + array.size() + " were passed in.");
+            Expression[] args = new Expression[array.size()];
+            for (int i = 0; i < args.length; i++)
+                args[i] = Expression.compile(array.get(i));
+            return new Operator(op, type, args);
+        }
+
+        @Override
+        public BsonValue evaluate(BsonDocument root) {
+            switch (type) {
+            case ADD:
+                return evaluateAdd(root);
+            case MULTIPLY: {
+                BsonValue r = new BsonInt32(1);
+                for (Expression e : args) {
+                    BsonValue v = e.evaluate(root);
+                    if (isNullOrMissing(v))
+                        return BsonNull.VALUE;
+                    r = multiply(r, checkNumeric(v));
+                }
+                return r;
+            }
+            case SUBTRACT: {
+                BsonValue a = args[0].evaluate(root);
+                BsonValue b = args[1].evaluate(root);
+                if (isNullOrMissing(a) || isNullOrMissing(b))
+                    return BsonNull.VALUE;
+                if (a.isDateTime() && b.isDateTime())
+                    return new BsonInt64(a.asDateTime().getValue() - b.asDateTime().getValue());
+                if (a.isDateTime())
+                    return new BsonDateTime(a.asDateTime().getValue() - toLong(checkNumeric(b)));
+                return subtract(checkNumeric(a), checkNumeric(b));
+            }
+            case DIVIDE:
+            case MOD: {
+                BsonValue a = args[0].evaluate(root);
+                BsonValue b = args[1].evaluate(root);
+                if (isNullOrMissing(a) || isNullOrMissing(b))
+                    return BsonNull.VALUE;
+                checkNumeric(a);
+                checkNumeric(b);
+                return type == DIVIDE ? divide(a, b) : mod(a, b);
+            }
+            case ABS: {
+                BsonValue v = args[0].evaluate(root);
+                if (isNullOrMissing(v))
+                    return BsonNull.VALUE;
+                checkNumeric(v);
+                if (v.isInt32()) {
+                    int x = v.asInt32().getValue();
+                    return x == Integer.MIN_VALUE ? new BsonInt64(-(long) x) : new BsonInt32(Math.abs(x));
+                }
+                if (v.isInt64())
+                    return new BsonInt64(Math.abs(v.asInt64().getValue()));
+                if (v.isDouble())
+                    return new BsonDouble(Math.abs(v.asDouble().getValue()));
+                return toDecimal(toBigDecimal(v).abs());
+            }
+            case CONCAT: {
+                StringBuilder buff = new StringBuilder();
+                for (Expression e : args) {
+                    BsonValue v = e.evaluate(root);
+                    if (isNullOrMissing(v))
+                        return BsonNull.VALUE;
+                    if (!v.isString())
+                        throw new DocDBException(16702, "Location16702",
+                                "$concat only supports strings, not " + getTypeName(v));
+                    buff.append(v.asString().getValue());
+                }
+                return new BsonString(buff.toString());
+            }
+            case TO_LOWER:
+            case TO_UPPER: {
+                BsonValue v = args[0].evaluate(root);
+                String s;
+                if (isNullOrMissing(v))
+                    s = "";
+                else if (v.isString())
+                    s = v.asString().getValue();
+                else if (isNumeric(v) || v.isDateTime())
+                    s = toDisplayString(v);
+                else
+                    throw new DocDBException(16007, "Location16007",
+                            "can't convert from BSON type " + getTypeName(v) + " to String");
+                return new BsonString(type == TO_LOWER ? s.toLowerCase() : s.toUpperCase());
+            }
+            case IF_NULL: {
+                for (int i = 0; i < args.length - 1; i++) {
+                    BsonValue v = args[i].evaluate(root);
+                    if (!isNullOrMissing(v))
+                        return v;
+                }
+                return args[args.length - 1].evaluate(root);
+            }
+            case COND:
+                return isTrue(args[0].evaluate(root)) ? args[1].evaluate(root) : args[2].evaluate(root);
+            case CMP:
+            case EQ:
+            case NE:
+            case GT:
+            case GTE:
+            case LT:
+            case LTE:
+                return evaluateCompare(root);
+            case AND: {
+                for (Expression e : args) {
+                    if (!isTrue(e.evaluate(root)))
+                        return BsonBoolean.FALSE;
+                }
+                return BsonBoolean.TRUE;
+            }
+            case OR: {
+                for (Expression e : args) {
+                    if (isTrue(e.evaluate(root)))
+                        return BsonBoolean.TRUE;
+                }
+                return BsonBoolean.FALSE;
+            }
+            case NOT:
+                return BsonBoolean.valueOf(!isTrue(args[0].evaluate(root)));
+            case SIZE: {
+                BsonValue v = args[0].evaluate(root);
+                if (v == null || !v.isArray())
+                    throw new DocDBException(17124, "Location17124",
+                            "The argument to $size must be an array. Type was: "
+                                    + (v == null ? "missing" : getTypeName(v)));
+                return new BsonInt32(v.asArray().size());
+            }
+            case IN: {
+                BsonValue v = args[0].evaluate(root);
+                BsonValue array = args[1].evaluate(root);
+                if (array == null || !array.isArray())
+                    throw new DocDBException(40081, "Location40081",
+                            "$in requires an array as a second argument");
+                BsonValue x = v == null ? BsonNull.VALUE : v;
+                for (BsonValue e : array.asArray()) {
+                    if (BsonValueComparator.equals(x, e))
+                        return BsonBoolean.TRUE;
+                }
+                return BsonBoolean.FALSE;
+            }
+            default:
+                return evaluateDatePart(root);
+            }
+        }
+
+        private BsonValue evaluateAdd(BsonDocument root) {
+            BsonValue r = new BsonInt32(0);
+            long date = 0;
+            boolean isDate = false;
+            for (Expression e : args) {
+                BsonValue v = e.evaluate(root);
+                if (isNullOrMissing(v))
+                    return BsonNull.VALUE;
+                if (v.isDateTime()) {
+                    if (isDate)
+                        throw new DocDBException(16612, "Location16612",
+                                "only one date allowed in an $add expression");
+                    isDate = true;
+                    date = v.asDateTime().getValue();
+                } else {
+                    r = add(r, checkNumeric(v));
+                }
+            }
+            if (isDate)
+                return new BsonDateTime(date + toLong(r));
+            return r;
+        }
+
+        private BsonValue evaluateCompare(BsonDocument root) {
+            BsonValue a = args[0].evaluate(root);
+            BsonValue b = args[1].evaluate(root);
+            if (a == null)
+                a = BsonNull.VALUE;
+            if (b == null)
+                b = BsonNull.VALUE;
+            int c = BsonValueComparator.compare(a, b);
+            switch (type) {
+            case CMP:
+                return new BsonInt32(Integer.signum(c));
+            case EQ:
+                return BsonBoolean.valueOf(c == 0);
+            case NE:
+                return BsonBoolean.valueOf(c != 0);
+            case GT:
+                return BsonBoolean.valueOf(c > 0);
+            case GTE:
+                return BsonBoolean.valueOf(c >= 0);
+            case LT:
+                return BsonBoolean.valueOf(c < 0);
+            default:
+                return BsonBoolean.valueOf(c <= 0);
+            }
+        }
+
+        // 只支持 UTC 时区
+        private BsonValue evaluateDatePart(BsonDocument root) {
+            BsonValue v = args[0].evaluate(root);
+            if (isNullOrMissing(v))
+                return BsonNull.VALUE;
+            long millis;
+            if (v.isDateTime())
+                millis = v.asDateTime().getValue();
+            else if (v.isTimestamp())
+                millis = v.asTimestamp().getTime() * 1000L;
+            else if (v.isObjectId())
+                millis = v.asObjectId().getValue().getTimestamp() * 1000L;
+            else
+                throw new DocDBException(16006, "Location16006",
+                        "can't convert from BSON type " + getTypeName(v) + " to Date");
+            ZonedDateTime t = Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC);
+            switch (type) {
+            case YEAR:
+                return new BsonInt32(t.getYear());
+            case MONTH:
+                return new BsonInt32(t.getMonthValue());
+            case DAY_OF_MONTH:
+                return new BsonInt32(t.getDayOfMonth());
+            case HOUR:
+                return new BsonInt32(t.getHour());
+            case MINUTE:
+                return new BsonInt32(t.getMinute());
+            default:
+                return new BsonInt32(t.getSecond());
+            }
+        }
+
+        private BsonValue checkNumeric(BsonValue v) {
+            if (!isNumeric(v))
+                throw typeMismatch(op + " only supports numeric types, not " + getTypeName(v));
+            return v;
+        }
+
+        private static long toLong(BsonValue v) {
+            if (v.isDecimal128())
+                return toBigDecimal(v).longValue();
+            if (v.isDouble())
+                return Math.round(v.asDouble().getValue());
+            return v.asNumber().longValue();
+        }
+
+        private static String toDisplayString(BsonValue v) {
+            if (v.isDateTime())
+                return Instant.ofEpochMilli(v.asDateTime().getValue()).toString();
+            if (v.isDecimal128())
+                return v.asDecimal128().getValue().toString();
+            if (v.isDouble())
+                return Double.toString(v.asDouble().getValue());
+            return Long.toString(v.asNumber().longValue());
+        }
+    }
+
+    static String getTypeName(BsonValue v) {
+        return v.getBsonType().name().toLowerCase();
+    }
+}
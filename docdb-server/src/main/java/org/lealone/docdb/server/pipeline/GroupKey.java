@@ -0,0 +1,54 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.Arrays;
+
+import org.bson.BsonValue;
+import org.lealone.docdb.server.index.IndexKeyEncoder;
+
+/**
+ * 用 IndexKeyEncoder 编码后的字节作为分组的键，这样 1 和 1.0 是同一个分组，
+ * 而且按字节比较的顺序跟 mongodb 的比较规则一致，写临时文件时可以直接按它排序。
+ */
+class GroupKey implements Comparable<GroupKey> {
+
+    private final byte[] bytes;
+    private final int hash;
+
+    GroupKey(BsonValue v) {
+        this(IndexKeyEncoder.encode(v).getBytesNoCopy());
+    }
+
+    GroupKey(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    int getMemory() {
+        return 32 + bytes.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof GroupKey && Arrays.equals(bytes, ((GroupKey) obj).bytes);
+    }
+
+    // 编码时每个字节的最高位翻转过，所以按有符号字节比较
+    @Override
+    public int compareTo(GroupKey o) {
+        return Arrays.compare(bytes, o.bytes);
+    }
+}
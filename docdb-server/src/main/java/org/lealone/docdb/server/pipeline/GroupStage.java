@@ -0,0 +1,313 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.lealone.docdb.server.DocDBException;
+
+/**
+ * 用哈希表做分组聚合。
+ *
+ * 分组占用的内存超过 memoryLimit 时，把当前所有分组按 GroupKey 排好序写到一个临时文件中，然后清空哈希表继续读，
+ * 最后对所有临时文件和内存中剩下的分组做多路归并，键相同的分组按写入的先后合并累加器，
+ * 所以 $first、$last、$push 的结果跟不写临时文件时一样。
+ *
+ * 并行扫描时每个分区先用 PARTIAL 模式算出各个分组的部分结果，再按分区的顺序交给 MERGE 模式的 GroupStage 合并。
+ */
+public class GroupStage extends Stage {
+
+    public static final int COMPLETE = 0;
+    public static final int PARTIAL = 1; // 输出 {k, _id, a} 格式的部分结果
+    public static final int MERGE = 2; // 输入是 PARTIAL 模式的输出
+
+    private final Expression idExpression;
+    private final Accumulator.Spec[] specs;
+    private final long memoryLimit;
+    private final boolean allowDiskUse;
+    private final int mode;
+
+    private HashMap<GroupKey, Group> groups = new HashMap<>();
+    private long memory;
+    private final ArrayList<SpillFile> spillFiles = new ArrayList<>();
+
+    // 没写临时文件时直接遍历哈希表，否则做多路归并
+    private Iterator<Group> iterator;
+    private PriorityQueue<Run> runs;
+
+    public GroupStage(Stage input, BsonDocument spec, long memoryLimit, boolean allowDiskUse) {
+        this(input, spec, memoryLimit, allowDiskUse, COMPLETE);
+    }
+
+    public GroupStage(Stage input, BsonDocument spec, long memoryLimit, boolean allowDiskUse, int mode) {
+        super(input);
+        BsonValue id = spec.get("_id");
+        if (id == null)
+            throw new DocDBException(15955, "Location15955", "a group specification must include an _id");
+        idExpression = Expression.compile(id);
+        specs = new Accumulator.Spec[spec.size() - 1];
+        int i = 0;
+        for (Entry<String, BsonValue> e : spec.entrySet()) {
+            if (!e.getKey().equals("_id"))
+                specs[i++] = new Accumulator.Spec(e.getKey(), e.getValue());
+        }
+        this.memoryLimit = memoryLimit;
+        this.allowDiskUse = allowDiskUse;
+        this.mode = mode;
+    }
+
+    public long getSpillCount() {
+        return spillFiles.size();
+    }
+
+    @Override
+    public BsonDocument next() {
+        if (groups != null && !consume())
+            return YIELD;
+        Group group;
+        if (iterator != null) {
+            if (!iterator.hasNext())
+                return null;
+            group = iterator.next();
+            iterator.remove();
+        } else {
+            group = nextMerged();
+            if (group == null)
+                return null;
+        }
+        return mode == PARTIAL ? group.toPartialDocument() : group.toBsonDocument();
+    }
+
+    // 上一个阶段返回 YIELD 时返回 false，下次调用 next 时接着读
+    private boolean consume() {
+        BsonDocument document;
+        while ((document = input.next()) != null) {
+            if (document == YIELD)
+                return false;
+            GroupKey key;
+            BsonValue id;
+            if (mode == MERGE) {
+                key = new GroupKey(document.getBinary("k").getData());
+                id = document.get("_id");
+            } else {
+                id = idExpression.evaluate(document);
+                if (id == null)
+                    id = BsonNull.VALUE;
+                key = new GroupKey(id);
+            }
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(key, id);
+                groups.put(key, group);
+                memory += 64 + key.getMemory() + Accumulator.getMemory(id) + specs.length * 32;
+            }
+            if (mode == MERGE) {
+                memory += group.merge(document.getArray("a"));
+            } else {
+                for (int i = 0; i < specs.length; i++)
+                    memory += group.accumulators[i].add(specs[i].getExpression().evaluate(document));
+            }
+            if (memory > memoryLimit)
+                spill();
+        }
+        if (spillFiles.isEmpty()) {
+            iterator = groups.values().iterator();
+        } else {
+            runs = new PriorityQueue<>();
+            for (int i = 0; i < spillFiles.size(); i++)
+                addRun(new FileRun(i, spillFiles.get(i)));
+            addRun(new MemoryRun(spillFiles.size(), sort(groups)));
+        }
+        groups = null;
+        return true;
+    }
+
+    private void spill() {
+        if (!allowDiskUse)
+            throw new DocDBException(292, "QueryExceededMemoryLimitNoDiskUseAllowed",
+                    "Exceeded memory limit for $group, but didn't allow external sort."
+                            + " Pass allowDiskUse:true to opt in.");
+        SpillFile file = SpillFile.create("docdb_group");
+        spillFiles.add(file);
+        for (Group group : sort(groups))
+            file.write(group.toPartialDocument());
+        file.finishWrite();
+        groups.clear();
+        memory = 0;
+    }
+
+    private static ArrayList<Group> sort(HashMap<GroupKey, Group> groups) {
+        ArrayList<Group> list = new ArrayList<>(groups.values());
+        Collections.sort(list, Comparator.comparing(g -> g.key));
+        return list;
+    }
+
+    private void addRun(Run run) {
+        if (run.advance())
+            runs.add(run);
+    }
+
+    // 从所有 run 中取出键最小的分组，键相同的按 run 的先后合并到一起
+    private Group nextMerged() {
+        Run run = runs.poll();
+        if (run == null)
+            return null;
+        GroupKey key = run.key;
+        Group group = new Group(key, run.id);
+        group.merge(run.partials);
+        if (run.advance())
+            runs.add(run);
+        while (!runs.isEmpty() && runs.peek().key.equals(key)) {
+            run = runs.poll();
+            group.merge(run.partials);
+            if (run.advance())
+                runs.add(run);
+        }
+        return group;
+    }
+
+    @Override
+    protected String getName() {
+        return "GROUP";
+    }
+
+    @Override
+    protected void appendDetails(BsonDocument plan, boolean executionStats) {
+        if (mode != COMPLETE)
+            plan.append("mode", new BsonString(mode == PARTIAL ? "partial" : "merge"));
+        if (executionStats) {
+            plan.append("usedDisk", BsonBoolean.valueOf(!spillFiles.isEmpty()));
+            plan.append("spills", new BsonInt64(spillFiles.size()));
+        }
+    }
+
+    @Override
+    public void close() {
+        for (SpillFile file : spillFiles)
+            file.close();
+        spillFiles.clear();
+        groups = null;
+        super.close();
+    }
+
+    private class Group {
+
+        final GroupKey key;
+        final BsonValue id;
+        final Accumulator[] accumulators;
+
+        Group(GroupKey key, BsonValue id) {
+            this.key = key;
+            this.id = id;
+            accumulators = new Accumulator[specs.length];
+            for (int i = 0; i < specs.length; i++)
+                accumulators[i] = specs[i].create();
+        }
+
+        int merge(BsonArray partials) {
+            int delta = 0;
+            for (int i = 0; i < accumulators.length; i++)
+                delta += accumulators[i].merge(partials.get(i));
+            return delta;
+        }
+
+        BsonDocument toBsonDocument() {
+            BsonDocument document = new BsonDocument("_id", id);
+            for (int i = 0; i < specs.length; i++)
+                document.append(specs[i].getField(), accumulators[i].getResult());
+            return document;
+        }
+
+        BsonDocument toPartialDocument() {
+            BsonArray partials = new BsonArray();
+            for (Accumulator a : accumulators)
+                partials.add(a.getPartial());
+            BsonDocument document = new BsonDocument("k", new BsonBinary(key.getBytes()));
+            document.append("_id", id);
+            document.append("a", partials);
+            return document;
+        }
+    }
+
+    // 按 GroupKey 排好序的一组分组，index 越小的越早写入
+    private abstract static class Run implements Comparable<Run> {
+
+        final int index;
+        GroupKey key;
+        BsonValue id;
+        BsonArray partials;
+
+        Run(int index) {
+            this.index = index;
+        }
+
+        abstract boolean advance();
+
+        @Override
+        public int compareTo(Run o) {
+            int c = key.compareTo(o.key);
+            return c != 0 ? c : Integer.compare(index, o.index);
+        }
+    }
+
+    private static class MemoryRun extends Run {
+
+        private final Iterator<Group> iterator;
+
+        MemoryRun(int index, ArrayList<Group> groups) {
+            super(index);
+            iterator = groups.iterator();
+        }
+
+        @Override
+        boolean advance() {
+            if (!iterator.hasNext())
+                return false;
+            Group group = iterator.next();
+            key = group.key;
+            id = group.id;
+            partials = new BsonArray();
+            for (Accumulator a : group.accumulators)
+                partials.add(a.getPartial());
+            return true;
+        }
+    }
+
+    private static class FileRun extends Run {
+
+        private final SpillFile file;
+
+        FileRun(int index, SpillFile file) {
+            super(index);
+            this.file = file;
+        }
+
+        @Override
+        boolean advance() {
+            BsonDocument document = file.read();
+            if (document == null)
+                return false;
+            key = new GroupKey(document.getBinary("k").getData());
+            id = document.get("_id");
+            partials = document.getArray("a");
+            return true;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+
+/**
+ * 取够 limit 个文档后就不再从上一个阶段拉取，所以放在索引扫描后面时扫描也会提前结束。
+ */
+public class LimitStage extends Stage {
+
+    private final long limit;
+    private long remaining;
+
+    public LimitStage(Stage input, long limit) {
+        super(input);
+        this.limit = limit;
+        this.remaining = limit;
+    }
+
+    @Override
+    public BsonDocument next() {
+        if (remaining <= 0)
+            return null;
+        BsonDocument document = input.next();
+        if (document != YIELD)
+            remaining--;
+        return document;
+    }
+
+    @Override
+    protected String getName() {
+        return "LIMIT";
+    }
+
+    @Override
+    protected void appendDetails(BsonDocument plan, boolean executionStats) {
+        plan.append("limitAmount", new BsonInt64(limit));
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import org.bson.BsonDocument;
+import org.lealone.docdb.server.query.QueryFilter;
+
+public class MatchStage extends Stage {
+
+    private final QueryFilter filter;
+
+    public MatchStage(Stage input, QueryFilter filter) {
+        super(input);
+        this.filter = filter;
+    }
+
+    @Override
+    public BsonDocument next() {
+        BsonDocument document;
+        while ((document = input.next()) != null) {
+            if (document == YIELD || filter.match(document))
+                return document;
+        }
+        return null;
+    }
+
+    @Override
+    protected String getName() {
+        return "MATCH";
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.Comparator;
+import java.util.List;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+
+/**
+ * 合并两个已经排好序的输入，比如按索引顺序扫描的结果和单独排序的数组字段记录。
+ */
+public class MergeStage extends Stage {
+
+    private final Stage other;
+    private final Comparator<BsonDocument> comparator;
+    private BsonDocument next1, next2;
+    private boolean fetch1 = true, fetch2 = true; // 需要从对应的输入再取一个文档
+
+    public MergeStage(Stage input, Stage other, Comparator<BsonDocument> comparator) {
+        super(input);
+        this.other = other;
+        this.comparator = comparator;
+    }
+
+    @Override
+    public BsonDocument next() {
+        if (fetch1) {
+            next1 = input.next();
+            if (next1 == YIELD)
+                return YIELD;
+            fetch1 = false;
+        }
+        if (fetch2) {
+            next2 = other.next();
+            if (next2 == YIELD)
+                return YIELD;
+            fetch2 = false;
+        }
+        if (next2 == null || next1 != null && comparator.compare(next1, next2) <= 0) {
+            fetch1 = next1 != null;
+            return next1;
+        } else {
+            fetch2 = true;
+            return next2;
+        }
+    }
+
+    // 跟 mongodb 一样，有多个输入阶段时放在 inputStages 中
+    @Override
+    protected String getName() {
+        return "SORT_MERGE";
+    }
+
+    @Override
+    public BsonDocument explain(boolean executionStats) {
+        BsonDocument plan = new BsonDocument("stage", new BsonString(getName()));
+        plan.append("inputStages",
+                new BsonArray(List.of(input.explain(executionStats), other.explain(executionStats))));
+        return plan;
+    }
+
+    @Override
+    public long getKeysExamined() {
+        return input.getKeysExamined() + other.getKeysExamined();
+    }
+
+    @Override
+    public long getDocsExamined() {
+        return input.getDocsExamined() + other.getDocsExamined();
+    }
+
+    @Override
+    public void pause() {
+        other.pause();
+        super.pause();
+    }
+
+    @Override
+    public void close() {
+        other.close();
+        super.close();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.function.UnaryOperator;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.lealone.db.Database;
+import org.lealone.db.index.Index;
+import org.lealone.db.result.Row;
+import org.lealone.db.result.SearchRow;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBServer;
+import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.command.BsonCommand;
+import org.lealone.docdb.server.index.DocumentIndex.IndexCursor;
+import org.lealone.docdb.server.query.QueryFilter;
+
+/**
+ * 把全表扫描按行的 key 分成多个区间，每个区间用自己的会话在 DocDBServer 的扫描线程池中执行过滤
+ * (还可以加上 $group 的部分聚合)，结果按区间的顺序返回，所以跟单线程扫描的顺序一样。
+ *
+ * 每个区间一次最多读取 CHUNK_SIZE 个文档，读完一批就把线程还给线程池，缓存了 MAX_CHUNKS 批之后要等消费了再读，
+ * 所以客户端迟迟不来 getMore 时也不会占住线程池的线程。
+ * 两批之间不保留存储层的游标，叶子页可能被其他线程分裂或回收，下一批从上一批最后一行的 key 之后重新定位。
+ *
+ * 调度器线程不等待分区的线程：下一批还没读好就返回 YIELD，读好了再唤醒调度器，
+ * 关闭时分区还在读取的话由分区的线程读完这一批后释放会话，所以没有 YieldPolicy 时不并行。
+ */
+public class ParallelScanStage extends Stage {
+
+    private static final int CHUNK_SIZE = 1000;
+    private static final int MAX_CHUNKS = 2;
+
+    private final Partition[] partitions;
+    private final YieldPolicy yieldPolicy;
+    private int current;
+    private Iterator<BsonDocument> chunk;
+
+    private ParallelScanStage(Partition[] partitions, YieldPolicy yieldPolicy) {
+        super(null);
+        this.partitions = partitions;
+        this.yieldPolicy = yieldPolicy;
+        for (Partition p : partitions)
+            p.schedule();
+    }
+
+    /**
+     * 只有全表扫描而且表的记录数足够多时才并行，否则返回 null。
+     * partial 用来在每个分区的扫描结果上再加一个阶段，比如 $group 的部分聚合。
+     */
+    public static Stage create(DocDBServerConnection conn, ServerSession session, Table table,
+            QueryFilter filter, YieldPolicy yieldPolicy, UnaryOperator<Stage> partial) {
+        DocDBServer server = conn.getServer();
+        int parallelism = server.getScanParallelism();
+        // 只需要估计记录数，有其他事务还没提交时 getRowCount 会遍历整个表
+        if (parallelism <= 1 || yieldPolicy == null || !BsonCommand.isFullScan(table, filter)
+                || table.getRowCountApproximation() < server.getParallelScanMinRows())
+            return null;
+        Index index = table.getScanIndex(session);
+        SearchRow first = index.findFirstOrLast(session, true);
+        SearchRow last = index.findFirstOrLast(session, false);
+        if (first == null || last == null)
+            return null;
+        long min = first.getKey();
+        long max = last.getKey();
+        if (max - min < parallelism) // 溢出时也不并行
+            return null;
+        // 按 key 的范围平均切分，key 分布不均匀时每个区间的记录数也会不一样
+        long step = (max - min) / parallelism + 1;
+        Database db = table.getDatabase();
+        Partition[] partitions = new Partition[parallelism];
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                long from = min + i * step;
+                long to = i == parallelism - 1 ? max : from + step - 1;
+                ServerSession s = BsonCommand.getSession(db, conn);
+                try {
+                    SearchRow[] range = { createRow(table, from), createRow(table, to) };
+                    ScanStage scan = new ScanStage(new IndexCursor(s, index, range), null, filter, null);
+                    partitions[i] = new Partition(server, s, scan, partial.apply(scan), yieldPolicy);
+                } catch (Throwable t) {
+                    s.close();
+                    throw t;
+                }
+            }
+        } catch (Throwable t) {
+            for (Partition p : partitions) {
+                if (p != null)
+                    p.close();
+            }
+            throw t;
+        }
+        return new ParallelScanStage(partitions, yieldPolicy);
+    }
+
+    @Override
+    public BsonDocument next() {
+        while (true) {
+            if (chunk != null && chunk.hasNext())
+                return chunk.next();
+            if (current >= partitions.length)
+                return null;
+            ArrayList<BsonDocument> list = partitions[current].take();
+            if (list == null) {
+                yieldPolicy.block();
+                return YIELD;
+            }
+            if (list.isEmpty())
+                current++;
+            else
+                chunk = list.iterator();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Partition p : partitions)
+            p.close();
+    }
+
+    @Override
+    protected String getName() {
+        return "PARALLEL_SCAN";
+    }
+
+    // 每个分区是一个 inputStage，执行统计要在所有分区都读完之后才准确
+    @Override
+    public BsonDocument explain(boolean executionStats) {
+        BsonDocument plan = new BsonDocument("stage", new BsonString(getName()));
+        plan.append("partitions", new BsonInt32(partitions.length));
+        BsonArray inputStages = new BsonArray();
+        for (Partition p : partitions)
+            inputStages.add(p.stage.explain(executionStats));
+        plan.append("inputStages", inputStages);
+        return plan;
+    }
+
+    @Override
+    public long getDocsExamined() {
+        long n = 0;
+        for (Partition p : partitions)
+            n += p.scan.getDocsExamined();
+        return n;
+    }
+
+    @Override
+    public String getPlanSummary() {
+        return "COLLSCAN";
+    }
+
+    private static Row createRow(Table table, long key) {
+        Row row = table.getTemplateRow();
+        row.setKey(key);
+        return row;
+    }
+
+    private static class Partition implements Runnable {
+
+        private final DocDBServer server;
+        private final ServerSession session;
+        private final ScanStage scan;
+        private final Stage stage;
+        private final YieldPolicy yieldPolicy;
+        private final ArrayDeque<ArrayList<BsonDocument>> chunks = new ArrayDeque<>();
+        private boolean running;
+        private boolean done;
+        private volatile boolean closed;
+        private Throwable error;
+
+        Partition(DocDBServer server, ServerSession session, ScanStage scan, Stage stage,
+                YieldPolicy yieldPolicy) {
+            this.server = server;
+            this.session = session;
+            this.scan = scan;
+            this.stage = stage;
+            this.yieldPolicy = yieldPolicy;
+        }
+
+        synchronized void schedule() {
+            if (running || done || closed || chunks.size() >= MAX_CHUNKS)
+                return;
+            running = true;
+            server.getScanExecutor().execute(this);
+        }
+
+        @Override
+        public void run() {
+            ArrayList<BsonDocument> list = new ArrayList<>();
+            boolean end = false;
+            Throwable t = null;
+            try {
+                while (list.size() < CHUNK_SIZE && !closed) {
+                    BsonDocument document = stage.next();
+                    if (document == null) {
+                        end = true;
+                        break;
+                    }
+                    list.add(document);
+                }
+                stage.pause();
+            } catch (Throwable e) {
+                t = e;
+            }
+            boolean release;
+            synchronized (this) {
+                running = false;
+                release = closed;
+                if (!release && !list.isEmpty())
+                    chunks.add(list);
+                if (t != null)
+                    error = t;
+                if (end || t != null)
+                    done = true;
+            }
+            if (release) {
+                release();
+                return;
+            }
+            yieldPolicy.wakeUp();
+            schedule();
+        }
+
+        // 返回下一批文档，还没读好时返回 null，这个区间已经读完时返回空列表
+        synchronized ArrayList<BsonDocument> take() {
+            if (error != null) {
+                Throwable t = error;
+                error = null;
+                if (t instanceof RuntimeException)
+                    throw (RuntimeException) t;
+                if (t instanceof Error)
+                    throw (Error) t;
+                throw new RuntimeException(t);
+            }
+            ArrayList<BsonDocument> list = chunks.poll();
+            if (list != null)
+                schedule();
+            else if (done)
+                list = new ArrayList<>(0);
+            return list;
+        }
+
+        // 会话和游标不能在两个线程中同时使用，正在读取时由分区的线程读完这一批后释放
+        void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                chunks.clear();
+                if (running)
+                    return;
+            }
+            release();
+        }
+
+        private void release() {
+            try {
+                stage.close();
+                session.commit();
+            } finally {
+                session.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.function.UnaryOperator;
+
+import org.bson.BsonArray;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.lealone.db.session.ServerSession;
+import org.lealone.db.table.Table;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.DocDBServerConnection;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.command.BCStats;
+import org.lealone.docdb.server.command.BsonCommand;
+import org.lealone.docdb.server.index.DocumentIndex;
+import org.lealone.docdb.server.index.DocumentIndex.IndexBounds;
+import org.lealone.docdb.server.query.QueryFilter;
+import org.lealone.docdb.server.query.QueryFilter.FieldFilter;
+
+/**
+ * 把 aggregate 命令的 pipeline 编译成一串 Stage。
+ *
+ * 开头的 $match(包括紧跟在开头的 $sort 后面的 $match)合并成一个条件下推到索引扫描，
+ * 开头的 $sort 跟某个索引的顺序一致时直接按索引顺序扫描，不用再排序，
+ * 后面的 $limit 取够了文档就不再拉取，扫描也就提前结束了。
+ * 需要排序时如果后面跟着 $limit(中间可以有 $skip)，排序时只保留前 skip + limit 个文档。
+ * 大表的全表扫描会按 key 分区并行执行，紧跟着的 $group 也在每个分区中先做部分聚合。
+ *
+ * find 命令的 filter、sort、skip、limit 和 projection 以及 count 命令也按同样的方式编译。
+ */
+public class Pipeline {
+
+    private final DocDBServerConnection conn;
+    private final ServerSession session;
+    private final Table table;
+    private final long memoryLimit;
+    private final boolean allowDiskUse;
+    private final YieldPolicy yieldPolicy;
+
+    private Pipeline(DocDBServerConnection conn, ServerSession session, Table table, boolean allowDiskUse,
+            YieldPolicy yieldPolicy) {
+        this.conn = conn;
+        this.session = session;
+        this.table = table;
+        this.memoryLimit = conn.getServer().getAggregationMemoryLimit();
+        this.allowDiskUse = allowDiskUse;
+        this.yieldPolicy = yieldPolicy;
+    }
+
+    public static Stage compile(DocDBServerConnection conn, ServerSession session, Table table,
+            BsonArray pipeline, boolean allowDiskUse, YieldPolicy yieldPolicy) {
+        return new Pipeline(conn, session, table, allowDiskUse, yieldPolicy).compile(pipeline);
+    }
+
+    /**
+     * sort 和 projection 可以为 null，skip 和 limit 为 0 时表示没有。
+     */
+    public static Stage compileFind(DocDBServerConnection conn, ServerSession session, Table table,
+            QueryFilter filter, SortSpec sort, long skip, long limit, Projection projection,
+            boolean allowDiskUse, YieldPolicy yieldPolicy) {
+        return new Pipeline(conn, session, table, allowDiskUse, yieldPolicy).find(filter, sort, skip, limit,
+                projection, projection == null ? null : projection.getCoveredFields());
+    }
+
+    /**
+     * count 命令只需要数文档个数，条件只用到了二级索引中的字段时只读索引项，不读整条记录。
+     */
+    public static Stage compileCount(DocDBServerConnection conn, ServerSession session, Table table,
+            QueryFilter filter, long skip, long limit, YieldPolicy yieldPolicy) {
+        return new Pipeline(conn, session, table, false, yieldPolicy).find(filter, null, skip, limit, null,
+                new String[0]);
+    }
+
+    // fields 是结果文档需要的顶层字段，为 null 时需要整个文档
+    private Stage find(QueryFilter filter, SortSpec sort, long skip, long limit, Projection projection,
+            String[] fields) {
+        Stage stage = null;
+        boolean projected = false;
+        if (sort != null) {
+            stage = scanSorted(filter, sort);
+            if (stage == null)
+                stage = new SortStage(scan(filter), sort, limit > 0 ? skip + limit : 0, memoryLimit,
+                        allowDiskUse);
+        } else if (limit == 0 || skip + limit >= conn.getServer().getParallelScanMinRows()) {
+            // 没有排序时投影在扫描时就做，并行扫描时在每个分区中做；只取少量文档时不值得并行
+            stage = ParallelScanStage.create(conn, session, table, filter, yieldPolicy,
+                    projection == null ? UnaryOperator.identity() : s -> new ProjectStage(s, projection));
+            projected = stage != null;
+        }
+        if (stage == null) {
+            DocumentIndex index = fields == null ? null
+                    : BsonCommand.getCoveringIndex(table, filter, fields);
+            IndexBounds bounds = BsonCommand.getBestBounds(table, filter);
+            stage = new ScanStage(BsonCommand.find(session, table, bounds), bounds, filter, yieldPolicy,
+                    index, fields);
+        }
+        if (skip > 0)
+            stage = new SkipStage(stage, skip);
+        if (limit > 0)
+            stage = new LimitStage(stage, limit);
+        if (projection != null && !projected)
+            stage = new ProjectStage(stage, projection);
+        return stage;
+    }
+
+    private Stage compile(BsonArray pipeline) {
+        ArrayList<BsonDocument> stages = new ArrayList<>(pipeline.size());
+        for (BsonValue v : pipeline) {
+            if (!v.isDocument() || v.asDocument().size() != 1)
+                throw new DocDBException(40323, "Location40323",
+                        "A pipeline stage specification object must contain exactly one field.");
+            stages.add(v.asDocument());
+        }
+        // $collStats 只能是第一个阶段，不用扫描表
+        if (!stages.isEmpty() && stages.get(0).getFirstKey().equals("$collStats"))
+            return createStages(collStats(getDocument(stages.get(0), "$collStats")), stages, 1);
+        int i = 0;
+        BsonArray matches = new BsonArray();
+        SortSpec sort = null;
+        while (i < stages.size()) {
+            String name = stages.get(i).getFirstKey();
+            if (name.equals("$match")) {
+                matches.add(getMatch(stages.get(i)));
+            } else if (name.equals("$sort") && sort == null) {
+                sort = SortSpec.compile(getDocument(stages.get(i), name));
+            } else {
+                break;
+            }
+            i++;
+        }
+        BsonDocument filterDocument = null;
+        if (matches.size() == 1)
+            filterDocument = matches.get(0).asDocument();
+        else if (matches.size() > 1)
+            filterDocument = new BsonDocument("$and", matches);
+        QueryFilter filter = QueryFilter.compile(filterDocument);
+
+        Stage stage = null;
+        if (sort != null) {
+            stage = scanSorted(filter, sort);
+            if (stage == null)
+                stage = sort(scan(filter), sort, stages, i);
+        } else if (i < stages.size()) {
+            stage = count(filter, stages.get(i));
+            if (stage == null)
+                stage = scanGroup(filter, stages.get(i));
+            if (stage != null)
+                i++;
+        }
+        if (stage == null)
+            stage = scan(filter);
+        return createStages(stage, stages, i);
+    }
+
+    private Stage createStages(Stage stage, ArrayList<BsonDocument> stages, int i) {
+        for (; i < stages.size(); i++) {
+            if (stages.get(i).getFirstKey().equals("$sort"))
+                stage = sort(stage, SortSpec.compile(getDocument(stages.get(i), "$sort")), stages, i + 1);
+            else
+                stage = createStage(stage, stages.get(i));
+        }
+        return stage;
+    }
+
+    // 后面的 $skip 和 $limit 照样执行，这里只是让排序少保留一些文档
+    private Stage sort(Stage input, SortSpec sort, ArrayList<BsonDocument> stages, int next) {
+        long skip = 0;
+        long limit = 0;
+        for (int i = next; i < stages.size(); i++) {
+            String name = stages.get(i).getFirstKey();
+            BsonValue v = stages.get(i).get(name);
+            if (name.equals("$skip")) {
+                skip += getLong(name, v, true);
+            } else {
+                if (name.equals("$limit"))
+                    limit = skip + getLong(name, v, false);
+                break;
+            }
+        }
+        return new SortStage(input, sort, limit, memoryLimit, allowDiskUse);
+    }
+
+    private Stage createStage(Stage input, BsonDocument spec) {
+        String name = spec.getFirstKey();
+        BsonValue v = spec.get(name);
+        switch (name) {
+        case "$match":
+            return new MatchStage(input, QueryFilter.compile(getMatch(spec)));
+        case "$project": {
+            BsonDocument projection = getDocument(spec, name);
+            if (projection.isEmpty())
+                throw failedToParse("$project requires at least one output field");
+            return new ProjectStage(input, Projection.compile(projection));
+        }
+        case "$unset": {
+            BsonDocument projection = new BsonDocument();
+            for (BsonValue field : v.isArray() ? v.asArray() : new BsonArray(List.of(v))) {
+                if (!field.isString())
+                    throw failedToParse("$unset specification must be a string or an array of strings");
+                projection.append(field.asString().getValue(), new BsonInt32(0));
+            }
+            return new ProjectStage(input, Projection.compile(projection));
+        }
+        case "$addFields":
+        case "$set":
+            return new AddFieldsStage(input, getDocument(spec, name));
+        case "$skip":
+            return new SkipStage(input, getLong(name, v, true));
+        case "$limit":
+            return new LimitStage(input, getLong(name, v, false));
+        case "$unwind":
+            return new UnwindStage(input, v);
+        case "$group":
+            return new GroupStage(input, getDocument(spec, name), memoryLimit, allowDiskUse);
+        case "$count": {
+            if (!v.isString() || v.asString().getValue().isEmpty())
+                throw failedToParse("the count field must be a non-empty string");
+            String field = v.asString().getValue();
+            if (field.startsWith("$") || field.indexOf('.') >= 0)
+                throw failedToParse("the count field cannot be a $-prefixed path or contain a '.'");
+            BsonDocument group = new BsonDocument("_id", BsonNull.VALUE);
+            group.append(field, new BsonDocument("$sum", new BsonInt32(1)));
+            input = new GroupStage(input, group, memoryLimit, allowDiskUse);
+            return new ProjectStage(input, Projection.compile(new BsonDocument("_id", new BsonInt32(0))));
+        }
+        case "$collStats":
+            throw new DocDBException(40602, "Location40602",
+                    "$collStats is only valid as the first stage in a pipeline");
+        default:
+            throw new DocDBException(40324, "Location40324",
+                    "Unrecognized pipeline stage name: '" + name + "'");
+        }
+    }
+
+    private Stage scan(QueryFilter filter) {
+        Stage stage = ParallelScanStage.create(conn, session, table, filter, yieldPolicy,
+                UnaryOperator.identity());
+        if (stage == null) {
+            IndexBounds bounds = BsonCommand.getBestBounds(table, filter);
+            stage = new ScanStage(BsonCommand.find(session, table, bounds), bounds, filter, yieldPolicy);
+        }
+        return stage;
+    }
+
+    // 并行扫描时每个分区先做部分聚合，内存限制也按分区数平分
+    private Stage scanGroup(QueryFilter filter, BsonDocument spec) {
+        if (!spec.getFirstKey().equals("$group"))
+            return null;
+        BsonDocument group = getDocument(spec, "$group");
+        long partitionMemoryLimit = memoryLimit / conn.getServer().getScanParallelism();
+        Stage stage = ParallelScanStage.create(conn, session, table, filter, yieldPolicy,
+                s -> new GroupStage(s, group, partitionMemoryLimit, allowDiskUse, GroupStage.PARTIAL));
+        if (stage == null)
+            return null;
+        return new GroupStage(stage, group, memoryLimit, allowDiskUse, GroupStage.MERGE);
+    }
+
+    // 有其他索引能用上更多条件时还是用那个索引，然后再排序
+    private Stage scanSorted(QueryFilter filter, SortSpec sort) {
+        List<FieldFilter> filters = filter.getFieldFilters();
+        IndexBounds sortBounds = null;
+        int bestScore = 0;
+        for (DocumentIndex index : DocumentIndex.getIndexes(table)) {
+            IndexBounds bounds = index.getBounds(filters);
+            int score = bounds.getScore();
+            bestScore = Math.max(bestScore, score);
+            if (bounds.isOrdered() && matches(index, bounds, sort)
+                    && (sortBounds == null || score > sortBounds.getScore()))
+                sortBounds = bounds;
+        }
+        if (sortBounds == null || sortBounds.getScore() < bestScore)
+            return null;
+        // 值是数组的记录不在索引顺序中，单独排好序之后再合并
+        Stage ordered = new ScanStage(sortBounds.findOrdered(session), sortBounds, filter, yieldPolicy);
+        Stage multiKey = new SortStage(
+                new ScanStage(sortBounds.findMultiKey(session), sortBounds, filter, yieldPolicy), sort, 0,
+                memoryLimit, allowDiskUse);
+        return new MergeStage(ordered, multiKey, sort);
+    }
+
+    // 排序字段跟索引列的一段完全一致，而且这一段前面的索引列都是等值条件
+    private static boolean matches(DocumentIndex index, IndexBounds bounds, SortSpec sort) {
+        String[] paths = index.getPaths();
+        String[] sortPaths = sort.getPaths();
+        for (int k = 0; k <= bounds.getEqualityColumnCount(); k++) {
+            if (k + sortPaths.length > paths.length)
+                return false;
+            boolean match = true;
+            for (int j = 0; j < sortPaths.length; j++) {
+                if (!paths[k + j].equals(sortPaths[j]) || index.isDescending(k + j) != sort.isDescending(j)) {
+                    match = false;
+                    break;
+                }
+            }
+            if (match)
+                return true;
+        }
+        return false;
+    }
+
+    // {$group: {_id: 常量, n: {$sum: 常量}}} 只是数文档个数，比如 countDocuments，
+    // 没有条件时直接用表的记录数计算，条件只用到二级索引中的字段时只读索引项
+    private Stage count(QueryFilter filter, BsonDocument spec) {
+        if (!spec.getFirstKey().equals("$group") || !spec.get("$group").isDocument())
+            return null;
+        BsonDocument group = spec.getDocument("$group");
+        BsonValue id = group.get("_id");
+        if (id == null || id.isDocument() || id.isArray()
+                || id.isString() && id.asString().getValue().startsWith("$"))
+            return null;
+        for (Entry<String, BsonValue> e : group.entrySet()) {
+            if (e.getKey().equals("_id"))
+                continue;
+            BsonValue v = e.getValue();
+            if (!v.isDocument() || v.asDocument().size() != 1 || !v.asDocument().containsKey("$sum")
+                    || !Expression.isNumeric(v.asDocument().get("$sum")))
+                return null;
+        }
+        if (filter != QueryFilter.MATCH_ALL) {
+            String[] fields = new String[0];
+            DocumentIndex index = BsonCommand.getCoveringIndex(table, filter, fields);
+            if (index == null)
+                return null;
+            IndexBounds bounds = BsonCommand.getBestBounds(table, filter);
+            Stage stage = new ScanStage(BsonCommand.find(session, table, bounds), bounds, filter, yieldPolicy,
+                    index, fields);
+            return new GroupStage(stage, group, memoryLimit, allowDiskUse);
+        }
+        ArrayList<BsonDocument> documents = new ArrayList<>(1);
+        long rowCount = table.getRowCount(session);
+        if (rowCount > 0) {
+            BsonValue count = toNumber(rowCount);
+            BsonDocument document = new BsonDocument("_id", id);
+            for (Entry<String, BsonValue> e : group.entrySet()) {
+                if (!e.getKey().equals("_id"))
+                    document.append(e.getKey(),
+                            Expression.multiply(e.getValue().asDocument().get("$sum"), count));
+            }
+            documents.add(document);
+        }
+        return new DocumentsStage(documents);
+    }
+
+    // 支持 count、latencyStats 和 storageStats。count 用的是存储层一直维护着的记录数，不用扫描表，
+    // 但是包含了还没提交的写操作，只是一个估计值，驱动的 estimatedDocumentCount 就是用 {$collStats: {count: {}}} 实现的
+    private Stage collStats(BsonDocument spec) {
+        String ns = table.getDatabase().getName() + "." + table.getName();
+        BsonDocument document = new BsonDocument();
+        document.append("ns", new BsonString(ns));
+        document.append("localTime", new BsonDateTime(System.currentTimeMillis()));
+        for (Entry<String, BsonValue> e : spec.entrySet()) {
+            if (!e.getValue().isDocument())
+                throw failedToParse(e.getKey() + " argument must be an object");
+            BsonDocument option = e.getValue().asDocument();
+            switch (e.getKey()) {
+            case "count":
+                document.append("count", toNumber(table.getRowCountApproximation()));
+                break;
+            case "latencyStats": {
+                BsonValue histograms = option.get("histograms");
+                document.append("latencyStats", BCStats.getLatencyStats(conn, ns,
+                        histograms != null && histograms.isBoolean() && histograms.asBoolean().getValue()));
+                break;
+            }
+            case "storageStats":
+                document.append("storageStats",
+                        BCStats.getStorageStats(table, BCStats.getScale(option.get("scale"))));
+                break;
+            default:
+                throw failedToParse("unrecognized option to $collStats: " + e.getKey());
+            }
+        }
+        return new DocumentsStage(List.of(document));
+    }
+
+    private static BsonValue toNumber(long n) {
+        return n == (int) n ? new BsonInt32((int) n) : new BsonInt64(n);
+    }
+
+    private static BsonDocument getMatch(BsonDocument spec) {
+        BsonValue v = spec.get("$match");
+        if (!v.isDocument())
+            throw new DocDBException(15959, "Location15959",
+                    "the match filter must be an expression in an object");
+        return v.asDocument();
+    }
+
+    private static BsonDocument getDocument(BsonDocument spec, String name) {
+        BsonValue v = spec.get(name);
+        if (!v.isDocument())
+            throw failedToParse(name + " specification must be an object");
+        return v.asDocument();
+    }
+
+    private static long getLong(String name, BsonValue v, boolean allowZero) {
+        if (!Expression.isNumeric(v))
+            throw failedToParse("invalid argument to " + name + " stage: " + v);
+        long n = v.asNumber().longValue();
+        if (n < 0 || n == 0 && !allowZero || n != v.asNumber().doubleValue())
+            throw failedToParse("invalid argument to " + name + " stage: " + v);
+        return n;
+    }
+
+    private static DocDBException failedToParse(String message) {
+        return Expression.failedToParse(message);
+    }
+}
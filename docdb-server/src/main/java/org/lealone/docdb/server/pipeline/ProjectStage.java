@@ -0,0 +1,34 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import org.bson.BsonDocument;
+
+public class ProjectStage extends Stage {
+
+    private final Projection projection;
+
+    public ProjectStage(Stage input, Projection projection) {
+        super(input);
+        this.projection = projection;
+    }
+
+    @Override
+    public BsonDocument next() {
+        BsonDocument document = input.next();
+        return document == null || document == YIELD ? document : projection.apply(document);
+    }
+
+    @Override
+    protected String getName() {
+        return "PROJECTION_DEFAULT";
+    }
+
+    @Override
+    protected void appendDetails(BsonDocument plan, boolean executionStats) {
+        plan.append("transformBy", projection.getSpec());
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonArrayCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.io.BsonInput;
+import org.bson.io.ByteBufferBsonInput;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.command.BsonCommand;
+
+/**
+ * $project 和 find 的 projection。
+ *
+ * 包含模式只输出指定的字段(_id 默认输出)和计算出来的新字段，排除模式输出除了指定字段之外的所有字段，
+ * 两种模式不能混用，只有 _id 例外。字段路径编译成一棵树，文档中的字段按原来的顺序输出。
+ *
+ * 从存储中读出的文档是 RawBsonDocument，没有计算字段时直接在 BSON 字节上投影，
+ * 要输出的字段按原始字节复制，其他字段直接跳过，不会被解析出来。
+ */
+public class Projection {
+
+    private static final BsonArrayCodec ARRAY_CODEC = new BsonArrayCodec();
+
+    private final Node root = new Node();
+    private final boolean inclusion;
+    private final BsonDocument spec;
+
+    private Projection(BsonDocument spec) {
+        this.spec = spec;
+        Boolean mode = null; // 除了 _id 以外的字段决定是包含模式还是排除模式
+        for (Entry<String, BsonValue> e : spec.entrySet()) {
+            String path = e.getKey();
+            Boolean m = root.add(path, e.getValue());
+            if (m != null && !path.equals("_id")) {
+                if (mode != null && mode.booleanValue() != m.booleanValue()) {
+                    if (mode)
+                        throw new DocDBException(31254, "Location31254",
+                                "Cannot do exclusion on field " + path + " in inclusion projection");
+                    else
+                        throw new DocDBException(31253, "Location31253",
+                                "Cannot do inclusion on field " + path + " in exclusion projection");
+                }
+                mode = m;
+            }
+        }
+        if (mode == null) // 只有 _id 时由 _id 决定
+            mode = !Boolean.FALSE.equals(root.children.get("_id"));
+        inclusion = mode;
+        if (inclusion && !root.children.containsKey("_id")) {
+            LinkedHashMap<String, Object> children = new LinkedHashMap<>();
+            children.put("_id", Boolean.TRUE);
+            children.putAll(root.children);
+            root.children.clear();
+            root.children.putAll(children);
+        }
+    }
+
+    public static Projection compile(BsonDocument spec) {
+        return new Projection(spec);
+    }
+
+    public BsonDocument getSpec() {
+        return spec;
+    }
+
+    public boolean isInclusion() {
+        return inclusion;
+    }
+
+    /**
+     * 只包含顶层字段而且排除了 _id 时返回这些字段，查询可以只用索引项构造文档，否则返回 null。
+     */
+    public String[] getCoveredFields() {
+        if (!inclusion || root.children.get("_id") != Boolean.FALSE)
+            return null;
+        ArrayList<String> fields = new ArrayList<>(root.children.size());
+        for (Entry<String, Object> e : root.children.entrySet()) {
+            if (e.getKey().equals("_id"))
+                continue;
+            if (e.getValue() != Boolean.TRUE)
+                return null;
+            fields.add(e.getKey());
+        }
+        return fields.toArray(new String[0]);
+    }
+
+    public BsonDocument apply(BsonDocument doc) {
+        if (doc instanceof RawBsonDocument && !root.hasComputedFields())
+            return applyRaw((RawBsonDocument) doc);
+        if (inclusion)
+            return include(root, doc, doc);
+        return exclude(root, doc);
+    }
+
+    private RawBsonDocument applyRaw(RawBsonDocument doc) {
+        ByteBuf buffer = doc.getByteBuffer();
+        BasicOutputBuffer out = new BasicOutputBuffer(Math.min(buffer.remaining(), 1024));
+        try (BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(buffer))) {
+            applyRaw(root, reader, buffer.array(), out);
+        }
+        return new RawBsonDocument(out.getInternalBuffer(), 0, out.getPosition());
+    }
+
+    private void applyRaw(Node node, BsonBinaryReader reader, byte[] bytes, BasicOutputBuffer out) {
+        BsonInput in = reader.getBsonInput();
+        int start = out.getPosition();
+        out.writeInt32(0); // 长度最后再填
+        reader.readStartDocument();
+        while (true) {
+            int elementStart = in.getPosition();
+            BsonType type = reader.readBsonType();
+            if (type == BsonType.END_OF_DOCUMENT)
+                break;
+            String name = reader.readName();
+            Object spec = node.children.get(name);
+            if (spec instanceof Node && type == BsonType.DOCUMENT) {
+                out.writeByte(type.getValue());
+                out.writeCString(name);
+                applyRaw((Node) spec, reader, bytes, out);
+            } else if (spec instanceof Node && type == BsonType.ARRAY) {
+                // 数组中的元素可能被去掉，下标要重新编号，所以解析出来再投影
+                BsonArray array = ARRAY_CODEC.decode(reader, DecoderContext.builder().build());
+                BsonValue v = inclusion ? include((Node) spec, array, null) : exclude((Node) spec, array);
+                byte[] element = BsonCommand.toBytes(new BsonDocument(name, v));
+                out.writeBytes(element, 4, element.length - 5);
+            } else if (inclusion ? spec == Boolean.TRUE : spec == null || spec instanceof Node) {
+                reader.skipValue();
+                out.writeBytes(bytes, elementStart, in.getPosition() - elementStart);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+        out.writeByte(0);
+        out.writeInt32(start, out.getPosition() - start);
+    }
+
+    private static BsonDocument include(Node node, BsonDocument doc, BsonDocument root) {
+        BsonDocument result = new BsonDocument();
+        for (Entry<String, BsonValue> e : doc.entrySet()) {
+            Object spec = node.children.get(e.getKey());
+            if (spec == Boolean.TRUE) {
+                result.append(e.getKey(), e.getValue());
+            } else if (spec instanceof Node) {
+                BsonValue v = include((Node) spec, e.getValue(), root);
+                if (v != null)
+                    result.append(e.getKey(), v);
+            }
+        }
+        addComputedFields(node, result, root);
+        return result;
+    }
+
+    private static BsonValue include(Node node, BsonValue v, BsonDocument root) {
+        if (v.isDocument())
+            return include(node, v.asDocument(), root);
+        if (v.isArray()) {
+            BsonArray array = new BsonArray();
+            for (BsonValue e : v.asArray()) {
+                BsonValue r = include(node, e, root);
+                if (r != null)
+                    array.add(r);
+            }
+            return array;
+        }
+        // 标量不能再取子字段，但是有计算字段时还是要生成一个文档
+        if (node.hasComputedFields()) {
+            BsonDocument result = new BsonDocument();
+            addComputedFields(node, result, root);
+            return result;
+        }
+        return null;
+    }
+
+    private static void addComputedFields(Node node, BsonDocument result, BsonDocument root) {
+        if (!node.hasComputedFields())
+            return;
+        for (Entry<String, Object> e : node.children.entrySet()) {
+            Object spec = e.getValue();
+            if (spec instanceof Expression) {
+                BsonValue v = ((Expression) spec).evaluate(root);
+                if (v != null)
+                    result.put(e.getKey(), v);
+            } else if (spec instanceof Node && !result.containsKey(e.getKey())
+                    && ((Node) spec).hasComputedFields()) {
+                BsonDocument sub = new BsonDocument();
+                addComputedFields((Node) spec, sub, root);
+                result.append(e.getKey(), sub);
+            }
+        }
+    }
+
+    private static BsonDocument exclude(Node node, BsonDocument doc) {
+        BsonDocument result = new BsonDocument();
+        for (Entry<String, BsonValue> e : doc.entrySet()) {
+            Object spec = node.children.get(e.getKey());
+            if (spec == null)
+                result.append(e.getKey(), e.getValue());
+            else if (spec instanceof Node)
+                result.append(e.getKey(), exclude((Node) spec, e.getValue()));
+        }
+        return result;
+    }
+
+    private static BsonValue exclude(Node node, BsonValue v) {
+        if (v.isDocument())
+            return exclude(node, v.asDocument());
+        if (v.isArray()) {
+            BsonArray array = new BsonArray();
+            for (BsonValue e : v.asArray())
+                array.add(exclude(node, e));
+            return array;
+        }
+        return v;
+    }
+
+    // 子节点的值是 Boolean(包含或排除)、Expression(计算字段) 或者下一级的 Node
+    private static class Node {
+
+        final LinkedHashMap<String, Object> children = new LinkedHashMap<>();
+        private Boolean computed;
+
+        // 返回 true 表示包含，false 表示排除
+        Boolean add(String path, BsonValue v) {
+            Node node = this;
+            String[] names = Expression.split(path);
+            for (int i = 0; i < names.length - 1; i++)
+                node = node.getChild(path, names[i]);
+            return node.addField(path, names[names.length - 1], v);
+        }
+
+        private Node getChild(String path, String name) {
+            Object child = children.get(name);
+            if (child == null) {
+                Node node = new Node();
+                children.put(name, node);
+                return node;
+            }
+            if (!(child instanceof Node))
+                throw pathCollision(path);
+            return (Node) child;
+        }
+
+        private Boolean addField(String path, String name, BsonValue v) {
+            if (v.isDocument() && !v.asDocument().isEmpty()
+                    && !v.asDocument().getFirstKey().startsWith("$")) {
+                Node node = getChild(path, name);
+                Boolean mode = null;
+                for (Entry<String, BsonValue> e : v.asDocument().entrySet()) {
+                    Boolean m = node.add(e.getKey(), e.getValue());
+                    if (m != null)
+                        mode = m;
+                }
+                return mode;
+            }
+            if (children.containsKey(name))
+                throw pathCollision(path);
+            if (v.isBoolean() || Expression.isNumeric(v)) {
+                boolean include = Expression.isTrue(v);
+                children.put(name, Boolean.valueOf(include));
+                return include;
+            }
+            children.put(name, Expression.compile(v));
+            return Boolean.TRUE;
+        }
+
+        // 编译完之后才会调用，结果缓存起来
+        boolean hasComputedFields() {
+            if (computed == null) {
+                boolean b = false;
+                for (Object child : children.values()) {
+                    if (child instanceof Expression
+                            || child instanceof Node && ((Node) child).hasComputedFields()) {
+                        b = true;
+                        break;
+                    }
+                }
+                computed = b;
+            }
+            return computed;
+        }
+    }
+
+    private static DocDBException pathCollision(String path) {
+        return new DocDBException(31250, "Location31250", "Path collision at " + path);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.lealone.db.result.Row;
+import org.lealone.docdb.server.YieldPolicy;
+import org.lealone.docdb.server.command.BsonCommand;
+import org.lealone.docdb.server.index.DocumentIndex;
+import org.lealone.docdb.server.index.DocumentIndex.IndexBounds;
+import org.lealone.docdb.server.index.DocumentIndex.IndexCursor;
+import org.lealone.docdb.server.query.QueryFilter;
+
+/**
+ * 流水线的源头，扫描表或索引，返回满足条件的文档。
+ *
+ * 索引扫描区间只是条件的一部分，所以每个文档都还要再用 filter 过滤一次。
+ *
+ * 条件和投影只用到了二级索引中的字段时，先试着只用索引项构造文档，索引键不能准确还原时才读取整条记录。
+ *
+ * 让出调度器时不保留存储层的游标，下次从最后读到的索引项之后重新打开，见 IndexCursor。
+ */
+public class ScanStage extends Stage {
+
+    private final IndexCursor cursor;
+    private final IndexBounds bounds; // 为 null 时是全表扫描
+    private final QueryFilter filter;
+    private final YieldPolicy yieldPolicy;
+    private final DocumentIndex coveringIndex;
+    private final String[] coveredFields; // 投影的字段加上条件用到的字段
+    private long keysExamined;
+    private long docsExamined;
+    private long nReturned;
+
+    public ScanStage(IndexCursor cursor, IndexBounds bounds, QueryFilter filter, YieldPolicy yieldPolicy) {
+        this(cursor, bounds, filter, yieldPolicy, null, null);
+    }
+
+    public ScanStage(IndexCursor cursor, IndexBounds bounds, QueryFilter filter, YieldPolicy yieldPolicy,
+            DocumentIndex coveringIndex, String[] fields) {
+        super(null);
+        this.cursor = cursor;
+        this.bounds = bounds;
+        this.filter = filter;
+        this.yieldPolicy = yieldPolicy;
+        this.coveringIndex = coveringIndex;
+        if (coveringIndex != null) {
+            LinkedHashSet<String> set = new LinkedHashSet<>(Arrays.asList(fields));
+            filter.collectPaths(set);
+            coveredFields = set.toArray(new String[0]);
+        } else {
+            coveredFields = null;
+        }
+    }
+
+    @Override
+    public BsonDocument next() {
+        while (true) {
+            if (yieldPolicy != null && yieldPolicy.shouldYield()) {
+                cursor.pause();
+                return YIELD;
+            }
+            if (!cursor.next())
+                return null;
+            BsonDocument document = null;
+            if (coveringIndex != null)
+                document = coveringIndex.getCoveredDocument(cursor.getSearchRow(), coveredFields);
+            if (bounds != null)
+                keysExamined++;
+            if (document == null) {
+                // 其他事务正在提交时可能读到索引项却还读不到记录，跳过
+                Row row = cursor.get();
+                if (row == null)
+                    continue;
+                document = BsonCommand.toBsonDocument(row);
+                docsExamined++;
+            }
+            if (filter.match(document)) {
+                nReturned++;
+                return document;
+            }
+        }
+    }
+
+    @Override
+    public void pause() {
+        cursor.pause();
+    }
+
+    // 索引扫描时跟 mongodb 一样分成 FETCH 和 IXSCAN 两个阶段，只读索引项时只有 IXSCAN
+    @Override
+    protected String getName() {
+        return bounds == null ? "COLLSCAN" : coveringIndex != null ? "IXSCAN" : "FETCH";
+    }
+
+    @Override
+    public BsonDocument explain(boolean executionStats) {
+        BsonDocument plan = new BsonDocument("stage", new BsonString(getName()));
+        if (bounds == null)
+            plan.append("direction", new BsonString("forward"));
+        else if (coveringIndex != null)
+            bounds.explain(plan);
+        if (executionStats) {
+            plan.append("nReturned", new BsonInt64(nReturned));
+            if (bounds != null && coveringIndex != null)
+                plan.append("keysExamined", new BsonInt64(keysExamined));
+            plan.append("docsExamined", new BsonInt64(docsExamined));
+        }
+        if (bounds != null && coveringIndex == null) {
+            BsonDocument ixscan = new BsonDocument("stage", new BsonString("IXSCAN"));
+            bounds.explain(ixscan);
+            if (executionStats) {
+                ixscan.append("nReturned", new BsonInt64(keysExamined));
+                ixscan.append("keysExamined", new BsonInt64(keysExamined));
+            }
+            plan.append("inputStage", ixscan);
+        }
+        return plan;
+    }
+
+    @Override
+    public long getKeysExamined() {
+        return keysExamined;
+    }
+
+    @Override
+    public long getDocsExamined() {
+        return docsExamined;
+    }
+
+    @Override
+    public String getPlanSummary() {
+        return bounds == null ? "COLLSCAN" : bounds.getPlanSummary();
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+
+public class SkipStage extends Stage {
+
+    private final long skipAmount;
+    private long skip;
+
+    public SkipStage(Stage input, long skip) {
+        super(input);
+        this.skipAmount = skip;
+        this.skip = skip;
+    }
+
+    @Override
+    public BsonDocument next() {
+        for (; skip > 0; skip--) {
+            BsonDocument document = input.next();
+            if (document == null || document == YIELD)
+                return document;
+        }
+        return input.next();
+    }
+
+    @Override
+    protected String getName() {
+        return "SKIP";
+    }
+
+    @Override
+    protected void appendDetails(BsonDocument plan, boolean executionStats) {
+        plan.append("skipAmount", new BsonInt64(skipAmount));
+    }
+}
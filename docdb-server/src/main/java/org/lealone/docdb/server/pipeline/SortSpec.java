@@ -0,0 +1,94 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.Comparator;
+import java.util.Map.Entry;
+
+import org.bson.BsonDocument;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.query.BsonValueComparator;
+
+/**
+ * $sort 和 find 的 sort，按 mongodb 的规则比较两个文档。
+ *
+ * 字段不存在时当成 null，字段值是数组时升序用最小的元素比较，降序用最大的元素比较。
+ */
+public class SortSpec implements Comparator<BsonDocument> {
+
+    private final String[] paths;
+    private final String[][] names;
+    private final boolean[] descending;
+    private final BsonDocument spec;
+
+    private SortSpec(BsonDocument spec) {
+        this.spec = spec;
+        if (spec.isEmpty())
+            throw new DocDBException(15976, "Location15976", "$sort stage must have at least one sort key");
+        int size = spec.size();
+        paths = new String[size];
+        names = new String[size][];
+        descending = new boolean[size];
+        int i = 0;
+        for (Entry<String, BsonValue> e : spec.entrySet()) {
+            BsonValue v = e.getValue();
+            if (!Expression.isNumeric(v)
+                    || v.asNumber().doubleValue() != 1 && v.asNumber().doubleValue() != -1)
+                throw new DocDBException(15975, "Location15975",
+                        "$sort key ordering must be 1 (for ascending) or -1 (for descending)");
+            paths[i] = e.getKey();
+            names[i] = Expression.split(e.getKey());
+            descending[i++] = v.asNumber().doubleValue() < 0;
+        }
+    }
+
+    public static SortSpec compile(BsonDocument spec) {
+        return new SortSpec(spec);
+    }
+
+    public BsonDocument getSpec() {
+        return spec;
+    }
+
+    public String[] getPaths() {
+        return paths;
+    }
+
+    public boolean isDescending(int i) {
+        return descending[i];
+    }
+
+    @Override
+    public int compare(BsonDocument d1, BsonDocument d2) {
+        for (int i = 0; i < names.length; i++) {
+            int c = BsonValueComparator.compare(getSortKey(d1, i), getSortKey(d2, i));
+            if (c != 0)
+                return descending[i] ? -c : c;
+        }
+        return 0;
+    }
+
+    private BsonValue getSortKey(BsonDocument doc, int i) {
+        BsonValue v = Expression.getValue(doc, names[i], 0);
+        if (v == null)
+            return BsonNull.VALUE;
+        if (!v.isArray() || v.asArray().isEmpty())
+            return v;
+        BsonValue key = null;
+        for (BsonValue e : v.asArray()) {
+            if (key == null) {
+                key = e;
+            } else {
+                int c = BsonValueComparator.compare(e, key);
+                if (descending[i] ? c > 0 : c < 0)
+                    key = e;
+            }
+        }
+        return key;
+    }
+}
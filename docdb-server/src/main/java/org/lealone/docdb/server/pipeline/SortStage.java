@@ -0,0 +1,258 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.lealone.docdb.server.DocDBException;
+
+/**
+ * 第一次调用 next 时读取上一个阶段的所有文档，排好序后再逐个返回，顺序相同的文档按读入的先后返回。
+ *
+ * 后面跟着 $limit 时只需要前 limit 个文档，这时用一个最多 limit 个文档的堆保留目前最小的那些文档。
+ * 占用的内存超过 memoryLimit 时，把内存中的文档排好序写到一个临时文件中，最后对所有临时文件和内存中剩下的文档做多路归并。
+ */
+public class SortStage extends Stage {
+
+    private final SortSpec sortSpec;
+    private final long limit; // 为 0 时返回所有文档
+    private final long memoryLimit;
+    private final boolean allowDiskUse;
+
+    private ArrayList<BsonDocument> documents = new ArrayList<>();
+    private PriorityQueue<Entry> heap; // 堆顶是目前保留的文档中最大的那个
+    private long count; // 放进堆中的文档个数，用来区分顺序相同的文档
+    private long memory;
+    private final ArrayList<SpillFile> spillFiles = new ArrayList<>();
+
+    // 没写临时文件时直接遍历 documents，否则做多路归并
+    private boolean sorted;
+    private int index;
+    private PriorityQueue<Run> runs;
+    private long returned;
+
+    public SortStage(Stage input, SortSpec sortSpec, long limit, long memoryLimit, boolean allowDiskUse) {
+        super(input);
+        this.sortSpec = sortSpec;
+        this.limit = limit;
+        this.memoryLimit = memoryLimit;
+        this.allowDiskUse = allowDiskUse;
+        if (limit > 0)
+            heap = new PriorityQueue<>(Collections.reverseOrder());
+    }
+
+    public long getSpillCount() {
+        return spillFiles.size();
+    }
+
+    @Override
+    public BsonDocument next() {
+        if (!sorted) {
+            BsonDocument document;
+            while ((document = input.next()) != null) {
+                if (document == YIELD)
+                    return YIELD;
+                add(document);
+            }
+            sort();
+            sorted = true;
+        }
+        if (limit > 0 && returned >= limit)
+            return null;
+        BsonDocument document;
+        if (runs == null) {
+            if (index >= documents.size())
+                return null;
+            document = documents.get(index);
+            documents.set(index++, null);
+        } else {
+            Run run = runs.poll();
+            if (run == null)
+                return null;
+            document = run.document;
+            if (run.advance())
+                runs.add(run);
+        }
+        returned++;
+        return document;
+    }
+
+    private void add(BsonDocument document) {
+        if (heap != null) {
+            Entry e = new Entry(document, count++);
+            if (heap.size() < limit) {
+                heap.add(e);
+            } else if (e.compareTo(heap.peek()) < 0) {
+                memory -= Accumulator.getMemory(heap.poll().document);
+                heap.add(e);
+            } else {
+                return;
+            }
+        } else {
+            documents.add(document);
+        }
+        memory += Accumulator.getMemory(document);
+        if (memory > memoryLimit)
+            spill();
+    }
+
+    private void spill() {
+        if (!allowDiskUse)
+            throw new DocDBException(292, "QueryExceededMemoryLimitNoDiskUseAllowed",
+                    "Sort exceeded memory limit of " + memoryLimit
+                            + " bytes, but did not opt in to external sorting.");
+        // limit 太大时堆也放不下，换成写临时文件，最后还是只返回前 limit 个文档
+        if (heap != null) {
+            documents = drain(heap);
+            heap = null;
+        }
+        documents.sort(sortSpec);
+        SpillFile file = SpillFile.create("docdb_sort");
+        spillFiles.add(file);
+        for (BsonDocument document : documents)
+            file.write(document);
+        file.finishWrite();
+        documents.clear();
+        memory = 0;
+    }
+
+    private void sort() {
+        if (heap != null) {
+            documents = drain(heap);
+            heap = null;
+        }
+        documents.sort(sortSpec); // 是稳定排序
+        if (spillFiles.isEmpty())
+            return;
+        runs = new PriorityQueue<>();
+        for (int i = 0; i < spillFiles.size(); i++)
+            addRun(new FileRun(i, spillFiles.get(i)));
+        addRun(new MemoryRun(spillFiles.size(), documents));
+        documents = null;
+    }
+
+    // 按读入的先后取出堆中的所有文档
+    private static ArrayList<BsonDocument> drain(PriorityQueue<Entry> heap) {
+        ArrayList<Entry> entries = new ArrayList<>(heap);
+        entries.sort(Comparator.comparingLong(e -> e.seq));
+        ArrayList<BsonDocument> list = new ArrayList<>(entries.size());
+        for (Entry e : entries)
+            list.add(e.document);
+        return list;
+    }
+
+    private void addRun(Run run) {
+        if (run.advance())
+            runs.add(run);
+    }
+
+    @Override
+    protected String getName() {
+        return "SORT";
+    }
+
+    @Override
+    protected void appendDetails(BsonDocument plan, boolean executionStats) {
+        plan.append("sortPattern", sortSpec.getSpec());
+        plan.append("memLimit", new BsonInt64(memoryLimit));
+        if (limit > 0)
+            plan.append("limitAmount", new BsonInt64(limit));
+        if (executionStats) {
+            plan.append("nReturned", new BsonInt64(returned));
+            plan.append("usedDisk", BsonBoolean.valueOf(!spillFiles.isEmpty()));
+            plan.append("spills", new BsonInt64(spillFiles.size()));
+        }
+    }
+
+    @Override
+    public void close() {
+        for (SpillFile file : spillFiles)
+            file.close();
+        spillFiles.clear();
+        documents = null;
+        heap = null;
+        runs = null;
+        super.close();
+    }
+
+    private class Entry implements Comparable<Entry> {
+
+        final BsonDocument document;
+        final long seq;
+
+        Entry(BsonDocument document, long seq) {
+            this.document = document;
+            this.seq = seq;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int c = sortSpec.compare(document, o.document);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    // 排好序的一组文档，index 越小的越早读入
+    private abstract class Run implements Comparable<Run> {
+
+        final int index;
+        BsonDocument document;
+
+        Run(int index) {
+            this.index = index;
+        }
+
+        abstract boolean advance();
+
+        @Override
+        public int compareTo(Run o) {
+            int c = sortSpec.compare(document, o.document);
+            return c != 0 ? c : Integer.compare(index, o.index);
+        }
+    }
+
+    private class MemoryRun extends Run {
+
+        private final ArrayList<BsonDocument> documents;
+        private int i;
+
+        MemoryRun(int index, ArrayList<BsonDocument> documents) {
+            super(index);
+            this.documents = documents;
+        }
+
+        @Override
+        boolean advance() {
+            if (i >= documents.size())
+                return false;
+            document = documents.get(i);
+            documents.set(i++, null);
+            return true;
+        }
+    }
+
+    private class FileRun extends Run {
+
+        private final SpillFile file;
+
+        FileRun(int index, SpillFile file) {
+            super(index);
+            this.file = file;
+        }
+
+        @Override
+        boolean advance() {
+            document = file.read();
+            return document != null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.lealone.common.exceptions.DbException;
+import org.lealone.docdb.server.command.BsonCommand;
+import org.lealone.storage.fs.FileUtils;
+
+/**
+ * $group 和 $sort 超过内存限制时写的临时文件，先依次写入一批文档，然后再按写入的顺序读出来。
+ */
+class SpillFile {
+
+    private final String fileName;
+    private OutputStream out;
+    private DataInputStream in;
+
+    private SpillFile(String fileName) {
+        this.fileName = fileName;
+    }
+
+    static SpillFile create(String prefix) {
+        try {
+            return new SpillFile(FileUtils.createTempFile(prefix, ".tmp", true, true));
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, prefix);
+        }
+    }
+
+    void write(BsonDocument document) {
+        try {
+            if (out == null)
+                out = new BufferedOutputStream(FileUtils.newOutputStream(fileName, false));
+            out.write(BsonCommand.toBytes(document));
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, fileName);
+        }
+    }
+
+    // 写完之后才能读
+    void finishWrite() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw DbException.convertIOException(e, fileName);
+            } finally {
+                out = null;
+            }
+        }
+    }
+
+    // 读完了返回 null
+    BsonDocument read() {
+        try {
+            if (in == null)
+                in = new DataInputStream(new BufferedInputStream(FileUtils.newInputStream(fileName)));
+            byte[] bytes;
+            try {
+                int size = Integer.reverseBytes(in.readInt()); // BSON 的长度是小端的
+                bytes = new byte[size];
+                bytes[0] = (byte) size;
+                bytes[1] = (byte) (size >>> 8);
+                bytes[2] = (byte) (size >>> 16);
+                bytes[3] = (byte) (size >>> 24);
+                in.readFully(bytes, 4, size - 4);
+            } catch (EOFException e) {
+                return null;
+            }
+            return new RawBsonDocument(bytes);
+        } catch (IOException e) {
+            throw DbException.convertIOException(e, fileName);
+        }
+    }
+
+    // 关闭之后删除文件
+    void close() {
+        try {
+            if (out != null)
+                out.close();
+            if (in != null)
+                in.close();
+        } catch (IOException e) {
+            // 忽略
+        }
+        out = null;
+        in = null;
+        FileUtils.tryDelete(fileName);
+    }
+}
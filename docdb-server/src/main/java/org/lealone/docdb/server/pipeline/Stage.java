@@ -0,0 +1,83 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+
+/**
+ * 流水线中的一个阶段，每个阶段都是一个文档迭代器，从上一个阶段拉取文档，处理后再交给下一个阶段。
+ *
+ * find 命令只有一个 ScanStage，aggregate 命令按 pipeline 依次串起多个阶段。
+ */
+public abstract class Stage {
+
+    protected final Stage input;
+
+    protected Stage(Stage input) {
+        this.input = input;
+    }
+
+    /**
+     * 扫描的行数或者时间超过了 YieldPolicy 的限制时 next 返回这个对象(按引用比较)，
+     * 每个阶段都要原样返回给下一个阶段，并保存好自己的状态，等调度器下次再调用 next 时继续。
+     */
+    public static final BsonDocument YIELD = new BsonDocument();
+
+    /**
+     * 返回下一个文档，没有了就返回 null，需要让出调度器时返回 YIELD。
+     */
+    public abstract BsonDocument next();
+
+    /**
+     * explain 命令中显示的阶段名，尽量跟 mongodb 的一样，比如 COLLSCAN、IXSCAN、SORT。
+     */
+    protected abstract String getName();
+
+    /**
+     * 返回这个阶段的执行计划，输入阶段放在 inputStage 中，executionStats 为 true 时还包含执行统计。
+     */
+    public BsonDocument explain(boolean executionStats) {
+        BsonDocument plan = new BsonDocument("stage", new BsonString(getName()));
+        appendDetails(plan, executionStats);
+        if (input != null)
+            plan.append("inputStage", input.explain(executionStats));
+        return plan;
+    }
+
+    // 子类在这里加上自己的参数和执行统计
+    protected void appendDetails(BsonDocument plan, boolean executionStats) {
+    }
+
+    // 执行统计只有扫描阶段自己计数，其他阶段返回输入阶段的
+    public long getKeysExamined() {
+        return input == null ? 0 : input.getKeysExamined();
+    }
+
+    public long getDocsExamined() {
+        return input == null ? 0 : input.getDocsExamined();
+    }
+
+    /**
+     * 慢查询日志中用的一行摘要，比如 COLLSCAN 或者 IXSCAN { a: 1 }。
+     */
+    public String getPlanSummary() {
+        return input == null ? getName() : input.getPlanSummary();
+    }
+
+    /**
+     * 让出调度器或者一批文档读完时调用，扫描阶段释放存储层的游标，下次调用 next 时再重新定位。
+     */
+    public void pause() {
+        if (input != null)
+            input.pause();
+    }
+
+    public void close() {
+        if (input != null)
+            input.close();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.pipeline;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.lealone.docdb.server.DocDBException;
+
+/**
+ * 把数组字段展开，数组中的每个元素输出一个文档。
+ */
+public class UnwindStage extends Stage {
+
+    private final String[] names;
+    private final String[] indexNames; // includeArrayIndex
+    private final boolean preserveNullAndEmptyArrays;
+
+    private BsonDocument current;
+    private BsonArray array;
+    private int index;
+
+    public UnwindStage(Stage input, BsonValue spec) {
+        super(input);
+        String path;
+        String indexPath = null;
+        boolean preserve = false;
+        if (spec.isString()) {
+            path = spec.asString().getValue();
+        } else if (spec.isDocument()) {
+            BsonDocument doc = spec.asDocument();
+            BsonValue v = doc.get("path");
+            if (v == null || !v.isString())
+                throw new DocDBException(28812, "Location28812", "No path specified to $unwind stage");
+            path = v.asString().getValue();
+            v = doc.get("includeArrayIndex");
+            if (v != null) {
+                if (!v.isString() || v.asString().getValue().startsWith("$"))
+                    throw new DocDBException(28822, "Location28822",
+                            "includeArrayIndex option to $unwind stage should not be prefixed with a '$'");
+                indexPath = v.asString().getValue();
+            }
+            v = doc.get("preserveNullAndEmptyArrays");
+            if (v != null) {
+                if (!v.isBoolean())
+                    throw new DocDBException(28809, "Location28809",
+                            "expected a boolean for the preserveNullAndEmptyArrays option to $unwind stage");
+                preserve = v.asBoolean().getValue();
+            }
+        } else {
+            throw new DocDBException(15981, "Location15981",
+                    "expected either a string or an object as specification for $unwind stage");
+        }
+        if (!path.startsWith("$"))
+            throw new DocDBException(28818, "Location28818",
+                    "path option to $unwind stage should be prefixed with a '$': " + path);
+        names = Expression.split(path.substring(1));
+        indexNames = indexPath == null ? null : Expression.split(indexPath);
+        preserveNullAndEmptyArrays = preserve;
+    }
+
+    @Override
+    public BsonDocument next() {
+        while (true) {
+            if (array != null) {
+                if (index < array.size()) {
+                    BsonDocument result = AddFieldsStage.copy(current);
+                    AddFieldsStage.set(result, names, array.get(index));
+                    if (indexNames != null)
+                        AddFieldsStage.set(result, indexNames, new BsonInt64(index));
+                    index++;
+                    return result;
+                }
+                array = null;
+            }
+            BsonDocument document = input.next();
+            if (document == null || document == YIELD)
+                return document;
+            BsonValue v = Expression.getValue(document, names, 0);
+            if (v != null && v.isArray() && !v.asArray().isEmpty()) {
+                current = document;
+                array = v.asArray();
+                index = 0;
+                continue;
+            }
+            if (v != null && !v.isNull() && !v.isArray()) // 不是数组的值当成只有一个元素的数组
+                return withNullIndex(document);
+            if (preserveNullAndEmptyArrays) {
+                if (v != null && v.isArray()) {
+                    document = AddFieldsStage.copy(document);
+                    AddFieldsStage.remove(document, names);
+                }
+                return withNullIndex(document);
+            }
+        }
+    }
+
+    @Override
+    protected String getName() {
+        return "UNWIND";
+    }
+
+    // 没有展开数组时 includeArrayIndex 字段的值是 null
+    private BsonDocument withNullIndex(BsonDocument document) {
+        if (indexNames == null)
+            return document;
+        BsonDocument result = AddFieldsStage.copy(document);
+        AddFieldsStage.set(result, indexNames, BsonNull.VALUE);
+        return result;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.query;
+
+import java.math.BigDecimal;
+
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+import org.lealone.docdb.server.index.IndexKeyEncoder;
+
+/**
+ * 按 mongodb 的规则比较两个 BsonValue，结果跟 IndexKeyEncoder 编码后的顺序一致。
+ */
+public class BsonValueComparator {
+
+    private BsonValueComparator() {
+    }
+
+    public static int getRank(BsonValue v) {
+        return IndexKeyEncoder.getRank(v.getBsonType());
+    }
+
+    public static boolean equals(BsonValue a, BsonValue b) {
+        return compare(a, b) == 0;
+    }
+
+    public static int compare(BsonValue a, BsonValue b) {
+        int r1 = getRank(a);
+        int r2 = getRank(b);
+        if (r1 != r2)
+            return Integer.compare(r1, r2);
+        switch (r1) {
+        case IndexKeyEncoder.NULL:
+        case IndexKeyEncoder.MIN_KEY:
+        case IndexKeyEncoder.MAX_KEY:
+            return 0;
+        case IndexKeyEncoder.NUMBER:
+            return compareNumbers(a, b);
+        case IndexKeyEncoder.STRING:
+            return compareStrings(getString(a), getString(b));
+        case IndexKeyEncoder.BOOLEAN:
+            return Boolean.compare(a.asBoolean().getValue(), b.asBoolean().getValue());
+        case IndexKeyEncoder.DATE_TIME:
+            return Long.compare(a.asDateTime().getValue(), b.asDateTime().getValue());
+        case IndexKeyEncoder.OBJECT_ID:
+            return a.asObjectId().getValue().compareTo(b.asObjectId().getValue());
+        default:
+            return compareBytes(IndexKeyEncoder.encode(a).getBytesNoCopy(),
+                    IndexKeyEncoder.encode(b).getBytesNoCopy());
+        }
+    }
+
+    private static String getString(BsonValue v) {
+        return v.isSymbol() ? v.asSymbol().getSymbol() : v.asString().getValue();
+    }
+
+    // 按 code point 比较，跟 UTF-8 编码后的字节顺序一样
+    private static int compareStrings(String s1, String s2) {
+        int len1 = s1.length();
+        int len2 = s2.length();
+        int i = 0, j = 0;
+        while (i < len1 && j < len2) {
+            int c1 = s1.codePointAt(i);
+            int c2 = s2.codePointAt(j);
+            if (c1 != c2)
+                return Integer.compare(c1, c2);
+            i += Character.charCount(c1);
+            j += Character.charCount(c2);
+        }
+        return Integer.compare(len1 - i, len2 - j);
+    }
+
+    // 编码时每个字节的最高位翻转过，所以按有符号字节比较
+    private static int compareBytes(byte[] b1, byte[] b2) {
+        int len = Math.min(b1.length, b2.length);
+        for (int i = 0; i < len; i++) {
+            if (b1[i] != b2[i])
+                return Byte.compare(b1[i], b2[i]);
+        }
+        return Integer.compare(b1.length, b2.length);
+    }
+
+    private static boolean isIntegral(BsonType type) {
+        return type == BsonType.INT32 || type == BsonType.INT64;
+    }
+
+    private static int compareNumbers(BsonValue a, BsonValue b) {
+        BsonType t1 = a.getBsonType();
+        BsonType t2 = b.getBsonType();
+        if (isIntegral(t1) && isIntegral(t2))
+            return Long.compare(a.asNumber().longValue(), b.asNumber().longValue());
+        if (t1 == BsonType.DECIMAL128 || t2 == BsonType.DECIMAL128)
+            return compareDecimals(a, b);
+        if (t1 == BsonType.INT64)
+            return compareLongDouble(a.asInt64().getValue(), b.asNumber().doubleValue());
+        if (t2 == BsonType.INT64)
+            return -compareLongDouble(b.asInt64().getValue(), a.asNumber().doubleValue());
+        return compareDoubles(a.asNumber().doubleValue(), b.asNumber().doubleValue());
+    }
+
+    // NaN 比所有数值都小，-0.0 和 0.0 相等
+    private static int compareDoubles(double d1, double d2) {
+        if (Double.isNaN(d1))
+            return Double.isNaN(d2) ? 0 : -1;
+        if (Double.isNaN(d2))
+            return 1;
+        return d1 < d2 ? -1 : (d1 > d2 ? 1 : 0);
+    }
+
+    // 超过 2^53 的 long 转成 double 会丢精度
+    private static int compareLongDouble(long l, double d) {
+        if (Double.isNaN(d))
+            return 1;
+        int c = compareDoubles(l, d);
+        if (c != 0)
+            return c;
+        if (d >= 0x1p63)
+            return -1;
+        return Long.compare(l, (long) d);
+    }
+
+    // NaN 排最前面，其次是负无穷，最后是正无穷，中间的值转成 BigDecimal 比较
+    private static int compareDecimals(BsonValue a, BsonValue b) {
+        int c = Integer.compare(getDecimalClass(a), getDecimalClass(b));
+        if (c != 0 || getDecimalClass(a) != 2)
+            return c;
+        return toBigDecimal(a).compareTo(toBigDecimal(b));
+    }
+
+    private static int getDecimalClass(BsonValue v) {
+        switch (v.getBsonType()) {
+        case DECIMAL128: {
+            Decimal128 d = v.asDecimal128().getValue();
+            if (d.isNaN())
+                return 0;
+            if (d.isInfinite())
+                return d.isNegative() ? 1 : 3;
+            return 2;
+        }
+        case DOUBLE: {
+            double d = v.asDouble().getValue();
+            if (Double.isNaN(d))
+                return 0;
+            if (Double.isInfinite(d))
+                return d < 0 ? 1 : 3;
+            return 2;
+        }
+        default:
+            return 2;
+        }
+    }
+
+    private static BigDecimal toBigDecimal(BsonValue v) {
+        switch (v.getBsonType()) {
+        case DECIMAL128: {
+            try {
+                return v.asDecimal128().getValue().bigDecimalValue();
+            } catch (ArithmeticException e) {
+                return BigDecimal.ZERO; // -0 调用 bigDecimalValue 会抛异常
+            }
+        }
+        case DOUBLE:
+            return new BigDecimal(v.asDouble().getValue());
+        default:
+            return BigDecimal.valueOf(v.asNumber().longValue());
+        }
+    }
+}
@@ -0,0 +1,727 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.query;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.index.IndexKeyEncoder;
+
+/**
+ * 把 mongodb 的查询条件编译成一棵谓词树，之后每个文档只需要调用 match。
+ *
+ * 顶层(包括 $and 中)的字段条件可以通过 collectFieldFilters 取出来，用于选择索引和计算扫描区间。
+ */
+public abstract class QueryFilter {
+
+    public static final QueryFilter MATCH_ALL = new QueryFilter() {
+        @Override
+        public boolean match(BsonDocument doc) {
+            return true;
+        }
+    };
+
+    public abstract boolean match(BsonDocument doc);
+
+    public void collectFieldFilters(List<FieldFilter> list) {
+    }
+
+    public List<FieldFilter> getFieldFilters() {
+        ArrayList<FieldFilter> list = new ArrayList<>();
+        collectFieldFilters(list);
+        return list;
+    }
+
+    // 收集所有条件用到的字段路径，跟 collectFieldFilters 不同，$or 和 $not 中的也要收集
+    public void collectPaths(Set<String> paths) {
+    }
+
+    public static QueryFilter compile(BsonDocument filter) {
+        if (filter == null || filter.isEmpty())
+            return MATCH_ALL;
+        return parse(filter);
+    }
+
+    private static QueryFilter parse(BsonDocument filter) {
+        ArrayList<QueryFilter> list = new ArrayList<>();
+        for (Entry<String, BsonValue> e : filter.entrySet()) {
+            String key = e.getKey();
+            BsonValue v = e.getValue();
+            if (key.startsWith("$")) {
+                switch (key) {
+                case "$and":
+                    list.add(new AndFilter(parseArray(key, v)));
+                    break;
+                case "$or":
+                    list.add(new OrFilter(parseArray(key, v)));
+                    break;
+                case "$nor":
+                    list.add(new NotFilter(new OrFilter(parseArray(key, v))));
+                    break;
+                case "$comment":
+                    break;
+                default:
+                    throw DocDBException.badValue("unknown top level operator: " + key);
+                }
+            } else {
+                parseField(key, v, list);
+            }
+        }
+        return toFilter(list);
+    }
+
+    private static QueryFilter toFilter(List<QueryFilter> list) {
+        if (list.isEmpty())
+            return MATCH_ALL;
+        if (list.size() == 1)
+            return list.get(0);
+        return new AndFilter(list.toArray(new QueryFilter[0]));
+    }
+
+    private static QueryFilter[] parseArray(String op, BsonValue v) {
+        if (!v.isArray() || v.asArray().isEmpty())
+            throw DocDBException.badValue(op + " must be a nonempty array");
+        BsonArray array = v.asArray();
+        QueryFilter[] filters = new QueryFilter[array.size()];
+        for (int i = 0; i < filters.length; i++) {
+            BsonValue e = array.get(i);
+            if (!e.isDocument())
+                throw DocDBException.badValue(op + " argument's entries must be objects");
+            filters[i] = parse(e.asDocument());
+        }
+        return filters;
+    }
+
+    private static boolean isOperatorDocument(BsonValue v) {
+        return v.isDocument() && !v.asDocument().isEmpty()
+                && v.asDocument().getFirstKey().startsWith("$");
+    }
+
+    private static void parseField(String path, BsonValue v, List<QueryFilter> list) {
+        if (isOperatorDocument(v))
+            parseOperators(path, v.asDocument(), list);
+        else if (v.isRegularExpression())
+            list.add(new FieldFilter(path, FieldFilter.REGEX, v));
+        else
+            list.add(new FieldFilter(path, FieldFilter.EQ, v));
+    }
+
+    private static void parseOperators(String path, BsonDocument doc, List<QueryFilter> list) {
+        for (Entry<String, BsonValue> e : doc.entrySet()) {
+            String op = e.getKey();
+            BsonValue v = e.getValue();
+            switch (op) {
+            case "$eq":
+                list.add(new FieldFilter(path, FieldFilter.EQ, v));
+                break;
+            case "$ne":
+                list.add(new NotFilter(new FieldFilter(path, FieldFilter.EQ, v)));
+                break;
+            case "$gt":
+                list.add(new FieldFilter(path, FieldFilter.GT, v));
+                break;
+            case "$gte":
+                list.add(new FieldFilter(path, FieldFilter.GTE, v));
+                break;
+            case "$lt":
+                list.add(new FieldFilter(path, FieldFilter.LT, v));
+                break;
+            case "$lte":
+                list.add(new FieldFilter(path, FieldFilter.LTE, v));
+                break;
+            case "$in":
+                checkArray(op, v);
+                list.add(new FieldFilter(path, FieldFilter.IN, v));
+                break;
+            case "$nin":
+                checkArray(op, v);
+                list.add(new NotFilter(new FieldFilter(path, FieldFilter.IN, v)));
+                break;
+            case "$all":
+                checkArray(op, v);
+                list.add(new FieldFilter(path, FieldFilter.ALL, v));
+                break;
+            case "$exists":
+                list.add(new FieldFilter(path, FieldFilter.EXISTS, v));
+                break;
+            case "$size":
+                if (!v.isNumber() || v.asNumber().doubleValue() < 0
+                        || v.asNumber().doubleValue() != v.asNumber().intValue())
+                    throw DocDBException.badValue("$size must be a non-negative integer");
+                list.add(new FieldFilter(path, FieldFilter.SIZE, v));
+                break;
+            case "$type":
+                list.add(new FieldFilter(path, FieldFilter.TYPE, v));
+                break;
+            case "$mod":
+                list.add(new FieldFilter(path, FieldFilter.MOD, v));
+                break;
+            case "$regex":
+                list.add(new FieldFilter(path, FieldFilter.REGEX, toRegex(v, doc.get("$options"))));
+                break;
+            case "$options":
+                if (!doc.containsKey("$regex"))
+                    throw DocDBException.badValue("$options needs a $regex");
+                break;
+            case "$elemMatch":
+                if (!v.isDocument())
+                    throw DocDBException.badValue("$elemMatch needs an Object");
+                list.add(new FieldFilter(path, FieldFilter.ELEM_MATCH, v));
+                break;
+            case "$not": {
+                ArrayList<QueryFilter> sub = new ArrayList<>();
+                if (v.isRegularExpression())
+                    sub.add(new FieldFilter(path, FieldFilter.REGEX, v));
+                else if (isOperatorDocument(v))
+                    parseOperators(path, v.asDocument(), sub);
+                else
+                    throw DocDBException.badValue("$not needs a regex or a document");
+                list.add(new NotFilter(toFilter(sub)));
+                break;
+            }
+            case "$comment":
+                break;
+            default:
+                throw DocDBException.badValue("unknown operator: " + op);
+            }
+        }
+    }
+
+    private static void checkArray(String op, BsonValue v) {
+        if (!v.isArray())
+            throw DocDBException.badValue(op + " needs an array");
+    }
+
+    private static BsonRegularExpression toRegex(BsonValue v, BsonValue options) {
+        String o = options != null && options.isString() ? options.asString().getValue() : null;
+        if (v.isRegularExpression()) {
+            BsonRegularExpression regex = v.asRegularExpression();
+            return o == null ? regex : new BsonRegularExpression(regex.getPattern(), o);
+        }
+        if (!v.isString())
+            throw DocDBException.badValue("$regex has to be a string");
+        return new BsonRegularExpression(v.asString().getValue(), o);
+    }
+
+    private static boolean isTrue(BsonValue v) {
+        if (v.isBoolean())
+            return v.asBoolean().getValue();
+        if (v.isNumber())
+            return v.asNumber().doubleValue() != 0;
+        return !v.isNull();
+    }
+
+    /**
+     * 按字段路径收集所有的值，路径中间遇到数组时会展开数组中的每个文档(mongodb 的语义)。
+     */
+    public static void collectValues(BsonValue v, String[] names, int i, List<BsonValue> values) {
+        if (i == names.length) {
+            values.add(v);
+            return;
+        }
+        if (v.isDocument()) {
+            BsonValue child = v.asDocument().get(names[i]);
+            if (child != null)
+                collectValues(child, names, i + 1, values);
+        } else if (v.isArray()) {
+            BsonArray array = v.asArray();
+            int index = parseArrayIndex(names[i]);
+            if (index >= 0 && index < array.size())
+                collectValues(array.get(index), names, i + 1, values);
+            for (BsonValue e : array) {
+                if (e.isDocument())
+                    collectValues(e, names, i, values);
+            }
+        }
+    }
+
+    private static int parseArrayIndex(String name) {
+        int len = name.length();
+        if (len == 0 || len > 9)
+            return -1;
+        for (int i = 0; i < len; i++) {
+            if (!Character.isDigit(name.charAt(i)))
+                return -1;
+        }
+        return Integer.parseInt(name);
+    }
+
+    public static class AndFilter extends QueryFilter {
+
+        private final QueryFilter[] filters;
+
+        public AndFilter(QueryFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean match(BsonDocument doc) {
+            for (QueryFilter f : filters) {
+                if (!f.match(doc))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void collectFieldFilters(List<FieldFilter> list) {
+            for (QueryFilter f : filters)
+                f.collectFieldFilters(list);
+        }
+
+        @Override
+        public void collectPaths(Set<String> paths) {
+            for (QueryFilter f : filters)
+                f.collectPaths(paths);
+        }
+    }
+
+    public static class OrFilter extends QueryFilter {
+
+        private final QueryFilter[] filters;
+
+        public OrFilter(QueryFilter[] filters) {
+            this.filters = filters;
+        }
+
+        @Override
+        public boolean match(BsonDocument doc) {
+            for (QueryFilter f : filters) {
+                if (f.match(doc))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void collectFieldFilters(List<FieldFilter> list) {
+            // 只有一个分支时等价于 $and
+            if (filters.length == 1)
+                filters[0].collectFieldFilters(list);
+        }
+
+        @Override
+        public void collectPaths(Set<String> paths) {
+            for (QueryFilter f : filters)
+                f.collectPaths(paths);
+        }
+    }
+
+    public static class NotFilter extends QueryFilter {
+
+        private final QueryFilter filter;
+
+        public NotFilter(QueryFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean match(BsonDocument doc) {
+            return !filter.match(doc);
+        }
+
+        @Override
+        public void collectPaths(Set<String> paths) {
+            filter.collectPaths(paths);
+        }
+    }
+
+    public static class FieldFilter extends QueryFilter {
+
+        public static final int EQ = 0;
+        public static final int GT = 1;
+        public static final int GTE = 2;
+        public static final int LT = 3;
+        public static final int LTE = 4;
+        public static final int IN = 5;
+        public static final int ALL = 6;
+        public static final int EXISTS = 7;
+        public static final int SIZE = 8;
+        public static final int TYPE = 9;
+        public static final int MOD = 10;
+        public static final int REGEX = 11;
+        public static final int ELEM_MATCH = 12;
+
+        private static final String ELEM_PATH = "$";
+
+        private final String path;
+        private final String[] names;
+        private final int op;
+        private final BsonValue value;
+
+        private Pattern pattern;
+        private Pattern[] patterns; // $in 和 $all 中的正则表达式
+        private HashSet<Integer> types;
+        private long divisor, remainder;
+        private boolean exists;
+        private int size;
+        private QueryFilter elemFilter; // $elemMatch 的条件是文档时用
+        private QueryFilter elemValueFilter; // $elemMatch 的条件是 {$gt: ...} 之类时用
+
+        public FieldFilter(String path, int op, BsonValue value) {
+            this.path = path;
+            this.names = path.split("\\.");
+            this.op = op;
+            this.value = value;
+            switch (op) {
+            case REGEX:
+                pattern = compilePattern(value.asRegularExpression());
+                break;
+            case IN:
+            case ALL: {
+                BsonArray array = value.asArray();
+                patterns = new Pattern[array.size()];
+                for (int i = 0; i < patterns.length; i++) {
+                    if (array.get(i).isRegularExpression())
+                        patterns[i] = compilePattern(array.get(i).asRegularExpression());
+                    else if (op == IN && isOperatorDocument(array.get(i)))
+                        throw DocDBException.badValue("cannot nest $ under $in");
+                }
+                break;
+            }
+            case EXISTS:
+                exists = isTrue(value);
+                break;
+            case SIZE:
+                size = value.asNumber().intValue();
+                break;
+            case TYPE:
+                initTypes();
+                break;
+            case MOD: {
+                if (!value.isArray() || value.asArray().size() != 2 || !value.asArray().get(0).isNumber()
+                        || !value.asArray().get(1).isNumber())
+                    throw DocDBException.badValue("malformed mod, needs to be an array of 2 numbers");
+                divisor = value.asArray().get(0).asNumber().longValue();
+                remainder = value.asArray().get(1).asNumber().longValue();
+                if (divisor == 0)
+                    throw DocDBException.badValue("divisor cannot be 0");
+                break;
+            }
+            case ELEM_MATCH: {
+                BsonDocument doc = value.asDocument();
+                String first = doc.isEmpty() ? "" : doc.getFirstKey();
+                if (first.startsWith("$") && !first.equals("$and") && !first.equals("$or")
+                        && !first.equals("$nor")) {
+                    // 条件是 {$gt: ...} 之类时，把每个元素包装成 {$: e} 再匹配
+                    ArrayList<QueryFilter> list = new ArrayList<>();
+                    parseOperators(ELEM_PATH, doc, list);
+                    elemValueFilter = toFilter(list);
+                } else {
+                    elemFilter = parse(doc);
+                }
+                break;
+            }
+            default:
+            }
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getOp() {
+            return op;
+        }
+
+        public BsonValue getValue() {
+            return value;
+        }
+
+        private static Pattern compilePattern(BsonRegularExpression regex) {
+            int flags = 0;
+            for (char c : regex.getOptions().toCharArray()) {
+                switch (c) {
+                case 'i':
+                    flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+                    break;
+                case 'm':
+                    flags |= Pattern.MULTILINE;
+                    break;
+                case 's':
+                    flags |= Pattern.DOTALL;
+                    break;
+                case 'x':
+                    flags |= Pattern.COMMENTS;
+                    break;
+                default:
+                }
+            }
+            try {
+                return Pattern.compile(regex.getPattern(), flags);
+            } catch (Exception e) {
+                throw DocDBException.badValue("invalid regular expression: " + e.getMessage());
+            }
+        }
+
+        private void initTypes() {
+            types = new HashSet<>();
+            if (value.isArray()) {
+                for (BsonValue v : value.asArray())
+                    addType(v);
+            } else {
+                addType(value);
+            }
+        }
+
+        private void addType(BsonValue v) {
+            if (v.isNumber()) {
+                int t = v.asNumber().intValue();
+                types.add(t == -1 ? BsonType.MIN_KEY.getValue() : t);
+                return;
+            }
+            if (!v.isString())
+                throw DocDBException.badValue("type must be represented as a number or a string");
+            String alias = v.asString().getValue();
+            switch (alias) {
+            case "number":
+                types.add(BsonType.INT32.getValue());
+                types.add(BsonType.INT64.getValue());
+                types.add(BsonType.DOUBLE.getValue());
+                types.add(BsonType.DECIMAL128.getValue());
+                return;
+            case "double":
+                types.add(BsonType.DOUBLE.getValue());
+                return;
+            case "string":
+                types.add(BsonType.STRING.getValue());
+                return;
+            case "object":
+                types.add(BsonType.DOCUMENT.getValue());
+                return;
+            case "array":
+                types.add(BsonType.ARRAY.getValue());
+                return;
+            case "binData":
+                types.add(BsonType.BINARY.getValue());
+                return;
+            case "undefined":
+                types.add(BsonType.UNDEFINED.getValue());
+                return;
+            case "objectId":
+                types.add(BsonType.OBJECT_ID.getValue());
+                return;
+            case "bool":
+                types.add(BsonType.BOOLEAN.getValue());
+                return;
+            case "date":
+                types.add(BsonType.DATE_TIME.getValue());
+                return;
+            case "null":
+                types.add(BsonType.NULL.getValue());
+                return;
+            case "regex":
+                types.add(BsonType.REGULAR_EXPRESSION.getValue());
+                return;
+            case "javascript":
+                types.add(BsonType.JAVASCRIPT.getValue());
+                return;
+            case "symbol":
+                types.add(BsonType.SYMBOL.getValue());
+                return;
+            case "int":
+                types.add(BsonType.INT32.getValue());
+                return;
+            case "timestamp":
+                types.add(BsonType.TIMESTAMP.getValue());
+                return;
+            case "long":
+                types.add(BsonType.INT64.getValue());
+                return;
+            case "decimal":
+                types.add(BsonType.DECIMAL128.getValue());
+                return;
+            case "minKey":
+                types.add(BsonType.MIN_KEY.getValue());
+                return;
+            case "maxKey":
+                types.add(BsonType.MAX_KEY.getValue());
+                return;
+            default:
+                throw DocDBException.badValue("unknown type name alias: " + alias);
+            }
+        }
+
+        @Override
+        public void collectFieldFilters(List<FieldFilter> list) {
+            list.add(this);
+        }
+
+        @Override
+        public void collectPaths(Set<String> paths) {
+            paths.add(path);
+        }
+
+        @Override
+        public boolean match(BsonDocument doc) {
+            ArrayList<BsonValue> values = new ArrayList<>(1);
+            collectValues(doc, names, 0, values);
+            if (values.isEmpty())
+                return matchMissing();
+            for (BsonValue v : values) {
+                if (matchValue(v))
+                    return true;
+            }
+            return false;
+        }
+
+        // 字段不存在时只有 {$exists: false} 和跟 null 比较的条件能匹配
+        private boolean matchMissing() {
+            switch (op) {
+            case EXISTS:
+                return !exists;
+            case EQ:
+            case GTE:
+            case LTE:
+                return value.isNull();
+            case IN:
+                for (BsonValue v : value.asArray()) {
+                    if (v.isNull())
+                        return true;
+                }
+                return false;
+            default:
+                return false;
+            }
+        }
+
+        // 字段值是数组时，数组本身或者其中任何一个元素满足条件都算匹配
+        public boolean matchValue(BsonValue v) {
+            switch (op) {
+            case EXISTS:
+                return exists;
+            case SIZE:
+                return v.isArray() && v.asArray().size() == size;
+            case ELEM_MATCH:
+                return v.isArray() && matchElements(v.asArray());
+            case ALL: {
+                BsonArray array = value.asArray();
+                if (array.isEmpty())
+                    return false;
+                for (int i = 0, len = array.size(); i < len; i++) {
+                    if (!matchAllValue(v, array.get(i), patterns[i]))
+                        return false;
+                }
+                return true;
+            }
+            default:
+                if (test(v))
+                    return true;
+                if (v.isArray()) {
+                    for (BsonValue e : v.asArray()) {
+                        if (test(e))
+                            return true;
+                    }
+                }
+                return false;
+            }
+        }
+
+        private boolean matchAllValue(BsonValue v, BsonValue target, Pattern p) {
+            if (target.isDocument() && target.asDocument().containsKey("$elemMatch"))
+                return new FieldFilter("", ELEM_MATCH, target.asDocument().get("$elemMatch"))
+                        .matchValue(v);
+            if (p != null ? matchPattern(p, v) : BsonValueComparator.equals(v, target))
+                return true;
+            if (v.isArray()) {
+                for (BsonValue e : v.asArray()) {
+                    if (p != null ? matchPattern(p, e) : BsonValueComparator.equals(e, target))
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matchElements(BsonArray array) {
+            for (BsonValue e : array) {
+                if (elemFilter != null) {
+                    if (e.isDocument() && elemFilter.match(e.asDocument()))
+                        return true;
+                } else if (elemValueFilter.match(new BsonDocument(ELEM_PATH, e))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean test(BsonValue v) {
+            switch (op) {
+            case EQ:
+                return BsonValueComparator.equals(v, value);
+            case GT:
+                return isSameRank(v) && BsonValueComparator.compare(v, value) > 0;
+            case GTE:
+                return isSameRank(v) && BsonValueComparator.compare(v, value) >= 0;
+            case LT:
+                return isSameRank(v) && BsonValueComparator.compare(v, value) < 0;
+            case LTE:
+                return isSameRank(v) && BsonValueComparator.compare(v, value) <= 0;
+            case IN: {
+                BsonArray array = value.asArray();
+                for (int i = 0, len = array.size(); i < len; i++) {
+                    if (patterns[i] != null ? matchPattern(patterns[i], v)
+                            : BsonValueComparator.equals(v, array.get(i)))
+                        return true;
+                }
+                return false;
+            }
+            case REGEX:
+                return matchPattern(pattern, v);
+            case TYPE:
+                return types.contains(v.getBsonType().getValue());
+            case MOD:
+                return v.isNumber() && v.asNumber().longValue() % divisor == remainder;
+            default:
+                return matchValue(v);
+            }
+        }
+
+        // 范围比较只在同一类数据之间进行，比如 {$gt: 1} 不会匹配字符串
+        private boolean isSameRank(BsonValue v) {
+            return BsonValueComparator.getRank(v) == BsonValueComparator.getRank(value);
+        }
+
+        private static boolean matchPattern(Pattern p, BsonValue v) {
+            if (v.isString())
+                return p.matcher(v.asString().getValue()).find();
+            if (v.isSymbol())
+                return p.matcher(v.asSymbol().getSymbol()).find();
+            return false;
+        }
+
+        public static boolean isRangeOp(int op) {
+            return op == GT || op == GTE || op == LT || op == LTE;
+        }
+
+        public static boolean isLowerBoundOp(int op) {
+            return op == GT || op == GTE;
+        }
+
+        // 能用来计算索引区间的值，null、数组等有特殊的匹配规则，不下推
+        public static boolean isIndexable(BsonValue v) {
+            switch (BsonValueComparator.getRank(v)) {
+            case IndexKeyEncoder.NULL:
+            case IndexKeyEncoder.MIN_KEY:
+            case IndexKeyEncoder.MAX_KEY:
+            case IndexKeyEncoder.ARRAY:
+            case IndexKeyEncoder.REGULAR_EXPRESSION:
+                return false;
+            default:
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,664 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.update;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDateTime;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Decimal128;
+import org.lealone.docdb.server.DocDBException;
+import org.lealone.docdb.server.query.BsonValueComparator;
+import org.lealone.docdb.server.query.QueryFilter;
+import org.lealone.docdb.server.query.QueryFilter.FieldFilter;
+
+/**
+ * 把 mongodb 的 update 文档编译成一组字段操作，或者是一个替换文档，之后每个文档只需要调用 apply。
+ *
+ * 只有 $inc 和定长字段的 $set 时直接在原始的 BSON 字节上修改(见 RawBsonUpdater)，
+ * 其他情况才把文档解码成可修改的 BsonDocument，修改完再重新编码。
+ */
+public abstract class DocumentUpdate {
+
+    private static final BsonDocumentCodec CODEC = new BsonDocumentCodec();
+
+    public static DocumentUpdate compile(BsonValue u) {
+        if (u.isArray())
+            throw DocDBException.badValue("pipeline-style update is not supported");
+        if (!u.isDocument())
+            throw failedToParse("update must be an object");
+        BsonDocument doc = u.asDocument();
+        if (doc.isEmpty() || !doc.getFirstKey().startsWith("$"))
+            return new Replacement(doc);
+        return new Modifiers(doc);
+    }
+
+    public abstract boolean isReplacement();
+
+    // 是否会修改这个字段或者它的上下级字段，用来判断索引列要不要重新计算
+    public abstract boolean affects(String path);
+
+    // 在可修改的文档上执行更新，insert 为 true 时是 upsert 插入的新文档
+    protected abstract BsonDocument apply(BsonDocument doc, boolean insert);
+
+    protected byte[] applyInPlace(byte[] bytes) {
+        return null;
+    }
+
+    /**
+     * 返回更新后的 BSON 字节，文档没有变化时返回 null。
+     */
+    public byte[] apply(byte[] bytes) {
+        byte[] newBytes = applyInPlace(bytes);
+        if (newBytes == null) {
+            BsonDocument doc = new RawBsonDocument(bytes).decode(CODEC);
+            BsonValue id = doc.get("_id");
+            BsonDocument newDoc = apply(doc, false);
+            if (id != null && !id.equals(newDoc.get("_id")))
+                throw new DocDBException(DocDBException.IMMUTABLE_FIELD, "ImmutableField",
+                        "Performing an update on the path '_id' would modify the immutable field '_id'");
+            newBytes = encode(newDoc);
+        }
+        return Arrays.equals(bytes, newBytes) ? null : newBytes;
+    }
+
+    /**
+     * 没有文档匹配 upsert 的查询条件时，用查询条件中的等值字段和更新操作生成一个新文档。
+     */
+    public BsonDocument newUpsertDocument(QueryFilter filter) {
+        BsonDocument doc = new BsonDocument();
+        for (FieldFilter f : filter.getFieldFilters()) {
+            if (f.getOp() == FieldFilter.EQ && (!isReplacement() || f.getPath().equals("_id")))
+                setValue(doc, split(f.getPath()), copy(f.getValue()));
+        }
+        doc = apply(doc, true);
+        // _id 总是放在第一个字段
+        BsonValue id = doc.remove("_id");
+        BsonDocument newDoc = new BsonDocument("_id", id != null ? id : new BsonObjectId());
+        newDoc.putAll(doc);
+        return newDoc;
+    }
+
+    private static byte[] encode(BsonDocument doc) {
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        try {
+            CODEC.encode(new BsonBinaryWriter(out), doc, EncoderContext.builder().build());
+            return out.toByteArray();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static DocDBException failedToParse(String message) {
+        return new DocDBException(DocDBException.FAILED_TO_PARSE, "FailedToParse", message);
+    }
+
+    private static DocDBException unknownModifier(String op) {
+        return failedToParse("Unknown modifier: " + op
+                + ". Expected a valid update modifier or pipeline-style update specified as an array");
+    }
+
+    private static DocDBException typeMismatch(String message) {
+        return new DocDBException(DocDBException.TYPE_MISMATCH, "TypeMismatch", message);
+    }
+
+    private static String getTypeName(BsonValue v) {
+        return v.getBsonType().name().toLowerCase();
+    }
+
+    private static String[] split(String path) {
+        String[] names = path.split("\\.", -1);
+        for (String name : names) {
+            if (name.isEmpty())
+                throw DocDBException.badValue("The update path '" + path + "' contains an empty field name");
+            if (name.startsWith("$"))
+                throw DocDBException.badValue("The positional operator is not supported: " + path);
+        }
+        return names;
+    }
+
+    private static boolean isPrefix(String p1, String p2) {
+        return p1.equals(p2) || p2.startsWith(p1) && p2.charAt(p1.length()) == '.';
+    }
+
+    // 命令中的文档可能是只读的 RawBsonDocument，要修改的值都先复制一份
+    private static BsonValue copy(BsonValue v) {
+        if (v.isDocument()) {
+            BsonDocument doc = new BsonDocument();
+            for (Entry<String, BsonValue> e : v.asDocument().entrySet())
+                doc.put(e.getKey(), copy(e.getValue()));
+            return doc;
+        } else if (v.isArray()) {
+            BsonArray array = new BsonArray();
+            for (BsonValue e : v.asArray())
+                array.add(copy(e));
+            return array;
+        }
+        return v;
+    }
+
+    private static int parseArrayIndex(String name) {
+        int len = name.length();
+        if (len == 0 || len > 9)
+            return -1;
+        for (int i = 0; i < len; i++) {
+            if (!Character.isDigit(name.charAt(i)))
+                return -1;
+        }
+        return Integer.parseInt(name);
+    }
+
+    private static BsonValue getChild(BsonValue parent, String name) {
+        if (parent.isDocument())
+            return parent.asDocument().get(name);
+        BsonArray array = parent.asArray();
+        int i = parseArrayIndex(name);
+        return i >= 0 && i < array.size() ? array.get(i) : null;
+    }
+
+    private static void setChild(BsonValue parent, String name, BsonValue v) {
+        if (parent.isDocument()) {
+            parent.asDocument().put(name, v);
+            return;
+        }
+        BsonArray array = parent.asArray();
+        int i = parseArrayIndex(name);
+        if (i < 0)
+            throw new DocDBException(DocDBException.PATH_NOT_VIABLE, "PathNotViable",
+                    "Cannot create field '" + name + "' in an array");
+        while (array.size() <= i)
+            array.add(BsonNull.VALUE);
+        array.set(i, v);
+    }
+
+    // 返回路径最后一级的上级文档或数组，create 为 true 时创建不存在的中间文档
+    private static BsonValue getParent(BsonDocument doc, String[] names, boolean create) {
+        BsonValue parent = doc;
+        for (int i = 0; i < names.length - 1; i++) {
+            BsonValue v = getChild(parent, names[i]);
+            if (v == null) {
+                if (!create)
+                    return null;
+                v = new BsonDocument();
+                setChild(parent, names[i], v);
+            } else if (!v.isDocument() && !v.isArray()) {
+                if (!create)
+                    return null;
+                throw new DocDBException(DocDBException.PATH_NOT_VIABLE, "PathNotViable",
+                        "Cannot create field '" + names[i + 1] + "' in element {" + names[i] + ": " + v
+                                + "}");
+            }
+            parent = v;
+        }
+        return parent;
+    }
+
+    private static BsonValue getValue(BsonDocument doc, String[] names) {
+        BsonValue parent = getParent(doc, names, false);
+        return parent == null ? null : getChild(parent, names[names.length - 1]);
+    }
+
+    private static void setValue(BsonDocument doc, String[] names, BsonValue v) {
+        setChild(getParent(doc, names, true), names[names.length - 1], v);
+    }
+
+    private static BsonValue removeValue(BsonDocument doc, String[] names) {
+        BsonValue parent = getParent(doc, names, false);
+        if (parent == null)
+            return null;
+        String name = names[names.length - 1];
+        BsonValue v = getChild(parent, name);
+        if (v == null)
+            return null;
+        // 数组元素不删除，跟 mongodb 一样设为 null
+        if (parent.isDocument())
+            parent.asDocument().remove(name);
+        else
+            parent.asArray().set(parseArrayIndex(name), BsonNull.VALUE);
+        return v;
+    }
+
+    private static class Replacement extends DocumentUpdate {
+
+        private final BsonDocument replacement;
+
+        Replacement(BsonDocument replacement) {
+            for (String key : replacement.keySet()) {
+                if (key.startsWith("$"))
+                    throw DocDBException.badValue(
+                            "The dollar ($) prefixed field '" + key + "' is not valid for storage");
+            }
+            this.replacement = replacement;
+        }
+
+        @Override
+        public boolean isReplacement() {
+            return true;
+        }
+
+        @Override
+        public boolean affects(String path) {
+            return true;
+        }
+
+        // 替换文档中没有 _id 时保留原来的 _id
+        @Override
+        protected BsonDocument apply(BsonDocument doc, boolean insert) {
+            BsonDocument newDoc = new BsonDocument();
+            BsonValue id = doc.get("_id");
+            if (id != null && !replacement.containsKey("_id"))
+                newDoc.put("_id", id);
+            newDoc.putAll(replacement);
+            return newDoc;
+        }
+    }
+
+    private static class Modifiers extends DocumentUpdate {
+
+        private final ArrayList<Operation> operations = new ArrayList<>();
+        private final RawBsonUpdater rawUpdater;
+
+        Modifiers(BsonDocument doc) {
+            for (Entry<String, BsonValue> e : doc.entrySet()) {
+                String op = e.getKey();
+                BsonValue v = e.getValue();
+                if (!op.startsWith("$"))
+                    throw unknownModifier(op);
+                if (!v.isDocument())
+                    throw failedToParse("Modifiers operate on fields but we found type " + getTypeName(v)
+                            + " instead. For example: {$mod: {<field>: ...}} not {" + op + ": " + v + "}");
+                if (v.asDocument().isEmpty())
+                    throw failedToParse("'" + op + "' is empty. You must specify a field like so: {" + op
+                            + ": {<field_name>: ...}}");
+                for (Entry<String, BsonValue> f : v.asDocument().entrySet())
+                    operations.add(new Operation(op, f.getKey(), f.getValue()));
+            }
+            checkConflicts();
+            rawUpdater = RawBsonUpdater.create(operations);
+        }
+
+        private void checkConflicts() {
+            ArrayList<String> paths = new ArrayList<>();
+            for (Operation op : operations) {
+                paths.add(op.path);
+                if (op.to != null)
+                    paths.add(op.to);
+            }
+            for (int i = 0, size = paths.size(); i < size; i++) {
+                for (int j = i + 1; j < size; j++) {
+                    String p1 = paths.get(i);
+                    String p2 = paths.get(j);
+                    if (isPrefix(p1, p2) || isPrefix(p2, p1))
+                        throw new DocDBException(DocDBException.CONFLICTING_UPDATE_OPERATORS,
+                                "ConflictingUpdateOperators",
+                                "Updating the path '" + p2 + "' would create a conflict at '" + p1 + "'");
+                }
+            }
+        }
+
+        @Override
+        public boolean isReplacement() {
+            return false;
+        }
+
+        @Override
+        public boolean affects(String path) {
+            for (Operation op : operations) {
+                if (isPrefix(op.path, path) || isPrefix(path, op.path))
+                    return true;
+                if (op.to != null && (isPrefix(op.to, path) || isPrefix(path, op.to)))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected byte[] applyInPlace(byte[] bytes) {
+            return rawUpdater == null ? null : rawUpdater.apply(bytes);
+        }
+
+        @Override
+        protected BsonDocument apply(BsonDocument doc, boolean insert) {
+            for (Operation op : operations)
+                op.apply(doc, insert);
+            return doc;
+        }
+    }
+
+    static class Operation {
+
+        static final int SET = 0;
+        static final int SET_ON_INSERT = 1;
+        static final int UNSET = 2;
+        static final int INC = 3;
+        static final int MUL = 4;
+        static final int MIN = 5;
+        static final int MAX = 6;
+        static final int RENAME = 7;
+        static final int CURRENT_DATE = 8;
+        static final int PUSH = 9;
+        static final int ADD_TO_SET = 10;
+        static final int POP = 11;
+        static final int PULL = 12;
+        static final int PULL_ALL = 13;
+
+        final String op;
+        final int type;
+        final String path;
+        final String[] names;
+        final BsonValue value;
+
+        private String to; // $rename 的新路径
+        private String[] toNames;
+        private BsonArray values; // $push 和 $addToSet 要加的值，$pullAll 要删的值
+        private int position = Integer.MIN_VALUE;
+        private int slice = Integer.MIN_VALUE;
+        private boolean timestamp; // $currentDate 的 $type 是 timestamp
+        private QueryFilter pullFilter;
+        private boolean pullValue; // $pull 的条件是 {$gt: ...} 之类时把元素包装成 {v: e} 再匹配
+
+        Operation(String op, String path, BsonValue value) {
+            this.op = op;
+            this.path = path;
+            this.names = split(path);
+            this.value = copy(value);
+            switch (op) {
+            case "$set":
+                type = SET;
+                break;
+            case "$setOnInsert":
+                type = SET_ON_INSERT;
+                break;
+            case "$unset":
+                type = UNSET;
+                break;
+            case "$inc":
+            case "$mul":
+                type = op.equals("$inc") ? INC : MUL;
+                if (!isNumeric(value))
+                    throw typeMismatch("Cannot " + (type == INC ? "increment" : "multiply")
+                            + " with non-numeric argument: {" + path + ": " + value + "}");
+                break;
+            case "$min":
+                type = MIN;
+                break;
+            case "$max":
+                type = MAX;
+                break;
+            case "$rename":
+                type = RENAME;
+                if (!value.isString())
+                    throw DocDBException.badValue("The 'to' field for $rename must be a string: " + value);
+                to = value.asString().getValue();
+                toNames = split(to);
+                break;
+            case "$currentDate": {
+                type = CURRENT_DATE;
+                BsonValue t = value.isDocument() ? value.asDocument().get("$type") : null;
+                String s = t != null && t.isString() ? t.asString().getValue() : null;
+                if ("timestamp".equals(s))
+                    timestamp = true;
+                else if (!value.isBoolean() && !"date".equals(s))
+                    throw DocDBException.badValue("The '$type' string field is required to be 'date' or "
+                            + "'timestamp': {$currentDate: {field : {$type: 'date'}}}");
+                break;
+            }
+            case "$push":
+            case "$addToSet":
+                type = op.equals("$push") ? PUSH : ADD_TO_SET;
+                parseEach();
+                break;
+            case "$pop":
+                type = POP;
+                if (!value.isNumber() || value.asNumber().intValue() != 1
+                        && value.asNumber().intValue() != -1)
+                    throw failedToParse("$pop expects 1 or -1, found: " + value);
+                break;
+            case "$pull":
+                type = PULL;
+                parsePull();
+                break;
+            case "$pullAll":
+                type = PULL_ALL;
+                if (!value.isArray())
+                    throw DocDBException.badValue("$pullAll requires an array argument but was given a "
+                            + getTypeName(value));
+                values = this.value.asArray();
+                break;
+            default:
+                throw unknownModifier(op);
+            }
+        }
+
+        private void parseEach() {
+            if (!value.isDocument() || !value.asDocument().containsKey("$each")) {
+                values = new BsonArray();
+                values.add(value);
+                return;
+            }
+            for (Entry<String, BsonValue> e : value.asDocument().entrySet()) {
+                BsonValue v = e.getValue();
+                switch (e.getKey()) {
+                case "$each":
+                    if (!v.isArray())
+                        throw DocDBException.badValue("The argument to $each in " + op
+                                + " must be an array but it was of type: " + getTypeName(v));
+                    values = v.asArray();
+                    continue;
+                case "$position":
+                    if (type == PUSH && v.isNumber()) {
+                        position = v.asNumber().intValue();
+                        continue;
+                    }
+                    break;
+                case "$slice":
+                    if (type == PUSH && v.isNumber()) {
+                        slice = v.asNumber().intValue();
+                        continue;
+                    }
+                    break;
+                }
+                throw DocDBException
+                        .badValue("Unrecognized clause in " + op + ": " + e.getKey() + " (not supported)");
+            }
+        }
+
+        private void parsePull() {
+            if (!value.isDocument())
+                return;
+            BsonDocument doc = value.asDocument();
+            String first = doc.isEmpty() ? "" : doc.getFirstKey();
+            if (first.startsWith("$") && !first.equals("$and") && !first.equals("$or")
+                    && !first.equals("$nor")) {
+                pullFilter = QueryFilter.compile(new BsonDocument("v", doc));
+                pullValue = true;
+            } else {
+                pullFilter = QueryFilter.compile(doc);
+            }
+        }
+
+        void apply(BsonDocument doc, boolean insert) {
+            switch (type) {
+            case SET:
+                setValue(doc, names, value);
+                break;
+            case SET_ON_INSERT:
+                if (insert)
+                    setValue(doc, names, value);
+                break;
+            case UNSET:
+                removeValue(doc, names);
+                break;
+            case INC:
+            case MUL: {
+                BsonValue old = getValue(doc, names);
+                if (old == null) {
+                    setValue(doc, names, type == INC ? value : compute(new BsonInt32(0), value));
+                } else if (!isNumeric(old)) {
+                    throw typeMismatch("Cannot apply " + op + " to a value of non-numeric type. {_id: "
+                            + doc.get("_id") + "} has the field '" + names[names.length - 1]
+                            + "' of non-numeric type " + getTypeName(old));
+                } else {
+                    setValue(doc, names, compute(old, value));
+                }
+                break;
+            }
+            case MIN:
+            case MAX: {
+                BsonValue old = getValue(doc, names);
+                int cmp = old == null ? 0 : BsonValueComparator.compare(value, old);
+                if (old == null || (type == MIN ? cmp < 0 : cmp > 0))
+                    setValue(doc, names, value);
+                break;
+            }
+            case RENAME: {
+                BsonValue old = removeValue(doc, names);
+                if (old != null)
+                    setValue(doc, toNames, old);
+                break;
+            }
+            case CURRENT_DATE: {
+                long now = System.currentTimeMillis();
+                if (timestamp)
+                    setValue(doc, names, new BsonTimestamp((int) (now / 1000), 1));
+                else
+                    setValue(doc, names, new BsonDateTime(now));
+                break;
+            }
+            case PUSH:
+            case ADD_TO_SET:
+                addToArray(doc);
+                break;
+            case POP: {
+                BsonArray array = getArray(doc, false);
+                if (array != null && !array.isEmpty())
+                    array.remove(value.asNumber().intValue() > 0 ? array.size() - 1 : 0);
+                break;
+            }
+            case PULL:
+            case PULL_ALL: {
+                BsonArray array = getArray(doc, false);
+                if (array != null)
+                    array.removeIf(e -> type == PULL ? matchPull(e) : contains(values, e));
+                break;
+            }
+            }
+        }
+
+        private BsonArray getArray(BsonDocument doc, boolean create) {
+            BsonValue v = getValue(doc, names);
+            if (v == null) {
+                if (!create)
+                    return null;
+                BsonArray array = new BsonArray();
+                setValue(doc, names, array);
+                return array;
+            }
+            if (!v.isArray())
+                throw DocDBException.badValue("The field '" + path + "' must be an array but is of type "
+                        + getTypeName(v) + " in document {_id: " + doc.get("_id") + "}");
+            return v.asArray();
+        }
+
+        private void addToArray(BsonDocument doc) {
+            BsonArray array = getArray(doc, true);
+            if (type == ADD_TO_SET) {
+                for (BsonValue v : values) {
+                    if (!contains(array, v))
+                        array.add(v);
+                }
+                return;
+            }
+            int size = array.size();
+            int pos;
+            if (position == Integer.MIN_VALUE)
+                pos = size;
+            else if (position < 0)
+                pos = Math.max(0, size + position); // 负数从数组末尾开始算
+            else
+                pos = Math.min(position, size);
+            array.addAll(pos, values);
+            if (slice != Integer.MIN_VALUE) {
+                size = array.size();
+                if (slice >= 0 && slice < size)
+                    array.subList(slice, size).clear();
+                else if (slice < 0 && -slice < size)
+                    array.subList(0, size + slice).clear();
+            }
+        }
+
+        private boolean matchPull(BsonValue e) {
+            if (pullFilter == null)
+                return BsonValueComparator.equals(value, e);
+            if (pullValue)
+                return pullFilter.match(new BsonDocument("v", e));
+            return e.isDocument() && pullFilter.match(e.asDocument());
+        }
+
+        private static boolean contains(BsonArray array, BsonValue v) {
+            for (BsonValue e : array) {
+                if (BsonValueComparator.equals(e, v))
+                    return true;
+            }
+            return false;
+        }
+
+        private static boolean isNumeric(BsonValue v) {
+            return v.isNumber() || v.isDecimal128();
+        }
+
+        private BsonValue compute(BsonValue a, BsonValue b) {
+            if (a.isDecimal128() || b.isDecimal128()) {
+                BigDecimal x = toBigDecimal(a);
+                BigDecimal y = toBigDecimal(b);
+                return new BsonDecimal128(new Decimal128(type == INC ? x.add(y) : x.multiply(y)));
+            }
+            if (a.isDouble() || b.isDouble()) {
+                double x = a.asNumber().doubleValue();
+                double y = b.asNumber().doubleValue();
+                return new BsonDouble(type == INC ? x + y : x * y);
+            }
+            long x = a.asNumber().longValue();
+            long y = b.asNumber().longValue();
+            long r;
+            try {
+                r = type == INC ? Math.addExact(x, y) : Math.multiplyExact(x, y);
+            } catch (ArithmeticException e) {
+                throw DocDBException.badValue("Failed to apply " + op + " operations to current value ("
+                        + a + ") for field '" + path + "': result overflows int64");
+            }
+            // 两个 int32 的结果溢出时跟 mongodb 一样变成 int64
+            if (a.isInt32() && b.isInt32() && r == (int) r)
+                return new BsonInt32((int) r);
+            return new BsonInt64(r);
+        }
+
+        private static BigDecimal toBigDecimal(BsonValue v) {
+            if (v.isDecimal128())
+                return v.asDecimal128().getValue().bigDecimalValue();
+            if (v.isDouble())
+                return BigDecimal.valueOf(v.asDouble().getValue());
+            return BigDecimal.valueOf(v.asNumber().longValue());
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.server.update;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+import org.lealone.docdb.server.update.DocumentUpdate.Operation;
+
+/**
+ * 直接在文档的 BSON 字节上执行 $inc 和定长字段的 $set，不需要解码和重新编码整个文档，
+ * 只复制一次字节数组，然后改掉对应字段的几个字节。
+ *
+ * 字段不存在、类型要变(比如 int32 加法溢出要变成 int64)或者长度要变时 apply 返回 null，
+ * 这时由 DocumentUpdate 走解码再编码的流程。
+ */
+class RawBsonUpdater {
+
+    private static final byte DOUBLE = 1;
+    private static final byte STRING = 2;
+    private static final byte DOCUMENT = 3;
+    private static final byte ARRAY = 4;
+    private static final byte OBJECT_ID = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte DATE_TIME = 9;
+    private static final byte INT32 = 16;
+    private static final byte TIMESTAMP = 17;
+    private static final byte INT64 = 18;
+    private static final byte DECIMAL128 = 19;
+
+    private final Operation[] operations;
+    private final byte[][][] names; // 每个操作的路径按 UTF-8 编码后的各级字段名
+
+    private RawBsonUpdater(List<Operation> list) {
+        operations = list.toArray(new Operation[0]);
+        names = new byte[operations.length][][];
+        for (int i = 0; i < operations.length; i++) {
+            String[] a = operations[i].names;
+            names[i] = new byte[a.length][];
+            for (int j = 0; j < a.length; j++)
+                names[i][j] = a[j].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // 有其他操作或者要改 _id 时返回 null
+    static RawBsonUpdater create(List<Operation> list) {
+        for (Operation op : list) {
+            if (op.names[0].equals("_id"))
+                return null;
+            if (op.type == Operation.INC || op.type == Operation.SET_ON_INSERT)
+                continue;
+            if (op.type == Operation.SET && isFixedSize(op.value))
+                continue;
+            return null;
+        }
+        return new RawBsonUpdater(list);
+    }
+
+    private static boolean isFixedSize(BsonValue v) {
+        switch (v.getBsonType()) {
+        case DOUBLE:
+        case STRING: // 字符串只有字节数不变时才能直接改
+        case OBJECT_ID:
+        case BOOLEAN:
+        case DATE_TIME:
+        case INT32:
+        case TIMESTAMP:
+        case INT64:
+        case DECIMAL128:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    byte[] apply(byte[] bytes) {
+        byte[] newBytes = bytes.clone();
+        for (int i = 0; i < operations.length; i++) {
+            Operation op = operations[i];
+            if (op.type == Operation.SET_ON_INSERT)
+                continue;
+            int pos = find(bytes, names[i]);
+            if (pos < 0 || !patch(newBytes, bytes[pos], skipName(bytes, pos + 1), op))
+                return null;
+        }
+        return newBytes;
+    }
+
+    // 返回字段的类型字节所在的位置，找不到时返回 -1
+    private static int find(byte[] b, byte[][] names) {
+        int start = 0; // 当前这一级文档或数组的开始位置
+        for (int i = 0; i < names.length; i++) {
+            int end = start + readInt(b, start) - 1;
+            int pos = start + 4;
+            int found = -1;
+            while (pos < end) {
+                byte type = b[pos];
+                int valuePos = skipName(b, pos + 1);
+                if (equals(b, pos + 1, valuePos - 1, names[i])) {
+                    found = pos;
+                    break;
+                }
+                int size = getValueSize(b, type, valuePos);
+                if (size < 0)
+                    return -1;
+                pos = valuePos + size;
+            }
+            if (found < 0)
+                return -1;
+            if (i == names.length - 1)
+                return found;
+            if (b[found] != DOCUMENT && b[found] != ARRAY)
+                return -1;
+            start = skipName(b, found + 1);
+        }
+        return -1;
+    }
+
+    // 返回字段名后面的值所在的位置
+    private static int skipName(byte[] b, int pos) {
+        while (b[pos] != 0)
+            pos++;
+        return pos + 1;
+    }
+
+    private static boolean equals(byte[] b, int start, int end, byte[] name) {
+        if (end - start != name.length)
+            return false;
+        for (int i = 0; i < name.length; i++) {
+            if (b[start + i] != name[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static int getValueSize(byte[] b, byte type, int pos) {
+        switch (type) {
+        case 1: // double
+        case 9: // datetime
+        case 17: // timestamp
+        case 18: // int64
+            return 8;
+        case 2: // string
+        case 13: // javascript
+        case 14: // symbol
+            return 4 + readInt(b, pos);
+        case 3: // document
+        case 4: // array
+        case 15: // javascript with scope
+            return readInt(b, pos);
+        case 5: // binary
+            return 5 + readInt(b, pos);
+        case 6: // undefined
+        case 10: // null
+        case -1: // min key
+        case 127: // max key
+            return 0;
+        case 7: // object id
+            return 12;
+        case 8: // boolean
+            return 1;
+        case 11: // regex
+            return skipName(b, skipName(b, pos)) - pos;
+        case 12: // db pointer
+            return 4 + readInt(b, pos) + 12;
+        case 16: // int32
+            return 4;
+        case 19: // decimal128
+            return 16;
+        default:
+            return -1;
+        }
+    }
+
+    private static boolean patch(byte[] b, byte type, int pos, Operation op) {
+        BsonValue v = op.value;
+        if (op.type == Operation.INC) {
+            if (type == INT32 && v.isInt32()) {
+                long r = (long) readInt(b, pos) + v.asInt32().getValue();
+                if (r != (int) r)
+                    return false;
+                writeInt(b, pos, (int) r);
+            } else if (type == INT64 && (v.isInt32() || v.isInt64())) {
+                long x = readLong(b, pos);
+                long r = x + v.asNumber().longValue();
+                if (((x ^ r) & (v.asNumber().longValue() ^ r)) < 0) // 溢出
+                    return false;
+                writeLong(b, pos, r);
+            } else if (type == DOUBLE && v.isNumber()) {
+                double r = Double.longBitsToDouble(readLong(b, pos)) + v.asNumber().doubleValue();
+                writeLong(b, pos, Double.doubleToRawLongBits(r));
+            } else {
+                return false;
+            }
+            return true;
+        }
+        if (type != v.getBsonType().getValue())
+            return false;
+        if (type == DOUBLE) {
+            writeLong(b, pos, Double.doubleToRawLongBits(v.asDouble().getValue()));
+        } else if (type == STRING) {
+            byte[] s = v.asString().getValue().getBytes(StandardCharsets.UTF_8);
+            if (readInt(b, pos) != s.length + 1)
+                return false;
+            System.arraycopy(s, 0, b, pos + 4, s.length);
+        } else if (type == OBJECT_ID) {
+            System.arraycopy(v.asObjectId().getValue().toByteArray(), 0, b, pos, 12);
+        } else if (type == BOOLEAN) {
+            b[pos] = (byte) (v.asBoolean().getValue() ? 1 : 0);
+        } else if (type == DATE_TIME) {
+            writeLong(b, pos, v.asDateTime().getValue());
+        } else if (type == INT32) {
+            writeInt(b, pos, v.asInt32().getValue());
+        } else if (type == TIMESTAMP) {
+            writeLong(b, pos, v.asTimestamp().getValue());
+        } else if (type == INT64) {
+            writeLong(b, pos, v.asInt64().getValue());
+        } else if (type == DECIMAL128) {
+            Decimal128 d = v.asDecimal128().getValue();
+            writeLong(b, pos, d.getLow());
+            writeLong(b, pos + 8, d.getHigh());
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    // BSON 是小端的
+    private static int readInt(byte[] b, int pos) {
+        return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8 | (b[pos + 2] & 0xff) << 16
+                | (b[pos + 3] & 0xff) << 24;
+    }
+
+    private static long readLong(byte[] b, int pos) {
+        return (readInt(b, pos) & 0xffffffffL) | (long) readInt(b, pos + 4) << 32;
+    }
+
+    private static void writeInt(byte[] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+        b[pos + 2] = (byte) (v >>> 16);
+        b[pos + 3] = (byte) (v >>> 24);
+    }
+
+    private static void writeLong(byte[] b, int pos, long v) {
+        writeInt(b, pos, (int) v);
+        writeInt(b, pos + 4, (int) (v >>> 32));
+    }
+}
@@ -6,17 +6,34 @@
 package org.lealone.docdb.test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
 import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.InsertOneResult;
+import com.mongodb.client.result.UpdateResult;
 
 public class DocDBCrudTest {
 
@@ -31,7 +48,23 @@ public class DocDBCrudTest {
         MongoCollection<Document> collection = database.getCollection("collection1");
         insert(collection);
         query(collection);
+        index(collection);
+        getMore(collection);
+        filter(collection);
+        aggregate(collection);
+        count(collection);
+        explain(collection);
+        unacknowledgedInsert(collection);
+        update(collection);
+        delete(collection);
+        insertManyWithErrors(database.getCollection("collection2"));
+        idTypes(database.getCollection("collection3"));
+        sort(database.getCollection("collection4"));
+        arraySort(database.getCollection("collection5"));
+        chunkedDelete(database.getCollection("collection6"));
+        stats(mongoClient, collection);
         mongoClient.close();
+        compression(connectionString);
     }
 
     static Document createDocument(int f1, int f2) {
@@ -66,4 +99,264 @@ public class DocDBCrudTest {
             cursor.close();
         }
     }
+
+    static void index(MongoCollection<Document> collection) {
+        collection.createIndex(Indexes.ascending("f1"));
+        for (Document index : collection.listIndexes()) {
+            System.out.println(index.toJson());
+        }
+        query(collection);
+        collection.dropIndex(Indexes.ascending("f1"));
+    }
+
+    static void getMore(MongoCollection<Document> collection) {
+        int count = 0;
+        // batchSize 比文档数小时会用 getMore 读取剩下的文档
+        for (Document doc : collection.find().batchSize(1)) {
+            System.out.println(doc.toJson());
+            count++;
+        }
+        System.out.println("getMore document count: " + count);
+    }
+
+    static void filter(MongoCollection<Document> collection) {
+        collection.createIndex(Indexes.ascending("f1"));
+        Bson[] filters = { Filters.gt("f1", 10), Filters.in("f1", 1, 12),
+                Filters.and(Filters.gte("f1", 10), Filters.lt("f2", 22)),
+                Filters.or(Filters.eq("f1", 1), Filters.eq("f2", 22)), Filters.exists("f3", false),
+                Filters.ne("f1", 1) };
+        for (Bson filter : filters) {
+            int count = 0;
+            for (Document doc : collection.find(filter)) {
+                System.out.println(doc.toJson());
+                count++;
+            }
+            System.out.println(filter + " document count: " + count);
+        }
+        collection.dropIndex(Indexes.ascending("f1"));
+    }
+
+    static void aggregate(MongoCollection<Document> collection) {
+        // f1 大于 1 的文档按 f2 是否大于 21 分组，然后按分组的 _id 排序
+        Bson group = Aggregates.group(new Document("$gt", Arrays.asList("$f2", 21)),
+                Accumulators.sum("count", 1), Accumulators.max("maxF1", "$f1"),
+                Accumulators.push("f2", "$f2"));
+        for (Document doc : collection.aggregate(Arrays.asList(Aggregates.match(Filters.gt("f1", 1)),
+                group, Aggregates.sort(Sorts.ascending("_id"))))) {
+            System.out.println(doc.toJson());
+        }
+    }
+
+    static void count(MongoCollection<Document> collection) {
+        System.out.println("estimated document count: " + collection.estimatedDocumentCount());
+        System.out.println("f1 > 1 document count: " + collection.countDocuments(Filters.gt("f1", 1)));
+        System.out.println(
+                "distinct f2: " + collection.distinct("f2", Integer.class).into(new ArrayList<>()));
+        System.out.println("distinct f2 where f1 > 1: "
+                + collection.distinct("f2", Filters.gt("f1", 1), Integer.class).into(new ArrayList<>()));
+    }
+
+    static void explain(MongoCollection<Document> collection) {
+        collection.createIndex(Indexes.ascending("f1"));
+        // 能用索引时是 FETCH + IXSCAN，否则是 COLLSCAN
+        Bson[] filters = { Filters.eq("f1", 1), Filters.gt("f2", 21) };
+        for (Bson filter : filters) {
+            Document explain = collection.find(filter).explain(ExplainVerbosity.EXECUTION_STATS);
+            System.out.println(filter + " queryPlanner: " + explain.get("queryPlanner"));
+            System.out.println(filter + " executionStats: " + explain.get("executionStats"));
+        }
+        collection.dropIndex(Indexes.ascending("f1"));
+    }
+
+    static void unacknowledgedInsert(MongoCollection<Document> collection) {
+        // w:0 时驱动会设置 moreToCome，服务器不返回响应
+        MongoCollection<Document> c = collection.withWriteConcern(WriteConcern.UNACKNOWLEDGED);
+        ArrayList<Document> documents = new ArrayList<>();
+        for (int i = 100; i < 110; i++)
+            documents.add(createDocument(i, i));
+        c.insertMany(documents);
+        c.insertOne(createDocument(110, 110));
+        int count = 0;
+        for (Document doc : collection.find(Filters.gte("f1", 100))) {
+            System.out.println(doc.toJson());
+            count++;
+        }
+        System.out.println("unacknowledged insert document count: " + count);
+    }
+
+    static void update(MongoCollection<Document> collection) {
+        collection.updateOne(Filters.eq("f1", 1), Updates.inc("f2", 1));
+        System.out.println(collection.find(Filters.eq("f1", 1)).first().toJson());
+        UpdateResult r = collection.updateMany(Filters.gte("f1", 100),
+                Updates.combine(Updates.set("f3", 3), Updates.push("tags", "t1")));
+        System.out.println("matched: " + r.getMatchedCount() + ", modified: " + r.getModifiedCount());
+        // 没有匹配的文档时用查询条件中的等值字段和 $set 生成新文档
+        r = collection.updateOne(Filters.eq("f1", 1000), Updates.set("f2", 1000),
+                new UpdateOptions().upsert(true));
+        System.out.println("upsertedId: " + r.getUpsertedId());
+        collection.replaceOne(Filters.eq("f1", 1000), createDocument(1000, 2000));
+        System.out.println(collection.find(Filters.eq("f1", 1000)).first().toJson());
+    }
+
+    static void delete(MongoCollection<Document> collection) {
+        // limit 为 1，只删除第一个匹配的文档
+        DeleteResult r = collection.deleteOne(Filters.gte("f1", 100));
+        System.out.println("deleteOne count: " + r.getDeletedCount());
+        r = collection.deleteMany(Filters.gte("f1", 100));
+        System.out.println("deleteMany count: " + r.getDeletedCount() + ", total document count: "
+                + collection.find().into(new ArrayList<>()).size());
+    }
+
+    static void insertManyWithErrors(MongoCollection<Document> collection) {
+        collection.drop();
+        collection.insertOne(new Document("_id", 1));
+        ArrayList<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            documents.add(new Document("_id", i + 1));
+        // ordered 为 false 时跳过重复的 _id 继续插入后面的文档
+        try {
+            collection.insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            System.out.println("inserted: " + e.getWriteResult().getInsertedCount() + ", writeErrors: "
+                    + e.getWriteErrors());
+        }
+        System.out.println("total document count: " + collection.find().into(new ArrayList<>()).size());
+    }
+
+    // _id 可以是任意类型，都用 _id 索引查找，1 和 1.0 是相同的 _id
+    static void idTypes(MongoCollection<Document> collection) {
+        collection.drop();
+        ObjectId oid = new ObjectId();
+        collection.insertOne(new Document("_id", oid).append("f1", 1));
+        collection.insertOne(new Document("_id", "abc").append("f1", 2));
+        collection.insertOne(new Document("_id", 0).append("f1", 3));
+        System.out.println(collection.find(Filters.eq("_id", oid)).first());
+        System.out.println(collection.find(Filters.eq("_id", "abc")).first());
+        System.out.println(collection.find(Filters.eq("_id", 0.0)).first());
+        try {
+            collection.insertOne(new Document("_id", 0.0));
+        } catch (MongoWriteException e) {
+            System.out.println("duplicate _id: " + e.getCode());
+        }
+        System.out.println("indexes: " + collection.listIndexes().into(new ArrayList<>()));
+    }
+
+    // 排序字段有索引时按索引的顺序读取，没有索引时在内存中排序，两种方式 skip 和 limit 后的结果应该相同
+    static void sort(MongoCollection<Document> collection) {
+        collection.drop();
+        ArrayList<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            documents.add(new Document("_id", i).append("f1", i % 4).append("f2", 20 - i));
+        collection.insertMany(documents);
+        Bson[] sorts = { Sorts.ascending("f2"), Sorts.descending("f2") };
+        for (Bson sort : sorts) {
+            ArrayList<Object> ids = sortedIds(collection, Filters.gte("f1", 1), sort, 2, 5);
+            collection.createIndex(Indexes.ascending("f2"));
+            ArrayList<Object> indexIds = sortedIds(collection, Filters.gte("f1", 1), sort, 2, 5);
+            collection.dropIndex(Indexes.ascending("f2"));
+            System.out.println(sort + " skip 2 limit 5: " + indexIds + ", same as without index: "
+                    + ids.equals(indexIds));
+        }
+    }
+
+    // 排序字段是数组时升序按最小的元素、降序按最大的元素排序，前面的索引字段是等值条件
+    // 而且排序方向跟索引一致时用 MergeStage 合并数组和普通值两部分索引记录
+    static void arraySort(MongoCollection<Document> collection) {
+        collection.drop();
+        ArrayList<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Object f2 = i % 2 == 0 ? Arrays.asList(i * 10, 1000 - i) : i * 10 + 5;
+            documents.add(new Document("_id", i).append("f1", 1).append("f2", f2));
+        }
+        documents.add(new Document("_id", 10).append("f1", 2).append("f2", 0));
+        collection.insertMany(documents);
+        Bson[] sorts = { Sorts.ascending("f2"), Sorts.descending("f2") };
+        Bson[] indexes = { Indexes.ascending("f1", "f2"),
+                Indexes.compoundIndex(Indexes.ascending("f1"), Indexes.descending("f2")) };
+        for (int i = 0; i < sorts.length; i++) {
+            Bson sort = sorts[i];
+            ArrayList<Object> ids = sortedIds(collection, Filters.eq("f1", 1), sort, 1, 5);
+            collection.createIndex(indexes[i]);
+            ArrayList<Object> indexIds = sortedIds(collection, Filters.eq("f1", 1), sort, 1, 5);
+            Document explain = collection.find(Filters.eq("f1", 1)).sort(sort)
+                    .explain(ExplainVerbosity.QUERY_PLANNER);
+            collection.dropIndex(indexes[i]);
+            System.out.println(sort + " skip 1 limit 5: " + indexIds + ", same as without index: "
+                    + ids.equals(indexIds) + ", SORT_MERGE: " + explain.toJson().contains("SORT_MERGE"));
+        }
+    }
+
+    // 删除的文档超过一个分块(1000 个)时分多次提交，同时有其他连接插入文档让索引页分裂，
+    // 每次提交之后从最后删除的索引项之后重新扫描，所有匹配的文档都要删掉
+    static void chunkedDelete(MongoCollection<Document> collection) {
+        collection.drop();
+        collection.createIndex(Indexes.ascending("f1"));
+        ArrayList<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+            documents.add(createDocument(i * 2, 1));
+        collection.insertMany(documents);
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread inserter = new Thread(() -> {
+            for (int i = 0; !stop.get(); i++) {
+                ArrayList<Document> list = new ArrayList<>();
+                for (int j = 0; j < 100; j++)
+                    list.add(createDocument((i * 100 + j) * 2 % 10000 + 1, 0));
+                collection.insertMany(list);
+            }
+        });
+        inserter.start();
+        DeleteResult r = collection.deleteMany(Filters.and(Filters.gte("f1", 0), Filters.eq("f2", 1)));
+        stop.set(true);
+        try {
+            inserter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("chunked deleteMany count: " + r.getDeletedCount() + ", remaining matches: "
+                + collection.countDocuments(Filters.eq("f2", 1)));
+    }
+
+    static ArrayList<Object> sortedIds(MongoCollection<Document> collection, Bson filter, Bson sort,
+            int skip, int limit) {
+        ArrayList<Object> ids = new ArrayList<>();
+        for (Document doc : collection.find(filter).sort(sort).skip(skip).limit(limit))
+            ids.add(doc.get("_id"));
+        return ids;
+    }
+
+    // serverStatus、top 和 collStats 返回的是服务器端统计的指标
+    static void stats(MongoClient mongoClient, MongoCollection<Document> collection) {
+        MongoDatabase admin = mongoClient.getDatabase("admin");
+        Document status = admin.runCommand(new Document("serverStatus", 1).append("opLatencies",
+                new Document("histograms", true)));
+        System.out.println("opcounters: " + status.get("opcounters"));
+        System.out.println("opLatencies: " + status.get("opLatencies"));
+        System.out.println("network: " + status.get("network"));
+        System.out.println("top: " + admin.runCommand(new Document("top", 1)).get("totals"));
+        String collectionName = collection.getNamespace().getCollectionName();
+        MongoDatabase database = mongoClient.getDatabase(collection.getNamespace().getDatabaseName());
+        System.out.println("collStats: " + database.runCommand(new Document("collStats", collectionName)));
+    }
+
+    // 驱动握手时在 isMaster 中带上 compressors，服务器返回协商好的算法，之后的消息都用 OP_COMPRESSED 发送
+    static void compression(String connectionString) {
+        MongoClient mongoClient = MongoClients.create(connectionString + "&compressors=zstd,zlib");
+        MongoCollection<Document> collection = mongoClient.getDatabase("database1")
+                .getCollection("compression");
+        collection.drop();
+        ArrayList<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            documents.add(createDocument(i, i).append("text", "compressed message " + i));
+        collection.insertMany(documents);
+        int count = 0;
+        for (Document doc : collection.find(Filters.gte("f1", 0))) {
+            if (doc.getString("text").equals("compressed message " + doc.getInteger("f1")))
+                count++;
+        }
+        System.out.println("compressed find document count: " + count);
+        Document status = mongoClient.getDatabase("admin").runCommand(new Document("serverStatus", 1));
+        Document compression = (Document) ((Document) status.get("network")).get("compression");
+        System.out.println("zstd: " + compression.get("zstd"));
+        mongoClient.close();
+    }
 }
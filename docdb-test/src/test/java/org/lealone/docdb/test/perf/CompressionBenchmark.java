@@ -0,0 +1,119 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.test.perf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.lealone.docdb.server.compress.MessageCompressor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// 不同大小的 find 响应用各种算法压缩和解压的吞吐量，结束时打印压缩率
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @Param({ "snappy", "zlib", "zstd" })
+    private String compressorName;
+
+    @Param({ "1", "16", "256", "4096" }) // KB
+    private int payloadSize;
+
+    private MessageCompressor compressor;
+    private byte[] payload;
+    private byte[] compressed;
+    private int compressedLength;
+    private byte[] uncompressed;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        compressor = MessageCompressor.create(compressorName);
+        payload = createPayload(payloadSize * 1024);
+        compressed = new byte[compressor.getMaxCompressedLength(payload.length)];
+        compressedLength = compressor.compress(payload, 0, payload.length, compressed, 0);
+        uncompressed = new byte[payload.length];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println();
+        System.out.println(compressorName + " " + payloadSize + "KB ratio: "
+                + String.format("%.2f", (double) payload.length / compressedLength));
+        compressor.close();
+    }
+
+    @Benchmark
+    public int compress() {
+        return compressor.compress(payload, 0, payload.length, compressed, 0);
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        compressor.decompress(compressed, 0, compressedLength, uncompressed, 0, uncompressed.length);
+        return uncompressed;
+    }
+
+    // 跟 find 的响应一样，由一批结构相同的文档组成
+    private static byte[] createPayload(int size) {
+        BsonArray documents = new BsonArray();
+        BsonDocument response = new BsonDocument();
+        BsonDocument cursor = new BsonDocument();
+        cursor.append("id", new BsonInt64(0));
+        cursor.append("ns", new BsonString("database1.collection1"));
+        cursor.append("firstBatch", documents);
+        response.append("cursor", cursor);
+        response.append("ok", new BsonInt32(1));
+        BsonDocumentCodec codec = new BsonDocumentCodec();
+        EncoderContext encoderContext = EncoderContext.builder().build();
+        for (int i = 0, n = 0; n < size; i++) {
+            BsonDocument doc = new BsonDocument();
+            doc.append("_id", new BsonInt32(i));
+            doc.append("name", new BsonString("user" + i));
+            doc.append("email", new BsonString("user" + i + "@example.com"));
+            doc.append("age", new BsonInt32(20 + i % 50));
+            doc.append("score", new BsonInt64(i * 31L % 1000));
+            documents.add(doc);
+            n += 100; // 每个文档大约 100 字节
+        }
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(out), response, encoderContext);
+        byte[] bytes = out.toByteArray();
+        out.close();
+        return bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder().include(CompressionBenchmark.class.getSimpleName()).build();
+        new Runner(opt).run();
+    }
+}
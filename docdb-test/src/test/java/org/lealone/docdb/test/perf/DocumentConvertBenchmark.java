@@ -0,0 +1,87 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.test.perf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.lealone.db.result.Row;
+import org.lealone.db.value.Value;
+import org.lealone.db.value.ValueBytes;
+import org.lealone.docdb.server.command.BsonCommand;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// 文档和行之间的转换，写入时 toBytes 编码成 BSON 字节，读取时 toBsonDocument 按需解析，
+// 读一个字段和读整个文档分开测
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentConvertBenchmark {
+
+    @Param({ "10", "100" })
+    private int fieldCount;
+
+    private BsonDocument document;
+    private Row row;
+
+    @Setup
+    public void setup() {
+        document = new BsonDocument("_id", new BsonInt32(1));
+        for (int i = 1; i < fieldCount; i++) {
+            if (i % 2 == 0)
+                document.append("f" + i, new BsonInt32(i));
+            else
+                document.append("f" + i, new BsonString("value" + i));
+        }
+        row = new Row(new Value[] { ValueBytes.getNoCopy(BsonCommand.toBytes(document)) }, 0);
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return BsonCommand.toBytes(document);
+    }
+
+    @Benchmark
+    public BsonValue readOneField() {
+        return BsonCommand.toBsonDocument(row).get("_id");
+    }
+
+    @Benchmark
+    public int readAllFields() {
+        int n = 0;
+        for (BsonValue v : BsonCommand.toBsonDocument(row).values()) {
+            if (v != null)
+                n++;
+        }
+        return n;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder().include(DocumentConvertBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build();
+        new Runner(opt).run();
+    }
+}
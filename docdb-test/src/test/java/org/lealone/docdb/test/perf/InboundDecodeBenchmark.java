@@ -0,0 +1,105 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.test.perf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.ByteBufNIO;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.io.ByteBufferBsonInput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// 对比收到一个 OP_MSG 包后先复制到 byte[] 再解码和直接在 ByteBuffer 上解码，看 gc.alloc.rate.norm
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundDecodeBenchmark {
+
+    private final BsonDocumentCodec codec = new BsonDocumentCodec();
+    private final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    private ByteBuffer packet; // 跟 NetBuffer 一样是 direct buffer
+
+    @Setup
+    public void setup() {
+        BsonDocument doc = new BsonDocument();
+        doc.append("find", new BsonString("collection1"));
+        doc.append("filter", new BsonDocument("f1", new BsonInt32(1)));
+        doc.append("batchSize", new BsonInt32(101));
+        doc.append("$db", new BsonString("database1"));
+
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        out.writeInt32(1); // requestID
+        out.writeInt32(0); // responseTo
+        out.writeInt32(2013); // opCode
+        out.writeInt32(0); // flagBits
+        out.writeByte(0); // section kind
+        codec.encode(new BsonBinaryWriter(out), doc, EncoderContext.builder().build());
+        byte[] bytes = out.toByteArray();
+        out.close();
+        packet = ByteBuffer.allocateDirect(bytes.length);
+        packet.put(bytes);
+        packet.flip();
+    }
+
+    @Benchmark
+    public BsonDocument copyDecode() {
+        ByteBuffer buffer = packet.duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    @Benchmark
+    public BsonDocument zeroCopyDecode() {
+        return decode(packet.duplicate());
+    }
+
+    private BsonDocument decode(ByteBuffer buffer) {
+        ByteBufferBsonInput input = new ByteBufferBsonInput(new ByteBufNIO(buffer));
+        try {
+            input.readInt32();
+            input.readInt32();
+            input.readInt32();
+            input.readInt32();
+            input.readByte();
+            return codec.decode(new BsonBinaryReader(input), decoderContext);
+        } finally {
+            input.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder().include(InboundDecodeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build();
+        new Runner(opt).run();
+    }
+}
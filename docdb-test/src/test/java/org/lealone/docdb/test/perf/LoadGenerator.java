@@ -0,0 +1,318 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.test.perf;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.Histogram;
+import org.bson.Document;
+import org.lealone.docdb.test.perf.Workload.KeyChooser;
+import org.lealone.main.Lealone;
+import org.lealone.main.config.Config;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+/**
+ * 类似 YCSB 的负载生成器，先用 docdb-test.yaml 在同一个进程中启动服务器(跟 DocDBServerStart 一样)，
+ * 然后通过 mongodb-driver-sync 加载数据并按 workload 的比例执行读、更新、插入、扫描和读改写。
+ *
+ * 常用参数(都有默认值):
+ *   -workload a~f  -records 100000  -operations 100000  -time 0(秒，不为 0 时按时间结束)
+ *   -threads 8  -target 0(每秒的总操作数，不为 0 时是开环负载)  -distribution uniform|zipfian|latest
+ *   -readproportion、-updateproportion、-insertproportion、-scanproportion、-readmodifywriteproportion
+ *   -load true  -run true  -embedded true  -uri mongodb://127.0.0.1:9610
+ *
+ * 闭环负载下每个线程上一个操作完成后马上发下一个；开环负载按固定的时间间隔发请求，
+ * 延迟从计划的发送时间开始算，服务器慢下来时排队的时间也会算进去，不会低估长尾延迟。
+ */
+public class LoadGenerator {
+
+    private static final String DATABASE = "ycsb";
+    private static final String COLLECTION = "usertable";
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    private final HashMap<String, String> options;
+    private final Workload workload;
+    private final long recordCount;
+    private final int threadCount;
+    private final int fieldCount;
+    private final int fieldLength;
+
+    private final AtomicLong nextInsertKey = new AtomicLong();
+    private final AtomicLong insertedCount = new AtomicLong(); // 已经确认插入成功的记录数
+    private final LongAdder doneOperations = new LongAdder();
+
+    private MongoCollection<Document> collection;
+    private KeyChooser keyChooser;
+
+    LoadGenerator(HashMap<String, String> options) {
+        this.options = options;
+        workload = Workload.get(get("workload", "a"));
+        String[] names = { "read", "update", "insert", "scan", "readmodifywrite" };
+        for (int i = 0; i < names.length; i++) {
+            String v = options.get(names[i] + "proportion");
+            if (v != null)
+                workload.proportions[i] = Double.parseDouble(v);
+        }
+        workload.distribution = get("distribution", workload.distribution);
+        workload.maxScanLength = Integer.parseInt(get("maxscanlength", "" + workload.maxScanLength));
+        recordCount = Long.parseLong(get("records", "100000"));
+        threadCount = Integer.parseInt(get("threads", "8"));
+        fieldCount = Integer.parseInt(get("fieldcount", "10"));
+        fieldLength = Integer.parseInt(get("fieldlength", "100"));
+    }
+
+    private String get(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private static String buildKey(long keyNum) {
+        return "user" + Long.toUnsignedString(Workload.fnvHash64(keyNum));
+    }
+
+    private String randomString(Random random) {
+        char[] chars = new char[fieldLength];
+        for (int i = 0; i < fieldLength; i++)
+            chars[i] = (char) (' ' + random.nextInt(95));
+        return new String(chars);
+    }
+
+    private Document buildRecord(long keyNum, Random random) {
+        Document doc = new Document("_id", buildKey(keyNum));
+        for (int i = 0; i < fieldCount; i++)
+            doc.append("field" + i, randomString(random));
+        return doc;
+    }
+
+    void run() throws Exception {
+        if (Boolean.parseBoolean(get("embedded", "true"))) {
+            Config.setProperty("config", "docdb-test.yaml");
+            Lealone.main(new String[0], null);
+        }
+        try (MongoClient client = MongoClients.create(get("uri", "mongodb://127.0.0.1:9610"))) {
+            collection = client.getDatabase(DATABASE).getCollection(COLLECTION);
+            if (Boolean.parseBoolean(get("load", "true")))
+                load();
+            nextInsertKey.set(recordCount);
+            insertedCount.set(recordCount);
+            if (Boolean.parseBoolean(get("run", "true")))
+                runWorkload();
+        }
+    }
+
+    // 每个线程负责一段连续的 key，按批插入
+    private void load() throws Exception {
+        collection.drop();
+        long start = System.nanoTime();
+        ArrayList<Thread> threads = new ArrayList<>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            long from = recordCount * t / threadCount;
+            long to = recordCount * (t + 1) / threadCount;
+            Thread thread = new Thread(() -> {
+                Random random = ThreadLocalRandom.current();
+                ArrayList<Document> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+                for (long k = from; k < to; k++) {
+                    batch.add(buildRecord(k, random));
+                    if (batch.size() == LOAD_BATCH_SIZE || k == to - 1) {
+                        collection.insertMany(batch);
+                        batch.clear();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("[LOAD] Records, %d%n[LOAD] RunTime(ms), %d%n[LOAD] Throughput(ops/sec), %.1f%n",
+                recordCount, ms, recordCount * 1000.0 / Math.max(ms, 1));
+    }
+
+    private void runWorkload() throws Exception {
+        keyChooser = workload.createKeyChooser(recordCount);
+        long operations = Long.parseLong(get("operations", "100000"));
+        long deadline = Long.parseLong(get("time", "0")) * 1000_000_000L;
+        double target = Double.parseDouble(get("target", "0"));
+        // 开环负载时每个线程的请求间隔
+        long intervalNanos = target > 0 ? (long) (threadCount * 1000_000_000L / target) : 0;
+
+        ArrayList<Client> clients = new ArrayList<>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            long n = operations / threadCount + (t < operations % threadCount ? 1 : 0);
+            clients.add(new Client(deadline > 0 ? Long.MAX_VALUE : n, intervalNanos));
+        }
+        long start = System.nanoTime();
+        long end = deadline > 0 ? start + deadline : Long.MAX_VALUE;
+        for (Client c : clients) {
+            c.start = start;
+            c.end = end;
+            c.thread.start();
+        }
+        Thread status = new Thread(() -> printStatus(start));
+        status.setDaemon(true);
+        status.start();
+        for (Client c : clients)
+            c.thread.join();
+        long ns = System.nanoTime() - start;
+        status.interrupt();
+        report(clients, ns);
+    }
+
+    private void printStatus(long start) {
+        long last = 0;
+        try {
+            while (true) {
+                Thread.sleep(10_000);
+                long done = doneOperations.sum();
+                long sec = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+                System.out.printf("%d sec: %d operations; %.1f current ops/sec%n", sec, done,
+                        (done - last) / 10.0);
+                last = done;
+            }
+        } catch (InterruptedException e) {
+            // 结束了
+        }
+    }
+
+    private void report(ArrayList<Client> clients, long ns) {
+        Histogram[] histograms = new Histogram[Workload.OPERATION_NAMES.length];
+        long[] errors = new long[histograms.length];
+        long total = 0;
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram(3);
+            for (Client c : clients) {
+                histograms[i].add(c.histograms[i]);
+                errors[i] += c.errors[i];
+            }
+            total += histograms[i].getTotalCount();
+        }
+        long ms = TimeUnit.NANOSECONDS.toMillis(ns);
+        System.out.printf("[OVERALL] RunTime(ms), %d%n", ms);
+        System.out.printf("[OVERALL] Throughput(ops/sec), %.1f%n", total * 1000.0 / Math.max(ms, 1));
+        for (int i = 0; i < histograms.length; i++) {
+            Histogram h = histograms[i];
+            if (h.getTotalCount() == 0 && errors[i] == 0)
+                continue;
+            String name = "[" + Workload.OPERATION_NAMES[i] + "] ";
+            System.out.printf("%sOperations, %d%n", name, h.getTotalCount());
+            System.out.printf("%sAverageLatency(us), %.1f%n", name, h.getMean());
+            System.out.printf("%s50thPercentileLatency(us), %d%n", name, h.getValueAtPercentile(50));
+            System.out.printf("%s99thPercentileLatency(us), %d%n", name, h.getValueAtPercentile(99));
+            System.out.printf("%s99.9PercentileLatency(us), %d%n", name, h.getValueAtPercentile(99.9));
+            System.out.printf("%sMaxLatency(us), %d%n", name, h.getMaxValue());
+            System.out.printf("%sErrors, %d%n", name, errors[i]);
+        }
+    }
+
+    private class Client implements Runnable {
+
+        final Thread thread = new Thread(this);
+        final Histogram[] histograms = new Histogram[Workload.OPERATION_NAMES.length];
+        final long[] errors = new long[histograms.length];
+        final long operations;
+        final long intervalNanos;
+        long start;
+        long end;
+
+        Client(long operations, long intervalNanos) {
+            this.operations = operations;
+            this.intervalNanos = intervalNanos;
+            for (int i = 0; i < histograms.length; i++)
+                histograms[i] = new Histogram(3);
+        }
+
+        @Override
+        public void run() {
+            Random random = ThreadLocalRandom.current();
+            for (long i = 0; i < operations; i++) {
+                long begin = System.nanoTime();
+                if (intervalNanos > 0) {
+                    long intended = start + i * intervalNanos;
+                    while (begin < intended) {
+                        LockSupport.parkNanos(intended - begin);
+                        begin = System.nanoTime();
+                    }
+                    begin = intended;
+                }
+                if (begin >= end)
+                    break;
+                int op = workload.nextOperation(random);
+                boolean ok;
+                try {
+                    ok = execute(op, random);
+                } catch (Exception e) {
+                    ok = false;
+                }
+                if (ok)
+                    histograms[op].recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - begin));
+                else
+                    errors[op]++;
+                doneOperations.increment();
+            }
+        }
+
+        private boolean execute(int op, Random random) {
+            switch (op) {
+            case Workload.READ:
+                return read(random) != null;
+            case Workload.UPDATE:
+                return update(random);
+            case Workload.INSERT: {
+                long keyNum = nextInsertKey.getAndIncrement();
+                collection.insertOne(buildRecord(keyNum, random));
+                insertedCount.accumulateAndGet(keyNum + 1, Math::max);
+                return true;
+            }
+            case Workload.SCAN: {
+                String key = buildKey(keyChooser.next(random, insertedCount.get()));
+                int length = 1 + random.nextInt(workload.maxScanLength);
+                collection.find(Filters.gte("_id", key)).sort(Sorts.ascending("_id")).limit(length)
+                        .into(new ArrayList<>(length));
+                return true;
+            }
+            default: // READ_MODIFY_WRITE
+                return read(random) != null && update(random);
+            }
+        }
+
+        private Document read(Random random) {
+            String key = buildKey(keyChooser.next(random, insertedCount.get()));
+            return collection.find(Filters.eq("_id", key)).first();
+        }
+
+        private boolean update(Random random) {
+            String key = buildKey(keyChooser.next(random, insertedCount.get()));
+            String field = "field" + random.nextInt(fieldCount);
+            return collection.updateOne(Filters.eq("_id", key), Updates.set(field, randomString(random)))
+                    .getMatchedCount() == 1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String arg = args[i].trim();
+            if (!arg.startsWith("-"))
+                throw new IllegalArgumentException("Invalid option: " + arg);
+            options.put(arg.substring(1).toLowerCase(), args[i + 1].trim());
+        }
+        new LoadGenerator(options).run();
+        System.exit(0); // 内嵌的服务器线程不是 daemon 线程
+    }
+}
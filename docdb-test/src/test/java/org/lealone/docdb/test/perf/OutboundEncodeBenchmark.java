@@ -0,0 +1,142 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.test.perf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonArray;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.io.BsonOutput;
+import org.lealone.db.DataBufferFactory;
+import org.lealone.docdb.server.NetBufferBsonOutput;
+import org.lealone.net.NetBuffer;
+import org.lealone.net.NetBufferFactory;
+import org.lealone.net.NetBufferOutputStream;
+import org.lealone.net.WritableChannel;
+import org.lealone.net.nio.NioBufferFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// 对比 find 响应先编码到 BasicOutputBuffer 再复制到 NetBuffer 和直接编码到 NetBuffer，看 gc.alloc.rate.norm
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutboundEncodeBenchmark {
+
+    private final BsonDocumentCodec codec = new BsonDocumentCodec();
+    private final EncoderContext encoderContext = EncoderContext.builder().build();
+    private final DataBufferFactory dataBufferFactory = DataBufferFactory.getConcurrentFactory();
+    private final WritableChannel channel = new RecycleChannel();
+    private final NetBufferBsonOutput output = new NetBufferBsonOutput(channel, dataBufferFactory);
+
+    private BsonDocument response;
+
+    @Setup
+    public void setup() {
+        BsonArray documents = new BsonArray();
+        for (int i = 0; i < 20; i++) {
+            BsonDocument doc = new BsonDocument();
+            doc.append("_id", new BsonInt32(i));
+            doc.append("f1", new BsonInt32(i));
+            doc.append("f2", new BsonString("value" + i));
+            documents.add(doc);
+        }
+        BsonDocument cursor = new BsonDocument();
+        cursor.append("id", new BsonInt64(0));
+        cursor.append("ns", new BsonString("database1.collection1"));
+        cursor.append("firstBatch", documents);
+        response = new BsonDocument("cursor", cursor);
+        response.append("ok", new BsonInt32(1));
+    }
+
+    @Benchmark
+    public void copyEncode() throws Exception {
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        writeReply(out);
+        byte[] data = out.toByteArray();
+        out.close();
+        try (NetBufferOutputStream stream = new NetBufferOutputStream(channel, data.length,
+                dataBufferFactory)) {
+            stream.write(data);
+            stream.flush(false);
+        }
+    }
+
+    @Benchmark
+    public void directEncode() {
+        NetBufferBsonOutput out = output.reset(NetBufferBsonOutput.DEFAULT_BUFFER_SIZE);
+        writeReply(out);
+        out.flush();
+    }
+
+    private void writeReply(BsonOutput out) {
+        out.writeInt32(0);
+        out.writeInt32(1);
+        out.writeInt32(1);
+        out.writeInt32(1);
+        out.writeInt32(0);
+        out.writeInt64(0);
+        out.writeInt32(0);
+        out.writeInt32(1);
+        codec.encode(new BsonBinaryWriter(out), response, encoderContext);
+        out.writeInt32(0, out.getPosition());
+    }
+
+    // 模拟写到网络之后回收 buffer
+    private static class RecycleChannel implements WritableChannel {
+        @Override
+        public void write(NetBuffer data) {
+            data.recycle();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getHost() {
+            return null;
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        public NetBufferFactory getBufferFactory() {
+            return NioBufferFactory.getInstance();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder().include(OutboundEncodeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.test.perf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.lealone.main.Lealone;
+import org.lealone.main.config.Config;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+
+// 在同一个进程中启动 docdb-test.yaml 配置的服务器，通过驱动测端到端的延迟，
+// ping 基本上只有收包解码和响应编码的开销，其他几个覆盖 _id 点查、过滤扫描和批量插入。
+// 结果写到 target/jmh-server.json，升级前后或者不同版本之间可以直接对比。
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+
+    private static final int DOCUMENT_COUNT = 50000;
+    private static final int BATCH_SIZE = 100;
+
+    private MongoClient client;
+    private MongoDatabase db;
+    private MongoCollection<Document> collection;
+    private MongoCollection<Document> insertCollection;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Config.setProperty("config", "docdb-test.yaml");
+        Lealone.main(new String[0], null);
+        client = MongoClients.create("mongodb://127.0.0.1:9610");
+        db = client.getDatabase("bench");
+        collection = db.getCollection("docs");
+        collection.drop();
+        ArrayList<Document> documents = new ArrayList<>(1000);
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            documents.add(createDocument(i));
+            if (documents.size() == 1000) {
+                collection.insertMany(documents);
+                documents.clear();
+            }
+        }
+        collection.createIndex(Indexes.ascending("k"));
+        insertCollection = db.getCollection("inserts");
+    }
+
+    @Setup(Level.Iteration)
+    public void clearInserts() {
+        insertCollection.drop();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close();
+    }
+
+    private static Document createDocument(int i) {
+        return new Document("_id", i).append("k", i % 1000).append("v", i).append("s", "s" + i)
+                .append("pad", "abcdefghijklmnopqrstuvwxyz0123456789");
+    }
+
+    @Benchmark
+    public Document ping() {
+        return db.runCommand(new Document("ping", 1));
+    }
+
+    @Benchmark
+    public Document findById() {
+        int id = ThreadLocalRandom.current().nextInt(DOCUMENT_COUNT);
+        return collection.find(Filters.eq("_id", id)).first();
+    }
+
+    // 用 k 上的索引，每次返回 50 个文档
+    @Benchmark
+    public List<Document> indexScan() {
+        int k = ThreadLocalRandom.current().nextInt(1000);
+        return collection.find(Filters.eq("k", k)).into(new ArrayList<>());
+    }
+
+    // v 上没有索引，扫描整个集合只返回 10 个文档
+    @Benchmark
+    public List<Document> filteredScan() {
+        int v = ThreadLocalRandom.current().nextInt(DOCUMENT_COUNT - 10);
+        return collection.find(Filters.and(Filters.gte("v", v), Filters.lt("v", v + 10)))
+                .into(new ArrayList<>());
+    }
+
+    // _id 由驱动生成，测的是一批文档一次往返的时间
+    @Benchmark
+    public void insertBatch() {
+        ArrayList<Document> documents = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++)
+            documents.add(new Document("k", i).append("pad", "abcdefghijklmnopqrstuvwxyz0123456789"));
+        insertCollection.insertMany(documents);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder().include(ServerBenchmark.class.getSimpleName())
+                .resultFormat(ResultFormatType.JSON).result("target/jmh-server.json").build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.test.perf;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.lealone.docdb.server.update.DocumentUpdate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// 对比 $inc 直接改 BSON 字节和把整个文档解码、修改再编码，看耗时和 gc.alloc.rate.norm
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdateBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    private int fieldCount;
+
+    private final BsonDocumentCodec codec = new BsonDocumentCodec();
+    private final DocumentUpdate update = DocumentUpdate
+            .compile(new BsonDocument("$inc", new BsonDocument("cnt", new BsonInt32(1))));
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        BsonDocument doc = new BsonDocument("_id", new BsonInt32(1));
+        for (int i = 0; i < fieldCount; i++)
+            doc.append("f" + i, new BsonString("value" + i));
+        doc.append("cnt", new BsonInt32(0));
+        bytes = encode(doc);
+    }
+
+    @Benchmark
+    public byte[] inPlaceInc() {
+        return update.apply(bytes);
+    }
+
+    @Benchmark
+    public byte[] decodeEncodeInc() {
+        BsonDocument doc = new RawBsonDocument(bytes).decode(codec);
+        doc.put("cnt", new BsonInt32(doc.getInt32("cnt").getValue() + 1));
+        return encode(doc);
+    }
+
+    private byte[] encode(BsonDocument doc) {
+        BasicOutputBuffer out = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(out), doc, EncoderContext.builder().build());
+        byte[] data = out.toByteArray();
+        out.close();
+        return data;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder().include(UpdateBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build();
+        new Runner(opt).run();
+    }
+}
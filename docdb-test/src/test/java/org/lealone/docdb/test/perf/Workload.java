@@ -0,0 +1,144 @@
+/*
+ * Copyright Lealone Database Group.
+ * Licensed under the Server Side Public License, v 1.
+ * Initial Developer: zhh
+ */
+package org.lealone.docdb.test.perf;
+
+import java.util.Random;
+
+// YCSB core workload 的参数，a 到 f 是 YCSB 的标准负载，也可以用命令行参数覆盖各个比例
+public class Workload {
+
+    public static final int READ = 0;
+    public static final int UPDATE = 1;
+    public static final int INSERT = 2;
+    public static final int SCAN = 3;
+    public static final int READ_MODIFY_WRITE = 4;
+
+    public static final String[] OPERATION_NAMES = { "READ", "UPDATE", "INSERT", "SCAN",
+            "READ-MODIFY-WRITE" };
+
+    public static final String UNIFORM = "uniform";
+    public static final String ZIPFIAN = "zipfian";
+    public static final String LATEST = "latest";
+
+    final double[] proportions = new double[OPERATION_NAMES.length];
+    String distribution = ZIPFIAN;
+    int maxScanLength = 100;
+
+    public static Workload get(String name) {
+        Workload w = new Workload();
+        switch (name.toLowerCase()) {
+        case "a": // update heavy
+            w.proportions[READ] = 0.5;
+            w.proportions[UPDATE] = 0.5;
+            break;
+        case "b": // read mostly
+            w.proportions[READ] = 0.95;
+            w.proportions[UPDATE] = 0.05;
+            break;
+        case "c": // read only
+            w.proportions[READ] = 1;
+            break;
+        case "d": // read latest
+            w.proportions[READ] = 0.95;
+            w.proportions[INSERT] = 0.05;
+            w.distribution = LATEST;
+            break;
+        case "e": // short ranges
+            w.proportions[SCAN] = 0.95;
+            w.proportions[INSERT] = 0.05;
+            break;
+        case "f": // read-modify-write
+            w.proportions[READ] = 0.5;
+            w.proportions[READ_MODIFY_WRITE] = 0.5;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown workload: " + name);
+        }
+        return w;
+    }
+
+    public int nextOperation(Random random) {
+        double total = 0;
+        for (double p : proportions)
+            total += p;
+        double r = random.nextDouble() * total;
+        for (int i = 0; i < proportions.length; i++) {
+            r -= proportions[i];
+            if (r < 0)
+                return i;
+        }
+        return READ;
+    }
+
+    public KeyChooser createKeyChooser(long recordCount) {
+        switch (distribution) {
+        case UNIFORM:
+            return (random, count) -> (long) (random.nextDouble() * count);
+        case ZIPFIAN: {
+            // 跟 YCSB 的 ScrambledZipfianGenerator 一样打散热点，不然热点全都集中在最早插入的记录上
+            ZipfianGenerator zipfian = new ZipfianGenerator(recordCount);
+            return (random, count) -> Long.remainderUnsigned(fnvHash64(zipfian.next(random)), count);
+        }
+        case LATEST: {
+            // 越是最近插入的记录越热
+            ZipfianGenerator zipfian = new ZipfianGenerator(recordCount);
+            return (random, count) -> Math.max(count - 1 - zipfian.next(random), 0);
+        }
+        default:
+            throw new IllegalArgumentException("Unknown distribution: " + distribution);
+        }
+    }
+
+    public interface KeyChooser {
+        // count 是当前已经插入的记录数
+        long next(Random random, long count);
+    }
+
+    // Gray 等人在 "Quickly Generating Billion-Record Synthetic Databases" 中的算法，theta 跟 YCSB 一样是 0.99
+    public static class ZipfianGenerator {
+
+        private static final double THETA = 0.99;
+
+        private final long items;
+        private final double alpha;
+        private final double zetan;
+        private final double eta;
+
+        public ZipfianGenerator(long items) {
+            this.items = items;
+            alpha = 1 / (1 - THETA);
+            zetan = zeta(items);
+            eta = (1 - Math.pow(2.0 / items, 1 - THETA)) / (1 - zeta(2) / zetan);
+        }
+
+        private static double zeta(long n) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++)
+                sum += 1 / Math.pow(i, THETA);
+            return sum;
+        }
+
+        public long next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1)
+                return 0;
+            if (uz < 1 + Math.pow(0.5, THETA))
+                return 1;
+            return Math.min((long) (items * Math.pow(eta * u - eta + 1, alpha)), items - 1);
+        }
+    }
+
+    public static long fnvHash64(long v) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < 8; i++) {
+            hash ^= v & 0xff;
+            hash *= 1099511628211L;
+            v >>>= 8;
+        }
+        return hash;
+    }
+}